@@ -0,0 +1,92 @@
+package memsim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows false sharing through the coherence counters.  Every core runs a
+ * straight line of stores of a counter to its own word of one shared data
+ * memory, with the words of neighbouring cores stride bytes apart.  With a
+ * stride of 4 all cores write to the same cache line and keep stealing it
+ * from each other; with a stride of 64 each core has a line to itself.
+ *
+ * Usage: CoherenceBenchmark [maxCores] [millisPerRun]
+ *
+ * @author rdeva
+ */
+public class CoherenceBenchmark {
+
+    private static final int PROGRAM_SIZE = 4096, DATA_SIZE = 4096;
+    private static final CacheConfig L1 = new CacheConfig(8 << 10, 4, 32, CacheConfig.Replacement.PLRU,
+            CacheConfig.WritePolicy.WRITE_BACK),
+            L2 = new CacheConfig(256 << 10, 8, 32, CacheConfig.Replacement.LRU,
+            CacheConfig.WritePolicy.WRITE_BACK);
+
+    private static volatile boolean stop;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxCores = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        measure(4, 1, millis, false); //warm up
+        System.out.printf("%6s %6s %10s %16s %16s %16s%n", "stride", "cores", "MIPS",
+                "invalidations/ki", "interventions/ki", "bus cycles/ki");
+        for (int stride : new int[] {4, 64})
+            for (int cores = 1; cores <= maxCores; cores <<= 1)
+                measure(stride, cores, millis, true);
+    }
+
+    private static void measure(int stride, int cores, long millis, boolean print) throws Exception
+    {
+        Bound programBound = new Bound(0, PROGRAM_SIZE - 4), dataBound = new Bound(0, DATA_SIZE - 4);
+        Memory data = new Memory(DATA_SIZE);
+        List<Core> coreList = new ArrayList<Core>();
+        for (int c = 0; c < cores; ++c)
+        {
+            Memory prog = new Memory(PROGRAM_SIZE);
+            for (int addr = 0; addr < PROGRAM_SIZE; addr += 8)
+            {
+                prog.writeWord(addr, 0xe5812000, programBound);     //STR r2, [r1]
+                prog.writeWord(addr + 4, 0xe2822001, programBound); //ADD r2, r2, #1
+            }
+            Core core = new Core(prog, programBound, data, dataBound);
+            core.registers[1] = c * stride;
+            coreList.add(core);
+        }
+        CoherenceBus bus = new CoherenceBus();
+        CacheHierarchy.attach(coreList, L1, L1, L2, bus);
+
+        Thread[] threads = new Thread[cores];
+        stop = false;
+        for (int c = 0; c < cores; ++c)
+        {
+            final Core core = coreList.get(c);
+            threads[c] = new Thread(new Runnable() {
+                public void run()
+                {
+                    while (!stop)
+                        core.run();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        Thread.sleep(millis);
+        stop = true;
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - start;
+
+        long instructions = 0;
+        for (Core core : coreList)
+            instructions += core.getInstructionCount();
+
+        if (print)
+            System.out.printf("%6d %6d %10.2f %16.3f %16.3f %16.3f%n", stride, cores,
+                    instructions * 1000.0 / elapsed, bus.getInvalidations() * 1000.0 / instructions,
+                    bus.getInterventions() * 1000.0 / instructions, bus.getCycles() * 1000.0 / instructions);
+    }
+}
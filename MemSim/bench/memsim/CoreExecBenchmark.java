@@ -0,0 +1,89 @@
+package memsim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of executing (decoding included, fetching excluded) one instruction of
+ * each class, with either engine.  Scores are in simulated MIPS.
+ *
+ * Run with: ant run-bench -Dbench.args=CoreExecBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(CoreExecBenchmark.INSTRUCTIONS)
+public class CoreExecBenchmark {
+    static final int INSTRUCTIONS = 1024;
+
+    /*
+     * r1 holds the base address of loads/stores, r2 a small shift amount
+     */
+    @Param({"DP_IMMEDIATE", "DP_IMMEDIATE_SHIFT", "DP_REGISTER_SHIFT", "MULTIPLY", "MULTIPLY_LONG",
+            "LOAD", "STORE", "LOAD_MULTIPLE", "BRANCH"})
+    public String instructionClass;
+
+    @Param({"DECODER", "DISPATCH_TABLE"})
+    public Core.Engine engine;
+
+    private Core core;
+    private int instruction;
+
+    @Setup
+    public void setUp()
+    {
+        Memory m = new Memory(4096);
+        Bound b = new Bound(0, 4092);
+        core = new Core(m, b, m, b);
+        core.registers[1] = 64;
+        core.registers[2] = 3;
+
+        String[] names = {"DP_IMMEDIATE", "DP_IMMEDIATE_SHIFT", "DP_REGISTER_SHIFT", "MULTIPLY",
+                          "MULTIPLY_LONG", "LOAD", "STORE", "LOAD_MULTIPLE", "BRANCH"};
+        int[] encodings = {
+            0xe2833001, //ADD r3, r3, #1
+            0xe0233182, //EOR r3, r3, r2, LSL #3
+            0xe1833233, //ORR r3, r3, r3, LSR r2
+            0xe0030293, //MUL r3, r3, r2
+            0xe0d54293, //SMULL r4, r5, r3, r2
+            0xe5915004, //LDR r5, [r1, #4]
+            0xe5812008, //STR r2, [r1, #8]
+            0xe89100f0, //LDMIA r1, {r4-r7}
+            0xea000000, //B
+        };
+        for (int c = 0; c < names.length; ++c)
+            if (names[c].equals(instructionClass))
+                instruction = encodings[c];
+    }
+
+    @Benchmark
+    public int exec() throws Exception
+    {
+        int instr = instruction;
+        if (engine == Core.Engine.DISPATCH_TABLE)
+            for (int c = 0; c < INSTRUCTIONS; ++c)
+                DispatchTable.execute(core, instr);
+        else
+            for (int c = 0; c < INSTRUCTIONS; ++c)
+                core.exec(instr);
+
+        core.registers[15] = 0; //branches keep moving it
+        return core.registers[3];
+    }
+}
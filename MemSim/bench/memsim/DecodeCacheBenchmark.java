@@ -0,0 +1,76 @@
+package memsim;
+
+/**
+ * Compares simulated MIPS with the decode cache on and off.  The program is a
+ * block of data processing and load/store instructions which every Core.run
+ * executes from the start, so (like a hot loop) the same instructions are
+ * executed over and over.
+ *
+ * Usage: DecodeCacheBenchmark [millisPerRun]
+ *
+ * @author rdeva
+ */
+public class DecodeCacheBenchmark {
+    private static final int PROGRAM_SIZE = 4096; //bytes
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+        measure(true, millis);  //warm up
+        measure(false, millis);
+
+        double off = measure(false, millis), on = measure(true, millis);
+        System.out.printf("decode cache off: %10.2f MIPS%n", off);
+        System.out.printf("decode cache on:  %10.2f MIPS (%.2fx)%n", on, on / off);
+    }
+
+    private static double measure(boolean decodeCache, long millis) throws Exception
+    {
+        Memory prog = new Memory(PROGRAM_SIZE), data = new Memory(PROGRAM_SIZE);
+        Bound b = new Bound(0, PROGRAM_SIZE - 4);
+        writeProgram(prog, b);
+
+        Core core = new Core(prog, b, data, b);
+        core.setDecodeCacheEnabled(decodeCache);
+
+        long start = System.nanoTime(), end = start + millis * 1000000L, now;
+        do
+        {
+            for (int c = 0; c < 16; ++c)
+            {
+                core.registers[1] = 64; //base register of the loads/stores
+                core.run();
+            }
+            now = System.nanoTime();
+        } while (now < end);
+
+        return core.getInstructionCount() * 1000.0 / (now - start);
+    }
+
+    /**
+     * Fill the program memory with a repeating mix of
+     * <code>
+     * ADD r2, r2, #1
+     * EOR r3, r3, r2, LSL #3
+     * ORR r4, r4, r3, LSR r2
+     * LDR r5, [r1, #4]
+     * STR r2, [r1, #8]
+     * SUB r6, r6, r5
+     * </code>
+     */
+    static void writeProgram(Memory prog, Bound b) throws Exception
+    {
+        int[] body = {
+            0xe2822001,
+            0xe0233182,
+            0xe1844233,
+            0xe5915004,
+            0xe5812008,
+            0xe0466005,
+        };
+
+        for (int addr = 0, c = 0; addr < prog.getSize(); addr += 4, ++c)
+            prog.writeWord(addr, body[c % body.length], b);
+    }
+}
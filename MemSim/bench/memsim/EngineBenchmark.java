@@ -0,0 +1,50 @@
+package memsim;
+
+/**
+ * Compares simulated MIPS of the execution engines on the same program
+ * as DecodeCacheBenchmark.
+ *
+ * Usage: EngineBenchmark [millisPerRun]
+ *
+ * @author rdeva
+ */
+public class EngineBenchmark {
+    private static final int PROGRAM_SIZE = 4096; //bytes
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+        for (Core.Engine engine : Core.Engine.values())
+            measure(engine, false, millis); //warm up
+
+        for (Core.Engine engine : Core.Engine.values())
+            for (int cache = 0; cache < 2; ++cache)
+                System.out.printf("%-16s decode cache %-3s %10.2f MIPS%n", engine,
+                        cache == 1 ? "on" : "off", measure(engine, cache == 1, millis));
+    }
+
+    private static double measure(Core.Engine engine, boolean decodeCache, long millis) throws Exception
+    {
+        Memory prog = new Memory(PROGRAM_SIZE), data = new Memory(PROGRAM_SIZE);
+        Bound b = new Bound(0, PROGRAM_SIZE - 4);
+        DecodeCacheBenchmark.writeProgram(prog, b);
+
+        Core core = new Core(prog, b, data, b);
+        core.setEngine(engine);
+        core.setDecodeCacheEnabled(decodeCache);
+
+        long start = System.nanoTime(), end = start + millis * 1000000L, now;
+        do
+        {
+            for (int c = 0; c < 16; ++c)
+            {
+                core.registers[1] = 64;
+                core.run();
+            }
+            now = System.nanoTime();
+        } while (now < end);
+
+        return core.getInstructionCount() * 1000.0 / (now - start);
+    }
+}
@@ -0,0 +1,105 @@
+package memsim;
+
+import java.util.List;
+
+/**
+ * Measures how simulated instruction throughput scales with the number of cores
+ * given to Processor.setCores.  Every core runs a loop incrementing each word
+ * of the top half of its data segment in turn, so a third of its instructions are loads and
+ * stores going through the shared memory's lock stripes, for a fixed amount of
+ * wall clock time; the total number of instructions is reported in simulated
+ * MIPS.  The decode cache is off, so fetches go to the memory too.
+ *
+ * Usage: FetchScalingBenchmark [maxCores] [millisPerRun]
+ *
+ * @author rdeva
+ */
+public class FetchScalingBenchmark {
+
+    /*
+     * loop: LDR r2, [r1]
+     *       ADD r2, r2, #1
+     *       STR r2, [r1]
+     *       ADD r1, r1, #4
+     *       AND r1, r1, #0xfc
+     *       ORR r1, r1, #0x80    (stays clear of the program in a Von Neumann segment)
+     *       B loop
+     */
+    private static final int[] PROGRAM = {0xe5912000, 0xe2822001, 0xe5812000, 0xe2811004,
+                                          0xe20110fc, 0xe3811080, 0xeafffff8};
+
+    private static volatile boolean stop;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxCores = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        for (ProcessorFactory.MemoryArchitecture arch : ProcessorFactory.MemoryArchitecture.values())
+        {
+            measure(arch, 1, millis); //warm up
+
+            double base = 0;
+            System.out.printf("%s%n%6s %12s %8s%n", arch, "cores", "MIPS", "speedup");
+            for (int cores = 1; cores <= maxCores; cores <<= 1)
+            {
+                double mips = measure(arch, cores, millis);
+                if (cores == 1)
+                    base = mips;
+                System.out.printf("%6d %12.2f %8.2f%n", cores, mips, mips / base);
+            }
+        }
+    }
+
+    /**
+     * Run a processor with the given number of cores for millis ms.
+     * @return simulated million instructions per second, summed over all cores
+     */
+    private static double measure(ProcessorFactory.MemoryArchitecture arch, int cores, long millis)
+            throws Exception
+    {
+        Processor p = ProcessorFactory.createProcessor(arch);
+        p.setCores(cores);
+
+        List<Core> coreList = p.getCoreList();
+        for (Core core : coreList)
+        {
+            core.setDecodeCacheEnabled(false);
+            for (int c = 0; c < PROGRAM.length; ++c)
+                core.getProgramMemory().writeWord(c * 4, PROGRAM[c], core.getProgramBound());
+            core.registers[1] = 0x80;
+        }
+
+        Thread[] threads = new Thread[coreList.size()];
+        stop = false;
+
+        for (int c = 0; c < threads.length; ++c)
+        {
+            final Core core = coreList.get(c);
+            threads[c] = new Thread(new Runnable() {
+                public void run()
+                {
+                    core.begin();
+                    while (!stop && core.step(10000))
+                        ;
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : threads)
+            t.start();
+        Thread.sleep(millis);
+        stop = true;
+        for (Thread t : threads)
+            t.join();
+        long elapsed = System.nanoTime() - start;
+
+        long instructions = 0;
+        for (Core core : coreList)
+            instructions += core.getInstructionCount();
+
+        return instructions * 1000.0 / elapsed;
+    }
+}
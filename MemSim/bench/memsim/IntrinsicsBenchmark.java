@@ -0,0 +1,58 @@
+package memsim;
+
+/**
+ * Compares simulated MIPS of a memcpy loop (LDMIA/STMIA of four registers)
+ * over the whole data memory with the intrinsics off and on.  Each run ends
+ * at the SWI after the loop.
+ *
+ * Usage: IntrinsicsBenchmark [millisPerRun]
+ *
+ * @author rdeva
+ */
+public class IntrinsicsBenchmark {
+    private static final int DATA_SIZE = 1 << 20; //bytes
+
+    /*
+     * loop: LDMIA r1!, {r3-r6}
+     *       STMIA r0!, {r3-r6}
+     *       SUBS r2, r2, #16
+     *       BNE loop
+     *       SWI
+     */
+    private static final int[] PROGRAM = {0xe8b10078, 0xe8a00078, 0xe2522010, 0x1afffffb, 0xef000000};
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+        measure(false, millis); //warm up
+        measure(true, millis);
+
+        double off = measure(false, millis), on = measure(true, millis);
+        System.out.printf("intrinsics off: %10.2f MIPS%n", off);
+        System.out.printf("intrinsics on:  %10.2f MIPS (%.2fx)%n", on, on / off);
+    }
+
+    private static double measure(boolean intrinsics, long millis) throws Exception
+    {
+        Memory prog = new Memory(Memory.MIN_SIZE), data = new Memory(DATA_SIZE);
+        Bound progBound = new Bound(0, Memory.MIN_SIZE - 4), dataBound = new Bound(0, DATA_SIZE - 4);
+        for (int c = 0; c < PROGRAM.length; ++c)
+            prog.writeWord(c * 4, PROGRAM[c], progBound);
+
+        Core core = new Core(prog, progBound, data, dataBound);
+        core.setIntrinsicsEnabled(intrinsics);
+
+        long start = System.nanoTime(), end = start + millis * 1000000L, now;
+        do
+        {
+            core.registers[0] = DATA_SIZE / 2;
+            core.registers[1] = 0;
+            core.registers[2] = DATA_SIZE / 2;
+            core.run();
+            now = System.nanoTime();
+        } while (now < end);
+
+        return core.getInstructionCount() * 1000.0 / (now - start);
+    }
+}
@@ -0,0 +1,63 @@
+package memsim;
+
+/**
+ * Compares simulated MIPS of a hot loop with the JIT tier off and on.  The loop
+ * is a block of data processing instructions followed by a load that walks
+ * through data memory, so each run ends when the load leaves the bound.
+ *
+ * Usage: JitBenchmark [millisPerRun]
+ *
+ * @author rdeva
+ */
+public class JitBenchmark {
+    private static final int DATA_SIZE = 1 << 20; //bytes
+
+    /*
+     * loop: ADD r1, r1, #4
+     *       EOR r2, r2, r1, LSL #2
+     *       ADD r3, r3, r2, LSR #1
+     *       RSB r4, r4, #100
+     *       BIC r5, r3, #0xf0
+     *       MVN r6, r5, ASR #3
+     *       ORR r8, r8, r6
+     *       SUB r9, r8, r2
+     *       LDR r7, [r1]
+     *       B loop
+     */
+    private static final int[] PROGRAM = {0xe2811004, 0xe0222101, 0xe08330a2, 0xe2644064,
+                                          0xe3c350f0, 0xe1e061c5, 0xe1888006, 0xe0489002,
+                                          0xe5917000, 0xeafffff5};
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+        measure(false, millis); //warm up
+        measure(true, millis);
+
+        double off = measure(false, millis), on = measure(true, millis);
+        System.out.printf("jit off: %10.2f MIPS%n", off);
+        System.out.printf("jit on:  %10.2f MIPS (%.2fx)%n", on, on / off);
+    }
+
+    private static double measure(boolean jit, long millis) throws Exception
+    {
+        Memory prog = new Memory(Memory.MIN_SIZE), data = new Memory(DATA_SIZE);
+        Bound progBound = new Bound(0, Memory.MIN_SIZE - 4), dataBound = new Bound(0, DATA_SIZE - 4);
+        for (int c = 0; c < PROGRAM.length; ++c)
+            prog.writeWord(c * 4, PROGRAM[c], progBound);
+
+        Core core = new Core(prog, progBound, data, dataBound);
+        core.setJitEnabled(jit);
+
+        long start = System.nanoTime(), end = start + millis * 1000000L, now;
+        do
+        {
+            core.registers[1] = 0;
+            core.run();
+            now = System.nanoTime();
+        } while (now < end);
+
+        return core.getInstructionCount() * 1000.0 / (now - start);
+    }
+}
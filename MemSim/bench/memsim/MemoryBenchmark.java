@@ -0,0 +1,105 @@
+package memsim;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw Memory access speed.  A stride of 4 walks consecutive (aligned) words,
+ * larger strides jump around the memory.  Byte accesses use every byte lane.
+ * Memories are kept on the heap, in a little endian byte array, in direct
+ * buffers or in sparse pages.
+ * Scores are in million accesses per second.
+ *
+ * Run with: ant run-bench -Dbench.args=MemoryBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MemoryBenchmark.ACCESSES)
+public class MemoryBenchmark {
+    static final int SIZE = 1 << 20, ACCESSES = 4096;
+
+    @Param({"4", "64", "4100"})
+    public int stride;
+
+    @Param({"HEAP", "BYTES", "DIRECT", "SPARSE"})
+    public String backend;
+
+    private Memory mem;
+    private Bound bound;
+    private final int[] addrs = new int[ACCESSES];
+
+    @Setup
+    public void setUp()
+    {
+        if (backend.equals("DIRECT"))
+            mem = new Memory(new DirectMemoryBackend(SIZE));
+        else if (backend.equals("BYTES"))
+            mem = new Memory(new ByteArrayMemoryBackend(SIZE, ByteOrder.LITTLE_ENDIAN), ByteOrder.LITTLE_ENDIAN);
+        else if (backend.equals("SPARSE"))
+            mem = new Memory(new SparseMemoryBackend(SIZE));
+        else
+            mem = new Memory(new HeapMemoryBackend(SIZE));
+        bound = new Bound(0, SIZE - 4);
+        for (int c = 0; c < ACCESSES; ++c)
+            addrs[c] = (int)(((long)c * stride) % SIZE) & ~3;
+    }
+
+    @Benchmark
+    public int readWord() throws Exception
+    {
+        int sum = 0;
+        for (int c = 0; c < ACCESSES; ++c)
+            sum += mem.readWord(addrs[c], bound);
+        return sum;
+    }
+
+    @Benchmark
+    public int readByte() throws Exception
+    {
+        int sum = 0;
+        for (int c = 0; c < ACCESSES; ++c)
+            sum += mem.readByte(addrs[c] + (c & 3), bound);
+        return sum;
+    }
+
+    @Benchmark
+    public void writeWord() throws Exception
+    {
+        for (int c = 0; c < ACCESSES; ++c)
+            mem.writeWord(addrs[c], c, bound);
+    }
+
+    @Benchmark
+    public void writeByte() throws Exception
+    {
+        for (int c = 0; c < ACCESSES; ++c)
+            mem.writeByte(addrs[c] + (c & 3), (byte)c, bound);
+    }
+
+    @Benchmark
+    public int fetchWord() throws Exception
+    {
+        int sum = 0;
+        for (int c = 0; c < ACCESSES; ++c)
+            sum += mem.fetchWord(addrs[c], bound);
+        return sum;
+    }
+}
@@ -0,0 +1,136 @@
+package memsim;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the simulator's multiply unit (primitive) against the BigInteger
+ * based arithmetic it used to do (bigInteger).  Scores are in simulated
+ * instructions per microsecond, i.e. MIPS.  Run with -prof gc to see the
+ * allocation per instruction; the primitive path should show none.
+ *
+ * Run with: ant run-bench -Dbench.args=MultiplyBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(MultiplyBenchmark.INSTRUCTIONS)
+public class MultiplyBenchmark {
+    static final int INSTRUCTIONS = 1024;
+
+    /*
+     * Operands are in r0/r1, MUL/MLA write r2 (MLA adds r3), the long ones write
+     * r4 (low) and r5 (high)
+     */
+    @Param({"MUL", "MLA", "UMULL", "UMLAL", "SMULL", "SMLAL"})
+    public String instruction;
+
+    private Core core;
+    private int encoded;
+    private boolean isLong, signed, accumulate;
+    private final int[] operands = new int[INSTRUCTIONS];
+
+    @Setup
+    public void setUp()
+    {
+        Memory m = new Memory(Memory.MIN_SIZE);
+        Bound b = new Bound(0, Memory.MIN_SIZE - 4);
+        core = new Core(m, b, m, b);
+
+        Random r = new Random(1);
+        for (int c = 0; c < INSTRUCTIONS; ++c)
+            operands[c] = r.nextInt();
+        core.registers[1] = 0x12345679;
+        core.registers[3] = 42;
+
+        String[] names = {"MUL", "MLA", "UMULL", "UMLAL", "SMULL", "SMLAL"};
+        int[] encodings = {0xe0120190, 0xe0323190, 0xe0954190, 0xe0b54190, 0xe0d54190, 0xe0f54190};
+        for (int c = 0; c < names.length; ++c)
+            if (names[c].equals(instruction))
+                encoded = encodings[c];
+
+        isLong = (encoded & (1 << 23)) != 0;
+        signed = (encoded & (1 << 22)) != 0;
+        accumulate = (encoded & (1 << 21)) != 0;
+    }
+
+    @Benchmark
+    public int primitive() throws Exception
+    {
+        int[] registers = core.registers;
+        for (int c = 0; c < INSTRUCTIONS; ++c)
+        {
+            registers[0] = operands[c];
+            core.parseInstrExt2(encoded);
+        }
+        return registers[2] + registers[4];
+    }
+
+    @Benchmark
+    public int bigInteger()
+    {
+        int[] registers = core.registers;
+        for (int c = 0; c < INSTRUCTIONS; ++c)
+        {
+            registers[0] = operands[c];
+            if (isLong)
+                bigIntegerMultiplyLong(registers, accumulate);
+            else
+                bigIntegerMultiply(registers, accumulate);
+        }
+        return registers[2] + registers[4];
+    }
+
+    /*
+     * What Core used to do for MUL/MLA
+     */
+    private static void bigIntegerMultiply(int[] registers, boolean accumulate)
+    {
+        BigInteger rmBig = new BigInteger(Integer.toString(registers[0])),
+                rsBig = new BigInteger(Integer.toString(registers[1])),
+                rdBig = rmBig.multiply(rsBig);
+        if (accumulate)
+            rdBig = new BigInteger(Integer.toString(registers[3])).add(rdBig);
+
+        if (rdBig.compareTo(new BigInteger(((1 << 32) - 1) + "")) <= 0)
+            registers[2] = rdBig.intValue();
+        else
+            registers[2] = rdBig.and(new BigInteger(((1 << 32) - 1) + "")).intValue();
+    }
+
+    /*
+     * What Core used to do for the long multiplies
+     */
+    private static void bigIntegerMultiplyLong(int[] registers, boolean accumulate)
+    {
+        BigInteger result = new BigInteger(Integer.toString(registers[1]))
+                .multiply(new BigInteger(Integer.toString(registers[0])));
+        if (accumulate)
+        {
+            long toAccumulate = (registers[5] << 32) + registers[4];
+            result = new BigInteger(Long.toString(toAccumulate)).add(result);
+        }
+
+        byte[] resultBytes = result.toByteArray();
+        registers[5] = resultBytes[0];
+        registers[4] = resultBytes[1];
+    }
+}
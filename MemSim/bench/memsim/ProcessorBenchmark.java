@@ -0,0 +1,77 @@
+package memsim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end runs of a whole processor: every core is run in the given
+ * execution mode and the benchmark waits for all of them to finish.  The
+ * "instructions" counter is the simulated MIPS of the processor as a whole;
+ * the primary score is whole processor runs per microsecond.  Compare the
+ * modes at 1024 cores to see what starting a platform thread per core costs.
+ *
+ * Run with: ant run-bench -Dbench.args=ProcessorBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    @Param({"HARVARD", "VON_NEUMANN"})
+    public ProcessorFactory.MemoryArchitecture architecture;
+
+    @Param({"1", "2", "4", "8", "1024"})
+    public int cores;
+
+    @Param({"PLATFORM_THREADS", "VIRTUAL_THREADS", "BOUNDED_POOL"})
+    public Processor.ExecutionMode mode;
+
+    private Processor processor;
+
+    /**
+     * Simulated instructions executed, reported by JMH as a rate
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters
+    {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            instructions = 0;
+        }
+    }
+
+    @Setup
+    public void setUp()
+    {
+        processor = ProcessorFactory.createProcessor(architecture);
+        processor.setCores(cores);
+    }
+
+    @Benchmark
+    public void run(Counters counters) throws InterruptedException
+    {
+        for (CoreResult r : processor.runAll(mode))
+            counters.instructions += r.getInstructions();
+    }
+}
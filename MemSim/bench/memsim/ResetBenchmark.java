@@ -0,0 +1,74 @@
+package memsim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting a clean memory for the next run after one that wrote a few pages:
+ * resetting the old memory, which only zeroes the pages written, against
+ * allocating a new one.  Scores are in microseconds per run.
+ *
+ * Run with: ant run-bench -Dbench.args=ResetBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResetBenchmark {
+
+    @Param({"65536", "16777216"})
+    public int size;
+
+    @Param({"1", "16"})
+    public int pagesWritten;
+
+    private Memory memory;
+    private Bound all;
+
+    @Setup
+    public void setUp()
+    {
+        memory = new Memory(size);
+        all = new Bound(0, size - 4);
+    }
+
+    /**
+     * What a short run does to its memory
+     */
+    private void write(Memory m) throws Exception
+    {
+        int stride = (int)Math.max(4, m.getLongSize() / pagesWritten);
+        for (int c = 0; c < pagesWritten; ++c)
+            m.writeWord(c * stride, c, all);
+    }
+
+    @Benchmark
+    public Memory reset() throws Exception
+    {
+        write(memory);
+        memory.reset();
+        return memory;
+    }
+
+    @Benchmark
+    public Memory allocate() throws Exception
+    {
+        Memory m = new Memory(size);
+        write(m);
+        return m;
+    }
+}
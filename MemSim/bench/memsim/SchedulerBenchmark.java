@@ -0,0 +1,87 @@
+package memsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lock step runs of 256 cores, each with memories of its own (so each is a
+ * domain of its own), against the number of workers and the quantum.  The
+ * "instructions" counter is the simulated MIPS of all the cores together; it
+ * should grow with the workers up to the host's processors, and shows what
+ * the barrier at the end of each round costs at small quanta.
+ *
+ * Run with: ant run-bench -Dbench.args=SchedulerBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+    static final int CORES = 256, MEMORY_SIZE = 16 << 10;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    @Param({"100", "1000", "10000"})
+    public int quantum;
+
+    private final List<Core> cores = new ArrayList<Core>();
+    private LockStepScheduler scheduler;
+
+    /**
+     * Simulated instructions executed, reported by JMH as a rate
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters
+    {
+        public long instructions;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            instructions = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        //ADD r1, r1, #4; EOR r2, r2, r1, LSL #2; ADD r3, r3, r2, LSR #1, over and over
+        int[] body = {0xe2811004, 0xe0222101, 0xe08330a2};
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < CORES; ++c)
+        {
+            Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+            for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+                prog.writeWord(addr, body[(addr >> 2) % body.length], b);
+            cores.add(new Core(prog, b, data, b));
+        }
+        scheduler = new LockStepScheduler(workers, quantum, 0);
+    }
+
+    @Benchmark
+    public void run(Counters counters)
+    {
+        for (CoreResult r : scheduler.run(cores))
+            counters.instructions += r.getInstructions();
+    }
+}
@@ -0,0 +1,77 @@
+package memsim;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Forking a memory that a warm-up filled and having the fork write a few
+ * pages: a copy-on-write snapshot of a sparse memory against a full copy of
+ * a heap one.  Scores are in microseconds per fork.
+ *
+ * Run with: ant run-bench -Dbench.args=SnapshotBenchmark
+ *
+ * @author rdeva
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"65536", "16777216"})
+    public int size;
+
+    @Param({"1", "16"})
+    public int pagesWritten;
+
+    private Memory heap, sparse;
+    private Bound all;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        heap = new Memory(size);
+        sparse = new Memory(new SparseMemoryBackend(size));
+        all = new Bound(0, size - 4);
+        for (int addr = 0; addr < size; addr += SparseMemoryBackend.PAGE_SIZE)
+        {
+            heap.writeWord(addr, addr, all);
+            sparse.writeWord(addr, addr, all);
+        }
+    }
+
+    /**
+     * What a short continuation does to its memory
+     */
+    private Memory write(Memory m) throws Exception
+    {
+        int stride = (int)Math.max(4, m.getLongSize() / pagesWritten);
+        for (int c = 0; c < pagesWritten; ++c)
+            m.writeWord(c * stride, c, all);
+        return m;
+    }
+
+    @Benchmark
+    public Memory copyOnWrite() throws Exception
+    {
+        return write(sparse.snapshot());
+    }
+
+    @Benchmark
+    public Memory fullCopy() throws Exception
+    {
+        return write(heap.snapshot());
+    }
+}
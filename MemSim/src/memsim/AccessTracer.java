@@ -0,0 +1,32 @@
+
+package memsim;
+
+/**
+ * Receives every memory access a Core makes.  A core has no tracer by default,
+ * in which case tracing costs one null check per access.
+ *
+ * @author rdeva
+ */
+public interface AccessTracer {
+    public static final int FETCH = 0,
+                            READ_WORD = 1,
+                            READ_BYTE = 2,
+                            WRITE_WORD = 3,
+                            WRITE_BYTE = 4,
+                            READ_HALF = 5,
+                            WRITE_HALF = 6;
+
+    /**
+     * Number of distinct access kinds
+     */
+    public static final int KINDS = 7;
+
+    /**
+     * Record one access.
+     * @param kind one of FETCH, READ_WORD, READ_BYTE, WRITE_WORD, WRITE_BYTE,
+     *          READ_HALF, WRITE_HALF
+     * @param addr logical address accessed (relative to the core's bound)
+     * @param data the word/byte/halfword read or written
+     */
+    public void access(int kind, int addr, int data);
+}
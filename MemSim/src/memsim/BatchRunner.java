@@ -0,0 +1,386 @@
+
+package memsim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs lots of independent programs, each on core 0 of a processor from
+ * ProcessorFactory, in parallel on a ForkJoinPool.  Processors are pooled and
+ * reset between programs rather than built afresh for each, and the result of
+ * each program is handed to a listener as soon as it's done.
+ *
+ * Also a command line tool:
+ * <code>
+ * java memsim.BatchRunner [-arch HARVARD|VON_NEUMANN] [-order BIG_ENDIAN|LITTLE_ENDIAN] [-threads n] directory|manifest
+ * </code>
+ * which runs every file in the directory, or every program listed in the
+ * manifest, and prints a line per program as it finishes: its name, the
+ * instructions it executed, the time it took in ms, its registers when it
+ * stopped and why it stopped.  A manifest has a program image, optionally
+ * followed by a data image, per line; paths are relative to the manifest,
+ * blank lines and lines starting with # are ignored.
+ *
+ * @author rdeva
+ */
+public class BatchRunner
+{
+    /**
+     * A program to run: an image for program memory and maybe one for data memory
+     */
+    public static final class Job
+    {
+        private final String name;
+        private final File program, data;
+
+        /**
+         * @param name what to call it in the results
+         * @param program program memory image
+         * @param data data memory image, or null to leave it zero
+         */
+        public Job(String name, File program, File data)
+        {
+            this.name = name;
+            this.program = program;
+            this.data = data;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public File getProgram()
+        {
+            return program;
+        }
+
+        public File getData()
+        {
+            return data;
+        }
+    }
+
+    /**
+     * What running a job came to
+     */
+    public static final class Result
+    {
+        private final int index;
+        private final Job job;
+        private final CoreResult result;
+        private final IOException loadError;
+
+        Result(int index, Job job, CoreResult result, IOException loadError)
+        {
+            this.index = index;
+            this.job = job;
+            this.result = result;
+            this.loadError = loadError;
+        }
+
+        /**
+         * @return the job's position in the batch
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public Job getJob()
+        {
+            return job;
+        }
+
+        /**
+         * @return what the core did, or null if the images couldn't be loaded
+         */
+        public CoreResult getCoreResult()
+        {
+            return result;
+        }
+
+        /**
+         * @return why the images couldn't be loaded, or null if they were
+         */
+        public IOException getLoadError()
+        {
+            return loadError;
+        }
+
+        /**
+         * @return name, instructions, ms, registers and why it stopped, tab separated
+         */
+        @Override
+        public String toString()
+        {
+            if (result == null)
+                return job.getName() + "\t-\t-\t-\tcouldn't load: " + loadError.getMessage();
+
+            StringBuilder registers = new StringBuilder();
+            for (int r : result.getRegisters())
+                registers.append(registers.length() == 0 ? "" : ",").append(r);
+            Exception cause = result.getStopCause();
+            return job.getName() + "\t" + result.getInstructions() + "\t"
+                    + String.format("%.3f", result.getNanos() / 1e6) + "\t" + registers + "\t"
+                    + (cause == null ? "ran off the end" : cause.toString());
+        }
+    }
+
+    /**
+     * Told about each job as it finishes, from whichever worker ran it, so it
+     * has to be thread safe
+     */
+    public interface Listener
+    {
+        public void finished(Result r);
+    }
+
+    private final ProcessorFactory.MemoryArchitecture architecture;
+    private final ByteOrder order;
+    private final int parallelism;
+    private final ConcurrentLinkedQueue<Processor> idle = new ConcurrentLinkedQueue<Processor>();
+
+    /**
+     * @param architecture what kind of processor to run the programs on
+     * @param parallelism number of programs run at once
+     * @throws IllegalArgumentException if parallelism isn't positive
+     */
+    public BatchRunner(ProcessorFactory.MemoryArchitecture architecture, int parallelism)
+            throws IllegalArgumentException
+    {
+        this(architecture, ByteOrder.BIG_ENDIAN, parallelism);
+    }
+
+    /**
+     * @param architecture what kind of processor to run the programs on
+     * @param order byte order of the processors' memories (little endian for most ARM executables)
+     * @param parallelism number of programs run at once
+     * @throws IllegalArgumentException if parallelism isn't positive
+     */
+    public BatchRunner(ProcessorFactory.MemoryArchitecture architecture, ByteOrder order, int parallelism)
+            throws IllegalArgumentException
+    {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be > 0");
+        this.architecture = architecture;
+        this.order = order;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Run every job, telling listener about each one as it finishes
+     */
+    public void run(List<Job> jobs, Listener listener)
+    {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try
+        {
+            pool.invoke(new Batch(jobs, 0, jobs.size(), listener));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run every job
+     * @return the results, in job order
+     */
+    public List<Result> runAll(List<Job> jobs)
+    {
+        final Result[] results = new Result[jobs.size()];
+        run(jobs, new Listener() {
+            public void finished(Result r)
+            {
+                results[r.getIndex()] = r;
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Run one job on a pooled processor
+     */
+    private Result run(int index, Job job)
+    {
+        Processor p = idle.poll();
+        if (p == null)
+            p = ProcessorFactory.createProcessor(architecture, order);
+        else
+            p.reset();
+
+        try
+        {
+            p.setCoreMemoryContents(0, job.getProgram(), job.getData());
+            return new Result(index, job, CoreResult.run(0, p.getCoreList().get(0)), null);
+        }
+        catch (IOException e)
+        {
+            return new Result(index, job, null, e);
+        }
+        finally
+        {
+            idle.offer(p);
+        }
+    }
+
+    /**
+     * Runs a range of jobs, splitting it between workers
+     */
+    private final class Batch extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Job> jobs;
+        private final int from, to;
+        private final Listener listener;
+
+        Batch(List<Job> jobs, int from, int to, Listener listener)
+        {
+            this.jobs = jobs;
+            this.from = from;
+            this.to = to;
+            this.listener = listener;
+        }
+
+        protected void compute()
+        {
+            if (to - from == 1)
+                listener.finished(run(from, jobs.get(from)));
+            else if (to - from > 1)
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Batch(jobs, from, mid, listener), new Batch(jobs, mid, to, listener));
+            }
+        }
+    }
+
+    /**
+     * @return a job for every (non hidden) file in dir, in name order
+     * @throws IOException if dir can't be listed
+     */
+    public static List<Job> fromDirectory(File dir) throws IOException
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("can't list " + dir);
+        Arrays.sort(files);
+
+        List<Job> jobs = new ArrayList<Job>();
+        for (File f : files)
+            if (f.isFile() && !f.isHidden())
+                jobs.add(new Job(f.getName(), f, null));
+        return jobs;
+    }
+
+    /**
+     * @return a job for every program in the manifest
+     * @throws IOException if the manifest can't be read
+     */
+    public static List<Job> fromManifest(File manifest) throws IOException
+    {
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        List<Job> jobs = new ArrayList<Job>();
+        BufferedReader in = new BufferedReader(new FileReader(manifest));
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+
+                String[] paths = line.split("\\s+");
+                if (paths.length > 2)
+                    throw new IOException("more than a program and data image: " + line);
+                File program = resolve(dir, paths[0]), data = paths.length > 1 ? resolve(dir, paths[1]) : null;
+                jobs.add(new Job(paths[0], program, data));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return jobs;
+    }
+
+    private static File resolve(File dir, String path)
+    {
+        File f = new File(path);
+        return f.isAbsolute() ? f : new File(dir, path);
+    }
+
+    private static void usage()
+    {
+        System.err.println("usage: java memsim.BatchRunner [-arch HARVARD|VON_NEUMANN] [-order BIG_ENDIAN|LITTLE_ENDIAN]"
+                + " [-threads n] directory|manifest");
+        System.exit(2);
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args)
+    {
+        ProcessorFactory.MemoryArchitecture architecture = ProcessorFactory.MemoryArchitecture.VON_NEUMANN;
+        ByteOrder order = ByteOrder.BIG_ENDIAN;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File images = null;
+
+        try
+        {
+            for (int c = 0; c < args.length; ++c)
+            {
+                if (args[c].equals("-arch") && c + 1 < args.length)
+                    architecture = ProcessorFactory.MemoryArchitecture.valueOf(args[++c]);
+                else if (args[c].equals("-order") && c + 1 < args.length)
+                {
+                    if (args[++c].equals(ByteOrder.LITTLE_ENDIAN.toString()))
+                        order = ByteOrder.LITTLE_ENDIAN;
+                    else if (!args[c].equals(ByteOrder.BIG_ENDIAN.toString()))
+                        usage();
+                }
+                else if (args[c].equals("-threads") && c + 1 < args.length)
+                    threads = Integer.parseInt(args[++c]);
+                else if (images == null && !args[c].startsWith("-"))
+                    images = new File(args[c]);
+                else
+                    usage();
+            }
+        }
+        catch (IllegalArgumentException e) //bad architecture or number
+        {
+            usage();
+        }
+        if (images == null || threads <= 0)
+            usage();
+
+        try
+        {
+            List<Job> jobs = images.isDirectory() ? fromDirectory(images) : fromManifest(images);
+            new BatchRunner(architecture, order, threads).run(jobs, new Listener() {
+                public void finished(Result r)
+                {
+                    System.out.println(r);
+                }
+            });
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace(System.err);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+
+package memsim;
+
+/**
+ * Predicts each branch the way it has mostly been going, using a table of
+ * 2 bit saturating counters indexed by the branch address.
+ *
+ * @author rdeva
+ */
+public class BimodalPredictor extends BranchPredictor {
+
+    public static final int DEFAULT_ENTRIES = 1024;
+
+    /*
+     * 0, 1 predict not taken, 2, 3 taken
+     */
+    private final byte[] counters;
+    private final int mask;
+
+    public BimodalPredictor()
+    {
+        this(DEFAULT_ENTRIES);
+    }
+
+    /**
+     * @param entries number of counters, a power of 2
+     * @throws IllegalArgumentException if entries isn't a power of 2
+     */
+    public BimodalPredictor(int entries) throws IllegalArgumentException
+    {
+        if (entries <= 0 || (entries & (entries - 1)) != 0)
+            throw new IllegalArgumentException("entries(" + entries + ") not a power of 2");
+        counters = new byte[entries];
+        java.util.Arrays.fill(counters, (byte)1); //weakly not taken
+        mask = entries - 1;
+    }
+
+    protected boolean predictTaken(int pc, int kind)
+    {
+        return counters[(pc >>> 2) & mask] >= 2;
+    }
+
+    protected void update(int pc, int kind, boolean taken, int target)
+    {
+        int i = (pc >>> 2) & mask;
+        if (taken && counters[i] < 3)
+            ++counters[i];
+        else if (!taken && counters[i] > 0)
+            --counters[i];
+    }
+}
@@ -1,6 +1,8 @@
 package memsim;
 
 /**
+ * A range of physical addresses [low, high] a core may access.  Both ends are
+ * unsigned 32 bit addresses, so a bound can cover all 4 GB of a memory.
  *
  * @author sound
  */
@@ -8,12 +10,12 @@ public class Bound {
     private int high, low;
 
     /**
-     * @param low the lower bound
-     * @param high the higher bound
+     * @param low the lower bound, unsigned
+     * @param high the higher bound, unsigned
      */
     public Bound(int low, int high) throws IllegalArgumentException
     {
-        if (low > high)
+        if (Integer.compareUnsigned(low, high) > 0)
             throw new IllegalArgumentException("high cannot be less than low");
         this.low = low;
         this.high = high;
@@ -28,4 +30,20 @@ public class Bound {
         return high;
     }
 
+    /**
+     * @return the lower bound as an unsigned address
+     */
+    public long getLowerAddress()
+    {
+        return low & 0xffffffffL;
+    }
+
+    /**
+     * @return the higher bound as an unsigned address
+     */
+    public long getHigherAddress()
+    {
+        return high & 0xffffffffL;
+    }
+
 }
@@ -0,0 +1,161 @@
+
+package memsim;
+
+/**
+ * A branch predictor model.  A core with a predictor tells it about every
+ * branch it retires, and the predictor keeps count of how many it would have
+ * got right.  With a TimingModel on the same core, only mispredicted branches
+ * cost a pipeline refill.
+ *
+ * A prediction is right if the branch goes the predicted way and, if it is
+ * taken, to a target the pipeline would have known in time: the targets of B
+ * and BL come out of decode, returns and other indirect branches need
+ * predicting too.  Give each core its own predictor.
+ *
+ * @author rdeva
+ */
+public abstract class BranchPredictor {
+
+    /*
+     * Kinds of branches: B, BL, returns (BX LR, MOV PC, LR, LDM with PC) and
+     * other BX
+     */
+    public static final int BRANCH = 0, CALL = 1, RETURN = 2, INDIRECT = 3, KINDS = 4;
+
+    private final long[] branches = new long[KINDS], mispredictions = new long[KINDS];
+    private int penalty = TimingModel.BRANCH_PENALTY;
+
+    /**
+     * Work out what kind of branch instr is
+     * @return BRANCH, CALL, RETURN or INDIRECT, or -1 if it isn't a branch
+     */
+    static int kindOf(int instr)
+    {
+        if ((instr & 0x0e000000) == 0x0a000000)
+            return (instr & (1 << 24)) != 0 ? CALL : BRANCH;
+        if ((instr & 0x0ffffff0) == 0x012fff10)
+            return (instr & 0xf) == 14 ? RETURN : INDIRECT;
+        if ((instr & 0x0fffffff) == 0x01a0f00e || (instr & 0x0e108000) == 0x08108000)
+            return RETURN;
+        return -1;
+    }
+
+    /**
+     * Predict a branch, then learn what it actually did
+     * @param pc address of the branch
+     * @param kind BRANCH, CALL, RETURN or INDIRECT
+     * @param taken whether it was taken
+     * @param target address of the instruction executed after it
+     * @return whether the prediction was right
+     */
+    public final boolean branch(int pc, int kind, boolean taken, int target)
+    {
+        boolean right;
+        if (predictTaken(pc, kind) != taken)
+            right = false;
+        else
+            right = !taken || predictTarget(pc, kind, target);
+        update(pc, kind, taken, target);
+
+        ++branches[kind];
+        if (!right)
+            ++mispredictions[kind];
+        return right;
+    }
+
+    /**
+     * @return whether the branch at pc is predicted to be taken
+     */
+    protected abstract boolean predictTaken(int pc, int kind);
+
+    /**
+     * Only asked about branches correctly predicted taken.  The target of
+     * direct branches is known at decode, so by default only they are right.
+     * @return whether target is the predicted target of the branch at pc
+     */
+    protected boolean predictTarget(int pc, int kind, int target)
+    {
+        return kind == BRANCH || kind == CALL;
+    }
+
+    /**
+     * Learn what the branch at pc did
+     */
+    protected abstract void update(int pc, int kind, boolean taken, int target);
+
+    /**
+     * @param penalty cycles a misprediction costs, for getMispredictionPenalty
+     */
+    public void setPenalty(int penalty)
+    {
+        this.penalty = penalty;
+    }
+
+    public int getPenalty()
+    {
+        return penalty;
+    }
+
+    public long getBranches()
+    {
+        long total = 0;
+        for (int c = 0; c < KINDS; ++c)
+            total += branches[c];
+        return total;
+    }
+
+    /**
+     * @param kind BRANCH, CALL, RETURN or INDIRECT
+     */
+    public long getBranches(int kind)
+    {
+        return branches[kind];
+    }
+
+    public long getMispredictions()
+    {
+        long total = 0;
+        for (int c = 0; c < KINDS; ++c)
+            total += mispredictions[c];
+        return total;
+    }
+
+    /**
+     * @param kind BRANCH, CALL, RETURN or INDIRECT
+     */
+    public long getMispredictions(int kind)
+    {
+        return mispredictions[kind];
+    }
+
+    /**
+     * @return fraction of branches predicted right, 1 if there haven't been any
+     */
+    public double getAccuracy()
+    {
+        long total = getBranches();
+        return total == 0 ? 1 : 1 - (double)getMispredictions() / total;
+    }
+
+    /**
+     * @return cycles lost to mispredictions
+     */
+    public long getMispredictionPenalty()
+    {
+        return getMispredictions() * penalty;
+    }
+
+    public void clearCounters()
+    {
+        java.util.Arrays.fill(branches, 0);
+        java.util.Arrays.fill(mispredictions, 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d branches, %d mispredicted (%.2f%% right), %d cycles lost",
+                getClass().getSimpleName(), getBranches(), getMispredictions(), getAccuracy() * 100,
+                getMispredictionPenalty());
+    }
+}
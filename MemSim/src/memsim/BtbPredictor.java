@@ -0,0 +1,119 @@
+
+package memsim;
+
+/**
+ * Adds target prediction to a direction predictor: a return address stack
+ * predicts where returns go (pushed by every BL) and a branch target buffer
+ * remembers where other indirect branches went last time.  Returns and
+ * indirect branches are predicted taken if there is a target for them.
+ *
+ * @author rdeva
+ */
+public class BtbPredictor extends BranchPredictor {
+
+    public static final int DEFAULT_ENTRIES = 256, DEFAULT_STACK_DEPTH = 8;
+    private static final int NO_TAG = -1; //branch addresses are word aligned, so never odd
+
+    private final BranchPredictor directions;
+
+    /*
+     * The BTB is direct mapped
+     */
+    private final int[] tags, targets;
+    private final int mask;
+
+    /*
+     * The return address stack is circular, so deep call chains overwrite the
+     * oldest return addresses
+     */
+    private final int[] stack;
+    private int top = 0, depth = 0;
+
+    /**
+     * A BTB and return stack of the default sizes, in front of a bimodal predictor
+     */
+    public BtbPredictor()
+    {
+        this(new BimodalPredictor(), DEFAULT_ENTRIES, DEFAULT_STACK_DEPTH);
+    }
+
+    /**
+     * @param directions predicts which way direct branches go
+     * @param entries number of BTB entries, a power of 2
+     * @param stackDepth number of return addresses remembered
+     * @throws IllegalArgumentException if entries isn't a power of 2 or stackDepth isn't positive
+     */
+    public BtbPredictor(BranchPredictor directions, int entries, int stackDepth) throws IllegalArgumentException
+    {
+        if (entries <= 0 || (entries & (entries - 1)) != 0)
+            throw new IllegalArgumentException("entries(" + entries + ") not a power of 2");
+        if (stackDepth <= 0)
+            throw new IllegalArgumentException("stackDepth must be > 0");
+
+        this.directions = directions;
+        tags = new int[entries];
+        java.util.Arrays.fill(tags, NO_TAG);
+        targets = new int[entries];
+        mask = entries - 1;
+        stack = new int[stackDepth];
+    }
+
+    protected boolean predictTaken(int pc, int kind)
+    {
+        switch (kind)
+        {
+            case RETURN:
+                return depth > 0;
+            case INDIRECT:
+                return tags[(pc >>> 2) & mask] == pc;
+            default:
+                return directions.predictTaken(pc, kind);
+        }
+    }
+
+    protected boolean predictTarget(int pc, int kind, int target)
+    {
+        switch (kind)
+        {
+            case RETURN:
+                return stack[(top + stack.length - 1) % stack.length] == target;
+            case INDIRECT:
+                return targets[(pc >>> 2) & mask] == target;
+            default:
+                return true;
+        }
+    }
+
+    protected void update(int pc, int kind, boolean taken, int target)
+    {
+        switch (kind)
+        {
+            case RETURN:
+                if (taken && depth > 0)
+                {
+                    top = (top + stack.length - 1) % stack.length;
+                    --depth;
+                }
+                break;
+            case CALL:
+                directions.update(pc, kind, taken, target);
+                if (taken)
+                {
+                    stack[top] = pc + 4; //where the core's BL points the link register
+                    top = (top + 1) % stack.length;
+                    depth = Math.min(depth + 1, stack.length);
+                }
+                break;
+            case INDIRECT:
+                break;
+            default:
+                directions.update(pc, kind, taken, target);
+        }
+
+        if (taken && kind != RETURN)
+        {
+            tags[(pc >>> 2) & mask] = pc;
+            targets[(pc >>> 2) & mask] = target;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+
+package memsim;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Keeps the bytes of a memory in a byte[] on the Java heap, in address order,
+ * with words read and written through a ByteBuffer view of it in the given
+ * byte order.  Give the Memory the same byte order and the array is exactly
+ * the memory's image, so byte-oriented data (e.g. a little endian program
+ * image) goes in and out without reshuffling.  Like HeapMemoryBackend it is
+ * limited to what one array can hold.
+ *
+ * @author rdeva
+ */
+public class ByteArrayMemoryBackend implements MemoryBackend {
+
+    private final byte[] bytes;
+    private final ByteBuffer words;
+
+    /**
+     * @param size size in bytes, a multiple of 4
+     * @param order order the bytes of a word are kept in
+     * @throws IllegalArgumentException if size isn't a multiple of 4 or too big for an array
+     */
+    public ByteArrayMemoryBackend(long size, ByteOrder order) throws IllegalArgumentException
+    {
+        if ((size & 3) != 0 || size < 0)
+            throw new IllegalArgumentException("size(" + size + ") not a multiple of 4");
+        if (size > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("size(" + size + ") too big for a byte array, use DirectMemoryBackend");
+
+        bytes = new byte[(int)size];
+        words = ByteBuffer.wrap(bytes).order(order);
+    }
+
+    private ByteArrayMemoryBackend(byte[] bytes, ByteOrder order)
+    {
+        this.bytes = bytes;
+        words = ByteBuffer.wrap(bytes).order(order);
+    }
+
+    /**
+     * @return order the bytes of a word are kept in
+     */
+    public ByteOrder getByteOrder()
+    {
+        return words.order();
+    }
+
+    public long getSize()
+    {
+        return bytes.length;
+    }
+
+    public long getFootprint()
+    {
+        return getSize();
+    }
+
+    public int getWord(long addr)
+    {
+        return words.getInt((int)addr);
+    }
+
+    public void setWord(long addr, int data)
+    {
+        words.putInt((int)addr, data);
+    }
+
+    public void setWords(long addr, IntBuffer src)
+    {
+        ByteBuffer dst = words.duplicate().order(words.order());
+        dst.position((int)addr);
+        dst.asIntBuffer().put(src);
+    }
+
+    public void clear(long addr, long length)
+    {
+        java.util.Arrays.fill(bytes, (int)addr, (int)(addr + length), (byte)0);
+    }
+
+    public void copyWords(long dst, long src, long length)
+    {
+        System.arraycopy(bytes, (int)src, bytes, (int)dst, (int)length);
+    }
+
+    public void fillWords(long addr, long length, int data)
+    {
+        for (long end = addr + length; addr < end; addr += 4)
+            words.putInt((int)addr, data);
+    }
+
+    /**
+     * A full copy
+     */
+    public MemoryBackend snapshot()
+    {
+        return new ByteArrayMemoryBackend(bytes.clone(), words.order());
+    }
+}
@@ -0,0 +1,492 @@
+
+package memsim;
+
+/**
+ * One level of a set associative cache.  Only tags and line states are
+ * modelled; the data itself always comes from Memory, so caches change what
+ * gets counted but never what a program computes.
+ *
+ * A cache is used by one core at a time.  Levels shared between cores (an L2)
+ * are locked by the level above them while it misses into them.
+ *
+ * Private caches on a CoherenceBus keep their lines coherent with MESI.  They
+ * lock themselves for every access, and the bus (before themselves) for every
+ * access that needs a bus transaction.  Snooping locks the snooped cache while
+ * the bus is held, so locks are always taken bus, requester, snooped cache,
+ * next level.
+ *
+ * @author rdeva
+ */
+public class Cache {
+
+    /*
+     * MESI line states.  Caches that aren't on a bus only use EXCLUSIVE (clean)
+     * and MODIFIED (dirty).  Invalid lines also have the tag NO_LINE, which no
+     * line address can match, so lookups only have to compare tags.
+     */
+    static final byte INVALID = 0, SHARED = 1, EXCLUSIVE = 2, MODIFIED = 3;
+    private static final long NO_LINE = -1;
+
+    private final String name;
+    private final CacheConfig config;
+    private final Cache next;
+    private final CoherenceBus bus;
+    private final int ways, waysShift, lineShift, setMask;
+    private final boolean writeBack;
+    private final CacheConfig.Replacement replacement;
+
+    /*
+     * Line i of set s lives at index s * ways + i of each of these
+     */
+    private final long[] tags;
+    private final byte[] state;
+    private final long[] lastUse; //LRU only
+    private final int[] plru;     //PLRU only, ways - 1 tree bits per set
+    private long clock = 0;
+    private int seed = 0x2545f491; //RANDOM only, xorshift state
+
+    private long hits, misses, evictions, writeBacks, invalidations, interventions;
+
+    /*
+     * How many levels below this one the last access had to go (0 for a hit),
+     * for timing.  Only read by the core owning the cache, right after accessing it.
+     */
+    int lastDepth;
+
+    /**
+     * @param name name to report the cache under, e.g. "L1D"
+     * @param config
+     * @param next the next level, or null if misses go straight to memory
+     */
+    public Cache(String name, CacheConfig config, Cache next)
+    {
+        this(name, config, next, null);
+    }
+
+    /**
+     * @param name name to report the cache under, e.g. "L1D"
+     * @param config
+     * @param next the next level, or null if misses go straight to memory
+     * @param bus the bus to keep this (private) cache coherent over, or null
+     */
+    public Cache(String name, CacheConfig config, Cache next, CoherenceBus bus)
+    {
+        this.name = name;
+        this.config = config;
+        this.next = next;
+        this.bus = bus;
+        ways = config.getWays();
+        waysShift = Integer.numberOfTrailingZeros(ways);
+        lineShift = Integer.numberOfTrailingZeros(config.getLineSize());
+        setMask = config.getSets() - 1;
+        writeBack = config.getWritePolicy() == CacheConfig.WritePolicy.WRITE_BACK;
+        replacement = config.getReplacement();
+
+        tags = new long[config.getSets() * ways];
+        java.util.Arrays.fill(tags, NO_LINE);
+        state = new byte[tags.length];
+        lastUse = replacement == CacheConfig.Replacement.LRU ? new long[tags.length] : null;
+        plru = replacement == CacheConfig.Replacement.PLRU ? new int[config.getSets()] : null;
+
+        if (bus != null)
+            bus.add(this);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public CacheConfig getConfig()
+    {
+        return config;
+    }
+
+    public Cache getNext()
+    {
+        return next;
+    }
+
+    public CoherenceBus getBus()
+    {
+        return bus;
+    }
+
+    /**
+     * Read the byte(s) at addr
+     * @param addr physical address
+     * @return true on a hit
+     */
+    public boolean read(long addr)
+    {
+        if (bus != null)
+            return coherentRead(addr >>> lineShift);
+
+        long line = addr >>> lineShift;
+        int way = find(line);
+        if (way >= 0)
+        {
+            ++hits;
+            lastDepth = 0;
+            touch(way);
+            return true;
+        }
+
+        ++misses;
+        fill(line, EXCLUSIVE, true);
+        return false;
+    }
+
+    /**
+     * Write the byte(s) at addr
+     * @param addr physical address
+     * @return true on a hit
+     */
+    public boolean write(long addr)
+    {
+        if (bus != null)
+            return coherentWrite(addr);
+
+        long line = addr >>> lineShift;
+        int way = find(line);
+        if (way >= 0)
+        {
+            ++hits;
+            lastDepth = 0;
+            touch(way);
+            if (writeBack)
+                state[way] = MODIFIED;
+            else
+                writeNext(addr);
+            return true;
+        }
+
+        ++misses;
+        if (writeBack)
+            fill(line, MODIFIED, true);
+        else
+        {
+            lastDepth = 0; //written through, without waiting
+            writeNext(addr);
+        }
+        return false;
+    }
+
+    private boolean coherentRead(long line)
+    {
+        synchronized (this)
+        {
+            int way = find(line);
+            if (way >= 0)
+            {
+                ++hits;
+                lastDepth = 0;
+                touch(way);
+                return true;
+            }
+        }
+
+        synchronized (bus)
+        {
+            synchronized (this)
+            {
+                ++misses;
+                byte others = bus.read(this, line);
+                fill(line, others == INVALID ? EXCLUSIVE : SHARED, others != MODIFIED);
+                return false;
+            }
+        }
+    }
+
+    private boolean coherentWrite(long addr)
+    {
+        long line = addr >>> lineShift;
+        if (writeBack)
+            synchronized (this)
+            {
+                int way = find(line);
+                if (way >= 0 && state[way] != SHARED) //no one else has it
+                {
+                    ++hits;
+                    lastDepth = 0;
+                    touch(way);
+                    state[way] = MODIFIED;
+                    return true;
+                }
+            }
+
+        synchronized (bus)
+        {
+            synchronized (this)
+            {
+                int way = find(line); //may have been invalidated while we waited
+                if (way >= 0)
+                {
+                    ++hits;
+                    lastDepth = 0;
+                    touch(way);
+                    if (!writeBack)
+                    {
+                        bus.writeThrough(this, line);
+                        writeNext(addr);
+                    }
+                    else
+                    {
+                        if (state[way] == SHARED)
+                            bus.upgrade(this, line);
+                        state[way] = MODIFIED;
+                    }
+                    return true;
+                }
+
+                ++misses;
+                if (!writeBack)
+                {
+                    lastDepth = 0;
+                    bus.writeThrough(this, line);
+                    writeNext(addr);
+                }
+                else
+                    fill(line, MODIFIED, bus.readExclusive(this, line) != MODIFIED);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Another cache on the bus is reading (or, if exclusive, about to write) a
+     * line.  Called with the bus locked.
+     * @return the state this cache had the line in
+     */
+    byte snoop(long line, boolean exclusive)
+    {
+        synchronized (this)
+        {
+            int way = find(line);
+            if (way < 0)
+                return INVALID;
+
+            byte old = state[way];
+            if (old == MODIFIED)
+            {
+                ++interventions; //we supply the line
+                if (!exclusive) //and, as it's going to be shared (clean), update the next level too
+                    writeNext(line << lineShift);
+            }
+            if (exclusive)
+            {
+                ++invalidations;
+                tags[way] = NO_LINE;
+                state[way] = INVALID;
+            }
+            else
+                state[way] = SHARED;
+            return old;
+        }
+    }
+
+    /**
+     * Drop every line, writing dirty ones back first
+     */
+    public void flush()
+    {
+        if (bus != null)
+            synchronized (bus)
+            {
+                flushLines();
+            }
+        else
+            flushLines();
+    }
+
+    private synchronized void flushLines()
+    {
+        for (int c = 0; c < tags.length; ++c)
+        {
+            if (state[c] == MODIFIED)
+                writeBack(tags[c]);
+            tags[c] = NO_LINE;
+            state[c] = INVALID;
+        }
+    }
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    public long getAccesses()
+    {
+        return hits + misses;
+    }
+
+    /**
+     * @return number of valid lines thrown out to make room
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return number of dirty lines written to the next level
+     */
+    public long getWriteBacks()
+    {
+        return writeBacks;
+    }
+
+    /**
+     * @return number of lines other caches on the bus took away from this one
+     */
+    public long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * @return number of times this cache supplied a modified line another cache on the bus wanted
+     */
+    public long getInterventions()
+    {
+        return interventions;
+    }
+
+    /**
+     * @return misses / accesses, 0 if there haven't been any
+     */
+    public double getMissRate()
+    {
+        long accesses = getAccesses();
+        return accesses == 0 ? 0 : (double)misses / accesses;
+    }
+
+    public void clearCounters()
+    {
+        hits = misses = evictions = writeBacks = invalidations = interventions = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        String s = String.format("%s: %d hits, %d misses (%.2f%%), %d evictions, %d write backs",
+                name, hits, misses, getMissRate() * 100, evictions, writeBacks);
+        if (bus != null)
+            s += String.format(", %d invalidations, %d interventions", invalidations, interventions);
+        return s;
+    }
+
+    /**
+     * @return index of the line holding the given line address, or -1
+     */
+    private int find(long line)
+    {
+        int base = ((int)line & setMask) << waysShift;
+        for (int c = base; c < base + ways; ++c)
+            if (tags[c] == line)
+                return c;
+        return -1;
+    }
+
+    /**
+     * Bring a line in, making room for it
+     * @param fromNext whether the line comes from the next level (rather than another cache)
+     */
+    private void fill(long line, byte newState, boolean fromNext)
+    {
+        int set = (int)line & setMask;
+        int way = victim(set);
+        if (state[way] != INVALID)
+        {
+            ++evictions;
+            if (state[way] == MODIFIED)
+                writeBack(tags[way]);
+        }
+
+        lastDepth = 1;
+        if (fromNext && next != null)
+            synchronized (next)
+            {
+                next.read(line << lineShift);
+                lastDepth += next.lastDepth;
+            }
+
+        tags[way] = line;
+        state[way] = newState;
+        touch(way);
+    }
+
+    private void writeBack(long line)
+    {
+        ++writeBacks;
+        if (bus != null)
+            bus.writeBack(this);
+        writeNext(line << lineShift);
+    }
+
+    private void writeNext(long addr)
+    {
+        if (next != null)
+            synchronized (next)
+            {
+                next.write(addr);
+            }
+    }
+
+    /**
+     * Pick the line of set to replace, an invalid one if there is one
+     */
+    private int victim(int set)
+    {
+        int base = set << waysShift;
+        for (int c = base; c < base + ways; ++c)
+            if (tags[c] == NO_LINE)
+                return c;
+
+        switch (replacement)
+        {
+            case LRU:
+                int oldest = base;
+                for (int c = base + 1; c < base + ways; ++c)
+                    if (lastUse[c] < lastUse[oldest])
+                        oldest = c;
+                return oldest;
+            case PLRU:
+                //follow the bits away from the recently used halves
+                int bits = plru[set], node = 1;
+                while (node < ways)
+                    node = (node << 1) | ((bits >>> node) & 1);
+                return base + node - ways;
+            default:
+                seed ^= seed << 13;
+                seed ^= seed >>> 17;
+                seed ^= seed << 5;
+                return base + ((seed >>> 8) & (ways - 1));
+        }
+    }
+
+    /**
+     * Note a use of the line at index
+     */
+    private void touch(int index)
+    {
+        if (lastUse != null)
+            lastUse[index] = ++clock;
+        else if (plru != null)
+        {
+            //point every bit on the path to the line the other way
+            int set = index >> waysShift, node = (index & (ways - 1)) + ways, bits = plru[set];
+            for (; node > 1; node >>= 1)
+            {
+                int parent = node >> 1;
+                bits = (bits & ~(1 << parent)) | ((~node & 1) << parent); //1 if we came from the left
+            }
+            plru[set] = bits;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+
+package memsim;
+
+/**
+ * Shape and policies of one cache level.  Sizes are in bytes; size, ways and
+ * lineSize must all be powers of 2.
+ *
+ * @author rdeva
+ */
+public class CacheConfig {
+
+    /**
+     * Which line of a full set gets replaced.  PLRU is the usual tree pseudo LRU.
+     */
+    public enum Replacement {LRU, PLRU, RANDOM};
+
+    /**
+     * WRITE_BACK caches allocate on write misses and only write dirty lines to
+     * the next level when they are evicted.  WRITE_THROUGH caches pass every
+     * write on and don't allocate on write misses.
+     */
+    public enum WritePolicy {WRITE_BACK, WRITE_THROUGH};
+
+    /**
+     * Cycles a hit takes unless told otherwise
+     */
+    public static final int DEFAULT_LATENCY = 1;
+
+    private final int size, ways, lineSize, latency;
+    private final Replacement replacement;
+    private final WritePolicy writePolicy;
+
+    /**
+     * @param size capacity in bytes
+     * @param ways associativity, 1 for direct mapped
+     * @param lineSize bytes per line
+     * @param replacement
+     * @param writePolicy
+     * @throws IllegalArgumentException if a size isn't a power of 2 or the lines don't fill whole sets
+     */
+    public CacheConfig(int size, int ways, int lineSize, Replacement replacement, WritePolicy writePolicy)
+            throws IllegalArgumentException
+    {
+        this(size, ways, lineSize, replacement, writePolicy, DEFAULT_LATENCY);
+    }
+
+    /**
+     * @param size capacity in bytes
+     * @param ways associativity, 1 for direct mapped
+     * @param lineSize bytes per line
+     * @param replacement
+     * @param writePolicy
+     * @param latency cycles a hit takes (a miss takes this plus the latency of the next level)
+     * @throws IllegalArgumentException if a size isn't a power of 2, the lines don't fill whole sets
+     *          or latency is &lt; 1
+     */
+    public CacheConfig(int size, int ways, int lineSize, Replacement replacement, WritePolicy writePolicy,
+            int latency) throws IllegalArgumentException
+    {
+        if (!isPowerOf2(size) || !isPowerOf2(ways) || !isPowerOf2(lineSize) || lineSize < 4)
+            throw new IllegalArgumentException("size, ways and lineSize must be powers of 2");
+        if (ways > 32 || (long)ways * lineSize > size)
+            throw new IllegalArgumentException("need 1 to 32 ways, each no bigger than the cache");
+        if (replacement == null || writePolicy == null)
+            throw new IllegalArgumentException("replacement and writePolicy can't be null");
+        if (latency < 1)
+            throw new IllegalArgumentException("latency must be at least 1 cycle");
+
+        this.size = size;
+        this.ways = ways;
+        this.lineSize = lineSize;
+        this.replacement = replacement;
+        this.writePolicy = writePolicy;
+        this.latency = latency;
+    }
+
+    private static boolean isPowerOf2(int n)
+    {
+        return n > 0 && (n & (n - 1)) == 0;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public int getWays()
+    {
+        return ways;
+    }
+
+    public int getLineSize()
+    {
+        return lineSize;
+    }
+
+    public int getSets()
+    {
+        return size / (ways * lineSize);
+    }
+
+    public int getLatency()
+    {
+        return latency;
+    }
+
+    public Replacement getReplacement()
+    {
+        return replacement;
+    }
+
+    public WritePolicy getWritePolicy()
+    {
+        return writePolicy;
+    }
+
+    @Override
+    public String toString()
+    {
+        return (size >> 10) + "KB " + ways + "-way " + lineSize + "B lines " + replacement + " " + writePolicy
+                + " " + latency + " cycles";
+    }
+}
@@ -0,0 +1,139 @@
+
+package memsim;
+
+import java.util.List;
+
+/**
+ * The caches a core sees: its own L1 instruction and data caches, which miss
+ * into an optional L2 that may be shared with other cores.  The L1s of all
+ * cores may be kept coherent over a CoherenceBus.
+ *
+ * @author rdeva
+ */
+public class CacheHierarchy {
+
+    /**
+     * Added to instruction addresses when program and data live in different
+     * memories (a Harvard processor), so a shared level doesn't mistake one for
+     * the other.
+     */
+    public static final long INSTRUCTION_SPACE = 1L << 48;
+
+    private final Cache l1i, l1d, l2;
+
+    /**
+     * @param l1i instruction cache of the core
+     * @param l1d data cache of the core
+     * @param l2 the level both L1s miss into, may be null
+     */
+    public CacheHierarchy(CacheConfig l1i, CacheConfig l1d, Cache l2)
+    {
+        this(l1i, l1d, l2, null);
+    }
+
+    /**
+     * @param l1i instruction cache of the core
+     * @param l1d data cache of the core
+     * @param l2 the level both L1s miss into, may be null
+     * @param bus the bus keeping both L1s coherent with other cores' L1s, or null
+     */
+    public CacheHierarchy(CacheConfig l1i, CacheConfig l1d, Cache l2, CoherenceBus bus)
+    {
+        this.l2 = l2;
+        this.l1i = new Cache("L1I", l1i, l2, bus);
+        this.l1d = new Cache("L1D", l1d, l2, bus);
+    }
+
+    /**
+     * Give each core its own L1s, all sharing one L2.  Call this after the
+     * processor has all its cores.
+     * @param cores
+     * @param l1i
+     * @param l1d
+     * @param l2 null for no L2
+     * @return the shared L2, or null
+     */
+    public static Cache attach(List<Core> cores, CacheConfig l1i, CacheConfig l1d, CacheConfig l2)
+    {
+        return attach(cores, l1i, l1d, l2, null);
+    }
+
+    /**
+     * Give each core its own L1s, all sharing one L2 and kept coherent over the
+     * given bus.  Call this after the processor has all its cores.
+     * @param cores
+     * @param l1i
+     * @param l1d
+     * @param l2 null for no L2
+     * @param bus null for no coherence
+     * @return the shared L2, or null
+     */
+    public static Cache attach(List<Core> cores, CacheConfig l1i, CacheConfig l1d, CacheConfig l2,
+            CoherenceBus bus)
+    {
+        Cache shared = l2 == null ? null : new Cache("L2", l2, null);
+        for (Core c : cores)
+            c.setCaches(new CacheHierarchy(l1i, l1d, shared, bus));
+        return shared;
+    }
+
+    public Cache getL1I()
+    {
+        return l1i;
+    }
+
+    public Cache getL1D()
+    {
+        return l1d;
+    }
+
+    public Cache getL2()
+    {
+        return l2;
+    }
+
+    /*
+     * Each access returns the cycles it took, given the latency of the memory
+     * behind the caches
+     */
+    int fetch(long addr, int memoryLatency)
+    {
+        l1i.read(addr);
+        return latency(l1i, memoryLatency);
+    }
+
+    int read(long addr, int memoryLatency)
+    {
+        l1d.read(addr);
+        return latency(l1d, memoryLatency);
+    }
+
+    int write(long addr, int memoryLatency)
+    {
+        l1d.write(addr);
+        return latency(l1d, memoryLatency);
+    }
+
+    /**
+     * Add up the latencies of the levels the last access to l1 went through
+     */
+    private static int latency(Cache l1, int memoryLatency)
+    {
+        int cycles = 0;
+        Cache c = l1;
+        for (int level = 0; level <= l1.lastDepth; ++level)
+        {
+            if (c == null)
+                return cycles + memoryLatency;
+            cycles += c.getConfig().getLatency();
+            c = c.getNext();
+        }
+        return cycles;
+    }
+
+    @Override
+    public String toString()
+    {
+        return l1i + "\n" + l1d + (l2 == null ? "" : "\n" + l2);
+    }
+}
@@ -0,0 +1,193 @@
+
+package memsim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snooping bus keeping the private caches of several cores coherent (MESI).
+ * Every transaction one cache puts on the bus is snooped by all the others,
+ * and the bus counts the transactions, the invalidations and interventions
+ * they cause and the bus cycles they take.  A transaction takes one cycle for
+ * the address plus one per bus width of data it moves.
+ *
+ * Lots of invalidations and interventions for lines that the cores never
+ * actually share data in is the sign of false sharing.
+ *
+ * @author rdeva
+ */
+public class CoherenceBus {
+
+    /**
+     * Bytes moved per data cycle unless told otherwise
+     */
+    public static final int DEFAULT_WIDTH = 8;
+
+    private final int width;
+    private final List<Cache> caches = new ArrayList<Cache>();
+
+    private long reads, readExclusives, upgrades, writeThroughs, writeBacks;
+    private long invalidations, interventions, cycles;
+
+    public CoherenceBus()
+    {
+        this(DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param width bytes moved per data cycle
+     * @throws IllegalArgumentException if width isn't positive
+     */
+    public CoherenceBus(int width) throws IllegalArgumentException
+    {
+        if (width <= 0)
+            throw new IllegalArgumentException("width must be > 0");
+        this.width = width;
+    }
+
+    /**
+     * Called by caches built with this bus
+     */
+    synchronized void add(Cache c)
+    {
+        caches.add(c);
+    }
+
+    public synchronized List<Cache> getCaches()
+    {
+        return new ArrayList<Cache>(caches);
+    }
+
+    /**
+     * BusRd: from missed on a read
+     * @return the strongest state another cache had the line in, INVALID if none had it
+     */
+    synchronized byte read(Cache from, long line)
+    {
+        ++reads;
+        return transaction(from, line, false, dataCycles(from));
+    }
+
+    /**
+     * BusRdX: from missed on a write
+     * @return the strongest state another cache had the line in, INVALID if none had it
+     */
+    synchronized byte readExclusive(Cache from, long line)
+    {
+        ++readExclusives;
+        return transaction(from, line, true, dataCycles(from));
+    }
+
+    /**
+     * BusUpgr: from is writing a line it shares
+     */
+    synchronized void upgrade(Cache from, long line)
+    {
+        ++upgrades;
+        transaction(from, line, true, 0);
+    }
+
+    /**
+     * A write through cache is writing (a word of) a line
+     */
+    synchronized void writeThrough(Cache from, long line)
+    {
+        ++writeThroughs;
+        transaction(from, line, true, 1);
+    }
+
+    /**
+     * from is writing a modified line back
+     */
+    synchronized void writeBack(Cache from)
+    {
+        ++writeBacks;
+        cycles += 1 + dataCycles(from);
+    }
+
+    private int dataCycles(Cache c)
+    {
+        return Math.max(1, c.getConfig().getLineSize() / width);
+    }
+
+    private byte transaction(Cache from, long line, boolean exclusive, int dataCycles)
+    {
+        byte strongest = Cache.INVALID;
+        for (int c = 0; c < caches.size(); ++c)
+        {
+            Cache other = caches.get(c);
+            if (other == from)
+                continue;
+
+            byte old = other.snoop(line, exclusive);
+            if (old != Cache.INVALID && exclusive)
+                ++invalidations;
+            if (old == Cache.MODIFIED)
+                ++interventions;
+            if (old > strongest)
+                strongest = old;
+        }
+        cycles += 1 + dataCycles;
+        return strongest;
+    }
+
+    public synchronized long getReads()
+    {
+        return reads;
+    }
+
+    public synchronized long getReadExclusives()
+    {
+        return readExclusives;
+    }
+
+    public synchronized long getUpgrades()
+    {
+        return upgrades;
+    }
+
+    public synchronized long getWriteThroughs()
+    {
+        return writeThroughs;
+    }
+
+    public synchronized long getWriteBacks()
+    {
+        return writeBacks;
+    }
+
+    /**
+     * @return number of lines invalidated in other caches
+     */
+    public synchronized long getInvalidations()
+    {
+        return invalidations;
+    }
+
+    /**
+     * @return number of times a cache supplied a modified line to another
+     */
+    public synchronized long getInterventions()
+    {
+        return interventions;
+    }
+
+    public synchronized long getCycles()
+    {
+        return cycles;
+    }
+
+    public synchronized void clearCounters()
+    {
+        reads = readExclusives = upgrades = writeThroughs = writeBacks = 0;
+        invalidations = interventions = cycles = 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("bus: %d cycles, %d reads, %d read exclusives, %d upgrades, %d write throughs, "
+                + "%d write backs, %d invalidations, %d interventions", cycles, reads, readExclusives,
+                upgrades, writeThroughs, writeBacks, invalidations, interventions);
+    }
+}
@@ -0,0 +1,21 @@
+
+package memsim;
+
+/**
+ * A straight line run of ARM instructions, perhaps closed by a branch,
+ * translated to JVM bytecode by the JitCompiler.  Has to be public since the generated classes live in their own
+ * class loader.
+ *
+ * @author rdeva
+ */
+public interface CompiledBlock {
+
+    /**
+     * Execute the block on a core's register file, leaving registers[15] at
+     * the last instruction run (or, if the block branched, 4 before its target)
+     * @param registers the core's registers
+     * @param cpsr the core's CPSR
+     * @return the CPSR afterwards
+     */
+    public int run(int[] registers, int cpsr);
+}
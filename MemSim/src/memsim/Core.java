@@ -2,7 +2,6 @@
 package memsim;
 
 import memsim.exceptions.*;
-import java.math.BigInteger;
 
 /**
  *
@@ -10,6 +9,13 @@ import java.math.BigInteger;
  */
 public class Core implements Runnable {
 
+    /**
+     * Ways of executing instructions.  All give the same results.
+     * DECODER walks the decode tree for each instruction (helped by the decode cache),
+     * DISPATCH_TABLE jumps straight to a handler picked by the instruction's opcode bits.
+     */
+    public enum Engine {DECODER, DISPATCH_TABLE};
+
     /**
      *
     Register        Description
@@ -26,12 +32,41 @@ public class Core implements Runnable {
     final static int NUM_REGISTERS = 16;
     public int registers[] = new int[NUM_REGISTERS];
     private int cpsrRegister = 0;
-    private final int N_MASK = 1 << 31, //masks to helpout when fiddling w/ CPSR reg
+    final static int N_MASK = 1 << 31, //masks to helpout when fiddling w/ CPSR reg
                       Z_MASK = 1 << 30,
                       C_MASK = 1 << 29,
                       V_MASK = 1 << 28;
+
+    /*
+     * Bit NZCV (the top 4 bits of the CPSR) of CONDITIONS[cond] is set if an
+     * instruction with condition field cond executes with those flags
+     */
+    static final short[] CONDITIONS = new short[16];
+    static
+    {
+        for (int cond = 0; cond < 16; ++cond)
+            for (int flags = 0; flags < 16; ++flags)
+                if (conditionHolds(cond, (flags & 8) != 0, (flags & 4) != 0, (flags & 2) != 0, (flags & 1) != 0))
+                    CONDITIONS[cond] |= 1 << flags;
+    }
+
+    private int shifterCarry = 0; //carry out of the last second operand, in C's position
+    private int addFlags = 0; //C and V of the last add(), in their positions
     private Memory programMem, dataMem;
     private Bound programBound, dataBound;
+    private long instructionCount = 0;
+    private AccessTracer tracer = null;
+    private DecodeCache decodeCache = null;
+    private Engine engine = Engine.DECODER;
+    private JitCompiler jit = null;
+    private Intrinsics intrinsics = null;
+    private boolean branched = false; //set when a branch (or other write to the pc) has just been executed
+    private CacheHierarchy caches = null;
+    private TimingModel timing = null;
+    private BranchPredictor predictor = null;
+    private Exception stopCause = null;
+    private boolean stopped = true; //not running a program, see begin()
+    private int entryPoint = 0;
 
     public Memory getDataMemory() {
         return dataMem;
@@ -41,33 +76,505 @@ public class Core implements Runnable {
         return programMem;
     }
 
+    public Bound getDataBound() {
+        return dataBound;
+    }
+
+    public Bound getProgramBound() {
+        return programBound;
+    }
+
+    /**
+     * Number of instructions this core has fetched and executed since it was created
+     * @return
+     */
+    public long getInstructionCount() {
+        return instructionCount;
+    }
+
+    /**
+     * Attach a tracer which is told about every fetch, load and store this core
+     * makes.  Give each core its own tracer (e.g. a TraceBuffer).
+     * @param tracer the tracer, or null to turn tracing off (the default)
+     */
+    public void setTracer(AccessTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public AccessTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Why the last run stopped
+     * @return the exception that stopped it, or null if it ran off the end of
+     * program memory
+     */
+    public Exception getStopCause() {
+        return stopCause;
+    }
+
+    /**
+     * Where runs start (0 unless a loaded image says otherwise)
+     * @param entryPoint program memory address, word aligned
+     * @throws IllegalArgumentException if it isn't word aligned
+     */
+    public void setEntryPoint(int entryPoint) throws IllegalArgumentException {
+        if ((entryPoint & 3) != 0)
+            throw new IllegalArgumentException("entry point isn't word aligned");
+        this.entryPoint = entryPoint;
+    }
+
+    public int getEntryPoint() {
+        return entryPoint;
+    }
+
+    /**
+     * Where a full descending stack starts if the program doesn't say: just
+     * past the top of the data bound (or memory, if that ends first), 8 byte
+     * aligned as the ARM procedure call standard wants
+     * @return data memory address
+     */
+    public int getStackTop() {
+        long top = Math.min(dataBound.getHigherAddress() + 4, dataMem.getLongSize()) - dataBound.getLowerAddress();
+        return (int)Math.min(top, 0xfffffff8L) & ~7;
+    }
+
+    /**
+     * @return the current program status register
+     */
+    public int getCpsr() {
+        return cpsrRegister;
+    }
+
+    /**
+     * Set the N, Z, C and V flags
+     * @param flags the new flags, in their CPSR positions
+     */
+    void setFlags(int flags) {
+        cpsrRegister = (cpsrRegister & ~(N_MASK | Z_MASK | C_MASK | V_MASK)) | flags;
+    }
+
+    /**
+     * Choose how instructions get executed (DECODER by default)
+     * @param engine
+     */
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Turn the JIT tier on or off (it's off by default).  With it on, blocks of
+     * simple instructions starting at hot branch targets get compiled to JVM
+     * bytecode.  It is bypassed while a tracer is attached, so traces stay complete.
+     * @param enabled
+     */
+    public void setJitEnabled(boolean enabled) {
+        setJitEnabled(enabled, JitCompiler.DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Turn the JIT tier on or off
+     * @param enabled
+     * @param threshold number of times a branch target is reached before it gets compiled
+     */
+    public void setJitEnabled(boolean enabled, int threshold) {
+        if (jit != null)
+        {
+            programMem.removeWriteListener(jit);
+            jit = null;
+        }
+        if (enabled)
+        {
+            jit = new JitCompiler(programMem, programBound, threshold);
+            programMem.addWriteListener(jit, programBound.getLowerAddress(), programBound.getHigherAddress() + 3);
+        }
+    }
+
+    public boolean isJitEnabled() {
+        return jit != null;
+    }
+
+    /**
+     * @return number of blocks the JIT has compiled, 0 if it's off
+     */
+    public int getJitCompiledCount() {
+        return jit == null ? 0 : jit.getCompiledCount();
+    }
+
+    /**
+     * Turn running memcpy and memset as bulk memory operations on or off (it's
+     * off by default).  See Intrinsics for what gets recognised; bind function
+     * addresses through getIntrinsics().  Like the JIT, it is bypassed while a
+     * tracer, caches or a timing model are attached, as they have to see every
+     * access.
+     * @param enabled
+     */
+    public void setIntrinsicsEnabled(boolean enabled) {
+        if (intrinsics != null)
+        {
+            programMem.removeWriteListener(intrinsics);
+            intrinsics = null;
+        }
+        if (enabled)
+        {
+            intrinsics = new Intrinsics(programMem, programBound);
+            programMem.addWriteListener(intrinsics, programBound.getLowerAddress(), programBound.getHigherAddress() + 3);
+        }
+    }
+
+    /**
+     * @return the intrinsics, or null if they're off
+     */
+    public Intrinsics getIntrinsics() {
+        return intrinsics;
+    }
+
+    /**
+     * Put caches between this core and its memories (there are none by default).
+     * Every fetch, load and store is then looked up in them, including fetches of
+     * instructions the decode cache or JIT already has.
+     * @param caches the caches, or null to take them away
+     */
+    public void setCaches(CacheHierarchy caches) {
+        this.caches = caches;
+    }
+
+    public CacheHierarchy getCaches() {
+        return caches;
+    }
+
+    /**
+     * Attach a timing model, which works out the cycles this core's instructions
+     * take (there is none by default).  Like tracing, it bypasses the JIT tier,
+     * as every instruction has to be looked at.
+     * @param timing the model, or null to stop timing
+     */
+    public void setTimingModel(TimingModel timing) {
+        this.timing = timing;
+    }
+
+    public TimingModel getTimingModel() {
+        return timing;
+    }
+
+    /**
+     * Attach a branch predictor, which is told about every branch this core
+     * retires (there is none by default).  With a timing model too, only the
+     * branches it mispredicts cost a pipeline refill.  JIT compiled blocks have
+     * no branches in them, so it doesn't bypass the JIT.
+     * @param predictor the predictor, or null to take it away
+     */
+    public void setBranchPredictor(BranchPredictor predictor) {
+        this.predictor = predictor;
+    }
+
+    public BranchPredictor getBranchPredictor() {
+        return predictor;
+    }
+
+    /**
+     * Physical addresses the caches see for the given program/data memory addresses
+     */
+    private long instructionAddress(int addr) {
+        return (programMem == dataMem ? 0 : CacheHierarchy.INSTRUCTION_SPACE) + programBound.getLowerAddress()
+                + (addr & 0xffffffffL);
+    }
+
+    private long dataAddress(int addr) {
+        return dataBound.getLowerAddress() + (addr & 0xffffffffL);
+    }
+
+    /**
+     * Tell the caches and timing model about a fetch from addr
+     */
+    private void fetched(int addr) {
+        int latency = caches == null ? programMem.getLatency()
+                : caches.fetch(instructionAddress(addr), programMem.getLatency());
+        if (timing != null)
+            timing.memoryAccess(latency);
+    }
+
+    /**
+     * Tell the caches and timing model about a load or store at addr
+     */
+    private void accessed(int addr, boolean write) {
+        int latency;
+        if (caches == null)
+            latency = dataMem.getLatency();
+        else if (write)
+            latency = caches.write(dataAddress(addr), dataMem.getLatency());
+        else
+            latency = caches.read(dataAddress(addr), dataMem.getLatency());
+        if (timing != null)
+            timing.memoryAccess(latency);
+    }
+
     public Core(Memory programMem, Bound programBound, Memory dataMem, Bound dataBound) {
         this.programBound = programBound;
         this.dataBound = dataBound;
         this.programMem = programMem;
         this.dataMem = dataMem;
         registers[15] = 0;
+        setDecodeCacheEnabled(true);
+    }
+
+    /**
+     * Turn caching of decoded instructions on or off (it's on by default).  With
+     * the cache on, instructions that have been executed before are neither
+     * fetched nor decoded again until their program memory is written.
+     * @param enabled
+     */
+    public void setDecodeCacheEnabled(boolean enabled) {
+        if (enabled && decodeCache == null)
+        {
+            decodeCache = new DecodeCache(DecodeCache.DEFAULT_CAPACITY, programBound);
+            programMem.addWriteListener(decodeCache, programBound.getLowerAddress(), programBound.getHigherAddress() + 3);
+        }
+        else if (!enabled && decodeCache != null)
+        {
+            programMem.removeWriteListener(decodeCache);
+            decodeCache = null;
+        }
+    }
+
+    public boolean isDecodeCacheEnabled() {
+        return decodeCache != null;
+    }
+
+    /**
+     * Put the registers, flags, instruction count and entry point back to how
+     * they were when the core was created, e.g. to run another program on it.  Memory
+     * and whatever is attached (tracer, caches, timing model, predictor) are
+     * left alone.
+     */
+    public void reset() {
+        java.util.Arrays.fill(registers, 0);
+        cpsrRegister = 0;
+        shifterCarry = addFlags = 0;
+        instructionCount = 0;
+        stopCause = null;
+        stopped = true;
+        branched = false;
+        entryPoint = 0;
+    }
+
+    /**
+     * Make a core that carries on from exactly where this one is: same
+     * registers, flags, instruction count and run state, engine, decode cache
+     * and JIT settings, running out of the given memories with the same bounds.
+     * Bound intrinsics are, but compiled blocks and decoded instructions aren't, and nothing
+     * attached (tracer, caches, timing model, predictor) is shared; attach new
+     * ones to the fork if it needs them.  Only fork a core while it isn't running.
+     * @param programMem memory the fork fetches from, usually a snapshot of this core's
+     * @param dataMem memory the fork loads from and stores to
+     * @return the fork
+     */
+    public Core fork(Memory programMem, Memory dataMem) {
+        Core fork = new Core(programMem, programBound, dataMem, dataBound);
+        System.arraycopy(registers, 0, fork.registers, 0, NUM_REGISTERS);
+        fork.cpsrRegister = cpsrRegister;
+        fork.shifterCarry = shifterCarry;
+        fork.addFlags = addFlags;
+        fork.instructionCount = instructionCount;
+        fork.stopCause = stopCause;
+        fork.stopped = stopped;
+        fork.branched = branched;
+        fork.engine = engine;
+        fork.entryPoint = entryPoint;
+        fork.setDecodeCacheEnabled(decodeCache != null);
+        if (jit != null)
+            fork.setJitEnabled(true, jit.getThreshold());
+        if (intrinsics != null)
+        {
+            fork.setIntrinsicsEnabled(true);
+            fork.intrinsics.copySettings(intrinsics);
+        }
+        return fork;
+    }
+
+    /**
+     * Fork this core onto snapshots of its memories (one snapshot if it runs a
+     * program out of its data memory), so neither sees what the other writes
+     * afterwards.  See fork(Memory, Memory).
+     * @return the fork
+     */
+    public Core fork() {
+        Memory data = dataMem.snapshot();
+        return fork(programMem == dataMem ? data : programMem.snapshot(), data);
     }
 
+    /**
+     * Run the program from its entry point until it stops
+     */
     public void run() {
-        
-        for (registers[15] = 0; registers[15] < programMem.getSize(); registers[15] += 4)
+        begin();
+        step(Long.MAX_VALUE);
+    }
+
+    /**
+     * Get ready to run the program from its entry point, a step at a time
+     */
+    public void begin() {
+        stopCause = null;
+        stopped = false;
+        if (timing != null)
+            timing.restart();
+        registers[15] = entryPoint;
+    }
+
+    /**
+     * @return whether the program has stopped (or was never begun)
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Carry on running the program for up to n instructions
+     * @param n
+     * @return whether the program can carry on
+     */
+    public boolean step(long n) {
+        long limit = n > Long.MAX_VALUE - instructionCount ? Long.MAX_VALUE : instructionCount + n;
+
+        for (; !stopped && instructionCount < limit; registers[15] += 4)
         {
+            if (registers[15] >= programMem.getLongSize())
+            {
+                stopped = true;
+                break;
+            }
+
             try
             {
-                //TODO: check for condition codes here
-                exec(programMem.readWord(registers[15], programBound));
+                if (branched)
+                {
+                    branched = false;
+                    int pc = registers[15];
+                    long k;
+                    if (intrinsics != null && tracer == null && timing == null && caches == null
+                            && (k = intrinsics.run(this, pc, limit - instructionCount)) > 0)
+                    {
+                        instructionCount += k;
+                        branched = intrinsics.isBound(pc); //returned from a call
+                        continue;
+                    }
+
+                    JitCompiler.Block b;
+                    if (jit != null && tracer == null && timing == null && predictor == null
+                            && (b = jit.enter(pc)) != null && b.length <= limit - instructionCount)
+                    {
+                        cpsrRegister = b.code.run(registers, cpsrRegister);
+                        instructionCount += b.length;
+                        if (caches != null)
+                            for (int c = 0; c < b.length; ++c)
+                                fetched(pc + c * 4);
+                        branched = registers[15] != pc + (b.length - 1) * 4; //closed by a taken B
+                        continue;
+                    }
+                }
+
+                int instruction, slot = -1;
+                if (decodeCache != null && (slot = decodeCache.lookup(registers[15])) >= 0)
+                {
+                    instruction = decodeCache.raw[slot];
+                }
+                else
+                {
+                    int generation = decodeCache == null ? 0 : decodeCache.getGeneration();
+                    instruction = programMem.fetchWord(registers[15], programBound);
+                    if (decodeCache != null)
+                        slot = decodeCache.fill(registers[15], instruction, generation);
+                }
+
+                if (tracer != null)
+                    tracer.access(AccessTracer.FETCH, registers[15], instruction);
+                if (caches != null || timing != null)
+                    fetched(registers[15]);
+                ++instructionCount;
+
+                int pc = registers[15];
+                boolean passed = conditionPassed(instruction);
+                if (!passed)
+                    ; //skipped, but still counts as executed
+                else if (engine == Engine.DISPATCH_TABLE)
+                    DispatchTable.execute(this, instruction);
+                else if (slot >= 0)
+                    execDecoded(slot);
+                else
+                    exec(instruction);
+
+                boolean refill = registers[15] != pc;
+                int kind;
+                if (predictor != null && (kind = BranchPredictor.kindOf(instruction)) >= 0)
+                    refill = !predictor.branch(pc, kind, refill, registers[15] + 4);
+                if (timing != null)
+                {
+                    if (passed)
+                        timing.retire(instruction, refill);
+                    else
+                        timing.retireSkipped(refill);
+                }
             }
             catch (Exception e)
             {
                 //System.err.println("some exception occured while running a program at $pc " + registers[15]);
                 //e.printStackTrace(System.err);
+                stopCause = e;
+                stopped = true;
                 break;
             }
         }
+        return !stopped;
+    }
+
+    /**
+     * Execute the instruction held in the given decode cache slot
+     */
+    private void execDecoded(int slot) throws UnknownFormatException, UnimplementedInstructionException,
+            MemoryAccessException {
+        DecodeCache dc = decodeCache;
+        int f = dc.fields[slot];
+        int rd = (f >> 8) & 0xf, rn = (f >> 12) & 0xf;
+
+        switch (dc.kind[slot])
+        {
+            case DecodeCache.DP_IMMEDIATE:
+                immediateCarry((f >> 20) & 0xf, dc.operand[slot]);
+                dataProcessing(f & 0xf, (f & 0x10) != 0, rn, rd, dc.operand[slot]);
+                break;
+            case DecodeCache.DP_IMMEDIATE_SHIFT:
+                dataProcessing(f & 0xf, (f & 0x10) != 0, rn, rd,
+                        immediateShift((f >> 24) & 0x3, dc.operand[slot], registers[(f >> 16) & 0xf]));
+                break;
+            case DecodeCache.DP_REGISTER_SHIFT:
+                dataProcessing(f & 0xf, (f & 0x10) != 0, rn, rd,
+                        shiftHelper((f >> 24) & 0x3, registers[(f >> 20) & 0xf] & 0xff,
+                                    registers[(f >> 16) & 0xf]));
+                break;
+            case DecodeCache.LOAD_STORE_IMMEDIATE:
+                singleTransfer((f & 0x10) != 0, (f & 0x8) != 0, (f & 0x4) != 0, (f & 0x2) != 0,
+                        (f & 0x1) != 0, rn, rd, dc.operand[slot]);
+                break;
+            case DecodeCache.LOAD_STORE_REGISTER:
+                singleTransfer((f & 0x10) != 0, (f & 0x8) != 0, (f & 0x4) != 0, (f & 0x2) != 0,
+                        (f & 0x1) != 0, rn, rd,
+                        immediateShift((f >> 24) & 0x3, dc.operand[slot], registers[(f >> 16) & 0xf]));
+                break;
+            case DecodeCache.BRANCH:
+                branch((f & 0x10) != 0, dc.operand[slot]);
+                break;
+            default:
+                exec(dc.raw[slot]);
+        }
     }
 
-    private void exec(int instruction) throws UnknownFormatException, UnimplementedInstructionException,
+    void exec(int instruction) throws UnknownFormatException, UnimplementedInstructionException,
             MemoryAccessException {
         int op = ((instruction & generateMask(25, 27)) >> 25) & 0x7;
 
@@ -94,88 +601,16 @@ public class Core implements Runnable {
                         {
                             int rm = ((instruction & generateMask(0,3)) >> 0) & 0xf;
                             int shiftType = ((instruction & generateMask(5,6)) >> 5) & 0x3;
-                            int shiftAmount = ((instruction & generateMask(7,11)) >> 7) & 0xf;
-                            imm = this.shiftHelper(shiftType, shiftAmount, registers[rm]);
+                            int shiftAmount = ((instruction & generateMask(7,11)) >> 7) & 0x1f;
+                            imm = immediateShift(shiftType, shiftAmount, registers[rm]);
                         }
                         else
                         {
-                            //rotate imm value
-                            for (int c = 0; c < rotate % 8; ++c) //the % is there because rotatin 8 bit int by 9
-                                                                //is same as rotating once
-                            {
-                                int temp = imm & (1<<7);
-                                imm <<= 1;
-                                imm = imm + ((temp > 0) ? 1 : 0);
-                            }
+                            imm = rotateImmediate(imm, rotate);
+                            immediateCarry(rotate, imm);
                         }
                         int op2 = imm;
-                        int result;
-                        switch(opcode)
-                        {
-                            case 0: //AND
-                                result = registers[rd] = registers[rn] & op2;
-                                break;
-                            case 1: //EOR
-                                result = registers[rd] = registers[rn] ^ op2;
-                                break;
-                            case 2:
-                                result = registers[rd] = registers[rn] - op2;
-                                break;
-                            case 3:
-                                result = registers[rd] = op2 - registers[rn];
-                                break;
-                            case 4:
-                                result = registers[rd] = registers[rn] + op2; //FIXME: bug here not checking for overlfow
-                                break;
-                            case 5:
-                                result = registers[rd] = registers[rn] + op2 + (cpsrRegister & C_MASK);
-                                break;
-                            case 6:
-                                result = registers[rd] = registers[rn] - op2 + (cpsrRegister & C_MASK) - 1;
-                                break;
-                            case 7:
-                                result = registers[rd] = op2 - registers[rn] + (cpsrRegister & C_MASK) - 1;
-                                break;
-                            case 8:
-                                result = registers[rn] & op2;
-                                break;
-                            case 9:
-                                result = registers[rn] ^ op2;
-                                break;
-                            case 10:
-                                result = registers[rn] - op2;
-                                break;
-                            case 11:
-                                result = registers[rn] + op2;
-                                break;
-                            case 12:
-                                result = registers[rd] = registers[rn] | op2;
-                                break;
-                            case 13:
-                                result = registers[rd] = op2;
-                                break;
-                            case 14:
-                                result = registers[rd] = registers[rn] & ~op2;
-                                break;
-                            default: //15
-                                result = registers[rd] = ~op2;
-                        }
-
-                        if (changeStatus)
-                        {
-                            if (result == 0)
-                                cpsrRegister |= Z_MASK;
-                            else
-                                cpsrRegister &= ~Z_MASK;
-
-                            if (result < 0)
-                                cpsrRegister |= N_MASK;
-                            else
-                                cpsrRegister &= ~N_MASK;
-
-                            //FIXME: need to check for overflow
-
-                        }
+                        dataProcessing(opcode, changeStatus, rn, rd, op2);
                         //return ARMV4_TypeDataProcessing;
                     }
                 } else if ((((instruction & generateMask(7,7)) >> 7) & 1) == 0) {
@@ -211,73 +646,7 @@ public class Core implements Runnable {
 
                         op2 = shiftHelper(shiftType, shiftAmount, registers[rm]);
 
-                        int result;
-                        switch(opcode)
-                        {
-                            case 0: //AND
-                                result = registers[rd] = registers[rn] & op2;
-                                break;
-                            case 1: //EOR
-                                result = registers[rd] = registers[rn] ^ op2;
-                                break;
-                            case 2:
-                                result = registers[rd] = registers[rn] - op2;
-                                break;
-                            case 3:
-                                result = registers[rd] = op2 - registers[rn];
-                                break;
-                            case 4:
-                                result = registers[rd] = registers[rn] + op2; //FIXME: bug here not checking for overlfow
-                                break;
-                            case 5:
-                                result = registers[rd] = registers[rn] + op2 + (cpsrRegister & C_MASK);
-                                break;
-                            case 6:
-                                result = registers[rd] = registers[rn] - op2 + (cpsrRegister & C_MASK) - 1;
-                                break;
-                            case 7:
-                                result = registers[rd] = op2 - registers[rn] + (cpsrRegister & C_MASK) - 1;
-                                break;
-                            case 8:
-                                result = registers[rn] & op2;
-                                break;
-                            case 9:
-                                result = registers[rn] ^ op2;
-                                break;
-                            case 10:
-                                result = registers[rn] - op2;
-                                break;
-                            case 11:
-                                result = registers[rn] + op2;
-                                break;
-                            case 12:
-                                result = registers[rd] = registers[rn] | op2;
-                                break;
-                            case 13:
-                                result = registers[rd] = op2;
-                                break;
-                            case 14:
-                                result = registers[rd] = registers[rn] & ~op2;
-                                break;
-                            default: //15
-                                result = registers[rd] = ~op2;
-                        }
-
-                        if (changeStatus)
-                        {
-                            if (result == 0)
-                                cpsrRegister |= Z_MASK;
-                            else
-                                cpsrRegister &= ~Z_MASK;
-
-                            if (result < 0)
-                                cpsrRegister |= N_MASK;
-                            else
-                                cpsrRegister &= ~N_MASK;
-
-                            //FIXME: need to check for overflow
-
-                        }
+                        dataProcessing(opcode, changeStatus, rn, rd, op2);
                         /* ParseInstrDataProc(instr); */
                         //return ARMV4_TypeDataProcessing;
                     }
@@ -315,88 +684,16 @@ public class Core implements Runnable {
                     {
                         int rm = ((instruction & generateMask(0,3)) >> 0) & 0xf;
                         int shiftType = ((instruction & generateMask(5,6)) >> 5) & 0x3;
-                        int shiftAmount = ((instruction & generateMask(7,11)) >> 7) & 0xf;
-                        imm = this.shiftHelper(shiftType, shiftAmount, registers[rm]);
+                        int shiftAmount = ((instruction & generateMask(7,11)) >> 7) & 0x1f;
+                        imm = immediateShift(shiftType, shiftAmount, registers[rm]);
                     }
                     else
                     {
-                        //rotate imm value
-                        for (int c = 0; c < rotate % 8; ++c) //the % is there because rotatin 8 bit int by 9
-                                                            //is same as rotating once
-                        {
-                            int temp = imm & (1<<7);
-                            imm <<= 1;
-                            imm = imm + ((temp > 0) ? 1 : 0);
-                        }
+                        imm = rotateImmediate(imm, rotate);
+                        immediateCarry(rotate, imm);
                     }
                     int op2 = imm;
-                    int result;
-                    switch(opcode)
-                    {
-                        case 0: //AND
-                            result = registers[rd] = registers[rn] & op2;
-                            break;
-                        case 1: //EOR
-                            result = registers[rd] = registers[rn] ^ op2;
-                            break;
-                        case 2:
-                            result = registers[rd] = registers[rn] - op2;
-                            break;
-                        case 3:
-                            result = registers[rd] = op2 - registers[rn];
-                            break;
-                        case 4:
-                            result = registers[rd] = registers[rn] + op2; //FIXME: bug here not checking for overlfow
-                            break;
-                        case 5:
-                            result = registers[rd] = registers[rn] + op2 + (cpsrRegister & C_MASK);
-                            break;
-                        case 6:
-                            result = registers[rd] = registers[rn] - op2 + (cpsrRegister & C_MASK) - 1;
-                            break;
-                        case 7:
-                            result = registers[rd] = op2 - registers[rn] + (cpsrRegister & C_MASK) - 1;
-                            break;
-                        case 8:
-                            result = registers[rn] & op2;
-                            break;
-                        case 9:
-                            result = registers[rn] ^ op2;
-                            break;
-                        case 10:
-                            result = registers[rn] - op2;
-                            break;
-                        case 11:
-                            result = registers[rn] + op2;
-                            break;
-                        case 12:
-                            result = registers[rd] = registers[rn] | op2;
-                            break;
-                        case 13:
-                            result = registers[rd] = op2;
-                            break;
-                        case 14:
-                            result = registers[rd] = registers[rn] & ~op2;
-                            break;
-                        default: //15
-                            result = registers[rd] = ~op2;
-                    }
-
-                    if (changeStatus)
-                    {
-                        if (result == 0)
-                            cpsrRegister |= Z_MASK;
-                        else
-                            cpsrRegister &= ~Z_MASK;
-
-                        if (result < 0)
-                            cpsrRegister |= N_MASK;
-                        else
-                            cpsrRegister &= ~N_MASK;
-
-                        //FIXME: need to check for overflow
-
-                    }
+                    dataProcessing(opcode, changeStatus, rn, rd, op2);
                     //return ARMV4_TypeDataProcessing;
                 }
                 break;
@@ -411,7 +708,7 @@ public class Core implements Runnable {
                 boolean load = (instruction & generateMask(20,20)) > 0;
                 int rn = ((instruction & generateMask(16,19)) >> 16) & 0xf;
                 int rd = ((instruction & generateMask(12,15)) >> 12) & 0xf;
-                int imm = ((instruction & generateMask(0,11)) >> 0) & 0x3ff;
+                int imm = ((instruction & generateMask(0,11)) >> 0) & 0xfff;
 
 
                 //detemine if instruction is register or imm indexed
@@ -420,125 +717,43 @@ public class Core implements Runnable {
                     int rm = ((instruction & generateMask(0,3)) >> 0) & 0xf;
                     int shiftType = ((instruction & generateMask(5,6)) >> 5) & 0x3;
                     int shiftAmount = ((instruction & generateMask(7,11)) >> 7) & 0x1f;
-                    imm = this.shiftHelper(shiftType, shiftAmount, registers[rm]);
+                    imm = immediateShift(shiftType, shiftAmount, registers[rm]);
                 }
                 else
                 {
                     //nothing to do, default value is good
                 }
 
-                //calculate effective addr
-                int addr = registers[rn];
-                if (preIndex)
-                {
-                    if (addOffset)
-                        addr += imm;
-                    else
-                        addr = addr - imm;
-                }
-
-                if (load)
-                {
-                    int data;
-                    if (transferByte) //load a byte
-                    {
-                        data = dataMem.readByte(addr, dataBound) & 0xff;
-                    }
-                    else //load a word
-                    {
-                       data = dataMem.readWord(addr, dataBound);
-                    }
-                    registers[rd] = data;
-                }
-                else //store
-                {
-
-                    if (transferByte) //store a byte
-                    {
-                        byte byte1 = (byte)(registers[rd] & generateMask(0, 7));
-                        dataMem.writeByte(addr, byte1, dataBound);
-                    }
-                    else //store a word
-                    {
-                        dataMem.writeWord(addr, registers[rd], dataBound);
-                    }
-                }
-
-
-                if (!preIndex)//postIndex
-                {
-                    if (addOffset)
-                        addr += imm;
-                    else
-                        addr = addr - imm;
-                }
-
-                if (writeBack)
-                {
-                    registers[rn] = addr;
-                }
-
-
+                singleTransfer(preIndex, addOffset, transferByte, writeBack, load, rn, rd, imm);
                 //return ARMV4_TypeLoadStoreSingle;
                 break;
             }
             case 0x3:
                 if ((((instruction & generateMask(4,4)) >> 4) & 0x1) == 0) {
                     /* load/store register offset */
+                    boolean preIndex = (instruction & generateMask(24, 24)) > 0;
+                    boolean addOffset = (instruction & generateMask(23,23)) > 0;
+                    boolean transferByte = (instruction & generateMask(22,22)) > 0;
+                    boolean writeBack  = (instruction & generateMask(21,21)) > 0;
+                    boolean load = (instruction & generateMask(20,20)) > 0;
+                    int rn = ((instruction & generateMask(16,19)) >> 16) & 0xf;
+                    int rd = ((instruction & generateMask(12,15)) >> 12) & 0xf;
+                    int rm = ((instruction & generateMask(0,3)) >> 0) & 0xf;
+                    int shiftType = ((instruction & generateMask(5,6)) >> 5) & 0x3;
+                    int shiftAmount = ((instruction & generateMask(7,11)) >> 7) & 0x1f;
 
+                    singleTransfer(preIndex, addOffset, transferByte, writeBack, load, rn, rd,
+                            immediateShift(shiftType, shiftAmount, registers[rm]));
                     //return ARMV4_TypeLoadStoreSingle;
                 } else {
                     /* undefined */
-
+                    throw new UnknownFormatException("instruction cannot be parsed");
                     //return ARMV4_TypeUndefined;
                 }
                 break;
             case 0x4:
                 /* load/store multiple */
-                boolean preIndex = (instruction & generateMask(24,24)) != 0;
-                boolean addOffset = (instruction & generateMask(23,23)) != 0;
-                boolean forcePSR = (instruction & generateMask(22,22)) != 0; //i'm not implementing this
-                boolean writeBack = (instruction & generateMask(21,21)) != 0;
-                boolean load = (instruction & generateMask(20,20)) != 0;
-
-                int rn = ((instruction & generateMask(16,19)) >> 16) & 0xf;
-                int registerList = ((instruction & generateMask(0,15)) >> 16) & 0xffff;
-
-                int addr = registers[rn];
-
-                for (int i = 0; i < 16; ++i)
-                {
-                    if (preIndex)
-                    {
-                        if (addOffset)
-                            addr += 4;
-                        else
-                            addr = addr - 4;
-                    }
-
-                    if(((registerList >> i) & 1) != 0) //need to load/store register
-                    {
-                        if (load)
-                        {
-                            registers[i] = dataMem.readWord(addr, dataBound);
-                        }
-                        else //store
-                        {
-                            dataMem.writeWord(addr, registers[i], dataBound);
-                        }
-                    }
-
-                    if (!preIndex)
-                    {
-                        if (addOffset)
-                            addr += 4;
-                        else
-                            addr = addr - 4;
-                    }
-                }
-
-                if (writeBack)
-                    registers[rn] = addr;
+                blockTransfer(instruction);
                 //return ARMV4_TypeLoadStoreMultiple;
                 break;
             case 0x5:
@@ -555,20 +770,13 @@ public class Core implements Runnable {
                     offset = mask | offset;
                 }
 
-                if (link)
-                    registers[14] = registers[15] + 4;
-                
-                registers[15] += (offset) - 8; //instruction encoding takes into account
-                                                //some lame pipeline stuff, requiring
-                                                //equally lame offset
-                
+                branch(link, offset);
                 //return ARMV4_TypeBranch;
                 break;
             case 0x6:
                 /* co-processor load/store (LDC/STC) and DSP register transfers (undefined)*/
-
+                throw new UnimplementedInstructionException("LDC/STC not implemented, there are no co-processors");
                 //return ARMV4_TypeLoadStoreCoprocessor;
-                break;
             case 0x7:
                 if ((((instruction & generateMask(24,24)) >> 24) & 0x1) == 1) {
                     /* SWI */
@@ -594,6 +802,407 @@ public class Core implements Runnable {
 
     }
 
+    /**
+     * Do a load/store multiple (LDM/STM).  The lowest register always goes
+     * to the lowest address, whichever way the addresses run, and the whole
+     * block goes to memory at once.  Loading the PC returns, like BX.
+     */
+    void blockTransfer(int instruction) throws MemoryAccessException
+    {
+        boolean preIndex = (instruction & generateMask(24,24)) != 0;
+        boolean addOffset = (instruction & generateMask(23,23)) != 0;
+        boolean forcePSR = (instruction & generateMask(22,22)) != 0; //i'm not implementing this
+        boolean writeBack = (instruction & generateMask(21,21)) != 0;
+        boolean load = (instruction & generateMask(20,20)) != 0;
+
+        int rn = ((instruction & generateMask(16,19)) >> 16) & 0xf;
+        int registerList = instruction & 0xffff;
+        int n = Integer.bitCount(registerList);
+
+        //lowest address of the block
+        int addr = registers[rn];
+        if (!addOffset)
+            addr -= n * 4;
+        if (preIndex == addOffset) //increment before, decrement after
+            addr += 4;
+        int base = addOffset ? registers[rn] + n * 4 : registers[rn] - n * 4;
+
+        if (load)
+            dataMem.readWords(addr, registers, registerList, dataBound);
+        else
+            dataMem.writeWords(addr, registers, registerList, dataBound);
+
+        if (tracer != null || caches != null || timing != null)
+            for (int list = registerList, a = addr; list != 0; list &= list - 1, a += 4)
+            {
+                int i = Integer.numberOfTrailingZeros(list);
+                if (tracer != null)
+                    tracer.access(load ? AccessTracer.READ_WORD : AccessTracer.WRITE_WORD, a, registers[i]);
+                if (caches != null || timing != null)
+                    accessed(a, !load);
+            }
+
+        if (writeBack && !(load && ((registerList >> rn) & 1) != 0)) //a loaded base wins
+            registers[rn] = base;
+
+        if (load && (registerList & (1 << 15)) != 0)
+        {
+            branched = true;
+            registers[15] -= 4; //PC := loaded word, less what the run loop adds
+        }
+    }
+
+    /**
+     * Do a single word/byte load or store (LDR/STR/LDRB/STRB) once the offset is known.
+     */
+    void singleTransfer(boolean preIndex, boolean addOffset, boolean transferByte,
+            boolean writeBack, boolean load, int rn, int rd, int imm) throws MemoryAccessException
+    {
+        //calculate effective addr
+        int addr = registers[rn];
+        if (preIndex)
+        {
+            if (addOffset)
+                addr += imm;
+            else
+                addr = addr - imm;
+        }
+
+        if (load)
+        {
+            int data;
+            if (transferByte) //load a byte
+            {
+                data = loadByte(addr) & 0xff;
+            }
+            else //load a word
+            {
+               data = loadWord(addr);
+            }
+            registers[rd] = data;
+            if (rd == 15)
+            {
+                branched = true;
+                registers[15] -= 4; //PC := loaded word, less what the run loop adds
+            }
+        }
+        else //store
+        {
+
+            if (transferByte) //store a byte
+            {
+                byte byte1 = (byte)(registers[rd] & generateMask(0, 7));
+                storeByte(addr, byte1);
+            }
+            else //store a word
+            {
+                storeWord(addr, registers[rd]);
+            }
+        }
+
+
+        if (!preIndex)//postIndex
+        {
+            if (addOffset)
+                addr += imm;
+            else
+                addr = addr - imm;
+        }
+
+        if (writeBack || !preIndex) //post-indexing always writes back
+        {
+            registers[rn] = addr;
+        }
+    }
+
+    /**
+     * Do a halfword or signed byte load or store (LDRH/STRH/LDRSB/LDRSH) once
+     * the offset is known.  Loaded halfwords are zero extended, signed ones
+     * sign extended.
+     * @param sh bits 5-6 of the instruction: 1 halfword, 2 signed byte, 3 signed halfword
+     * @throws UnimplementedInstructionException for the doubleword transfers
+     * (LDRD/STRD), which are the stores with sh 2 and 3
+     */
+    void halfTransfer(boolean preIndex, boolean addOffset, boolean writeBack, boolean load,
+            int sh, int rn, int rd, int offset) throws MemoryAccessException, UnimplementedInstructionException
+    {
+        if (!load && sh != 1)
+            throw new UnimplementedInstructionException("LDRD/STRD not implemented");
+
+        int addr = registers[rn] + (preIndex ? (addOffset ? offset : -offset) : 0);
+
+        if (!load)
+            storeHalf(addr, (short)registers[rd]);
+        else if (sh == 1)
+            registers[rd] = loadHalf(addr) & 0xffff;
+        else if (sh == 2)
+            registers[rd] = loadByte(addr); //sign extended for free going from byte to int
+        else
+            registers[rd] = loadHalf(addr);
+
+        if (!preIndex)//postIndex
+            addr += addOffset ? offset : -offset;
+
+        if (writeBack || !preIndex) //post-indexing always writes back
+            registers[rn] = addr;
+    }
+
+    /**
+     * Shift by an amount encoded in the instruction, as data processing
+     * operands and register offset LDR/STR have them: LSR #0 and ASR #0 mean a
+     * shift by 32, and ROR #0 means RRX (rotate right by one through C)
+     * @param shiftType bits 5-6 of the instruction
+     * @param shiftAmount bits 7-11 of the instruction
+     * @param shiftValue value to be shifted
+     * @return the shifted value, whose carry out is kept for dataProcessing
+     */
+    int immediateShift(int shiftType, int shiftAmount, int shiftValue)
+    {
+        if (shiftAmount != 0 || shiftType == 0)
+            return shiftHelper(shiftType, shiftAmount, shiftValue);
+        else if (shiftType == 3) //RRX
+        {
+            int result = (shiftValue >>> 1) | ((cpsrRegister & C_MASK) << 2);
+            shifterCarry = (shiftValue & 1) << 29;
+            return result;
+        }
+        else
+            return shiftHelper(shiftType, 32, shiftValue);
+    }
+
+    /**
+     * Branch by offset bytes, storing the return address in the link register
+     * if asked to.
+     */
+    void branch(boolean link, int offset)
+    {
+        branched = true;
+        if (link)
+            registers[14] = registers[15] + 4;
+
+        registers[15] += offset + 4; //the target is 8 past the branch (the pc
+                                      //reads two instructions ahead), less the 4
+                                      //the run loop adds
+    }
+
+    /**
+     * Rotate the 8 bit immediate of a data processing instruction right by
+     * twice the rotate field, within the whole 32 bits
+     * @param imm bits 0-7 of the instruction
+     * @param rotate bits 8-11 of the instruction
+     * @return
+     */
+    static int rotateImmediate(int imm, int rotate)
+    {
+        return Integer.rotateRight(imm, rotate * 2);
+    }
+
+    /**
+     * MUL/MLA: rd := rm * rs (+ rn), keeping the low 32 bits of the result.
+     * Sets N and Z if asked to; C is left alone (unpredictable in ARMv4 and
+     * unaffected in v5+, the simulator assumes v5+).
+     */
+    void multiply(boolean accumulate, boolean updateStatus, int rd, int rn, int rs, int rm)
+    {
+        //java int multiplication wraps, which is exactly the low 32 bits
+        int result = registers[rm] * registers[rs];
+        if (accumulate)
+            result += registers[rn];
+        registers[rd] = result;
+
+        if (updateStatus)
+        {
+            if (result < 0)
+                cpsrRegister |= N_MASK;
+            else
+                cpsrRegister &= ~N_MASK;
+
+            if (result == 0)
+                cpsrRegister |= Z_MASK;
+            else
+                cpsrRegister &= ~Z_MASK;
+        }
+    }
+
+    /**
+     * UMULL/UMLAL/SMULL/SMLAL: rdHigh:rdLow := rm * rs (+ rdHigh:rdLow) as a 64
+     * bit result.  N and Z (if asked for) reflect the whole 64 bits; C and V are
+     * left alone (v5+ behaviour).
+     */
+    void multiplyLong(boolean signed, boolean accumulate, boolean updateStatus,
+            int rdHigh, int rdLow, int rs, int rm)
+    {
+        //a 32x32 bit product always fits in 64 bits, so a long multiply is exact;
+        //for unsigned operands the bits are right even when the long "overflows" the sign
+        long a = signed ? registers[rm] : registers[rm] & 0xffffffffL,
+             b = signed ? registers[rs] : registers[rs] & 0xffffffffL;
+        long result = a * b;
+
+        if (accumulate)
+            result += ((long)registers[rdHigh] << 32) | (registers[rdLow] & 0xffffffffL);
+
+        registers[rdLow] = (int)result;
+        registers[rdHigh] = (int)(result >>> 32);
+
+        if (updateStatus)
+        {
+            if (result < 0)
+                cpsrRegister |= N_MASK;
+            else
+                cpsrRegister &= ~N_MASK;
+
+            if (result == 0)
+                cpsrRegister |= Z_MASK;
+            else
+                cpsrRegister &= ~Z_MASK;
+        }
+    }
+
+    /**
+     * Do the ALU part of a data processing instruction, writing rd (unless it's
+     * a compare/test) and the status flags if asked to.  Arithmetic sets C and V
+     * from the addition, logical operations set C to the shifter's carry out and
+     * leave V alone.
+     * @param opcode bits 21-24 of the instruction
+     * @param changeStatus the S bit
+     * @param rn first operand register
+     * @param rd destination register
+     * @param op2 the (already shifted/rotated) second operand, whose shift or
+     * rotate has to have been the last one this core did
+     */
+    void dataProcessing(int opcode, boolean changeStatus, int rn, int rd, int op2)
+    {
+        int a = registers[rn], carry = (cpsrRegister >>> 29) & 1;
+        int result, flags;
+        switch(opcode)
+        {
+            case 0: //AND
+            case 8: //TST
+                result = a & op2;
+                flags = shifterCarry | (cpsrRegister & V_MASK);
+                break;
+            case 1: //EOR
+            case 9: //TEQ
+                result = a ^ op2;
+                flags = shifterCarry | (cpsrRegister & V_MASK);
+                break;
+            case 2: //SUB
+            case 10: //CMP
+                result = add(a, ~op2, 1);
+                flags = addFlags;
+                break;
+            case 3: //RSB
+                result = add(op2, ~a, 1);
+                flags = addFlags;
+                break;
+            case 4: //ADD
+            case 11: //CMN
+                result = add(a, op2, 0);
+                flags = addFlags;
+                break;
+            case 5: //ADC
+                result = add(a, op2, carry);
+                flags = addFlags;
+                break;
+            case 6: //SBC
+                result = add(a, ~op2, carry);
+                flags = addFlags;
+                break;
+            case 7: //RSC
+                result = add(op2, ~a, carry);
+                flags = addFlags;
+                break;
+            case 12: //ORR
+                result = a | op2;
+                flags = shifterCarry | (cpsrRegister & V_MASK);
+                break;
+            case 13: //MOV
+                result = op2;
+                flags = shifterCarry | (cpsrRegister & V_MASK);
+                break;
+            case 14: //BIC
+                result = a & ~op2;
+                flags = shifterCarry | (cpsrRegister & V_MASK);
+                break;
+            default: //15, MVN
+                result = ~op2;
+                flags = shifterCarry | (cpsrRegister & V_MASK);
+        }
+
+        if (opcode < 8 || opcode > 11) //compares and tests only set the flags
+        {
+            registers[rd] = result;
+            if (rd == 15)
+            {
+                branched = true;
+                registers[15] -= 4; //PC := result, less what the run loop adds
+            }
+        }
+
+        if (changeStatus)
+            cpsrRegister = (cpsrRegister & ~(N_MASK | Z_MASK | C_MASK | V_MASK))
+                    | (result & N_MASK) | (result == 0 ? Z_MASK : 0) | flags;
+    }
+
+    /**
+     * x + y + carryIn as the ALU does it, leaving the C (unsigned overflow) and
+     * V (signed overflow) flags of the addition in addFlags.  Subtractions are
+     * x + ~y + 1, where C means there was no borrow.
+     */
+    private int add(int x, int y, int carryIn)
+    {
+        long sum = (x & 0xffffffffL) + (y & 0xffffffffL) + carryIn;
+        int result = (int)sum;
+        addFlags = ((int)(sum >>> 32) << 29) | ((((x ^ result) & (y ^ result)) >>> 31) << 28);
+        return result;
+    }
+
+    /**
+     * Note the shifter carry out of a rotated immediate second operand: C is
+     * left alone if it wasn't rotated, otherwise it's bit 31 of the operand
+     * @param rotate bits 8-11 of the instruction
+     * @param op2 the rotated immediate
+     */
+    void immediateCarry(int rotate, int op2)
+    {
+        shifterCarry = rotate == 0 ? cpsrRegister & C_MASK : (op2 >>> 2) & C_MASK;
+    }
+
+    /**
+     * @return whether instr's condition field passes with the current flags
+     */
+    boolean conditionPassed(int instr)
+    {
+        return ((CONDITIONS[instr >>> 28] >> (cpsrRegister >>> 28)) & 1) != 0;
+    }
+
+    /**
+     * Work out a condition the long way, to fill in CONDITIONS
+     * @param cond bits 28-31 of an instruction
+     */
+    private static boolean conditionHolds(int cond, boolean n, boolean z, boolean c, boolean v)
+    {
+        switch (cond)
+        {
+            case 0x0: return z; //EQ
+            case 0x1: return !z; //NE
+            case 0x2: return c; //CS/HS
+            case 0x3: return !c; //CC/LO
+            case 0x4: return n; //MI
+            case 0x5: return !n; //PL
+            case 0x6: return v; //VS
+            case 0x7: return !v; //VC
+            case 0x8: return c && !z; //HI
+            case 0x9: return !c || z; //LS
+            case 0xa: return n == v; //GE
+            case 0xb: return n != v; //LT
+            case 0xc: return !z && n == v; //GT
+            case 0xd: return z || n != v; //LE
+            case 0xe: return true; //AL
+            default: return false; //NV, never (as in ARMv4)
+        }
+    }
+
     public void parseInstrExt0(int instr) throws
             UnimplementedInstructionException, UnknownFormatException
     {
@@ -623,7 +1232,7 @@ public class Core implements Runnable {
         //return ARMV4_TypeUndefined;
     }
 
-    private void parseInstrExt1(int instr) throws
+    void parseInstrExt1(int instr) throws
             UnknownFormatException, UnimplementedInstructionException {
         /* opcode = bit[22:21] and bit[7:4] */
         int op = (instr >> 21) & 0x3;
@@ -632,9 +1241,9 @@ public class Core implements Runnable {
                 /* BX or (undefined) CLZ */
                 if (op == 0x1) {
                     /* BX */
-                    int rd = (((instr & generateMask(0, 4)) >> 0) & 0x1f);
-                    registers[14] = registers[15] + 4; //link register := PC + 4
-                    registers[15] = registers[rd]; //PC := Rn
+                    int rm = instr & 0xf;
+                    branched = true;
+                    registers[15] = registers[rm] - 4; //PC := Rm, less what the run loop adds
                     //return ARMV4_TypeBranch;
                 } else {
                     throw new UnknownFormatException("instruction cannot be parsed");
@@ -664,238 +1273,36 @@ public class Core implements Runnable {
     }
 
 
-    private void parseInstrExt2(int instr) throws memsim.exceptions.MemoryAccessException{
+    void parseInstrExt2(int instr) throws memsim.exceptions.MemoryAccessException,
+            UnimplementedInstructionException {
         /* MUL/MLA,SMLAL,SMULL,UMLAL,UMULL, STRH/LDRH, LDRSB, LDRH and two undefined*/
         int op = (instr >> 5) & 0x3;
         switch (op) {
             /* Multiply, multiply long, swap */
             case 0x0:
                 if ((((instr & generateMask(22, 25)) >> 22) & 0xf) == 0) {
-                    if ((((instr & generateMask(21, 21)) >> 21) & 0x1) == 1) {
-                        /* mla */
-                        boolean updateStatus =
-                                (((instr & generateMask(20,20)) >> 20) & 0x1) == 1;
-                        int rd = (((instr & generateMask(16, 19)) >> 16) & 0xf);
-                        int rn = (((instr & generateMask(12, 15)) >> 12) & 0xf);
-                        int rs = (((instr & generateMask(8, 11)) >> 8) & 0xf);
-                        int rm = (((instr & generateMask(0, 3)) >> 0) & 0xf);
-
-                        //to take care of overflows, do math in BigInt and mask
-                        //down to 32 bits if necessary
-
-                        BigInteger rmBig = new BigInteger(Integer.toString(registers[rm])),
-                                rsBig = new BigInteger(Integer.toString(registers[rs])),
-                                rnBig = new BigInteger(Integer.toString(registers[rn])),
-                                rdBig;
-
-                        rdBig = rnBig.add(rmBig.multiply(rsBig));
-                        //can it fit in 32 bits?
-                        if (rdBig.compareTo(new BigInteger(((1 << 32) - 1) + "")) <= 0)
-                        {
-                            registers[rd] = rdBig.intValue();
-                        }
-                        else
-                        {
-                            //isolate the lower 32 bits, discard anything else
-                            registers[rd] =
-                                    rdBig.and(new BigInteger(((1 << 32) - 1) + "")).intValue();
-                        }
-
-                        //update the status registers if need be
-                        if (updateStatus)
-                        {
-                            //note in ARMv4 and under, C flag was unpredictable,
-                            //but in ARMv5 and up, C flag was uneffected.
-                            //simulator assumes v5+
-                            if (registers[rd] < 0) //update N flag
-                                cpsrRegister |= N_MASK;
-                            else
-                                cpsrRegister &= ~N_MASK;
-
-                            if (registers[rd] == 0)
-                                cpsrRegister |= Z_MASK;
-                            else
-                                cpsrRegister &= ~Z_MASK;
-                        }
-
-                        //return ARMV4_TypeMultiplication;
-                    } else {
-                        /* mul */
-                        boolean updateStatus =
-                                (((instr & generateMask(20,20)) >> 20) & 0x1) == 1;
-                        int rd = (((instr & generateMask(16, 19)) >> 16) & 0xf);
-                        int rs = (((instr & generateMask(8, 11)) >> 8) & 0xf);
-                        int rm = (((instr & generateMask(0, 3)) >> 0) & 0xf);
-
-                        BigInteger rmBig = new BigInteger(Integer.toString(registers[rm])),
-                                rsBig = new BigInteger(Integer.toString(registers[rs])),
-                                rdBig;
-
-                        rdBig = rmBig.multiply(rsBig);
-                        //can it fit in 32 bits?
-                        if (rdBig.compareTo(new BigInteger(((1 << 32) - 1) + "")) <= 0)
-                        {
-                            registers[rd] = rdBig.intValue();
-                        }
-                        else
-                        {
-                            //isolate the lower 32 bits, discard anything else
-                            registers[rd] =
-                                    rdBig.and(new BigInteger(((1 << 32) - 1) + "")).intValue();
-                        }
-
-                                                //update the status registers if need be
-                        if (updateStatus)
-                        {
-                            //note in ARMv4 and under, C flag was unpredictable,
-                            //but in ARMv5 and up, C flag was uneffected.
-                            //simulator assumes v5+
-                            if (registers[rd] < 0) //update N flag
-                                cpsrRegister |= N_MASK;
-                            else
-                                cpsrRegister &= ~N_MASK;
-
-                            if (registers[rd] == 0)
-                                cpsrRegister |= Z_MASK;
-                            else
-                                cpsrRegister &= ~Z_MASK;
-
-                        }
-
-                        //return ARMV4_TypeMultiplication;
-                    }
+                    /* mul/mla */
+                    boolean accumulate = (((instr & generateMask(21, 21)) >> 21) & 0x1) == 1;
+                    boolean updateStatus = (((instr & generateMask(20,20)) >> 20) & 0x1) == 1;
+                    int rd = (((instr & generateMask(16, 19)) >> 16) & 0xf);
+                    int rn = (((instr & generateMask(12, 15)) >> 12) & 0xf);
+                    int rs = (((instr & generateMask(8, 11)) >> 8) & 0xf);
+                    int rm = (((instr & generateMask(0, 3)) >> 0) & 0xf);
+
+                    multiply(accumulate, updateStatus, rd, rn, rs, rm);
+                    //return ARMV4_TypeMultiplication;
                 } else if ((((instr & generateMask(23, 24)) >> 23) & 0x3) == 1) {
+                    /* umull/umlal/smull/smlal */
                     int rdHigh = ((instr & generateMask(16,19)) >> 16) & 0xf,
                                 rdLow = ((instr & generateMask(12,15)) >> 12) & 0xf,
                                 rs = ((instr & generateMask(8,11)) >> 8) & 0xf,
                                 rm = ((instr & generateMask(0,3)) >> 0) & 0xf;
+                    boolean signed = (((instr & generateMask(22,22)) >> 22) & 0x1) > 0;
+                    boolean accumulate = (((instr & generateMask(21,21)) >> 21) & 0x1) > 0;
                     boolean updateStatus = (((instr & generateMask(20,20)) >> 20) & 0x1) > 0;
 
-                    switch ((((instr & generateMask(21, 22)) >> 21) & 0x3)) {
-                        case 0x0:
-                        {
-                            BigInteger result =
-                                    new BigInteger(Integer.toString(registers[rs]))
-                                    .multiply(new BigInteger(Integer.toString(registers[rm])));
-                            byte[] resultBytes = result.toByteArray();
-
-                            registers[rdHigh] = resultBytes[0];
-                            registers[rdLow] = resultBytes[1];
-
-                            if (updateStatus)
-                            {
-                                if (registers[rs] < 0 ^ registers[rm] < 0)
-                                    cpsrRegister |= N_MASK;
-                                else
-                                    cpsrRegister &= ~N_MASK;
-
-                                if (registers[rs] == 0 || registers[rm] == 0)
-                                    cpsrRegister |= Z_MASK;
-                                else
-                                    cpsrRegister &= ~Z_MASK;
-
-                                //note in ARMv4 and under, C and V flag was unpredictable,
-                                //but in ARMv5 and up, C and V flag was uneffected.
-                                //simulator assumes v5+
-                            }
-                            //return ARMV4_TypeMultiplication; /* smull */
-                            break;
-                        }
-                        case 0x1:
-                        {
-                            long toAccumulate = (registers[rdHigh] << 32) + registers[rdLow];
-                            BigInteger toAccumulateBig = new BigInteger(Long.toString(toAccumulate));
-                            BigInteger multiplyResult =
-                                    new BigInteger(Integer.toString(registers[rs]))
-                                    .multiply(new BigInteger(Integer.toString(registers[rm])));
-                            BigInteger result = toAccumulateBig.add(multiplyResult);
-
-                            byte[] resultBytes = result.toByteArray();
-                            registers[rdHigh] = resultBytes[0];
-                            registers[rdLow] = resultBytes[1];
-
-                            if (updateStatus)
-                            {
-                                if (result.compareTo(BigInteger.ZERO) < 0)
-                                    cpsrRegister |= N_MASK;
-                                else
-                                    cpsrRegister &= ~N_MASK;
-
-                                if (result.compareTo(BigInteger.ZERO) == 0)
-                                    cpsrRegister |= Z_MASK;
-                                else
-                                    cpsrRegister &= ~Z_MASK;
-
-                                //note in ARMv4 and under, C and V flag was unpredictable,
-                                //but in ARMv5 and up, C and V flag was uneffected.
-                                //simulator assumes v5+
-                            }
-                            //return ARMV4_TypeMultiplication; /* smlal */
-                            break;
-                        }
-                        case 0x2:
-                        {
-                            BigInteger result =
-                                    new BigInteger(Integer.toString(registers[rs]))
-                                    .multiply(new BigInteger(Integer.toString(registers[rm])));
-                            byte[] resultBytes = result.toByteArray();
-
-                            registers[rdHigh] = resultBytes[0];
-                            registers[rdLow] = resultBytes[1];
-
-                            if (updateStatus)
-                            {
-                                if (registers[rs] < 0 ^ registers[rm] < 0)
-                                    cpsrRegister |= N_MASK;
-                                else
-                                    cpsrRegister &= ~N_MASK;
-
-                                if (registers[rs] == 0 || registers[rm] == 0)
-                                    cpsrRegister |= Z_MASK;
-                                else
-                                    cpsrRegister &= ~Z_MASK;
-
-                                //note in ARMv4 and under, C and V flag was unpredictable,
-                                //but in ARMv5 and up, C and V flag was uneffected.
-                                //simulator assumes v5+
-                            }
-                            //return ARMV4_TypeMultiplication; /* umull */
-                            break;
-                        }
-                        case 0x3:
-                        {
-                            //TODO check all unsigned operations, the toString()s might cause trouble
-                            long toAccumulate = (registers[rdHigh] << 32) + registers[rdLow];
-                            BigInteger toAccumulateBig = new BigInteger(Long.toString(toAccumulate));
-                            BigInteger multiplyResult =
-                                    new BigInteger(Integer.toString(registers[rs]))
-                                    .multiply(new BigInteger(Integer.toString(registers[rm])));
-                            BigInteger result = toAccumulateBig.add(multiplyResult);
-
-                            byte[] resultBytes = result.toByteArray();
-                            registers[rdHigh] = resultBytes[0];
-                            registers[rdLow] = resultBytes[1];
-
-                            if (updateStatus)
-                            {
-                                if (result.compareTo(BigInteger.ZERO) < 0)
-                                    cpsrRegister |= N_MASK;
-                                else
-                                    cpsrRegister &= ~N_MASK;
-
-                                if (result.compareTo(BigInteger.ZERO) == 0)
-                                    cpsrRegister |= Z_MASK;
-                                else
-                                    cpsrRegister &= ~Z_MASK;
-                            }
-                            //note in ARMv4 and under, C and V flag was unpredictable,
-                            //but in ARMv5 and up, C and V flag was uneffected.
-                            //simulator assumes v5+
-
-                            //return ARMV4_TypeMultiplication; /* umlal */
-                            break;
-                        }
-                    }
+                    multiplyLong(signed, accumulate, updateStatus, rdHigh, rdLow, rs, rm);
+                    //return ARMV4_TypeMultiplication;
                 } else if (((instr >> 20) & 0x1B) == 0x10) {
                     if ((((instr & generateMask(22, 22)) >> 22) & 0x1) == 1) {
                         /* swapb */
@@ -903,8 +1310,8 @@ public class Core implements Runnable {
                             rd = ((instr & generateMask(12,15)) >> 12) & 0xf,
                             rm = ((instr & generateMask(0,3)) >> 0) & 0xf;
 
-                        byte rnData = dataMem.readByte(rn, dataBound);
-                        dataMem.writeByte(rn, (byte)(registers[rm] & generateMask(0,7)), dataBound);
+                        byte rnData = loadByte(registers[rn]);
+                        storeByte(registers[rn], (byte)(registers[rm] & generateMask(0,7)));
                         registers[rd] = ((int)rnData) & generateMask(0,7);
                         //return ARMV4_TypeAtomicSwap;
                     } else {
@@ -913,273 +1320,94 @@ public class Core implements Runnable {
                             rd = ((instr & generateMask(12,15)) >> 12) & 0xf,
                             rm = ((instr & generateMask(0,3)) >> 0) & 0xf;
 
-                        int rnData = dataMem.readWord(rn, dataBound);
-                        dataMem.writeWord(rn, registers[rm], dataBound);
+                        int rnData = loadWord(registers[rn]);
+                        storeWord(registers[rn], registers[rm]);
                         registers[rd] = rnData;
                         //return ARMV4_TypeAtomicSwap;
                     }
                 }
                 break;
 
-            /* Load/store half-word ldrh/strh (unsigned)*/
-            case 0x1:
+            /* Load/store halfword, load signed byte/halfword (ldrh/strh/ldrsb/ldrsh) */
+            default:
             {
                 boolean preIndex = (instr & generateMask(24, 24)) > 0;
                 boolean addOffset = (instr & generateMask(23,23)) > 0;
+                boolean immediate = (instr & generateMask(22,22)) > 0;
                 boolean writeBack  = (instr & generateMask(21,21)) > 0;
                 boolean load = (instr & generateMask(20,20)) > 0;
                 int rn = ((instr & generateMask(16,19)) >> 16) & 0xf;
-                int rd = ((instr & generateMask(12,15)) >> 15) & 0xf;
-                int offset = ((instr & generateMask(8,11)) >> 8) & 0xf; //get higher nibble
-                byte sh = (byte)(((instr & generateMask(5,6)) >> 5) & 0x3);//don't worry about this
+                int rd = ((instr & generateMask(12,15)) >> 12) & 0xf;
+                int offset;
 
                 //detemine if instr is register or imm indexed
-                if (offset == 0) //register indexed
-                {
-                    int rm = ((instr & generateMask(0,3)) >> 0) & 0xf;
-                    offset = registers[rm];
-                }
+                if (immediate) //high nibble in bits 8-11, low nibble in bits 0-3
+                    offset = (((instr & generateMask(8,11)) >> 4) & 0xf0) | (instr & 0xf);
                 else
-                {
-                    offset <<= 4;
-                    offset &= ~0xff; //clean lower nibble
-                    offset +=(byte)((instr & generateMask(0,3)) >> 0) & 0xf;//get lower nibble
-                }
-
-                //calculate effective addr
-                int addr = registers[rn];
-                if (preIndex)
-                {
-                    if (addOffset)
-                        addr += offset;
-                    else
-                        addr = addr - offset;
-                }
-
-                if (load)
-                {
-                    byte data1 = dataMem.readByte(addr, dataBound);
-                    byte data2 = dataMem.readByte(addr+1, dataBound);
-                    int data = ((((int)data2) << 8) & 0xff) + (((int)data1) & 0xff);
-                    registers[rd] = data;
-                }
-                else //store
-                {
-                    byte byte1 = (byte)(registers[rd] & generateMask(0, 7));
-                    byte byte2 = (byte)(registers[rd] & generateMask(8, 15));
-                    dataMem.writeByte(addr, byte1, dataBound);
-                    dataMem.writeByte(addr + 1, byte2, dataBound);
-                }
-
-                if (!preIndex)//postIndex
-                {
-                    if (addOffset)
-                        addr += offset;
-                    else
-                        addr = addr - offset;
-                }
-
-                if (writeBack)
-                {
-                    registers[rn] = addr;
-                }
+                    offset = registers[instr & 0xf];
 
+                halfTransfer(preIndex, addOffset, writeBack, load, op, rn, rd, offset);
                 //return ARMV4_TypeLoadStoreExtra;
                 break;
             }
-            /* Load signed half-word */
-            case 0x2:
-            case 0x3:
-                /* TODO: check for L = 0 && S = 1 which is unpredictable */
-                if ((((instr & generateMask(22, 22)) >> 22) & 0x1) == 0
-                    && (((instr & generateMask(20, 20)) >> 20) & 0x1) == 1) {
-                    /* Register offset */
-                    if ((((instr & generateMask(5, 5)) >> 5) & 0x1) == 1) {
-                        /* ldrsh */
-                        boolean preIndex = (instr & generateMask(24, 24)) > 0;
-                        boolean addOffset = (instr & generateMask(23,23)) > 0;
-                        boolean writeBack  = (instr & generateMask(21,21)) > 0;
-                        boolean load = (instr & generateMask(20,20)) > 0;
-                        int rn = ((instr & generateMask(16,19)) >> 16) & 0x3;
-                        int rd = ((instr & generateMask(15,12)) >> 15) & 0xf;
-                        int offset = ((instr & generateMask(8,11)) >> 8) & 0xf; //get higher nibble
-                        byte sh = (byte)(((instr & generateMask(5,6)) >> 5) & 0x3);//don't worry about this
-                        int rm = ((instr & generateMask(0,3)) >> 0) & 0xf;
-
-                        offset = registers[rm];
-
-                        int addr = registers[rn];
-                        if (preIndex)
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
-
-                        byte data1 = dataMem.readByte(addr, dataBound);
-                        byte data2 = dataMem.readByte(addr+1, dataBound);
-                        int data = (data2 << 8) + data1; //note, I get sign extension
-                                                        //for free when converting
-                                                        //from byte to int
-
-
-                        registers[rd] = data;
-
-                        if (!preIndex)//postIndex
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
-
-                        if (writeBack)
-                        {
-                            registers[rn] = addr;
-                        }
-                        //return ARMV4_TypeLoadStoreExtra;
-                    } else {
-                        /* ldrsb */
-                        boolean preIndex = (instr & generateMask(24, 24)) > 0;
-                        boolean addOffset = (instr & generateMask(23,23)) > 0;
-                        boolean writeBack  = (instr & generateMask(21,21)) > 0;
-                        boolean load = (instr & generateMask(20,20)) > 0;
-                        int rn = ((instr & generateMask(16,19)) >> 16) & 0xf;
-                        int rd = ((instr & generateMask(15,12)) >> 15) & 0xf;
-                        int offset = ((instr & generateMask(8,11)) >> 8) & 0xf; //get higher nibble
-                        byte sh = (byte)(((instr & generateMask(5,6)) >> 5) & 0x3);//don't worry about this
-                        int rm = ((instr & generateMask(0,3)) >> 0) & 0xf;
-
-                        offset = registers[rm];
-
-                        int addr = registers[rn];
-                        if (preIndex)
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
-
-                        byte data1 = dataMem.readByte(addr, dataBound);
-                        int data = data1; //free sign extension by converting
-                                            //byte to int!
-
-                        registers[rd] = data;
-
-                        if (!preIndex)//postIndex
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
-
-                        if (writeBack)
-                        {
-                            registers[rn] = addr;
-                        }
-                        //return ARMV4_TypeLoadStoreExtra;
-                    }
-                } else if ((((instr & generateMask(22, 22)) >> 22) & 0x1) == 1
-                        && (((instr & generateMask(20, 20)) >> 20) & 0x1) == 1) {
-                    /* Immediate offset */
-                    if ((((instr & generateMask(5, 5)) >> 5) & 0x1) == 0) {
-                        /* ldrsh */
-                        boolean preIndex = (instr & generateMask(24, 24)) > 0;
-                        boolean addOffset = (instr & generateMask(23,23)) > 0;
-                        boolean writeBack  = (instr & generateMask(21,21)) > 0;
-                        boolean load = (instr & generateMask(20,20)) > 0;
-                        int rn = ((instr & generateMask(16,19)) >> 16) & 0xf;
-                        int rd = ((instr & generateMask(15,12)) >> 15) & 0xf;
-                        int offset = (((instr & generateMask(8,11)) >> 8) & 0xf) << 4; //get higher nibble
-                        offset += ((instr & generateMask(0,3)) >> 0) & 0xf;
-                        byte sh = (byte)(((instr & generateMask(5,6)) >> 5) & 0x3);//don't worry about this
-
-                        int addr = registers[rn];
-                        if (preIndex)
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
-
-                        byte data1 = dataMem.readByte(addr, dataBound);
-                        byte data2 = dataMem.readByte(addr+1, dataBound);
-                        int data = (data2 << 8) + data1; //note, I get sign extension
-                                                        //for free when converting
-                                                        //from byte to int
-
-                        registers[rd] = data;
-
-                        if (!preIndex)//postIndex
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
+        }
+        //return ARMV4_TypeUndefined; /* Make the compiler shut up */
+    }
 
-                        if (writeBack)
-                        {
-                            registers[rn] = addr;
-                        }
-                        //return ARMV4_TypeLoadStoreExtra;
-                    } else {
-                        /* ldrsb */
-                        boolean preIndex = (instr & generateMask(24, 24)) > 0;
-                        boolean addOffset = (instr & generateMask(23,23)) > 0;
-                        boolean writeBack  = (instr & generateMask(21,21)) > 0;
-                        boolean load = (instr & generateMask(20,20)) > 0;
-                        int rn = ((instr & generateMask(16,19)) >> 16) & 0xf;
-                        int rd = ((instr & generateMask(12,15)) >> 15) & 0xf;
-                        int offset = (((instr & generateMask(8,11)) >> 8) & 0xf) << 4; //get higher nibble
-                        offset += ((instr & generateMask(0,3)) >> 0) & 0xf;
-                        byte sh = (byte)(((instr & generateMask(5,6)) >> 5) & 0x3);//don't worry about this
-
-                        int addr = registers[rn];
-                        if (preIndex)
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
 
-                        byte data1 = dataMem.readByte(addr, dataBound);
+    /*
+     * All data accesses go through these, so they can be traced and cached
+     */
+    private int loadWord(int addr) throws MemoryAccessException {
+        int data = dataMem.readWord(addr, dataBound);
+        if (tracer != null)
+            tracer.access(AccessTracer.READ_WORD, addr, data);
+        if (caches != null || timing != null)
+            accessed(addr, false);
+        return data;
+    }
 
-                        int data = data1; //note, I get sign extension
-                                           //for free when converting
-                                            //from byte to int
+    private byte loadByte(int addr) throws MemoryAccessException {
+        byte data = dataMem.readByte(addr, dataBound);
+        if (tracer != null)
+            tracer.access(AccessTracer.READ_BYTE, addr, data & 0xff);
+        if (caches != null || timing != null)
+            accessed(addr, false);
+        return data;
+    }
 
-                        registers[rd] = data;
+    private short loadHalf(int addr) throws MemoryAccessException {
+        short data = dataMem.readHalf(addr, dataBound);
+        if (tracer != null)
+            tracer.access(AccessTracer.READ_HALF, addr, data & 0xffff);
+        if (caches != null || timing != null)
+            accessed(addr, false);
+        return data;
+    }
 
-                        if (!preIndex)//postIndex
-                        {
-                            if (addOffset)
-                                addr += offset;
-                            else
-                                addr = addr - offset;
-                        }
+    private void storeWord(int addr, int data) throws MemoryAccessException {
+        dataMem.writeWord(addr, data, dataBound);
+        if (tracer != null)
+            tracer.access(AccessTracer.WRITE_WORD, addr, data);
+        if (caches != null || timing != null)
+            accessed(addr, true);
+    }
 
-                        if (writeBack)
-                        {
-                            registers[rn] = addr;
-                        }
-                        //return ARMV4_TypeLoadStoreExtra;
-                    }
-                } else {
-                    //return ARMV4_TypeUndefined;
-                }
-                break;
-            default:
-                //return ARMV4_TypeUndefined;
-        }
-        //return ARMV4_TypeUndefined; /* Make the compiler shut up */
+    private void storeByte(int addr, byte data) throws MemoryAccessException {
+        dataMem.writeByte(addr, data, dataBound);
+        if (tracer != null)
+            tracer.access(AccessTracer.WRITE_BYTE, addr, data & 0xff);
+        if (caches != null || timing != null)
+            accessed(addr, true);
     }
 
+    private void storeHalf(int addr, short data) throws MemoryAccessException {
+        dataMem.writeHalf(addr, data, dataBound);
+        if (tracer != null)
+            tracer.access(AccessTracer.WRITE_HALF, addr, data & 0xffff);
+        if (caches != null || timing != null)
+            accessed(addr, true);
+    }
 
     private int generateMask(int from_bit, int to_bit) {
         if (from_bit < 0 || to_bit > 31 || from_bit > to_bit) {
@@ -1200,31 +1428,47 @@ public class Core implements Runnable {
      * </code>
      * @param shiftAmount  Amount to do the shift by
      * @param shiftValue Value to be shifted
-     * @return the shifted value of shiftValue
+     * @return the shifted value of shiftValue, whose carry out is kept for
+     * dataProcessing
      */
-    private int shiftHelper(int shiftType, int shiftAmount, int shiftValue)
+    int shiftHelper(int shiftType, int shiftAmount, int shiftValue)
     {
+        if (shiftAmount == 0)
+        {
+            shifterCarry = cpsrRegister & C_MASK;
+            return shiftValue;
+        }
+
         switch (shiftType) {
-            case 0:
-                return shiftValue << shiftAmount;
+            case 0: //logical shift left
+                if (shiftAmount > 32)
+                {
+                    shifterCarry = 0;
+                    return 0;
+                }
+                shifterCarry = ((shiftValue << (shiftAmount - 1)) >>> 2) & C_MASK;
+                return shiftAmount == 32 ? 0 : shiftValue << shiftAmount;
             case 1: //logic shift right
-                int temp = shiftValue;
-                for (int i = 0; i < shiftAmount; ++i) {
-                    temp = (temp >> 1) & ~(1 << 31);
+                if (shiftAmount > 32)
+                {
+                    shifterCarry = 0;
+                    return 0;
                 }
-                return temp;
+                shifterCarry = ((shiftValue >>> (shiftAmount - 1)) & 1) << 29;
+                return shiftAmount == 32 ? 0 : shiftValue >>> shiftAmount;
             case 2: //arithmetic right shift
-                return shiftValue >> shiftAmount;
-            case 3:
-            default:
-                for (int i = 0; i < shiftAmount; ++i)
+                if (shiftAmount >= 32)
                 {
-                    int temp2 = shiftValue & 1;
-                    shiftValue >>= 1;
-                    shiftValue &= 0xff;
-                    shiftValue |= ((temp2 > 0) ? 0x80 : 0);
+                    shifterCarry = (shiftValue >>> 2) & C_MASK;
+                    return shiftValue >> 31;
                 }
-                return shiftValue;
+                shifterCarry = ((shiftValue >> (shiftAmount - 1)) & 1) << 29;
+                return shiftValue >> shiftAmount;
+            case 3:
+            default: //rotate right, the last bit rotated out ends up in bit 31
+                int result = Integer.rotateRight(shiftValue, shiftAmount);
+                shifterCarry = (result >>> 2) & C_MASK;
+                return result;
         }
     }
 }
@@ -0,0 +1,88 @@
+
+package memsim;
+
+/**
+ * What one core of a Processor did in a run: how much it executed, how long
+ * that took and the state it was left in.
+ *
+ * @author rdeva
+ */
+public final class CoreResult
+{
+    private final int coreIndex;
+    private final long instructions, nanos;
+    private final int[] registers;
+    private final int cpsr;
+    private final Exception stopCause;
+
+    CoreResult(int coreIndex, Core core, long instructions, long nanos)
+    {
+        this.coreIndex = coreIndex;
+        this.instructions = instructions;
+        this.nanos = nanos;
+        this.registers = core.registers.clone();
+        this.cpsr = core.getCpsr();
+        this.stopCause = core.getStopCause();
+    }
+
+    /**
+     * Run core, timing it
+     * @param coreIndex its index in the processor's core list
+     */
+    static CoreResult run(int coreIndex, Core core)
+    {
+        long before = core.getInstructionCount(), start = System.nanoTime();
+        core.run();
+        return new CoreResult(coreIndex, core, core.getInstructionCount() - before, System.nanoTime() - start);
+    }
+
+    public int getCoreIndex()
+    {
+        return coreIndex;
+    }
+
+    /**
+     * @return instructions the core executed in this run
+     */
+    public long getInstructions()
+    {
+        return instructions;
+    }
+
+    /**
+     * @return wall clock time the run took
+     */
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+    /**
+     * @return a copy of the core's registers when it stopped
+     */
+    public int[] getRegisters()
+    {
+        return registers.clone();
+    }
+
+    public int getCpsr()
+    {
+        return cpsr;
+    }
+
+    /**
+     * @return the exception that stopped the core, or null if it ran off the
+     * end of program memory
+     */
+    public Exception getStopCause()
+    {
+        return stopCause;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("core %d: %d instructions in %.3f ms, pc=%d, %s", coreIndex, instructions,
+                nanos / 1e6, registers[15], stopCause == null ? "ran off the end" : stopCause.toString());
+    }
+}
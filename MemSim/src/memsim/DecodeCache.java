@@ -0,0 +1,191 @@
+
+package memsim;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Direct mapped cache of predecoded instructions for one Core, keyed by program
+ * address.  Each slot keeps the raw instruction word plus a compact decoded form:
+ * <code>
+ * kind    - which of the classes below the instruction belongs to
+ * fields  - bits 0-3 opcode, bit 4 S (L for branches; bits 0-4 are instead
+ *           L W B U P for loads/stores),
+ *           bits 8-11 rd, 12-15 rn, 16-19 rm, 20-23 rs, 24-25 shift type
+ * operand - op2 for immediate data processing, the shift amount for immediate
+ *           shifts and register offset load/store, the offset for immediate
+ *           load/store and branch
+ * </code>
+ * Instructions that don't fall in one of the predecoded classes are still
+ * cached (kind OTHER) so their fetch is skipped, and are run through the
+ * regular decoder.
+ *
+ * Slots are invalidated as the program memory gets written, which can happen
+ * from other cores' threads.  Only the owning core fills slots, so just the
+ * tags are shared; a fill that races a write finds the generation changed
+ * and drops what it fetched.
+ *
+ * @author rdeva
+ */
+final class DecodeCache implements Memory.WriteListener {
+    static final byte OTHER = 0,
+                      DP_IMMEDIATE = 1,
+                      DP_IMMEDIATE_SHIFT = 2,
+                      DP_REGISTER_SHIFT = 3,
+                      LOAD_STORE_IMMEDIATE = 4,
+                      BRANCH = 5,
+                      LOAD_STORE_REGISTER = 6;
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private static final int EMPTY = -1; //can never be a (word aligned) pc
+
+    final AtomicIntegerArray tags;
+    final int[] raw, fields, operand;
+    final byte[] kind;
+    private final int mask;
+    private final long base;
+    private final AtomicInteger generation = new AtomicInteger(); //bumped by every write
+
+    /**
+     * @param capacity number of instructions cached, must be a power of 2
+     * @param programBound bound of the program memory the owning core fetches from
+     */
+    DecodeCache(int capacity, Bound programBound)
+    {
+        if (capacity < 1 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity(" + capacity + ") not a power of 2");
+
+        tags = new AtomicIntegerArray(capacity);
+        raw = new int[capacity];
+        fields = new int[capacity];
+        operand = new int[capacity];
+        kind = new byte[capacity];
+        mask = capacity - 1;
+        base = programBound.getLowerAddress();
+        clear();
+    }
+
+    /**
+     * @param pc program address
+     * @return slot holding the decoded instruction at pc, or -1 if it isn't cached
+     */
+    int lookup(int pc)
+    {
+        int slot = (pc >> 2) & mask;
+        return tags.get(slot) == pc ? slot : -1;
+    }
+
+    /**
+     * @return the generation to hand fill(), read before fetching the instruction
+     */
+    int getGeneration()
+    {
+        return generation.get();
+    }
+
+    /**
+     * Decode instr and cache it as the instruction at pc
+     * @param generation what getGeneration() said before instr was fetched
+     * @return the slot it was put in (which is left empty if program memory
+     * was written meanwhile, though it's fine to run the decoding once)
+     */
+    int fill(int pc, int instr, int generation)
+    {
+        int slot = (pc >> 2) & mask;
+        int rd = (instr >> 12) & 0xf, rn = (instr >> 16) & 0xf, rm = instr & 0xf,
+            rs = (instr >> 8) & 0xf, shiftType = (instr >> 5) & 0x3,
+            opcode = (instr >> 21) & 0xf, s = (instr >> 20) & 0x1;
+        boolean misc = ((instr >> 23) & 0x3) == 0x2 && s == 0; //bits 24:23 = 10, bit 20 = 0
+        byte k = OTHER;
+        int f = 0, op = 0;
+
+        //this has to follow Core.exec's decoding exactly
+        switch ((instr >> 25) & 0x7)
+        {
+            case 0x0:
+                if ((instr & (1 << 4)) == 0)
+                {
+                    if (!misc)
+                    {
+                        k = DP_IMMEDIATE_SHIFT;
+                        op = (instr >> 7) & 0x1f;
+                    }
+                }
+                else if ((instr & (1 << 7)) == 0)
+                {
+                    if (!misc)
+                        k = DP_REGISTER_SHIFT;
+                }
+                break;
+            case 0x1:
+                if (!misc)
+                {
+                    k = DP_IMMEDIATE;
+                    op = Core.rotateImmediate(instr & 0xff, (instr >> 8) & 0xf);
+                }
+                break;
+            case 0x2:
+                k = LOAD_STORE_IMMEDIATE;
+                opcode = (instr >> 20) & 0x1f; //P U B W L
+                s = 0;
+                op = instr & 0xfff;
+                break;
+            case 0x3:
+                if ((instr & (1 << 4)) == 0)
+                {
+                    k = LOAD_STORE_REGISTER;
+                    opcode = (instr >> 20) & 0x1f; //P U B W L
+                    s = 0;
+                    op = (instr >> 7) & 0x1f;
+                }
+                break;
+            case 0x5:
+                k = BRANCH;
+                opcode = 0;
+                s = (instr >> 24) & 0x1;
+                op = (instr & 0xffffff) << 2;
+                if ((op & (1 << 23)) != 0) //sign extend, same as Core.exec
+                    op |= 0xff << 24;
+                break;
+        }
+
+        if (k != OTHER)
+            f = opcode | (s << 4) | (rd << 8) | (rn << 12) | (rm << 16) | (rs << 20) | (shiftType << 24);
+
+        raw[slot] = instr;
+        kind[slot] = k;
+        fields[slot] = f;
+        operand[slot] = op;
+        tags.set(slot, pc);
+        if (this.generation.get() != generation) //instr may be stale
+            tags.compareAndSet(slot, pc, EMPTY);
+        return slot;
+    }
+
+    /**
+     * Forget everything
+     */
+    void clear()
+    {
+        for (int c = 0; c < tags.length(); ++c)
+            tags.set(c, EMPTY);
+    }
+
+    public void wordsWritten(long fromAddr, long toAddr)
+    {
+        long from = (fromAddr - base) & ~3L, to = (toAddr - base) & ~3L;
+        generation.incrementAndGet(); //before the tags, see fill()
+        if (to - from > (mask << 2))
+        {
+            clear();
+            return;
+        }
+
+        for (long pc = from; pc <= to; pc += 4)
+        {
+            int slot = (int)(pc >> 2) & mask;
+            tags.compareAndSet(slot, (int)pc, EMPTY);
+        }
+    }
+}
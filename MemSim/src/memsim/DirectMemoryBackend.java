@@ -0,0 +1,124 @@
+
+package memsim;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Keeps the words of a memory off the Java heap, in direct buffers.  The
+ * storage is split into chunks of up to 1 GB (a buffer is indexed by an int),
+ * so the size is only limited by native memory.  None of it is scanned or
+ * moved by the GC, which keeps pauses short while simulating large memories.
+ *
+ * @author rdeva
+ */
+public class DirectMemoryBackend implements MemoryBackend {
+
+    /**
+     * log2 of the size in bytes of each chunk
+     */
+    public static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final ByteBuffer[] chunks;
+    private final long size;
+
+    /**
+     * @param size size in bytes, a multiple of 4
+     * @throws IllegalArgumentException if size isn't a multiple of 4
+     */
+    public DirectMemoryBackend(long size) throws IllegalArgumentException
+    {
+        if ((size & 3) != 0 || size < 0)
+            throw new IllegalArgumentException("size(" + size + ") not a multiple of 4");
+
+        this.size = size;
+        chunks = new ByteBuffer[(int)((size + CHUNK_MASK) >> CHUNK_SHIFT)];
+        for (int c = 0; c < chunks.length; ++c)
+        {
+            long chunkSize = Math.min(size - ((long)c << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+            //words are only ever read back as whole ints, so the byte order is ours to pick
+            chunks[c] = ByteBuffer.allocateDirect((int)chunkSize).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getFootprint()
+    {
+        return getSize();
+    }
+
+    public int getWord(long addr)
+    {
+        return chunks[(int)(addr >> CHUNK_SHIFT)].getInt((int)(addr & CHUNK_MASK));
+    }
+
+    public void setWord(long addr, int data)
+    {
+        chunks[(int)(addr >> CHUNK_SHIFT)].putInt((int)(addr & CHUNK_MASK), data);
+    }
+
+    public void setWords(long addr, IntBuffer src)
+    {
+        while (src.hasRemaining())
+        {
+            ByteBuffer chunk = chunks[(int)(addr >> CHUNK_SHIFT)].duplicate();
+            chunk.order(ByteOrder.nativeOrder()).position((int)(addr & CHUNK_MASK));
+            IntBuffer dst = chunk.asIntBuffer();
+
+            int n = Math.min(dst.remaining(), src.remaining());
+            IntBuffer part = src.duplicate();
+            part.limit(part.position() + n);
+            dst.put(part);
+            src.position(src.position() + n);
+            addr += (long)n << 2;
+        }
+    }
+
+    public void clear(long addr, long length)
+    {
+        for (long end = addr + length; addr < end; )
+        {
+            ByteBuffer chunk = chunks[(int)(addr >> CHUNK_SHIFT)];
+            int c = (int)(addr & CHUNK_MASK),
+                limit = (int)Math.min(chunk.capacity(), c + (end - addr));
+            addr += limit - c;
+            for (; c + 8 <= limit; c += 8)
+                chunk.putLong(c, 0);
+            for (; c < limit; c += 4)
+                chunk.putInt(c, 0);
+        }
+    }
+
+    public void copyWords(long dst, long src, long length)
+    {
+        if (dst <= src)
+            for (long c = 0; c < length; c += 4)
+                setWord(dst + c, getWord(src + c));
+        else
+            for (long c = length - 4; c >= 0; c -= 4)
+                setWord(dst + c, getWord(src + c));
+    }
+
+    public void fillWords(long addr, long length, int data)
+    {
+        for (long end = addr + length; addr < end; addr += 4)
+            setWord(addr, data);
+    }
+
+    /**
+     * A full copy; use SparseMemoryBackend to share pages copy on write
+     */
+    public MemoryBackend snapshot()
+    {
+        DirectMemoryBackend copy = new DirectMemoryBackend(size);
+        for (int c = 0; c < chunks.length; ++c)
+            copy.chunks[c].duplicate().put(chunks[c].duplicate());
+        return copy;
+    }
+}
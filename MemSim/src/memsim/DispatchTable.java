@@ -0,0 +1,254 @@
+
+package memsim;
+
+import memsim.exceptions.*;
+
+/**
+ * Execution engine which, instead of walking Core.exec's decode tree, looks the
+ * instruction up in a 4096 entry table of handlers indexed by bits 27-20 and
+ * 7-4.  Those bits determine the instruction class, the data processing opcode
+ * and the S bit, so each handler is specialised for them and only has to pull
+ * the registers and operand out of the instruction.
+ *
+ * Selected with Core.setEngine(Core.Engine.DISPATCH_TABLE).  Must give exactly
+ * the same results as Core.exec.
+ *
+ * @author rdeva
+ */
+final class DispatchTable {
+
+    /**
+     * Executes one class of instruction on a core
+     */
+    interface Handler
+    {
+        public void execute(Core core, int instr) throws UnknownFormatException,
+                UnimplementedInstructionException, MemoryAccessException;
+    }
+
+    private static final Handler[] HANDLERS = new Handler[4096];
+
+    private DispatchTable()
+    {
+    }
+
+    /**
+     * @return the table index of instr
+     */
+    static int index(int instr)
+    {
+        return ((instr >> 16) & 0xff0) | ((instr >> 4) & 0xf);
+    }
+
+    /**
+     * Execute instr on core
+     */
+    static void execute(Core core, int instr) throws UnknownFormatException,
+            UnimplementedInstructionException, MemoryAccessException
+    {
+        HANDLERS[index(instr)].execute(core, instr);
+    }
+
+    /**
+     * Pick the handler for all instructions sharing instr's bits 27-20 and 7-4.
+     * This follows Core.exec's decoding.
+     */
+    private static Handler handlerFor(int instr)
+    {
+        int opcode = (instr >> 21) & 0xf;
+        boolean s = (instr & (1 << 20)) != 0;
+        boolean misc = ((instr >> 23) & 0x3) == 0x2 && !s; //bits 24:23 = 10, bit 20 = 0
+
+        switch ((instr >> 25) & 0x7)
+        {
+            case 0x0:
+                if ((instr & (1 << 4)) == 0)
+                    return misc ? EXT0 : new ImmediateShift(opcode, s);
+                else if ((instr & (1 << 7)) == 0)
+                    return misc ? EXT1 : new RegisterShift(opcode, s);
+                else
+                    return EXT2;
+            case 0x1:
+                if (misc)
+                    return (instr & (1 << 21)) != 0
+                            ? new Unimplemented("msr is not implemented") : UNDEFINED;
+                return new Immediate(opcode, s);
+            case 0x2:
+                return LOAD_STORE_IMMEDIATE;
+            case 0x3:
+                return (instr & (1 << 4)) == 0 ? LOAD_STORE_REGISTER : UNDEFINED;
+            case 0x4:
+                return LOAD_STORE_MULTIPLE;
+            case 0x5:
+                return (instr & (1 << 24)) != 0 ? BRANCH_LINK : BRANCH;
+            case 0x6:
+                return new Unimplemented("LDC/STC not implemented, there are no co-processors");
+            default: //0x7
+                if ((instr & (1 << 24)) != 0)
+                    return new Unimplemented("SWI is not implemented");
+                else if ((instr & (1 << 4)) != 0)
+                    return new Unimplemented("MRC/MCR not implemented");
+                else
+                    return new Unimplemented("CDP is not implemented");
+        }
+    }
+
+    /* data processing, immediate shift */
+    private static final class ImmediateShift implements Handler
+    {
+        private final int opcode;
+        private final boolean s;
+
+        ImmediateShift(int opcode, boolean s)
+        {
+            this.opcode = opcode;
+            this.s = s;
+        }
+
+        public void execute(Core core, int instr)
+        {
+            int op2 = core.immediateShift((instr >> 5) & 0x3, (instr >> 7) & 0x1f, core.registers[instr & 0xf]);
+            core.dataProcessing(opcode, s, (instr >> 16) & 0xf, (instr >> 12) & 0xf, op2);
+        }
+    }
+
+    /* data processing, register shift */
+    private static final class RegisterShift implements Handler
+    {
+        private final int opcode;
+        private final boolean s;
+
+        RegisterShift(int opcode, boolean s)
+        {
+            this.opcode = opcode;
+            this.s = s;
+        }
+
+        public void execute(Core core, int instr)
+        {
+            int op2 = core.shiftHelper((instr >> 5) & 0x3, core.registers[(instr >> 8) & 0xf] & 0xff,
+                    core.registers[instr & 0xf]);
+            core.dataProcessing(opcode, s, (instr >> 16) & 0xf, (instr >> 12) & 0xf, op2);
+        }
+    }
+
+    /* data processing, rotated immediate */
+    private static final class Immediate implements Handler
+    {
+        private final int opcode;
+        private final boolean s;
+
+        Immediate(int opcode, boolean s)
+        {
+            this.opcode = opcode;
+            this.s = s;
+        }
+
+        public void execute(Core core, int instr)
+        {
+            int op2 = Core.rotateImmediate(instr & 0xff, (instr >> 8) & 0xf);
+            core.immediateCarry((instr >> 8) & 0xf, op2);
+            core.dataProcessing(opcode, s, (instr >> 16) & 0xf, (instr >> 12) & 0xf, op2);
+        }
+    }
+
+    /* instructions the simulator doesn't do */
+    private static final class Unimplemented implements Handler
+    {
+        private final String msg;
+
+        Unimplemented(String msg)
+        {
+            this.msg = msg;
+        }
+
+        public void execute(Core core, int instr) throws UnimplementedInstructionException
+        {
+            throw new UnimplementedInstructionException(msg);
+        }
+    }
+
+    private static final Handler LOAD_STORE_IMMEDIATE = new Handler() {
+        public void execute(Core core, int instr) throws MemoryAccessException
+        {
+            core.singleTransfer((instr & (1 << 24)) != 0, (instr & (1 << 23)) != 0,
+                    (instr & (1 << 22)) != 0, (instr & (1 << 21)) != 0, (instr & (1 << 20)) != 0,
+                    (instr >> 16) & 0xf, (instr >> 12) & 0xf, instr & 0xfff);
+        }
+    };
+
+    private static final Handler LOAD_STORE_REGISTER = new Handler() {
+        public void execute(Core core, int instr) throws MemoryAccessException
+        {
+            core.singleTransfer((instr & (1 << 24)) != 0, (instr & (1 << 23)) != 0,
+                    (instr & (1 << 22)) != 0, (instr & (1 << 21)) != 0, (instr & (1 << 20)) != 0,
+                    (instr >> 16) & 0xf, (instr >> 12) & 0xf,
+                    core.immediateShift((instr >> 5) & 0x3, (instr >> 7) & 0x1f, core.registers[instr & 0xf]));
+        }
+    };
+
+    private static final Handler LOAD_STORE_MULTIPLE = new Handler() {
+        public void execute(Core core, int instr) throws MemoryAccessException
+        {
+            core.blockTransfer(instr);
+        }
+    };
+
+    private static final Handler BRANCH = new Branch(false), BRANCH_LINK = new Branch(true);
+
+    private static final class Branch implements Handler
+    {
+        private final boolean link;
+
+        Branch(boolean link)
+        {
+            this.link = link;
+        }
+
+        public void execute(Core core, int instr)
+        {
+            int offset = (instr & 0xffffff) << 2;
+            if ((offset & (1 << 23)) != 0) //sign extend, same as Core.exec
+                offset |= 0xff << 24;
+            core.branch(link, offset);
+        }
+    }
+
+    private static final Handler EXT0 = new Handler() {
+        public void execute(Core core, int instr) throws UnknownFormatException,
+                UnimplementedInstructionException
+        {
+            core.parseInstrExt0(instr);
+        }
+    };
+
+    private static final Handler EXT1 = new Handler() {
+        public void execute(Core core, int instr) throws UnknownFormatException,
+                UnimplementedInstructionException
+        {
+            core.parseInstrExt1(instr);
+        }
+    };
+
+    private static final Handler EXT2 = new Handler() {
+        public void execute(Core core, int instr) throws MemoryAccessException,
+                UnimplementedInstructionException
+        {
+            core.parseInstrExt2(instr);
+        }
+    };
+
+    private static final Handler UNDEFINED = new Handler() {
+        public void execute(Core core, int instr) throws UnknownFormatException
+        {
+            throw new UnknownFormatException();
+        }
+    };
+
+    //has to come after the handler constants above
+    static
+    {
+        for (int index = 0; index < HANDLERS.length; ++index)
+            HANDLERS[index] = handlerFor(((index >> 4) << 20) | ((index & 0xf) << 4));
+    }
+}
@@ -0,0 +1,223 @@
+
+package memsim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import memsim.exceptions.MemoryAccessException;
+import memsim.exceptions.UnknownFormatException;
+
+/**
+ * Loads ELF32 ARM executables into a core.  Each PT_LOAD segment goes to its
+ * vaddr (an address within the core's bound), executable segments into
+ * program memory and the rest into data memory.  Segments are memory mapped
+ * and copied straight from the mapping, and the part of a segment past the
+ * file (.bss) is zeroed lazily, see Memory.zero.  The core's entry point is
+ * set from the header and its stack pointer from the first of STACK_SYMBOLS
+ * in the symbol table, or Core.getStackTop() if there's none.
+ *
+ * The image's byte order must be the memories'; Thumb entry points aren't
+ * supported.
+ *
+ * @author rdeva
+ */
+public final class ElfLoader {
+
+    public static final int PT_LOAD = 1;
+    public static final int PF_X = 1, PF_W = 2, PF_R = 4;
+    public static final int EM_ARM = 40;
+
+    /**
+     * Symbols linker scripts commonly put at the top of the stack
+     */
+    public static final String[] STACK_SYMBOLS = {"__stack_top", "_stack_top", "__StackTop", "_estack", "__stack"};
+
+    private static final int ET_EXEC = 2, SHT_SYMTAB = 2;
+    private static final int EHDR_SIZE = 52, PHDR_SIZE = 32, SHDR_SIZE = 40, SYM_SIZE = 16;
+
+    private ElfLoader()
+    {
+    }
+
+    /**
+     * @param f
+     * @return whether f starts like an ELF file
+     * @throws IOException
+     */
+    public static boolean isElf(File f) throws IOException
+    {
+        FileInputStream in = new FileInputStream(f);
+        try
+        {
+            byte[] magic = new byte[4];
+            return in.read(magic) == 4 && magic[0] == 0x7f && magic[1] == 'E' && magic[2] == 'L' && magic[3] == 'F';
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Load an executable into a core, ready for it to run
+     * @param core
+     * @param f the executable
+     * @return the entry point
+     * @throws IOException if the file can't be read
+     * @throws UnknownFormatException if it isn't an ELF32 ARM executable this can load
+     * @throws MemoryAccessException if a segment doesn't fit in the core's bounds
+     */
+    public static int load(Core core, File f) throws IOException, UnknownFormatException, MemoryAccessException
+    {
+        FileInputStream in = new FileInputStream(f);
+        try
+        {
+            FileChannel channel = in.getChannel();
+            ByteBuffer ehdr = read(channel, 0, EHDR_SIZE);
+            if (ehdr.getInt(0) != 0x7f454c46)
+                throw new UnknownFormatException(f + " isn't an ELF file");
+            if (ehdr.get(4) != 1)
+                throw new UnknownFormatException(f + " isn't 32 bit");
+            ByteOrder order = ehdr.get(5) == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            ehdr.order(order);
+            if (ehdr.getShort(16) != ET_EXEC || ehdr.getShort(18) != EM_ARM)
+                throw new UnknownFormatException(f + " isn't an ARM executable");
+
+            Memory prog = core.getProgramMemory(), data = core.getDataMemory();
+            if (prog.getByteOrder() != order || data.getByteOrder() != order)
+                throw new UnknownFormatException(f + " is " + order + " but the core's memory isn't");
+            int entry = ehdr.getInt(24);
+            if ((entry & 3) != 0)
+                throw new UnknownFormatException("Thumb entry points aren't supported");
+
+            int phoff = ehdr.getInt(28), phentsize = ehdr.getShort(42) & 0xffff, phnum = ehdr.getShort(44) & 0xffff;
+            if (phentsize < PHDR_SIZE)
+                throw new UnknownFormatException("program headers too small");
+            ByteBuffer phdrs = read(channel, phoff & 0xffffffffL, phentsize * phnum).order(order);
+
+            //check everything fits before loading anything
+            for (int c = 0; c < phnum; ++c)
+            {
+                int p = c * phentsize;
+                if (phdrs.getInt(p) != PT_LOAD)
+                    continue;
+                long offset = phdrs.getInt(p + 4) & 0xffffffffL, vaddr = phdrs.getInt(p + 8) & 0xffffffffL,
+                        filesz = phdrs.getInt(p + 16) & 0xffffffffL, memsz = phdrs.getInt(p + 20) & 0xffffffffL;
+                boolean exec = (phdrs.getInt(p + 24) & PF_X) != 0;
+                Memory m = exec ? prog : data;
+                Bound b = exec ? core.getProgramBound() : core.getDataBound();
+                long last = b.getLowerAddress() + vaddr + memsz - 1;
+                if (filesz > memsz || offset + filesz > channel.size())
+                    throw new UnknownFormatException("segment " + c + " runs past the file");
+                if (memsz > 0 && ((last & ~3) > b.getHigherAddress() || last >= m.getLongSize()))
+                    throw new MemoryAccessException("segment " + c + " doesn't fit in the core's bound");
+            }
+
+            for (int c = 0; c < phnum; ++c)
+            {
+                int p = c * phentsize;
+                if (phdrs.getInt(p) != PT_LOAD)
+                    continue;
+                long offset = phdrs.getInt(p + 4) & 0xffffffffL;
+                int vaddr = phdrs.getInt(p + 8), filesz = phdrs.getInt(p + 16), memsz = phdrs.getInt(p + 20);
+                boolean exec = (phdrs.getInt(p + 24) & PF_X) != 0;
+                Memory m = exec ? prog : data;
+                Bound b = exec ? core.getProgramBound() : core.getDataBound();
+
+                for (long pos = 0; pos < filesz; pos += Memory.MAP_CHUNK)
+                    m.writeBytes(vaddr + (int)pos, channel.map(FileChannel.MapMode.READ_ONLY, offset + pos,
+                            Math.min(Memory.MAP_CHUNK, filesz - pos)), b);
+                m.zero(vaddr + filesz, memsz - filesz, b);
+            }
+
+            core.setEntryPoint(entry);
+            Integer stack = findSymbol(channel, ehdr, STACK_SYMBOLS);
+            core.registers[13] = stack != null ? stack : core.getStackTop();
+            return entry;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Look through the symbol table for the first of names
+     * @return its value, or null if there's no symbol table or none of them are in it
+     */
+    private static Integer findSymbol(FileChannel channel, ByteBuffer ehdr, String[] names) throws IOException
+    {
+        long shoff = ehdr.getInt(32) & 0xffffffffL;
+        int shentsize = ehdr.getShort(46) & 0xffff, shnum = ehdr.getShort(48) & 0xffff;
+        if (shoff == 0 || shnum == 0 || shentsize < SHDR_SIZE || shoff + (long)shentsize * shnum > channel.size())
+            return null;
+
+        ByteBuffer shdrs = read(channel, shoff, shentsize * shnum).order(ehdr.order());
+        for (int c = 0; c < shnum; ++c)
+        {
+            int s = c * shentsize, link = shdrs.getInt(s + 24);
+            if (shdrs.getInt(s + 4) != SHT_SYMTAB || link < 0 || link >= shnum)
+                continue;
+
+            ByteBuffer symbols = map(channel, shdrs, s), strings = map(channel, shdrs, link * shentsize);
+            if (symbols == null || strings == null)
+                return null;
+            symbols.order(ehdr.order());
+
+            Integer[] found = new Integer[names.length];
+            for (int sym = 0; sym + SYM_SIZE <= symbols.limit(); sym += SYM_SIZE)
+            {
+                int name = symbols.getInt(sym);
+                for (int n = 0; n < names.length; ++n)
+                    if (found[n] == null && nameIs(strings, name, names[n]))
+                        found[n] = symbols.getInt(sym + 4);
+            }
+            for (Integer value : found)
+                if (value != null)
+                    return value;
+        }
+        return null;
+    }
+
+    /**
+     * Map the contents of the section whose header is at s in shdrs
+     * @return the contents, or null if they're not all in the file
+     */
+    private static ByteBuffer map(FileChannel channel, ByteBuffer shdrs, int s) throws IOException
+    {
+        long offset = shdrs.getInt(s + 16) & 0xffffffffL, size = shdrs.getInt(s + 20) & 0xffffffffL;
+        if (offset + size > channel.size() || size > Integer.MAX_VALUE)
+            return null;
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+    }
+
+    /**
+     * @return whether the NUL terminated string at offset in strings is name
+     */
+    private static boolean nameIs(ByteBuffer strings, int offset, String name)
+    {
+        if (offset < 0 || offset + name.length() >= strings.limit())
+            return false;
+        for (int c = 0; c < name.length(); ++c)
+            if (strings.get(offset + c) != name.charAt(c))
+                return false;
+        return strings.get(offset + name.length()) == 0;
+    }
+
+    /**
+     * Read length bytes from position in the file
+     * @throws java.io.EOFException if the file ends first
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining())
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new java.io.EOFException("ELF file ends early");
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,60 @@
+
+package memsim;
+
+/**
+ * Like the bimodal predictor, but indexes its 2 bit counters by the branch
+ * address xor the directions the last few branches went, so branches whose
+ * direction follows a pattern (or other branches) get predicted too.
+ *
+ * @author rdeva
+ */
+public class GsharePredictor extends BranchPredictor {
+
+    public static final int DEFAULT_ENTRIES = 4096, DEFAULT_HISTORY_BITS = 12;
+
+    private final byte[] counters;
+    private final int mask, historyMask;
+    private int history = 0; //1 bit per branch, most recent lowest
+
+    public GsharePredictor()
+    {
+        this(DEFAULT_ENTRIES, DEFAULT_HISTORY_BITS);
+    }
+
+    /**
+     * @param entries number of counters, a power of 2
+     * @param historyBits number of branches remembered, at most log2(entries)
+     * @throws IllegalArgumentException if entries isn't a power of 2 or historyBits doesn't fit
+     */
+    public GsharePredictor(int entries, int historyBits) throws IllegalArgumentException
+    {
+        if (entries <= 0 || (entries & (entries - 1)) != 0)
+            throw new IllegalArgumentException("entries(" + entries + ") not a power of 2");
+        if (historyBits < 0 || (1 << historyBits) > entries)
+            throw new IllegalArgumentException("historyBits must be between 0 and log2(entries)");
+        counters = new byte[entries];
+        java.util.Arrays.fill(counters, (byte)1); //weakly not taken
+        mask = entries - 1;
+        historyMask = (1 << historyBits) - 1;
+    }
+
+    private int index(int pc)
+    {
+        return ((pc >>> 2) ^ history) & mask;
+    }
+
+    protected boolean predictTaken(int pc, int kind)
+    {
+        return counters[index(pc)] >= 2;
+    }
+
+    protected void update(int pc, int kind, boolean taken, int target)
+    {
+        int i = index(pc);
+        if (taken && counters[i] < 3)
+            ++counters[i];
+        else if (!taken && counters[i] > 0)
+            --counters[i];
+        history = ((history << 1) | (taken ? 1 : 0)) & historyMask;
+    }
+}
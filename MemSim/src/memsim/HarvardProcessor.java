@@ -1,6 +1,7 @@
 package memsim;
 
 import java.io.IOException;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 /**
@@ -10,18 +11,48 @@ import java.util.ArrayList;
 class HarvardProcessor extends Processor {
     private java.util.ArrayList<Core> coresList;
     private int numCores = 1;
-    private boolean running = false;
-    private final int MEMORY_SIZE = 2048, MEMORY_SEGMENT_SIZE = 256;
+    private final int MEMORY_SIZE = 2048, MEMORY_SEGMENT_SIZE = 256; //core c gets segment c of each memory
 
-    private Memory sharedProgramMemory = new Memory(MEMORY_SIZE),
-            sharedDataMemory = new Memory(MEMORY_SIZE);
+    private Memory sharedProgramMemory, sharedDataMemory;
     public HarvardProcessor()
     {
+        this(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @param order the order the memories pack bytes into words in
+     */
+    public HarvardProcessor(ByteOrder order)
+    {
+        sharedProgramMemory = new Memory(new HeapMemoryBackend(MEMORY_SIZE), order);
+        sharedDataMemory = new Memory(new HeapMemoryBackend(MEMORY_SIZE), order);
         coresList = new java.util.ArrayList<Core>(numCores);
-        coresList.add(new Core(sharedProgramMemory, new Bound(0,MEMORY_SEGMENT_SIZE),
-                sharedDataMemory, new Bound(0,MEMORY_SEGMENT_SIZE))); //FIXME bogus bounds
+        coresList.add(new Core(sharedProgramMemory, segment(0, MEMORY_SEGMENT_SIZE),
+                sharedDataMemory, segment(0, MEMORY_SEGMENT_SIZE)));
+    }
+
+    private HarvardProcessor(Memory programMemory, Memory dataMemory, ArrayList<Core> coresList)
+    {
+        sharedProgramMemory = programMemory;
+        sharedDataMemory = dataMemory;
+        this.coresList = coresList;
+        numCores = coresList.size();
     }
 
+    public Processor fork() throws IllegalStateException
+    {
+        java.util.Map<Memory, Memory> snapshots = new java.util.IdentityHashMap<Memory, Memory>();
+        ArrayList<Core> cores = forkCores(snapshots);
+        return new HarvardProcessor(snapshot(snapshots, sharedProgramMemory),
+                snapshot(snapshots, sharedDataMemory), cores);
+    }
+
+    /**
+     * Core c gets its own MEMORY_SEGMENT_SIZE bytes at c * MEMORY_SEGMENT_SIZE of
+     * each memory.  When they no longer fit, the cores are moved (see Core.fork)
+     * onto bigger memories holding the same contents, so get the cores and
+     * memories afresh after this and attach tracers, caches etc. afterwards.
+     */
     public void setCores(int numCores)
     {
         if (numCores <= 0)
@@ -30,13 +61,21 @@ class HarvardProcessor extends Processor {
             throw new IllegalArgumentException("Can't change the number of cores when processor is running");
         
         if (numCores < this.numCores)
-            coresList.removeAll(coresList.subList(numCores, this.numCores - 1));
+            coresList.subList(numCores, this.numCores).clear();
         else if (numCores > this.numCores)
-            for (int c = this.numCores + 1; c <= numCores; ++c)
-                coresList.add(new Core(sharedProgramMemory, new Bound((numCores - 1) * MEMORY_SEGMENT_SIZE
-                        , numCores * MEMORY_SEGMENT_SIZE)
-                        , sharedDataMemory
-                        , new Bound((numCores - 1) * MEMORY_SEGMENT_SIZE, numCores * MEMORY_SEGMENT_SIZE)));//FIXME bogus bounds
+        {
+            long size = memorySize(numCores, MEMORY_SEGMENT_SIZE, MEMORY_SIZE);
+            if (size > sharedProgramMemory.getLongSize())
+            {
+                sharedProgramMemory = grow(sharedProgramMemory, size);
+                sharedDataMemory = grow(sharedDataMemory, size);
+                for (int c = 0; c < coresList.size(); ++c)
+                    coresList.set(c, coresList.get(c).fork(sharedProgramMemory, sharedDataMemory));
+            }
+            for (int c = this.numCores; c < numCores; ++c)
+                coresList.add(new Core(sharedProgramMemory, segment(c, MEMORY_SEGMENT_SIZE),
+                        sharedDataMemory, segment(c, MEMORY_SEGMENT_SIZE)));
+        }
 
         this.numCores = numCores;
     }
@@ -49,10 +88,4 @@ class HarvardProcessor extends Processor {
     {
         return numCores;
     }
-
-    public void run()
-    {
-        for (Core c : coresList)
-            new Thread(c).start();
-    }
 }
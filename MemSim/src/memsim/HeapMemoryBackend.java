@@ -0,0 +1,87 @@
+
+package memsim;
+
+import java.nio.IntBuffer;
+
+/**
+ * Keeps the words of a memory in an int[] on the Java heap.  This is what
+ * Memory has always done and is the fastest backend for small memories, but
+ * it is limited to what one array can hold and is scanned by the GC.
+ *
+ * @author rdeva
+ */
+public class HeapMemoryBackend implements MemoryBackend {
+    /*
+     * Addressing for mem goes like this
+     * mem[addr] = | byte 1 | byte 2 | byte 3 | byte 4 |
+     *               addr+0   addr+1   addr+2   addr+3
+     */
+    private final int[] mem;
+
+    private HeapMemoryBackend(int[] mem)
+    {
+        this.mem = mem;
+    }
+
+    /**
+     * @param size size in bytes, a multiple of 4
+     * @throws IllegalArgumentException if size isn't a multiple of 4 or too big for an array
+     */
+    public HeapMemoryBackend(long size) throws IllegalArgumentException
+    {
+        if ((size & 3) != 0 || size < 0)
+            throw new IllegalArgumentException("size(" + size + ") not a multiple of 4");
+        if ((size >> 2) > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("size(" + size + ") too big for the heap, use DirectMemoryBackend");
+
+        mem = new int[(int)(size >> 2)]; //ints are 4 bytes, so need to divide size by 4
+    }
+
+    public long getSize()
+    {
+        return (long)mem.length << 2;
+    }
+
+    public long getFootprint()
+    {
+        return getSize();
+    }
+
+    public int getWord(long addr)
+    {
+        return mem[(int)(addr >> 2)];
+    }
+
+    public void setWord(long addr, int data)
+    {
+        mem[(int)(addr >> 2)] = data;
+    }
+
+    public void setWords(long addr, IntBuffer src)
+    {
+        src.get(mem, (int)(addr >> 2), src.remaining());
+    }
+
+    public void clear(long addr, long length)
+    {
+        java.util.Arrays.fill(mem, (int)(addr >> 2), (int)((addr + length) >> 2), 0);
+    }
+
+    public void copyWords(long dst, long src, long length)
+    {
+        System.arraycopy(mem, (int)(src >> 2), mem, (int)(dst >> 2), (int)(length >> 2));
+    }
+
+    public void fillWords(long addr, long length, int data)
+    {
+        java.util.Arrays.fill(mem, (int)(addr >> 2), (int)((addr + length) >> 2), data);
+    }
+
+    /**
+     * A full copy; use SparseMemoryBackend to share pages copy on write
+     */
+    public MemoryBackend snapshot()
+    {
+        return new HeapMemoryBackend(mem.clone());
+    }
+}
@@ -0,0 +1,396 @@
+
+package memsim;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import memsim.exceptions.MemoryAccessException;
+
+/**
+ * Runs memcpy and memset as single bulk operations on the data memory (see
+ * Memory.copy and Memory.fill) instead of an instruction at a time.  They are
+ * spotted in two ways, both when a branch lands on them:
+ *
+ * - the canonical copy and fill loops, i.e. a post-indexed load and store (or
+ *   LDMIA/STMIA with writeback) of the same registers, a SUBS of the counter
+ *   and a BNE back to the top.  The first time round runs as usual, the rest
+ *   in one go, leaving the registers and flags as the loop would have.
+ * - addresses bound to MEMCPY or MEMSET, e.g. where the linker put those
+ *   functions.  They are called with BL and take their arguments in r0-r2,
+ *   as the ARM procedure call standard has them, and return to lr with r0
+ *   unchanged.
+ *
+ * A loop that would fault part way, copies over itself or doesn't fit what
+ * is left of a step() is left to run as usual.  What was found at each
+ * branch target is kept in a direct mapped table like DecodeCache's, and
+ * thrown away when its program memory is written.
+ *
+ * @author rdeva
+ */
+public class Intrinsics implements Memory.WriteListener {
+
+    public enum Kind {MEMCPY, MEMSET};
+
+    private static final int MAX_LOOP_LENGTH = 4;
+    private static final int LOOP_SLOTS = 256;
+    private static final int EMPTY = -1; //can never be a (word aligned) pc
+
+    /**
+     * A recognised loop
+     */
+    private static final class Loop
+    {
+        final int start, length;
+        final Kind kind;
+        final int src, dst, counter, decrement;
+        final int list; //registers loaded and stored
+        final int size; //bytes moved each time round
+        final boolean bytes; //LDRB/STRB
+
+        Loop(int start, int length, Kind kind, int src, int dst, int counter, int decrement,
+                int list, int size, boolean bytes)
+        {
+            this.start = start;
+            this.length = length;
+            this.kind = kind;
+            this.src = src;
+            this.dst = dst;
+            this.counter = counter;
+            this.decrement = decrement;
+            this.list = list;
+            this.size = size;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * The bound functions as run() looks them up: addrs sorted, kinds[i] bound to addrs[i]
+     */
+    private static final class Bindings
+    {
+        final int[] addrs;
+        final Kind[] kinds;
+
+        Bindings(Map<Integer, Kind> functions)
+        {
+            addrs = new int[functions.size()];
+            kinds = new Kind[addrs.length];
+            int i = 0;
+            for (Integer addr : functions.keySet())
+                addrs[i++] = addr;
+            Arrays.sort(addrs);
+            for (i = 0; i < addrs.length; ++i)
+                kinds[i] = functions.get(addrs[i]);
+        }
+
+        Kind get(int addr)
+        {
+            int i = Arrays.binarySearch(addrs, addr);
+            return i < 0 ? null : kinds[i];
+        }
+    }
+
+    private final Memory programMem;
+    private final Bound programBound;
+    private final Map<Integer, Kind> functions = new HashMap<Integer, Kind>();
+    private volatile Bindings bindings = new Bindings(functions);
+
+    /*
+     * loopTags[slot] is the branch target last looked at in the slot (pc >> 2)
+     * & (LOOP_SLOTS - 1), and loops[slot] the loop there, or null if it isn't
+     * one.  Only the owning core fills slots; writes from any thread clear the
+     * tags, bumping the generation first so a fill that raced them is dropped.
+     */
+    private final AtomicIntegerArray loopTags = new AtomicIntegerArray(LOOP_SLOTS);
+    private final Loop[] loops = new Loop[LOOP_SLOTS];
+    private final AtomicInteger generation = new AtomicInteger();
+
+    //the counters are only bumped by the owning core, so need no lock
+    private volatile boolean idioms = true;
+    private volatile long calls = 0, loopRuns = 0, bytesMoved = 0;
+
+    /**
+     * @param programMem memory the core fetches from
+     * @param programBound the core's bound in it
+     */
+    Intrinsics(Memory programMem, Bound programBound)
+    {
+        this.programMem = programMem;
+        this.programBound = programBound;
+        clearLoops();
+    }
+
+    /**
+     * Run calls to addr as the given function
+     * @param addr address of the function in program memory
+     * @param kind
+     */
+    public synchronized void bind(int addr, Kind kind)
+    {
+        functions.put(addr, kind);
+        bindings = new Bindings(functions);
+    }
+
+    /**
+     * Stop running calls to addr as a function.  Does nothing if it wasn't bound.
+     * @param addr
+     */
+    public synchronized void unbind(int addr)
+    {
+        functions.remove(addr);
+        bindings = new Bindings(functions);
+    }
+
+    /**
+     * @param addr
+     * @return whether calls to addr are run as a function
+     */
+    public boolean isBound(int addr)
+    {
+        return bindings.get(addr) != null;
+    }
+
+    /**
+     * Turn recognition of copy and fill loops on or off (it's on by default).
+     * Bound functions are run either way.
+     * @param enabled
+     */
+    public void setIdiomRecognition(boolean enabled)
+    {
+        idioms = enabled;
+    }
+
+    public boolean isIdiomRecognition()
+    {
+        return idioms;
+    }
+
+    /**
+     * @return number of calls to bound functions run
+     */
+    public long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * @return number of loops run in one go
+     */
+    public long getLoopRuns()
+    {
+        return loopRuns;
+    }
+
+    /**
+     * @return bytes copied or filled by calls and loops
+     */
+    public long getBytesMoved()
+    {
+        return bytesMoved;
+    }
+
+    /**
+     * Take on the bound functions and settings of another core's intrinsics
+     */
+    synchronized void copySettings(Intrinsics other)
+    {
+        synchronized (other)
+        {
+            functions.putAll(other.functions);
+            idioms = other.idioms;
+        }
+        bindings = new Bindings(functions);
+    }
+
+    private void clearLoops()
+    {
+        for (int c = 0; c < LOOP_SLOTS; ++c)
+            loopTags.set(c, EMPTY);
+    }
+
+    public void wordsWritten(long fromAddr, long toAddr)
+    {
+        //a loop (or non-loop) at pc was read from the MAX_LOOP_LENGTH words from pc on
+        long from = ((fromAddr - programBound.getLowerAddress()) & ~3L) - (MAX_LOOP_LENGTH - 1) * 4,
+             to = (toAddr - programBound.getLowerAddress()) & ~3L;
+        generation.incrementAndGet(); //before the tags, see run()
+        if (to - from >= LOOP_SLOTS * 4)
+        {
+            clearLoops();
+            return;
+        }
+
+        for (long pc = from; pc <= to; pc += 4)
+            loopTags.compareAndSet((int)(pc >> 2) & (LOOP_SLOTS - 1), (int)pc, EMPTY);
+    }
+
+    /**
+     * Called when a branch lands on pc.  If there is a bound function or a
+     * loop there, run it, and leave the pc on the last instruction it ran.
+     * @param core the core, whose registers and flags get updated
+     * @param budget most instructions the run may count as
+     * @return number of instructions it counts as, or 0 if there was nothing to run
+     * @throws MemoryAccessException if a bound function faults
+     */
+    long run(Core core, int pc, long budget) throws MemoryAccessException
+    {
+        int[] r = core.registers;
+        Memory data = core.getDataMemory();
+        Bound b = core.getDataBound();
+
+        Kind f = bindings.get(pc);
+        if (f != null)
+        {
+            if (f == Kind.MEMCPY)
+                data.copy(r[0], r[1], r[2], b);
+            else
+                data.fill(r[0], (r[1] & 0xff) * 0x01010101, r[2], b);
+            bytesMoved += r[2];
+            ++calls;
+            r[15] = r[14] - 4; //return, less what the run loop adds
+            return 1;
+        }
+
+        if (!idioms)
+            return 0;
+        int slot = (pc >> 2) & (LOOP_SLOTS - 1);
+        Loop l;
+        if (loopTags.get(slot) == pc)
+            l = loops[slot];
+        else
+        {
+            int g = generation.get();
+            l = recognise(pc);
+            loops[slot] = l;
+            loopTags.set(slot, pc);
+            if (generation.get() != g) //the code may have changed under it
+                loopTags.compareAndSet(slot, pc, EMPTY);
+        }
+        if (l == null)
+            return 0;
+
+        int count = r[l.counter];
+        if (count <= 0 || count % l.decrement != 0)
+            return 0;
+        long iterations = count / l.decrement, n = iterations * l.size;
+        if (iterations * l.length > budget || n > Integer.MAX_VALUE)
+            return 0;
+
+        int d = r[l.dst], s = r[l.src];
+        try
+        {
+            if (l.kind == Kind.MEMCPY)
+            {
+                long ud = d & 0xffffffffL, us = s & 0xffffffffL;
+                if ((!l.bytes && ((d | s) & 3) != 0) || (ud < us + n && us < ud + n))
+                    return 0; //let it fault, or copy over itself, as it would
+                data.copy(d, s, (int)n, b);
+                //the registers hold the last things loaded
+                if (l.bytes)
+                    r[Integer.numberOfTrailingZeros(l.list)] = data.readByte((int)(s + n - 1), b) & 0xff;
+                else
+                    data.readWords((int)(s + n - l.size), r, l.list, b);
+                r[l.src] = (int)(s + n);
+            }
+            else
+            {
+                int pattern = r[Integer.numberOfTrailingZeros(l.list)];
+                for (int list = l.list; list != 0; list &= list - 1)
+                    if (r[Integer.numberOfTrailingZeros(list)] != pattern)
+                        return 0; //not the same word over and over
+                if (l.bytes)
+                    pattern = (pattern & 0xff) * 0x01010101;
+                else if ((d & 3) != 0)
+                    return 0;
+                data.fill(d, pattern, (int)n, b);
+            }
+        }
+        catch (MemoryAccessException e)
+        {
+            return 0; //nothing was written, so let it run up to the fault
+        }
+
+        r[l.dst] = (int)(d + n);
+        r[l.counter] = 0;
+        core.setFlags(Core.Z_MASK | Core.C_MASK); //the last SUBS came out at zero
+        r[15] = pc + (l.length - 1) * 4; //on the BNE, which falls through
+        bytesMoved += n;
+        ++loopRuns;
+        return iterations * l.length;
+    }
+
+    /**
+     * Look for a copy or fill loop at pc
+     * @return the loop, or null if there isn't one
+     */
+    private Loop recognise(int pc)
+    {
+        int[] instrs = new int[MAX_LOOP_LENGTH];
+        try
+        {
+            for (int c = 0; c < instrs.length; ++c)
+                instrs[c] = programMem.fetchWord(pc + c * 4, programBound);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+
+        int store = instrs[0];
+        boolean copy = (instrs[0] & 0xff900000) == 0xe4900000 //LDR/LDRB rt, [rs], #size
+                || (instrs[0] & 0xfff00000) == 0xe8b00000; //LDMIA rs!, {list}
+        int length = copy ? 4 : 3;
+        if (copy)
+            store = instrs[1];
+        int subs = instrs[length - 2], bne = instrs[length - 1];
+
+        //SUBS rc, rc, #k (unrotated) and a BNE landing on pc
+        int counter = (subs >> 16) & 0xf, decrement = subs & 0xff;
+        if ((subs & 0xfff00f00) != 0xe2500000 || ((subs >> 12) & 0xf) != counter || decrement == 0
+                || (bne & 0xff000000) != 0x1a000000 || pc + (length - 1) * 4 + 8 + ((bne << 8) >> 6) != pc)
+            return null;
+
+        int dst = (store >> 16) & 0xf, src = -1, list, size;
+        boolean bytes;
+        if ((store & 0xff900000) == 0xe4800000) //STR/STRB rt, [rd], #size
+        {
+            bytes = (store & (1 << 22)) != 0;
+            size = bytes ? 1 : 4;
+            list = 1 << ((store >> 12) & 0xf);
+            if ((store & 0xfff) != size)
+                return null;
+        }
+        else if ((store & 0xfff00000) == 0xe8a00000) //STMIA rd!, {list}
+        {
+            list = store & 0xffff;
+            size = Integer.bitCount(list) * 4;
+            bytes = false;
+        }
+        else
+            return null;
+
+        if (copy)
+        {
+            int load = instrs[0];
+            src = (load >> 16) & 0xf;
+            if ((load & 0xfff00000) == 0xe8b00000)
+            {
+                if ((store & 0xfff00000) != 0xe8a00000 || (load & 0xffff) != list)
+                    return null;
+            }
+            else if ((store & 0xff900000) != 0xe4800000 || (load & 0xfff) != size
+                    || ((load ^ store) & (1 << 22)) != 0 || 1 << ((load >> 12) & 0xf) != list)
+                return null;
+        }
+
+        //the registers mustn't get in each other's way
+        int used = 1 << dst | 1 << counter | (src >= 0 ? 1 << src : 0);
+        if (list == 0 || Integer.bitCount(used) != (copy ? 3 : 2) || (list & (used | 1 << 15)) != 0)
+            return null;
+
+        return new Loop(pc, length, copy ? Kind.MEMCPY : Kind.MEMSET, copy ? src : dst, dst,
+                counter, decrement, list, size, bytes);
+    }
+}
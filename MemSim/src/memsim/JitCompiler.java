@@ -0,0 +1,747 @@
+package memsim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import memsim.exceptions.MemoryAccessException;
+
+/**
+ * Second tier for a Core: counts how often each branch target is reached and,
+ * once a target gets hot, translates the straight line block of instructions
+ * starting there into a JVM class, which the JVM's own JIT then compiles.
+ *
+ * Unconditional data processing instructions (setting the flags or not, but
+ * not ADC/SBC/RSC) that don't involve the pc and whose second operand is an
+ * immediate or a register shifted by an immediate (not ROR) are translated,
+ * and a block can end with the B (conditional or not) that closes a loop.  A
+ * block otherwise ends at the first instruction that isn't translated, and the
+ * interpreter carries on from there.
+ *
+ * Counts and blocks are kept in a direct mapped table keyed by branch target,
+ * like DecodeCache's, so counting a branch costs no allocation or locking.
+ * Blocks are thrown away when their program memory is written, along with any
+ * note that the code around the write couldn't be compiled.  Writes outside
+ * every block (e.g. a Von Neumann core's data stores) are turned away early.
+ *
+ * @author rdeva
+ */
+final class JitCompiler implements Memory.WriteListener {
+    static final int DEFAULT_THRESHOLD = 50;
+    static final int MAX_BLOCK_LENGTH = 64;
+    static final int MIN_BLOCK_LENGTH = 2; //not worth a class below this
+    static final int SLOTS = 1024;
+
+    private static final int NOT_COMPILABLE = -1;
+    private static final int EMPTY = -1; //can never be a (word aligned) pc
+
+    /**
+     * A compiled block and where it came from
+     */
+    static final class Block
+    {
+        final int start, length;
+        final CompiledBlock code;
+
+        Block(int start, int length, CompiledBlock code)
+        {
+            this.start = start;
+            this.length = length;
+            this.code = code;
+        }
+    }
+
+    private final Memory programMem;
+    private final Bound programBound;
+    private final int threshold;
+    private final BlockLoader loader = new BlockLoader();
+    private volatile int compiled = 0;
+
+    /*
+     * tags[slot] is the branch target last counted in slot (pc >> 2) & (SLOTS - 1),
+     * counts[slot] how often it has been reached (NOT_COMPILABLE once it
+     * couldn't be), blocks[slot] its block once compiled and words[slot] how
+     * many words compiling it read.  Only the owning core fills slots; writes
+     * from any thread clear the tags, bumping the generation first so a compile
+     * racing them is dropped.
+     */
+    private final AtomicIntegerArray tags = new AtomicIntegerArray(SLOTS);
+    private final int[] counts = new int[SLOTS], words = new int[SLOTS];
+    private final Block[] blocks = new Block[SLOTS];
+    private final AtomicInteger generation = new AtomicInteger();
+
+    //program bound offsets [coveredFrom, coveredTo) hold every word read by a
+    //compile, widened before compiling so a write racing the compile still gets checked
+    private volatile long coveredFrom = Long.MAX_VALUE, coveredTo = Long.MIN_VALUE;
+
+    /**
+     * @param programMem memory the core fetches from
+     * @param programBound the core's bound in it
+     * @param threshold times a branch target is reached before its block gets compiled
+     */
+    JitCompiler(Memory programMem, Bound programBound, int threshold)
+    {
+        this.programMem = programMem;
+        this.programBound = programBound;
+        this.threshold = threshold;
+        clear();
+    }
+
+    int getThreshold()
+    {
+        return threshold;
+    }
+
+    /**
+     * Called by the owning core when a branch lands on pc.
+     * @return the compiled block starting at pc, or null if there isn't (yet) one
+     */
+    Block enter(int pc)
+    {
+        int slot = (pc >> 2) & (SLOTS - 1);
+        if (tags.get(slot) != pc) //first time here, or thrown away
+        {
+            counts[slot] = 0;
+            blocks[slot] = null;
+            tags.set(slot, pc);
+        }
+
+        Block b = blocks[slot];
+        if (b != null)
+            return b;
+        int c = counts[slot];
+        if (c == NOT_COMPILABLE || ++c < threshold)
+        {
+            if (c != NOT_COMPILABLE)
+                counts[slot] = c;
+            return null;
+        }
+
+        int g = generation.get();
+        long start = pc & 0xffffffffL;
+        if (start < coveredFrom)
+            coveredFrom = start;
+        if (start + MAX_BLOCK_LENGTH * 4 > coveredTo)
+            coveredTo = start + MAX_BLOCK_LENGTH * 4;
+
+        int[] read = new int[1];
+        b = compile(pc, read);
+        words[slot] = read[0];
+        if (b == null)
+            counts[slot] = NOT_COMPILABLE;
+        else
+            blocks[slot] = b;
+        cover();
+        if (generation.get() != g) //the code may have changed under it
+        {
+            tags.compareAndSet(slot, pc, EMPTY);
+            return null;
+        }
+        return b;
+    }
+
+    /**
+     * Shrink the covered range back to the words the live slots were compiled from
+     */
+    private void cover()
+    {
+        long low = Long.MAX_VALUE, high = Long.MIN_VALUE;
+        for (int slot = 0; slot < SLOTS; ++slot)
+        {
+            int pc = tags.get(slot);
+            if (pc != EMPTY && (blocks[slot] != null || counts[slot] == NOT_COMPILABLE))
+            {
+                low = Math.min(low, pc & 0xffffffffL);
+                high = Math.max(high, (pc & 0xffffffffL) + words[slot] * 4);
+            }
+        }
+        coveredFrom = low;
+        coveredTo = high;
+    }
+
+    /**
+     * @return number of blocks currently compiled (only meaningful from the owning core)
+     */
+    int getBlockCount()
+    {
+        int n = 0;
+        for (int slot = 0; slot < SLOTS; ++slot)
+            if (tags.get(slot) != EMPTY && blocks[slot] != null)
+                ++n;
+        return n;
+    }
+
+    /**
+     * @return number of blocks compiled over this compiler's life
+     */
+    int getCompiledCount()
+    {
+        return compiled;
+    }
+
+    private void clear()
+    {
+        for (int slot = 0; slot < SLOTS; ++slot)
+            tags.set(slot, EMPTY);
+    }
+
+    public void wordsWritten(long fromAddr, long toAddr)
+    {
+        long from = fromAddr - programBound.getLowerAddress(), to = toAddr - programBound.getLowerAddress();
+        if (to < coveredFrom || from >= coveredTo)
+            return;
+
+        //anything compiled from up to MAX_BLOCK_LENGTH words before the write
+        //may have read it; hot counts elsewhere are still good
+        generation.incrementAndGet(); //before the tags, see enter()
+        from = (from & ~3L) - (MAX_BLOCK_LENGTH - 1) * 4;
+        to &= ~3L;
+        if (to - from >= SLOTS * 4)
+        {
+            clear();
+            return;
+        }
+        for (long pc = from; pc <= to; pc += 4)
+            tags.compareAndSet((int)(pc >> 2) & (SLOTS - 1), (int)pc, EMPTY);
+    }
+
+    /**
+     * Translate the block at pc
+     * @param read set to the number of words fetched
+     * @return the block, or null if too little of it can be translated
+     */
+    private Block compile(int pc, int[] read)
+    {
+        List<Integer> instrs = new ArrayList<Integer>();
+        read[0] = 0;
+        try
+        {
+            for (int addr = pc; instrs.size() < MAX_BLOCK_LENGTH; addr += 4)
+            {
+                int instr = programMem.fetchWord(addr, programBound);
+                ++read[0];
+                if (closesBlock(instr))
+                {
+                    instrs.add(instr);
+                    break;
+                }
+                if (!compilable(instr))
+                    break;
+                instrs.add(instr);
+            }
+        }
+        catch (MemoryAccessException e)
+        {
+            //block runs up to the end of the bound
+        }
+
+        if (instrs.size() < MIN_BLOCK_LENGTH)
+            return null;
+
+        String name = "memsim/jit/Block" + Integer.toHexString(pc) + "_" + compiled;
+        try
+        {
+            byte[] classFile = generate(name, pc, instrs);
+            CompiledBlock code = (CompiledBlock)loader.define(name.replace('/', '.'), classFile)
+                    .getDeclaredConstructor().newInstance();
+            ++compiled;
+            return new Block(pc, instrs.size(), code);
+        }
+        catch (Exception e)
+        {
+            return null; //can't happen unless the generator is broken, interpret instead
+        }
+    }
+
+    /**
+     * Can instr end a block?  B with any condition (but not BL, whose return
+     * the block can't follow)
+     */
+    static boolean closesBlock(int instr)
+    {
+        return (instr & 0x0f000000) == 0x0a000000 && (instr >>> 28) != 0xf;
+    }
+
+    /**
+     * Can instr be translated?  Follows Core.exec's decoding of data processing.
+     */
+    static boolean compilable(int instr)
+    {
+        int op = (instr >> 25) & 0x7, opcode = (instr >> 21) & 0xf;
+        int rn = (instr >> 16) & 0xf, rd = (instr >> 12) & 0xf, rm = instr & 0xf;
+        boolean s = (instr & (1 << 20)) != 0;
+
+        if ((instr >>> 28) != 0xe) //conditional
+            return false;
+        if (opcode >= 5 && opcode <= 7) //needs the carry in
+            return false;
+        if (opcode >= 8 && opcode <= 11 && !s) //not a compare, but MRS/MSR and friends
+            return false;
+        if (rn == 15 || rd == 15)
+            return false;
+
+        if (op == 0x1)
+            return true;
+        else if (op == 0x0 && (instr & (1 << 4)) == 0) //immediate shift
+        {
+            //rotates (and RRX) need the carry
+            return rm != 15 && ((instr >> 5) & 0x3) != 3;
+        }
+        return false;
+    }
+
+    /*
+     * Class file generation.  The class has no branches (a closing B picks the
+     * next pc arithmetically), so version 49 (no stack map frames needed) is
+     * enough.  run's locals are 1 registers, 2 the CPSR, and 3, 4 and 5 the
+     * operands and result of the instruction being translated.
+     */
+    private static final int CLASS_VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            ILOAD = 0x15, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, IALOAD = 0x2e, ISTORE = 0x36, IASTORE = 0x4f,
+            IADD = 0x60, ISUB = 0x64, IMUL = 0x68, INEG = 0x74, ISHL = 0x78, ISHR = 0x7a, IUSHR = 0x7c,
+            IAND = 0x7e, IOR = 0x80, IXOR = 0x82, IRETURN = 0xac, RETURN = 0xb1, INVOKESPECIAL = 0xb7;
+    private static final int CPSR = 2, X = 3, Y = 4, RESULT = 5;
+
+    /**
+     * Constant pool under construction
+     */
+    private static final class ConstantPool
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final Map<String, Integer> entries = new HashMap<String, Integer>();
+        private int count = 1;
+
+        private int add(String key, int tag, Object value, int ref1, int ref2) throws IOException
+        {
+            Integer index = entries.get(key);
+            if (index != null)
+                return index;
+
+            out.writeByte(tag);
+            switch (tag)
+            {
+                case 1:
+                    out.writeUTF((String)value);
+                    break;
+                case 3:
+                    out.writeInt((Integer)value);
+                    break;
+                case 7:
+                    out.writeShort(ref1);
+                    break;
+                default: //10 methodref, 12 name and type
+                    out.writeShort(ref1);
+                    out.writeShort(ref2);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        int utf8(String s) throws IOException
+        {
+            return add("U" + s, 1, s, 0, 0);
+        }
+
+        int integer(int i) throws IOException
+        {
+            return add("I" + i, 3, i, 0, 0);
+        }
+
+        int classRef(String name) throws IOException
+        {
+            return add("C" + name, 7, null, utf8(name), 0);
+        }
+
+        int methodRef(String owner, String name, String desc) throws IOException
+        {
+            int nameAndType = add("N" + name + desc, 12, null, utf8(name), utf8(desc));
+            return add("M" + owner + name + desc, 10, null, classRef(owner), nameAndType);
+        }
+    }
+
+    /**
+     * Generate a class implementing CompiledBlock that runs instrs, the block
+     * at start (the last of which may be a B)
+     */
+    static byte[] generate(String name, int start, List<Integer> instrs) throws IOException
+    {
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef(name),
+            superClass = cp.classRef("java/lang/Object"),
+            iface = cp.classRef(CompiledBlock.class.getName().replace('.', '/')),
+            objectInit = cp.methodRef("java/lang/Object", "<init>", "()V"),
+            initName = cp.utf8("<init>"),
+            initDesc = cp.utf8("()V"),
+            runName = cp.utf8("run"),
+            runDesc = cp.utf8("([II)I"),
+            codeName = cp.utf8("Code");
+
+        //constructor
+        ByteArrayOutputStream initCode = new ByteArrayOutputStream();
+        initCode.write(ALOAD_0);
+        initCode.write(INVOKESPECIAL);
+        writeShort(initCode, objectInit);
+        initCode.write(RETURN);
+
+        //run(int[], int)
+        ByteArrayOutputStream runCode = new ByteArrayOutputStream();
+        int end = start + (instrs.size() - 1) * 4;
+        for (int instr : instrs)
+            if (closesBlock(instr))
+                translateBranch(instr, end, runCode, cp);
+            else
+                translate(instr, runCode, cp);
+        if (!closesBlock(instrs.get(instrs.size() - 1)))
+            storeRegister(runCode, cp, 15, end); //the run loop moves on from the last instruction
+        loadLocal(runCode, CPSR);
+        runCode.write(IRETURN);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(CLASS_VERSION);
+        out.writeShort(cp.count);
+        cp.out.flush();
+        cp.bytes.writeTo(out);
+        out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(iface);
+        out.writeShort(0); //fields
+        out.writeShort(2); //methods
+        writeMethod(out, initName, initDesc, codeName, 1, 1, initCode.toByteArray());
+        writeMethod(out, runName, runDesc, codeName, 8, RESULT + 1, runCode.toByteArray());
+        out.writeShort(0); //attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeName,
+            int maxStack, int maxLocals, byte[] code) throws IOException
+    {
+        out.writeShort(ACC_PUBLIC);
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); //exception table
+        out.writeShort(0); //attributes
+    }
+
+    /**
+     * Emit bytecode doing what Core.dataProcessing does for instr (which must be compilable)
+     */
+    private static void translate(int instr, ByteArrayOutputStream code, ConstantPool cp) throws IOException
+    {
+        int opcode = (instr >> 21) & 0xf, rn = (instr >> 16) & 0xf, rd = (instr >> 12) & 0xf;
+        boolean s = (instr & (1 << 20)) != 0;
+
+        switch (opcode)
+        {
+            case 2: //SUB
+            case 3: //RSB
+            case 4: //ADD
+            case 10: //CMP
+            case 11: //CMN
+                //result = x + y (+ 1), with the operands kept for C and V
+                if (opcode == 3)
+                    pushOperand2(instr, code, cp);
+                else
+                    loadRegister(code, cp, rn);
+                storeLocal(code, X);
+                if (opcode == 3)
+                    loadRegister(code, cp, rn);
+                else
+                    pushOperand2(instr, code, cp);
+                if (opcode == 2 || opcode == 3 || opcode == 10)
+                {
+                    pushInt(code, cp, -1);
+                    code.write(IXOR);
+                }
+                storeLocal(code, Y);
+                loadLocal(code, X);
+                loadLocal(code, Y);
+                code.write(IADD);
+                if (opcode == 2 || opcode == 3 || opcode == 10)
+                {
+                    pushInt(code, cp, 1);
+                    code.write(IADD);
+                }
+                storeLocal(code, RESULT);
+                break;
+            default: //logical
+                if (s) //Y = shifter carry out, in C's position
+                {
+                    pushShifterCarry(instr, code, cp);
+                    storeLocal(code, Y);
+                }
+                if (opcode != 13 && opcode != 15)
+                    loadRegister(code, cp, rn);
+                pushOperand2(instr, code, cp);
+                if (opcode == 14 || opcode == 15) //BIC, MVN
+                {
+                    pushInt(code, cp, -1);
+                    code.write(IXOR);
+                }
+                if (opcode == 0 || opcode == 8 || opcode == 14)
+                    code.write(IAND);
+                else if (opcode == 1 || opcode == 9)
+                    code.write(IXOR);
+                else if (opcode == 12)
+                    code.write(IOR);
+                storeLocal(code, RESULT);
+        }
+
+        if (opcode < 8 || opcode > 11) //compares and tests only set the flags
+        {
+            code.write(ALOAD_1);
+            pushInt(code, cp, rd);
+            loadLocal(code, RESULT);
+            code.write(IASTORE);
+        }
+
+        if (!s)
+            return;
+
+        //N | Z
+        loadLocal(code, RESULT);
+        pushInt(code, cp, Core.N_MASK);
+        code.write(IAND);
+        loadLocal(code, RESULT); //((result | -result) >>> 31 ^ 1) << 30
+        loadLocal(code, RESULT);
+        code.write(INEG);
+        code.write(IOR);
+        pushInt(code, cp, 31);
+        code.write(IUSHR);
+        pushInt(code, cp, 1);
+        code.write(IXOR);
+        pushInt(code, cp, 30);
+        code.write(ISHL);
+        code.write(IOR);
+
+        if (opcode >= 2 && opcode <= 11 && opcode != 8 && opcode != 9)
+        {
+            //C, the carry out of bit 31: ((x & y) | ((x | y) & ~result)) >>> 31
+            loadLocal(code, X);
+            loadLocal(code, Y);
+            code.write(IAND);
+            loadLocal(code, X);
+            loadLocal(code, Y);
+            code.write(IOR);
+            loadLocal(code, RESULT);
+            pushInt(code, cp, -1);
+            code.write(IXOR);
+            code.write(IAND);
+            code.write(IOR);
+            pushInt(code, cp, 31);
+            code.write(IUSHR);
+            pushInt(code, cp, 29);
+            code.write(ISHL);
+            code.write(IOR);
+            //V, as Core.add: ((x ^ result) & (y ^ result)) >>> 31
+            loadLocal(code, X);
+            loadLocal(code, RESULT);
+            code.write(IXOR);
+            loadLocal(code, Y);
+            loadLocal(code, RESULT);
+            code.write(IXOR);
+            code.write(IAND);
+            pushInt(code, cp, 31);
+            code.write(IUSHR);
+            pushInt(code, cp, 28);
+            code.write(ISHL);
+        }
+        else
+        {
+            loadLocal(code, Y);
+            code.write(IOR);
+            loadLocal(code, CPSR);
+            pushInt(code, cp, Core.V_MASK);
+            code.write(IAND);
+        }
+        code.write(IOR);
+
+        loadLocal(code, CPSR);
+        pushInt(code, cp, ~(Core.N_MASK | Core.Z_MASK | Core.C_MASK | Core.V_MASK));
+        code.write(IAND);
+        code.write(IOR);
+        storeLocal(code, CPSR);
+    }
+
+    /**
+     * Emit bytecode leaving registers[15] where Core.branch would for the B
+     * instr at end: the target, or end itself if the condition fails.  The
+     * condition is looked up in Core's table with the flags as they are now.
+     */
+    private static void translateBranch(int instr, int end, ByteArrayOutputStream code, ConstantPool cp) throws IOException
+    {
+        int target = end + 8 + ((instr << 8) >> 6) - 4; //less what the run loop adds
+        int cond = instr >>> 28;
+        if (cond == 0xe)
+        {
+            storeRegister(code, cp, 15, target);
+            return;
+        }
+
+        //registers[15] = end + passed * (target - end)
+        code.write(ALOAD_1);
+        pushInt(code, cp, 15);
+        pushInt(code, cp, end);
+        pushInt(code, cp, Core.CONDITIONS[cond] & 0xffff);
+        loadLocal(code, CPSR);
+        pushInt(code, cp, 28);
+        code.write(IUSHR);
+        code.write(ISHR);
+        pushInt(code, cp, 1);
+        code.write(IAND);
+        pushInt(code, cp, target - end);
+        code.write(IMUL);
+        code.write(IADD);
+        code.write(IASTORE);
+    }
+
+    /**
+     * Emit bytecode pushing the shifter carry out of instr's second operand,
+     * as Core.immediateCarry and Core.immediateShift work it out, in C's position
+     */
+    private static void pushShifterCarry(int instr, ByteArrayOutputStream code, ConstantPool cp) throws IOException
+    {
+        int shiftType = (instr >> 5) & 0x3, shiftAmount = (instr >> 7) & 0x1f;
+        if (((instr >> 25) & 0x7) == 0x1)
+        {
+            int rotate = (instr >> 8) & 0xf;
+            if (rotate != 0)
+            {
+                pushInt(code, cp, (Core.rotateImmediate(instr & 0xff, rotate) >>> 2) & Core.C_MASK);
+                return;
+            }
+        }
+        else if (shiftAmount != 0 || shiftType != 0)
+        {
+            //the last bit shifted out; LSR/ASR #0 mean #32, which shift out bit 31
+            loadRegister(code, cp, instr & 0xf);
+            pushInt(code, cp, shiftType == 0 ? 32 - shiftAmount : shiftAmount == 0 ? 31 : shiftAmount - 1);
+            code.write(IUSHR);
+            pushInt(code, cp, 1);
+            code.write(IAND);
+            pushInt(code, cp, 29);
+            code.write(ISHL);
+            return;
+        }
+
+        //left alone
+        loadLocal(code, CPSR);
+        pushInt(code, cp, Core.C_MASK);
+        code.write(IAND);
+    }
+
+    private static void pushOperand2(int instr, ByteArrayOutputStream code, ConstantPool cp) throws IOException
+    {
+        if (((instr >> 25) & 0x7) == 0x1)
+        {
+            pushInt(code, cp, Core.rotateImmediate(instr & 0xff, (instr >> 8) & 0xf));
+            return;
+        }
+
+        int shiftType = (instr >> 5) & 0x3, shiftAmount = (instr >> 7) & 0x1f;
+        if (shiftAmount == 0 && shiftType == 1) //LSR #32
+        {
+            pushInt(code, cp, 0);
+            return;
+        }
+        loadRegister(code, cp, instr & 0xf);
+        if (shiftAmount == 0 && shiftType == 2) //ASR #32, the same as #31
+            shiftAmount = 31;
+        if (shiftAmount != 0)
+        {
+            pushInt(code, cp, shiftAmount);
+            code.write(shiftType == 0 ? ISHL : shiftType == 1 ? IUSHR : ISHR);
+        }
+    }
+
+    private static void loadRegister(ByteArrayOutputStream code, ConstantPool cp, int r) throws IOException
+    {
+        code.write(ALOAD_1);
+        pushInt(code, cp, r);
+        code.write(IALOAD);
+    }
+
+    private static void storeRegister(ByteArrayOutputStream code, ConstantPool cp, int r, int value) throws IOException
+    {
+        code.write(ALOAD_1);
+        pushInt(code, cp, r);
+        pushInt(code, cp, value);
+        code.write(IASTORE);
+    }
+
+    private static void loadLocal(ByteArrayOutputStream code, int local)
+    {
+        code.write(ILOAD);
+        code.write(local);
+    }
+
+    private static void storeLocal(ByteArrayOutputStream code, int local)
+    {
+        code.write(ISTORE);
+        code.write(local);
+    }
+
+    private static void pushInt(ByteArrayOutputStream code, ConstantPool cp, int value) throws IOException
+    {
+        if (value >= -1 && value <= 5)
+            code.write(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+        {
+            code.write(BIPUSH);
+            code.write(value);
+        }
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+        {
+            code.write(SIPUSH);
+            writeShort(code, value);
+        }
+        else
+        {
+            code.write(LDC_W);
+            writeShort(code, cp.integer(value));
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream code, int value)
+    {
+        code.write(value >> 8);
+        code.write(value);
+    }
+
+    /**
+     * Loads the generated classes.  Each compiler has its own, so its classes
+     * can be unloaded once the compiler (or all its blocks) are gone.
+     */
+    private static final class BlockLoader extends ClassLoader
+    {
+        BlockLoader()
+        {
+            super(JitCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile)
+        {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+
+package memsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs many cores on a few threads, in lock step: every round, each core that
+ * is still going runs one quantum of instructions, and the next round only
+ * starts once they all have.
+ *
+ * Cores that can affect each other - their data bounds overlap another core's
+ * program or data bounds in the same memory, or they share an L2 or coherence
+ * bus - make up a domain.  A domain's cores take their quanta one after the
+ * other, in an order shuffled every round by a random number generator seeded
+ * from the scheduler's seed, so races between them come out the same on every
+ * run with the same seed and quantum.  Different domains can't see each other,
+ * so they run in parallel on a ForkJoinPool of the given number of workers,
+ * which steal domains from each other when they run out.  Throughput scales
+ * with the number of domains: cores all sharing one memory region run one at a
+ * time.
+ *
+ * @author rdeva
+ */
+public class LockStepScheduler
+{
+    public static final int DEFAULT_QUANTUM = 1000;
+
+    /*
+     * Domains handed to a single fork join task
+     */
+    private static final int DOMAINS_PER_TASK = 4;
+
+    private final int workers, quantum;
+    private final long seed;
+    private long rounds = 0;
+
+    /**
+     * A default quantum, seed 0 and a worker per available processor
+     */
+    public LockStepScheduler()
+    {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUANTUM, 0);
+    }
+
+    /**
+     * @param workers threads running the cores
+     * @param quantum instructions each core runs per round
+     * @param seed decides the order cores in a domain run in
+     * @throws IllegalArgumentException if workers or quantum isn't positive
+     */
+    public LockStepScheduler(int workers, int quantum, long seed) throws IllegalArgumentException
+    {
+        if (workers <= 0)
+            throw new IllegalArgumentException("workers must be > 0");
+        if (quantum <= 0)
+            throw new IllegalArgumentException("quantum must be > 0");
+        this.workers = workers;
+        this.quantum = quantum;
+        this.seed = seed;
+    }
+
+    public int getWorkers()
+    {
+        return workers;
+    }
+
+    public int getQuantum()
+    {
+        return quantum;
+    }
+
+    public long getSeed()
+    {
+        return seed;
+    }
+
+    /**
+     * @return rounds the last run took
+     */
+    public long getRounds()
+    {
+        return rounds;
+    }
+
+    /**
+     * Run all of p's cores from the start until they stop
+     * @return what each core did, in core list order
+     * @throws IllegalStateException if p is already running
+     */
+    public List<CoreResult> run(Processor p) throws IllegalStateException
+    {
+        synchronized (p)
+        {
+            if (p.running)
+                throw new IllegalStateException("processor is already running");
+            p.running = true;
+        }
+        try
+        {
+            return run(p.getCoreList());
+        }
+        finally
+        {
+            p.running = false;
+        }
+    }
+
+    /**
+     * Run the cores from the start until they stop
+     * @return what each core did, in list order
+     */
+    public List<CoreResult> run(List<Core> cores)
+    {
+        List<List<Integer>> groups = domains(cores);
+        long[] nanos = new long[cores.size()];
+        List<Domain> domains = new ArrayList<Domain>(groups.size());
+        for (int d = 0; d < groups.size(); ++d)
+            domains.add(new Domain(cores, groups.get(d), new Random(seed ^ (0x9e3779b97f4a7c15L * (d + 1))),
+                    quantum, nanos));
+
+        long[] before = new long[cores.size()];
+        for (int c = 0; c < cores.size(); ++c)
+        {
+            before[c] = cores.get(c).getInstructionCount();
+            cores.get(c).begin();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try
+        {
+            for (rounds = 0; !domains.isEmpty(); ++rounds)
+            {
+                pool.invoke(new Round(domains, 0, domains.size()));
+
+                List<Domain> live = new ArrayList<Domain>(domains.size());
+                for (Domain d : domains)
+                    if (!d.isFinished())
+                        live.add(d);
+                domains = live;
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        List<CoreResult> results = new ArrayList<CoreResult>(cores.size());
+        for (int c = 0; c < cores.size(); ++c)
+        {
+            Core core = cores.get(c);
+            results.add(new CoreResult(c, core, core.getInstructionCount() - before[c], nanos[c]));
+        }
+        return results;
+    }
+
+    /**
+     * Cores in one domain, taking turns
+     */
+    private static final class Domain
+    {
+        private final List<Core> cores;
+        private final int[] order, live;
+        private int liveCount;
+        private final Random random;
+        private final int quantum;
+        private final long[] nanos;
+
+        /**
+         * @param cores all the cores being run
+         * @param members indices of the ones in this domain
+         * @param random decides their order
+         * @param quantum instructions per core per round
+         * @param nanos where to add up the time each core spends running
+         */
+        Domain(List<Core> cores, List<Integer> members, Random random, int quantum, long[] nanos)
+        {
+            this.cores = cores;
+            live = new int[members.size()];
+            for (int c = 0; c < live.length; ++c)
+                live[c] = members.get(c);
+            liveCount = live.length;
+            order = new int[live.length];
+            this.random = random;
+            this.quantum = quantum;
+            this.nanos = nanos;
+        }
+
+        boolean isFinished()
+        {
+            return liveCount == 0;
+        }
+
+        /**
+         * Give every live core a quantum, in a shuffled order
+         */
+        void round()
+        {
+            System.arraycopy(live, 0, order, 0, liveCount);
+            for (int c = liveCount - 1; c > 0; --c)
+            {
+                int other = random.nextInt(c + 1), temp = order[c];
+                order[c] = order[other];
+                order[other] = temp;
+            }
+
+            for (int c = 0; c < liveCount; ++c)
+            {
+                long start = System.nanoTime();
+                cores.get(order[c]).step(quantum);
+                nanos[order[c]] += System.nanoTime() - start;
+            }
+
+            //drop the cores that stopped, keeping the rest in core order
+            int kept = 0;
+            for (int c = 0; c < liveCount; ++c)
+                if (!cores.get(live[c]).isStopped())
+                    live[kept++] = live[c];
+            liveCount = kept;
+        }
+    }
+
+    /**
+     * One round of a range of domains
+     */
+    private static final class Round extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Domain> domains;
+        private final int from, to;
+
+        Round(List<Domain> domains, int from, int to)
+        {
+            this.domains = domains;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from <= DOMAINS_PER_TASK)
+            {
+                for (int d = from; d < to; ++d)
+                    domains.get(d).round();
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new Round(domains, from, mid), new Round(domains, mid, to));
+        }
+    }
+
+    /**
+     * Split cores into domains of cores that can affect each other
+     * @return the indices of the cores in each domain, in order of their first core
+     */
+    static List<List<Integer>> domains(List<Core> cores)
+    {
+        int n = cores.size();
+        int[] parent = new int[n];
+        for (int c = 0; c < n; ++c)
+            parent[c] = c;
+
+        for (int a = 0; a < n; ++a)
+            for (int b = a + 1; b < n; ++b)
+                if (interfere(cores.get(a), cores.get(b)))
+                    parent[find(parent, a)] = find(parent, b);
+
+        List<List<Integer>> domains = new ArrayList<List<Integer>>();
+        int[] domainOf = new int[n];
+        java.util.Arrays.fill(domainOf, -1);
+        for (int c = 0; c < n; ++c)
+        {
+            int root = find(parent, c);
+            if (domainOf[root] < 0)
+            {
+                domainOf[root] = domains.size();
+                domains.add(new ArrayList<Integer>());
+            }
+            domains.get(domainOf[root]).add(c);
+        }
+        return domains;
+    }
+
+    private static int find(int[] parent, int c)
+    {
+        while (parent[c] != c)
+            c = parent[c] = parent[parent[c]];
+        return c;
+    }
+
+    /**
+     * Can what a runs change what b does, or the other way round?
+     */
+    private static boolean interfere(Core a, Core b)
+    {
+        if (writes(a, b.getProgramMemory(), b.getProgramBound()) || writes(a, b.getDataMemory(), b.getDataBound())
+                || writes(b, a.getProgramMemory(), a.getProgramBound()))
+            return true;
+
+        CacheHierarchy ca = a.getCaches(), cb = b.getCaches();
+        if (ca == null || cb == null)
+            return false;
+        return (ca.getL2() != null && ca.getL2() == cb.getL2())
+                || (ca.getL1D().getBus() != null && ca.getL1D().getBus() == cb.getL1D().getBus());
+    }
+
+    /**
+     * Can core write anywhere in m's bound b?
+     */
+    private static boolean writes(Core core, Memory m, Bound b)
+    {
+        Bound d = core.getDataBound();
+        return core.getDataMemory() == m
+                && d.getLowerAddress() <= b.getHigherAddress() && b.getLowerAddress() <= d.getHigherAddress();
+    }
+}
@@ -8,25 +8,123 @@ package memsim;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
 import memsim.exceptions.MemoryAccessException;
 /**
  *
  * @author rdeva
  */
 public class Memory {
+
+    /**
+     * Told whenever words of a memory are written, e.g. so cached decodings of
+     * instructions can be thrown away.
+     */
+    public interface WriteListener
+    {
+        /**
+         * Words in the range [fromAddr, toAddr] (physical addresses, inclusive) may
+         * have changed.
+         */
+        public void wordsWritten(long fromAddr, long toAddr);
+    }
+
+    /**
+     * What a word access to an address that isn't word aligned does
+     */
+    public enum Alignment {
+        /** throws IllegalArgumentException, as it always has */
+        FAULT,
+        /** reads the aligned word rotated right by 8 bits a byte off, and writes
+         * the aligned word, like ARMv4's LDR and STR */
+        ROTATE,
+        /** reads and writes the 4 bytes from the address, like ARMv6's unaligned accesses */
+        UNALIGNED
+    };
+
     public static final int MIN_SIZE = 128;
-    private int size;
 
-    private static java.util.concurrent.locks.ReentrantLock lock = new
-            java.util.concurrent.locks.ReentrantLock();
-    private static int waiters;
+    /**
+     * Number of lock stripes a memory gets unless told otherwise
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    /**
+     * log2 of the size (in bytes) of the cache line that lock stripes are
+     * handed out by. Addresses in the same line always share a stripe.
+     */
+    public static final int LINE_SHIFT = 5;
+
+    /**
+     * Largest part of a file mapped at once while loading it
+     */
+    public static final long MAP_CHUNK = 1L << 30;
+
+    /**
+     * Cycles an access takes unless told otherwise (no wait states)
+     */
+    public static final int DEFAULT_LATENCY = 1;
+
+    /**
+     * log2 of the size in bytes of the pages writes are tracked by, so reset
+     * only has to zero what was written
+     */
+    public static final int DIRTY_PAGE_SHIFT = 12;
+
+    private final long size;
+    private volatile int latency = DEFAULT_LATENCY;
+    private volatile Alignment alignment = Alignment.FAULT;
+
     /*
-     * Addressing for mem goes like this
-     * mem[addr] = | byte 1 | byte 2 | byte 3 | byte 4 |
-     *               addr+0   addr+1   addr+2   addr+3
+     * Data reads/writes lock the stripe owning the cache line of the address.
+     * Stripes belong to this instance, so separate memories (and separate lines
+     * of the same memory) never contend with each other.  Instruction fetches
+     * (see fetchWord) don't take a lock at all.
      */
-    private int[] mem;
+    private final ReentrantLock[] locks;
+    private final int stripeMask;
 
+    /*
+     * A listener and the physical addresses [from, to] it wants to hear about
+     */
+    private static final class Listening
+    {
+        final WriteListener listener;
+        final long from, to;
+
+        Listening(WriteListener listener, long from, long to)
+        {
+            this.listener = listener;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static final Listening[] NO_LISTENERS = new Listening[0];
+    private volatile Listening[] listeners = NO_LISTENERS;
+
+    /*
+     * A bit per page, set when anything in the page is written.  Cores write
+     * different pages at once, so bits are set by compare and swap.
+     */
+    private final AtomicLongArray dirty;
+    /*
+     * Words are stored as ints; the byte order says which byte of a word an
+     * address picks.  Big endian (the default) has the first byte the most
+     * significant:
+     * word at addr = | byte 1 | byte 2 | byte 3 | byte 4 |
+     *                  addr+0   addr+1   addr+2   addr+3
+     * and little endian has it the least.  The byte at addr is at bit
+     * ((addr & 3) ^ byteSwap) * 8 of its word, so neither order needs a branch.
+     */
+    private final MemoryBackend mem;
+    private final ByteOrder order;
+    private final int byteSwap;
 
 
     /**
@@ -36,7 +134,74 @@ public class Memory {
      */
     public Memory(int size) throws IllegalArgumentException
     {
-        int temp = size;
+        this(size, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a memory unit with given size bytes, whose data accesses are
+     * serialised by the given number of lock stripes.  One stripe means a single
+     * lock for the whole memory.
+     * @param size
+     * @param stripes number of locks, must be a power of 2
+     * @throws IllegalArgumentException if size is not a power of 2 and not greater than MIN_SIZE bytes
+     *          or stripes is not a power of 2
+     */
+    public Memory(int size, int stripes) throws IllegalArgumentException
+    {
+        this(new HeapMemoryBackend(size), stripes);
+    }
+
+    /**
+     * Create a memory unit keeping its contents in the given backend, e.g. a
+     * DirectMemoryBackend for memories too big for (or unwanted on) the heap, or
+     * a SparseMemoryBackend for big address spaces that are mostly left empty.
+     * @param backend
+     * @throws IllegalArgumentException if the backend size is not a power of 2 and not greater than MIN_SIZE bytes
+     */
+    public Memory(MemoryBackend backend) throws IllegalArgumentException
+    {
+        this(backend, DEFAULT_STRIPES);
+    }
+
+    /**
+     * Create a memory unit keeping its contents in the given backend, whose data
+     * accesses are serialised by the given number of lock stripes.
+     * @param backend
+     * @param stripes number of locks, must be a power of 2
+     * @throws IllegalArgumentException if the backend size is not a power of 2 and not greater than MIN_SIZE bytes
+     *          or stripes is not a power of 2
+     */
+    public Memory(MemoryBackend backend, int stripes) throws IllegalArgumentException
+    {
+        this(backend, stripes, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Create a memory unit keeping its contents in the given backend, with bytes
+     * packed into words in the given order.  Most ARM programs are little endian.
+     * A ByteArrayMemoryBackend of the same order keeps the bytes in address order.
+     * @param backend
+     * @param order
+     * @throws IllegalArgumentException if the backend size is not a power of 2 and not greater than MIN_SIZE bytes
+     */
+    public Memory(MemoryBackend backend, ByteOrder order) throws IllegalArgumentException
+    {
+        this(backend, DEFAULT_STRIPES, order);
+    }
+
+    /**
+     * Create a memory unit keeping its contents in the given backend, with bytes
+     * packed into words in the given order, whose data accesses are serialised
+     * by the given number of lock stripes.
+     * @param backend
+     * @param stripes number of locks, must be a power of 2
+     * @param order
+     * @throws IllegalArgumentException if the backend size is not a power of 2 and not greater than MIN_SIZE bytes
+     *          or stripes is not a power of 2
+     */
+    public Memory(MemoryBackend backend, int stripes, ByteOrder order) throws IllegalArgumentException
+    {
+        long size = backend.getSize(), temp = size;
         if (size < MIN_SIZE)
             throw new IllegalArgumentException("Size smaller than " + MIN_SIZE + " bytes");
 
@@ -46,19 +211,273 @@ public class Memory {
         if ((temp >> 1) != 0)
             throw new IllegalArgumentException("size(" + size + ") not a power of 2");
 
+        if (stripes < 1 || (stripes & (stripes - 1)) != 0)
+            throw new IllegalArgumentException("stripes(" + stripes + ") not a power of 2");
+
         this.size = size;
-        mem = new int[size>>2]; //ints are 4 bytes, so need to divide size by 4
+        mem = backend;
+        this.order = order;
+        byteSwap = order == ByteOrder.BIG_ENDIAN ? 3 : 0;
+        long pages = (size + (1L << DIRTY_PAGE_SHIFT) - 1) >> DIRTY_PAGE_SHIFT;
+        dirty = new AtomicLongArray((int)((pages + 63) >> 6));
+
+        locks = new ReentrantLock[stripes];
+        for (int c = 0; c < stripes; ++c)
+            locks[c] = new ReentrantLock();
+        stripeMask = stripes - 1;
+    }
+
+    /**
+     * Return the order bytes are packed into words in
+     * @return
+     */
+    public ByteOrder getByteOrder()
+    {
+        return order;
+    }
+
+    /**
+     * Return what word accesses to unaligned addresses do
+     * @return
+     */
+    public Alignment getAlignment()
+    {
+        return alignment;
+    }
+
+    /**
+     * Choose what readWord and writeWord do with addresses that aren't word
+     * aligned (FAULT by default).  Fetches and LDM/STM always need aligned addresses.
+     * @param alignment
+     */
+    public void setAlignment(Alignment alignment)
+    {
+        this.alignment = alignment;
+    }
+
+    /**
+     * Return the number of lock stripes guarding data accesses
+     * @return
+     */
+    public int getStripes()
+    {
+        return locks.length;
+    }
+
+    /**
+     * Have l told about every write to this memory
+     * @param l
+     */
+    public void addWriteListener(WriteListener l)
+    {
+        addWriteListener(l, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Have l told about writes to this memory touching [fromAddr, toAddr]
+     * (physical addresses, inclusive), e.g. a core's program bound, so writes
+     * elsewhere don't cost it anything
+     * @param l
+     * @param fromAddr
+     * @param toAddr
+     */
+    public synchronized void addWriteListener(WriteListener l, long fromAddr, long toAddr)
+    {
+        Listening[] newListeners = new Listening[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = new Listening(l, fromAddr, toAddr);
+        listeners = newListeners;
+    }
+
+    /**
+     * Stop telling l about writes.  Does nothing if l wasn't listening.
+     * @param l
+     */
+    public synchronized void removeWriteListener(WriteListener l)
+    {
+        java.util.ArrayList<Listening> newListeners =
+                new java.util.ArrayList<Listening>(java.util.Arrays.asList(listeners));
+        for (int c = 0; c < newListeners.size(); ++c)
+            if (newListeners.get(c).listener == l)
+            {
+                newListeners.remove(c);
+                break;
+            }
+        listeners = newListeners.toArray(NO_LISTENERS);
+    }
+
+    /**
+     * Words in the range [fromAddr, toAddr] have been written
+     */
+    private void notifyWritten(long fromAddr, long toAddr)
+    {
+        for (long page = fromAddr >> DIRTY_PAGE_SHIFT; page <= toAddr >> DIRTY_PAGE_SHIFT; ++page)
+        {
+            int i = (int)(page >> 6);
+            long bit = 1L << page, bits;
+            while (((bits = dirty.get(i)) & bit) == 0 && !dirty.compareAndSet(i, bits, bits | bit))
+                ; //lost a race with a write to another page, try again
+        }
+        notifyListeners(fromAddr, toAddr);
+    }
+
+    private void notifyListeners(long fromAddr, long toAddr)
+    {
+        Listening[] l = listeners;
+        for (int c = 0; c < l.length; ++c)
+            if (fromAddr <= l[c].to && toAddr >= l[c].from)
+                l[c].listener.wordsWritten(fromAddr, toAddr);
+    }
+
+    /**
+     * Find the lock guarding the cache line holding realAddr
+     * @param realAddr physical address
+     * @return
+     */
+    private ReentrantLock lockFor(long realAddr)
+    {
+        return locks[(int)(realAddr >> LINE_SHIFT) & stripeMask];
     }
 
     /**
-     * Return the size of the memory in bytes
+     * Return the size of the memory in bytes, or Integer.MAX_VALUE if it's
+     * 2GB or more (see getLongSize)
      * @return
      */
     public int getSize()
+    {
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return the size of the memory in bytes, which can be up to 4GB
+     * @return
+     */
+    public long getLongSize()
     {
         return size;
     }
 
+    /**
+     * Return the number of cycles an access takes, for timing models
+     * @return
+     */
+    public int getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Set the number of cycles an access takes, for timing models.  It doesn't
+     * slow down actual accesses.
+     * @param latency
+     * @throws IllegalArgumentException if latency is &lt; 1
+     */
+    public void setLatency(int latency) throws IllegalArgumentException
+    {
+        if (latency < 1)
+            throw new IllegalArgumentException("latency must be at least 1 cycle");
+        this.latency = latency;
+    }
+
+    /**
+     * Return how many bytes of storage the memory has actually allocated; only
+     * less than getLongSize() for sparse memories
+     * @return
+     */
+    public long getFootprint()
+    {
+        return mem.getFootprint();
+    }
+
+    /**
+     * Set the memory back to zero, as it was created, by zeroing the pages
+     * written since it was created or last reset; it costs as much as what
+     * was written, not the size of the memory.  Listeners are told about the
+     * zeroed words; latency and listeners are kept.  Only call this while no
+     * core is running out of the memory.
+     */
+    public void reset()
+    {
+        long runStart = -1; //first page of the current run of dirty pages
+        for (int i = 0; i < dirty.length(); ++i)
+        {
+            long bits = dirty.get(i);
+            if (bits == 0 && runStart < 0)
+                continue;
+            dirty.set(i, 0);
+            if (bits == -1L && runStart >= 0)
+                continue;
+
+            for (int b = 0; b < 64; ++b)
+            {
+                long page = ((long)i << 6) + b;
+                if ((bits & (1L << b)) == 0)
+                {
+                    if (runStart >= 0)
+                    {
+                        clearPages(runStart, page);
+                        runStart = -1;
+                    }
+                }
+                else if (runStart < 0)
+                    runStart = page;
+            }
+        }
+        if (runStart >= 0)
+            clearPages(runStart, (long)dirty.length() << 6);
+    }
+
+    /**
+     * Zero pages [from, to)
+     */
+    private void clearPages(long from, long to)
+    {
+        long addr = from << DIRTY_PAGE_SHIFT, end = Math.min(to << DIRTY_PAGE_SHIFT, size);
+        mem.clear(addr, end - addr);
+        notifyListeners(addr, end - 4);
+    }
+
+    /**
+     * Return the number of pages written since the memory was created or last
+     * reset, i.e. what the next reset will zero
+     * @return
+     */
+    public int getDirtyPageCount()
+    {
+        int count = 0;
+        for (int i = 0; i < dirty.length(); ++i)
+            count += Long.bitCount(dirty.get(i));
+        return count;
+    }
+
+    /**
+     * Return a copy of this memory as it is now, with the same latency, stripes,
+     * byte order, alignment and dirty pages but no listeners.  With a SparseMemoryBackend the copy
+     * shares pages with this memory until one of them writes to a page, so it
+     * is cheap however large the memory; other backends are copied in full.
+     * Only call this while no core is running out of the memory.
+     * @return
+     */
+    public Memory snapshot()
+    {
+        Memory copy = new Memory(mem.snapshot(), locks.length, order);
+        copy.latency = latency;
+        copy.alignment = alignment;
+        for (int i = 0; i < dirty.length(); ++i)
+            copy.dirty.set(i, dirty.get(i));
+        return copy;
+    }
+
+    /**
+     * Return the backend keeping the contents of this memory
+     * @return
+     */
+    public MemoryBackend getBackend()
+    {
+        return mem;
+    }
+
     /**
      * Read 1 byte at memory address memAddr within the accessible bound b.
      * @param memAddr memory addr (logical) to be read
@@ -68,78 +487,544 @@ public class Memory {
      */
     public byte readByte(int memAddr, Bound b) throws MemoryAccessException
     {
-        int realAddr = b.getLowerBound() + ((memAddr >> 2) << 2);
-        if (realAddr > b.getHigherBound())
+        long realAddr = b.getLowerAddress() + (memAddr & 0xfffffffcL);
+        if (realAddr > b.getHigherAddress())
             throw new MemoryAccessException("Memory addr out of bounds");
-        
-        int temp = mem[realAddr >> 2];
-        
-        switch (memAddr & 3)
+
+        int temp;
+        ReentrantLock lock = lockFor(realAddr);
+        lock.lock();
+        try
+        {
+            temp = mem.getWord(realAddr);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return (byte)(temp >> (((memAddr & 3) ^ byteSwap) << 3));
+    }
+
+    /**
+     * Read the 2 byte halfword at memory address memAddr within the accessible
+     * bound b, in the memory's byte order.  An odd address faults if the
+     * alignment is FAULT, has bit 0 ignored if it's ROTATE, and reads the two
+     * bytes from memAddr on (possibly from two words) if it's UNALIGNED.
+     * @param memAddr memory addr (logical) to be read
+     * @param b the memory region with read/write permission
+     * @return halfword at memory location memAddr
+     * @throws IllegalArgumentException if the address is odd and the alignment is FAULT
+     * @throws MemoryAccessException if memory addr is out of bounds of the accessible region
+     */
+    public short readHalf(int memAddr, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        if ((memAddr & 1) != 0)
+        {
+            Alignment a = alignment;
+            if (a == Alignment.FAULT)
+                throw new IllegalArgumentException("address isn't halfword aligned");
+            else if (a == Alignment.UNALIGNED)
+            {
+                long first = checkRange(memAddr, 2, b);
+                ReentrantLock[] held = lockPair(first & ~3, (first + 1) & ~3);
+                try
+                {
+                    int low = getByte(first), high = getByte(first + 1);
+                    return (short)(byteSwap == 0 ? low | (high << 8) : (low << 8) | high);
+                }
+                finally
+                {
+                    unlockPair(held);
+                }
+            }
+            memAddr &= ~1;
+        }
+
+        long realAddr = b.getLowerAddress() + (memAddr & 0xfffffffcL);
+        if (realAddr > b.getHigherAddress())
+            throw new MemoryAccessException("Memory addr out of bounds");
+
+        int temp;
+        ReentrantLock lock = lockFor(realAddr);
+        lock.lock();
+        try
+        {
+            temp = mem.getWord(realAddr);
+        }
+        finally
         {
-            case 0:
-                return (byte)(temp >> 24 & 0xff);
-            case 1:
-                return (byte)((temp >> 16) & 0xff);
-            case 2:
-                return (byte)((temp >> 8) & 0xff);
-            case 3:
-                return (byte)(temp & 0xff);
-            default:    //should never happen
-                throw new RuntimeException("Code shouldn't have execed");
+            lock.unlock();
         }
+        return (short)(temp >> (((memAddr & 2) ^ (byteSwap & 2)) << 3));
     }
 
     /**
      * Read the 4 byte word at given memory address.
-     * @param memAddr memory address to be read (must be word aligned)
+     * @param memAddr memory address to be read (must be word aligned unless the
+     *          alignment isn't FAULT)
      * @param b the memory region with read/write permission
      * @return
-     * @throws IllegalArgumentException if the address isn't word aligned
+     * @throws IllegalArgumentException if the address isn't word aligned and the alignment is FAULT
      * @throws MemoryAccessException if memory addr is out of bounds of the accessible region
      */
     public int readWord(int memAddr, Bound b) throws IllegalArgumentException, MemoryAccessException
     {
+        long realAddr = b.getLowerAddress() + (memAddr & 0xffffffffL);
+        if ((memAddr & 3) != 0)
+            return readUnaligned(memAddr, b);
+        else if (realAddr > b.getHigherAddress())
+            throw new MemoryAccessException("Memory addr out of bounds");
+
+        ReentrantLock lock = lockFor(realAddr);
+        lock.lock();
         try
         {
-            ++waiters;
-            lock.lock();
-            --waiters;
-            System.out.println(waiters);
-            //System.out.println(Thread.currentThread());
-            //System.out.printf("waiting: %d, reading: %x[%s]\n", lock.getQueueLength(), memAddr, b.toString());
-            int realAddr = b.getLowerBound() + memAddr;
-            if ((memAddr & 3) != 0)
-                throw new IllegalArgumentException("address isn't word aligned");
-            else if (realAddr > b.getHigherBound())
-                throw new MemoryAccessException("Memory addr out of bounds");
-                
-            return mem[realAddr >> 2];
+            return mem.getWord(realAddr);
         }
         finally
         {
             lock.unlock();
         }
-        
     }
 
     /**
-     * Write the 4 byte word at given memory address.
+     * Read the 4 byte word at given memory address for instruction fetch.  Unlike
+     * readWord this doesn't take the stripe lock, so any number of cores can
+     * fetch concurrently.  A fetch racing with a store to the same word sees
+     * either the old or the new word.
      * @param memAddr memory address to be read (must be word aligned)
      * @param b the memory region with read/write permission
-     * @param data data to write
+     * @return
      * @throws IllegalArgumentException if the address isn't word aligned
      * @throws MemoryAccessException if memory addr is out of bounds of the accessible region
      */
+    public int fetchWord(int memAddr, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        long realAddr = b.getLowerAddress() + (memAddr & 0xffffffffL);
+        if ((memAddr & 3) != 0)
+            throw new IllegalArgumentException("address isn't word aligned");
+        else if (realAddr > b.getHigherAddress())
+            throw new MemoryAccessException("Memory addr out of bounds");
+
+        return mem.getWord(realAddr);
+    }
+
+    /**
+     * Write the 4 byte word at given memory address.
+     * @param memAddr memory address to be read (must be word aligned unless the
+     *          alignment isn't FAULT)
+     * @param b the memory region with read/write permission
+     * @param data data to write
+     * @throws IllegalArgumentException if the address isn't word aligned and the alignment is FAULT
+     * @throws MemoryAccessException if memory addr is out of bounds of the accessible region
+     */
     public void writeWord(int memAddr, int data, Bound b) throws IllegalArgumentException, MemoryAccessException
     {
-        int realAddr = b.getLowerBound() + memAddr;
+        long realAddr = b.getLowerAddress() + (memAddr & 0xffffffffL);
 
+        if ((memAddr & 3) != 0)
+        {
+            writeUnaligned(memAddr, data, b);
+            return;
+        }
+        else if (realAddr > b.getHigherAddress())
+            throw new MemoryAccessException("Memory addr out of bounds");
+
+        ReentrantLock lock = lockFor(realAddr);
+        lock.lock();
+        try
+        {
+            mem.setWord(realAddr, data);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        notifyWritten(realAddr, realAddr);
+    }
+
+    /**
+     * Read consecutive words starting at memAddr into the elements of dst
+     * picked by mask, lowest element from the lowest address, as a load
+     * multiple does.  The bound is checked once for the whole span, and each
+     * cache line's stripe lock is taken once rather than once a word.
+     * @param memAddr memory address of the first word (must be word aligned)
+     * @param dst where the words go
+     * @param mask bit i set if dst[i] is to be read; bits past dst.length must be clear
+     * @param b the memory region with read/write permission
+     * @throws IllegalArgumentException if the address isn't word aligned
+     * @throws MemoryAccessException if any of the span is out of bounds of the accessible region
+     */
+    public void readWords(int memAddr, int[] dst, int mask, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        long realAddr = checkSpan(memAddr, Integer.bitCount(mask), b);
+
+        ReentrantLock lock = null;
+        try
+        {
+            for (; mask != 0; mask &= mask - 1, realAddr += 4)
+            {
+                if (lock == null || (realAddr & ((1 << LINE_SHIFT) - 1)) == 0)
+                {
+                    if (lock != null)
+                        lock.unlock();
+                    (lock = lockFor(realAddr)).lock();
+                }
+                dst[Integer.numberOfTrailingZeros(mask)] = mem.getWord(realAddr);
+            }
+        }
+        finally
+        {
+            if (lock != null)
+                lock.unlock();
+        }
+    }
+
+    /**
+     * Write the elements of src picked by mask to consecutive words starting
+     * at memAddr, lowest element to the lowest address, as a store multiple
+     * does.  Like readWords, the bound is checked once and each line locked
+     * once; listeners are told about the whole span at once.
+     * @param memAddr memory address of the first word (must be word aligned)
+     * @param src the words to write
+     * @param mask bit i set if src[i] is to be written; bits past src.length must be clear
+     * @param b the memory region with read/write permission
+     * @throws IllegalArgumentException if the address isn't word aligned
+     * @throws MemoryAccessException if any of the span is out of bounds of the accessible region
+     */
+    public void writeWords(int memAddr, int[] src, int mask, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        int n = Integer.bitCount(mask);
+        long realAddr = checkSpan(memAddr, n, b), first = realAddr;
+        if (n == 0)
+            return;
+
+        ReentrantLock lock = null;
+        try
+        {
+            for (; mask != 0; mask &= mask - 1, realAddr += 4)
+            {
+                if (lock == null || (realAddr & ((1 << LINE_SHIFT) - 1)) == 0)
+                {
+                    if (lock != null)
+                        lock.unlock();
+                    (lock = lockFor(realAddr)).lock();
+                }
+                mem.setWord(realAddr, src[Integer.numberOfTrailingZeros(mask)]);
+            }
+        }
+        finally
+        {
+            if (lock != null)
+                lock.unlock();
+        }
+        notifyWritten(first, realAddr - 4);
+    }
+
+    /**
+     * Copy length bytes from srcAddr to dstAddr, like C's memmove: the ranges
+     * may overlap.  Both ranges are checked before anything is written, the
+     * aligned middle is copied a word at a time by the backend, and the whole
+     * copy holds every stripe lock so it is atomic to other cores.
+     * @param dstAddr memory address of the first byte copied to
+     * @param srcAddr memory address of the first byte copied from
+     * @param length number of bytes
+     * @param b the memory region with read/write permission
+     * @throws MemoryAccessException if either range is out of bounds of the accessible region
+     */
+    public void copy(int dstAddr, int srcAddr, int length, Bound b) throws MemoryAccessException
+    {
+        long dst = checkRange(dstAddr, length, b), src = checkRange(srcAddr, length, b);
+        if (length == 0)
+            return;
+
+        lockAll();
+        try
+        {
+            int head = (int)(-dst & 3), body = (length - head) & ~3;
+            if (((dst ^ src) & 3) != 0 || head > length) //can't copy whole words
+            {
+                if (dst <= src)
+                    for (int c = 0; c < length; ++c)
+                        setByte(dst + c, getByte(src + c));
+                else
+                    for (int c = length - 1; c >= 0; --c)
+                        setByte(dst + c, getByte(src + c));
+            }
+            else if (dst <= src)
+            {
+                for (int c = 0; c < head; ++c)
+                    setByte(dst + c, getByte(src + c));
+                mem.copyWords(dst + head, src + head, body);
+                for (int c = head + body; c < length; ++c)
+                    setByte(dst + c, getByte(src + c));
+            }
+            else
+            {
+                for (int c = length - 1; c >= head + body; --c)
+                    setByte(dst + c, getByte(src + c));
+                mem.copyWords(dst + head, src + head, body);
+                for (int c = head - 1; c >= 0; --c)
+                    setByte(dst + c, getByte(src + c));
+            }
+        }
+        finally
+        {
+            unlockAll();
+        }
+        notifyWritten(dst & ~3, (dst + length - 1) & ~3);
+    }
+
+    /**
+     * Fill length bytes from memAddr with a repeating word, each byte getting
+     * the byte of pattern for its place in a word (so a byte value times
+     * 0x01010101 fills like C's memset).  Like copy, the range is checked
+     * first and the fill is atomic to other cores.
+     * @param memAddr memory address of the first byte
+     * @param pattern the word to repeat
+     * @param length number of bytes
+     * @param b the memory region with read/write permission
+     * @throws MemoryAccessException if the range is out of bounds of the accessible region
+     */
+    public void fill(int memAddr, int pattern, int length, Bound b) throws MemoryAccessException
+    {
+        long addr = checkRange(memAddr, length, b), end = addr + length;
+        if (length == 0)
+            return;
+
+        lockAll();
+        try
+        {
+            fillRange(addr, end, pattern);
+        }
+        finally
+        {
+            unlockAll();
+        }
+        notifyWritten(addr & ~3, (end - 1) & ~3);
+    }
+
+    /**
+     * Zero length bytes from memAddr, e.g. an image's .bss.  It's lazy: only
+     * the pages written since the memory was created or last reset are
+     * touched, as the rest read as zero already.  Like fill, the range is
+     * checked first and the zeroing is atomic to other cores.
+     * @param memAddr memory address of the first byte
+     * @param length number of bytes
+     * @param b the memory region with read/write permission
+     * @throws MemoryAccessException if the range is out of bounds of the accessible region
+     */
+    public void zero(int memAddr, int length, Bound b) throws MemoryAccessException
+    {
+        long addr = checkRange(memAddr, length, b), end = addr + length;
+        if (length == 0)
+            return;
+
+        lockAll();
+        try
+        {
+            for (long page = addr >> DIRTY_PAGE_SHIFT; page <= (end - 1) >> DIRTY_PAGE_SHIFT; ++page)
+                if ((dirty.get((int)(page >> 6)) & (1L << page)) != 0)
+                    fillRange(Math.max(addr, page << DIRTY_PAGE_SHIFT),
+                            Math.min(end, (page + 1) << DIRTY_PAGE_SHIFT), 0);
+        }
+        finally
+        {
+            unlockAll();
+        }
+        notifyListeners(addr & ~3, (end - 1) & ~3); //the zeroed pages are dirty already
+    }
+
+    /**
+     * Fill physical addresses [addr, end) with pattern; the caller holds every lock
+     */
+    private void fillRange(long addr, long end, int pattern)
+    {
+        long body = Math.min((addr + 3) & ~3, end), tail = Math.max(end & ~3, body);
+        for (long a = addr; a < body; ++a)
+            setByte(a, pattern >>> (((a & 3) ^ byteSwap) << 3));
+        mem.fillWords(body, tail - body, pattern);
+        for (long a = tail; a < end; ++a)
+            setByte(a, pattern >>> (((a & 3) ^ byteSwap) << 3));
+    }
+
+    /**
+     * Copy the remaining bytes of src to consecutive addresses from memAddr,
+     * e.g. straight out of a mapped file.  The range is checked first, whole
+     * words go to the backend in bulk through an int view of src in the
+     * memory's byte order, and src is left at its limit.
+     * @param memAddr memory address the first byte goes to
+     * @param src the bytes
+     * @param b the memory region with read/write permission
+     * @throws MemoryAccessException if the range is out of bounds of the accessible region
+     */
+    public void writeBytes(int memAddr, ByteBuffer src, Bound b) throws MemoryAccessException
+    {
+        int length = src.remaining();
+        long addr = checkRange(memAddr, length, b), end = addr + length;
+        if (length == 0)
+            return;
+
+        ByteBuffer bytes = src.slice();
+        lockAll();
+        try
+        {
+            long body = Math.min((addr + 3) & ~3, end), tail = Math.max(end & ~3, body);
+            for (long a = addr; a < body; ++a)
+                setByte(a, bytes.get());
+            if (tail > body)
+            {
+                ByteBuffer words = bytes.slice();
+                words.limit((int)(tail - body));
+                mem.setWords(body, words.slice().order(order).asIntBuffer());
+                bytes.position(bytes.position() + (int)(tail - body));
+            }
+            for (long a = tail; a < end; ++a)
+                setByte(a, bytes.get());
+        }
+        finally
+        {
+            unlockAll();
+        }
+        src.position(src.limit());
+        notifyWritten(addr & ~3, (end - 1) & ~3);
+    }
+
+    /**
+     * Byte at a physical address; the caller holds the lock
+     */
+    private int getByte(long realAddr)
+    {
+        return mem.getWord(realAddr & ~3) >>> (((realAddr & 3) ^ byteSwap) << 3) & 0xff;
+    }
+
+    /**
+     * Set the byte at a physical address to the low byte of data; the caller holds the lock
+     */
+    private void setByte(long realAddr, int data)
+    {
+        int shift = (int)((realAddr & 3) ^ byteSwap) << 3;
+        long word = realAddr & ~3;
+        mem.setWord(word, (mem.getWord(word) & ~(0xff << shift)) | ((data & 0xff) << shift));
+    }
+
+    private void lockAll()
+    {
+        for (int c = 0; c < locks.length; ++c)
+            locks[c].lock();
+    }
+
+    private void unlockAll()
+    {
+        for (int c = locks.length - 1; c >= 0; --c)
+            locks[c].unlock();
+    }
+
+    /**
+     * Check that length bytes starting at memAddr are all within b
+     * @return physical address of the first byte
+     */
+    private long checkRange(int memAddr, int length, Bound b) throws MemoryAccessException
+    {
+        long realAddr = b.getLowerAddress() + (memAddr & 0xffffffffL);
+        if (length < 0)
+            throw new MemoryAccessException("Negative length");
+        else if (length > 0 && ((realAddr + length - 1) & ~3) > b.getHigherAddress())
+            throw new MemoryAccessException("Memory addr out of bounds");
+        return realAddr;
+    }
+
+    /**
+     * Check that n words starting at memAddr are all within b
+     * @return physical address of the first word
+     */
+    private long checkSpan(int memAddr, int n, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        long realAddr = b.getLowerAddress() + (memAddr & 0xffffffffL);
         if ((memAddr & 3) != 0)
             throw new IllegalArgumentException("address isn't word aligned");
-        else if (realAddr > b.getHigherBound())
+        else if (n > 0 && realAddr + ((n - 1) << 2) > b.getHigherAddress())
             throw new MemoryAccessException("Memory addr out of bounds");
+        return realAddr;
+    }
+
+    /**
+     * readWord for an address that isn't word aligned
+     */
+    private int readUnaligned(int memAddr, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        Alignment a = alignment;
+        if (a == Alignment.FAULT)
+            throw new IllegalArgumentException("address isn't word aligned");
+
+        int offset = (memAddr & 3) << 3;
+        if (a == Alignment.ROTATE)
+            return Integer.rotateRight(readWord(memAddr & ~3, b), offset);
+
+        long first = checkRange(memAddr, 4, b) & ~3, second = first + 4;
+        ReentrantLock[] held = lockPair(first, second);
+        int low, high;
+        try
+        {
+            low = mem.getWord(first);
+            high = mem.getWord(second);
+        }
+        finally
+        {
+            unlockPair(held);
+        }
+        //the bytes from memAddr on, in memory order, make up the word
+        return byteSwap == 0 ? (low >>> offset) | (high << (32 - offset))
+                : (low << offset) | (high >>> (32 - offset));
+    }
+
+    /**
+     * writeWord for an address that isn't word aligned
+     */
+    private void writeUnaligned(int memAddr, int data, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        Alignment a = alignment;
+        if (a == Alignment.FAULT)
+            throw new IllegalArgumentException("address isn't word aligned");
+        else if (a == Alignment.ROTATE)
+        {
+            writeWord(memAddr & ~3, data, b);
+            return;
+        }
 
-        mem[realAddr >> 2] = data;
+        long realAddr = checkRange(memAddr, 4, b), first = realAddr & ~3, second = first + 4;
+        ReentrantLock[] held = lockPair(first, second);
+        try
+        {
+            for (int c = 0; c < 4; ++c)
+                setByte(realAddr + c, data >>> ((c ^ byteSwap) << 3));
+        }
+        finally
+        {
+            unlockPair(held);
+        }
+        notifyWritten(first, second);
+    }
+
+    /**
+     * Lock the stripes of two words, lowest stripe first so two cores doing
+     * the same can't deadlock
+     * @return the locks taken, for unlockPair
+     */
+    private ReentrantLock[] lockPair(long first, long second)
+    {
+        int i = (int)(first >> LINE_SHIFT) & stripeMask, j = (int)(second >> LINE_SHIFT) & stripeMask;
+        ReentrantLock[] held = i == j ? new ReentrantLock[] {locks[i]}
+                : new ReentrantLock[] {locks[Math.min(i, j)], locks[Math.max(i, j)]};
+        for (ReentrantLock l : held)
+            l.lock();
+        return held;
+    }
+
+    private void unlockPair(ReentrantLock[] held)
+    {
+        for (int c = held.length - 1; c >= 0; --c)
+            held[c].unlock();
     }
 
     /**
@@ -152,42 +1037,81 @@ public class Memory {
      */
     public void writeByte(int memAddr, byte data, Bound b) throws MemoryAccessException
     {
-        int realAddr = b.getLowerBound() + ((memAddr >> 2) << 2);
-        if (realAddr > b.getHigherBound())
+        long realAddr = b.getLowerAddress() + (memAddr & 0xfffffffcL);
+        if (realAddr > b.getHigherAddress())
             throw new MemoryAccessException("Memory addr out of bounds");
 
-        realAddr = realAddr >> 2; //get rid of useless 2 byte offset
-        int temp = mem[realAddr];
+        ReentrantLock lock = lockFor(realAddr);
+        lock.lock();
+        try
+        {
+            setByte(realAddr + (memAddr & 3), data);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        notifyWritten(realAddr, realAddr);
+    }
 
+    /**
+     * Write the 2 byte halfword at memory address memAddr within the accessible
+     * bound b, in the memory's byte order.  Odd addresses are dealt with as
+     * readHalf does.
+     * @param memAddr memory addr (logical) to be written
+     * @param data data to write
+     * @param b the memory region with read/write permission
+     * @throws IllegalArgumentException if the address is odd and the alignment is FAULT
+     * @throws MemoryAccessException if memory addr is out of bounds of the accessible region
+     */
+    public void writeHalf(int memAddr, short data, Bound b) throws IllegalArgumentException, MemoryAccessException
+    {
+        if ((memAddr & 1) != 0)
+        {
+            Alignment a = alignment;
+            if (a == Alignment.FAULT)
+                throw new IllegalArgumentException("address isn't halfword aligned");
+            else if (a == Alignment.UNALIGNED)
+            {
+                long first = checkRange(memAddr, 2, b);
+                ReentrantLock[] held = lockPair(first & ~3, (first + 1) & ~3);
+                try
+                {
+                    setByte(first, byteSwap == 0 ? data : data >> 8);
+                    setByte(first + 1, byteSwap == 0 ? data >> 8 : data);
+                }
+                finally
+                {
+                    unlockPair(held);
+                }
+                notifyWritten(first & ~3, (first + 1) & ~3);
+                return;
+            }
+            memAddr &= ~1;
+        }
 
-        //java promotes byte to int when adding and does sign extention on the
-        //promoted int. So I need to clean the variable up
-        int data_copy = (int)data & 0xff;
+        long realAddr = b.getLowerAddress() + (memAddr & 0xfffffffcL);
+        if (realAddr > b.getHigherAddress())
+            throw new MemoryAccessException("Memory addr out of bounds");
 
-        // |________|________|________|________| => 1 word
-        //   addr 0   addr 1   addr 2   addr 3
-        switch (memAddr & 3)
+        int shift = ((memAddr & 2) ^ (byteSwap & 2)) << 3;
+        ReentrantLock lock = lockFor(realAddr);
+        lock.lock();
+        try
         {
-            case 3:
-                mem[realAddr] = data_copy + (temp & ~255);
-                break;
-            case 2:
-                mem[realAddr] = (data_copy << 8) + (temp & ~(255 << 8));
-                break;
-            case 1:
-                mem[realAddr] = (data_copy << 16) + (temp & ~(255 << 16));
-                break;
-            case 0:
-                mem[realAddr] = (data_copy << 24) + (temp & ~(255 << 24));
-                break;
-            default:    //should never happen
-                throw new RuntimeException("Code shouldn't have execed");
+            mem.setWord(realAddr, (mem.getWord(realAddr) & ~(0xffff << shift)) | ((data & 0xffff) << shift));
         }
+        finally
+        {
+            lock.unlock();
+        }
+        notifyWritten(realAddr, realAddr);
     }
 
     /**
      * Reads contents of a file and loads it into memory. If numBytes is &lt; 0, read the whole file.
-     * if sizeOf(file) < numBytes, read only sizeOf(file) bytes.
+     * if sizeOf(file) < numBytes, read only sizeOf(file) bytes.  Anything that doesn't fit in
+     * the memory is left out.
      * @param m memory to load data into
      * @param f file to read data from
      * @param numBytes number of bytes to read.
@@ -195,45 +1119,85 @@ public class Memory {
      */
     public static void loadIntoMemory(Memory m, File f, long numBytes) throws java.io.IOException
     {
-        FileInputStream fi = new FileInputStream(f);
-        int bytesRead = 4, totalBytes = 0;
-        byte[] word = new byte[4];
+        if (numBytes < 0 || numBytes > m.size)
+            numBytes = Math.min(f.length(), m.size);
+
+        try
+        {
+            //bounds only reach the first 2 GB of a memory
+            numBytes = Math.min(numBytes, Integer.MAX_VALUE & ~3);
+            loadIntoMemory(m, f, numBytes, 0, new Bound(0, (int)Math.min(m.size - 1, Integer.MAX_VALUE)));
+        }
+        catch (MemoryAccessException e) //the whole memory is accessible
+        {
+            throw new RuntimeException("Code shouldn't have execed", e);
+        }
+    }
 
-        if (numBytes < 0)
-            numBytes = f.length();
+    /**
+     * Memory maps a file and copies its contents into memory, starting at memory address
+     * memAddr within the accessible bound b.  Byte n of the file goes to address
+     * memAddr + n, so words are read in the memory's byte order; a trailing
+     * partial word is padded with zeroes.  Files are mapped MAP_CHUNK bytes at a time.
+     * If numBytes is &lt; 0, read the whole file.
+     * if sizeOf(file) < numBytes, read only sizeOf(file) bytes.
+     *
+     * Like the rest of loading, this doesn't take the memory's locks, so it
+     * shouldn't be done while cores are running.
+     * @param m memory to load data into
+     * @param f file to read data from
+     * @param numBytes number of bytes to read.
+     * @param memAddr memory addr (logical) the first byte of the file goes to (must be word aligned)
+     * @param b the memory region with read/write permission
+     * @return number of bytes loaded
+     * @throws IllegalArgumentException if the address isn't word aligned
+     * @throws MemoryAccessException if the contents don't fit in the accessible region
+     * @throws java.io.IOException if file access is blocked or other IO errors
+     */
+    public static long loadIntoMemory(Memory m, File f, long numBytes, int memAddr, Bound b)
+            throws IllegalArgumentException, MemoryAccessException, java.io.IOException
+    {
+        if ((memAddr & 3) != 0)
+            throw new IllegalArgumentException("address isn't word aligned");
 
-        for (int c = 0; c < numBytes && bytesRead == 4; ++c)
+        FileInputStream fi = new FileInputStream(f);
+        try
         {
-            try
-            {
-                totalBytes += bytesRead = fi.read(word);
-            }
-            catch (java.io.IOException e)
+            FileChannel channel = fi.getChannel();
+            if (numBytes < 0 || numBytes > channel.size())
+                numBytes = channel.size();
+            if (numBytes == 0)
+                return 0;
+
+            long realAddr = b.getLowerAddress() + (memAddr & 0xffffffffL);
+            long lastWord = realAddr + ((numBytes - 1) & ~3L);
+            if (lastWord > b.getHigherAddress() || lastWord >= m.size)
+                throw new MemoryAccessException("Memory addr out of bounds");
+
+            long wholeWords = numBytes & ~3L;
+            for (long pos = 0; pos < wholeWords; pos += MAP_CHUNK)
             {
-                break;
+                MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+                        Math.min(MAP_CHUNK, wholeWords - pos));
+                m.mem.setWords(realAddr + pos, image.order(m.order).asIntBuffer());
             }
-            
-            switch(bytesRead) //could be optimised, but am too lazy
+
+            if (wholeWords != numBytes)
             {
-                case 4:
-                    m.mem[c] = (word[0] << 24) + ((word[1] << 16) & (0xff << 16))
-                            + ((word[2] << 8) & (0xff << 8)) + (word[3] & 0xff);
-                    break;
-                case 3:
-                    m.mem[c] = (word[0] << 24) + ((word[1] << 16) & (0xff << 16))
-                            + ((word[2] << 8) & (0xff << 8));
-                    break;
-                case 2:
-                    m.mem[c] = (word[0] << 24) + ((word[1] << 16) & (0xff << 16));
-                    break;
-                case 1:
-                    m.mem[c] = (word[0] << 24);
+                MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, wholeWords,
+                        numBytes - wholeWords);
+                int word = 0;
+                for (int c = 0; image.hasRemaining(); ++c)
+                    word |= (image.get() & 0xff) << ((c ^ m.byteSwap) << 3);
+                m.mem.setWord(lastWord, word);
             }
-            
-        }
-
 
-
-        //m.size = totalBytes;
+            m.notifyWritten(realAddr, lastWord);
+            return numBytes;
+        }
+        finally
+        {
+            fi.close();
+        }
     }
 }
@@ -0,0 +1,74 @@
+
+package memsim;
+
+import java.nio.IntBuffer;
+
+/**
+ * Storage behind a Memory.  Addresses are physical byte addresses of words
+ * (always word aligned) and are longs, so a backend may hold more than an
+ * int can count.  Backends don't do any locking or bounds checking of their
+ * own beyond what the underlying storage does; Memory takes care of that.
+ *
+ * @author rdeva
+ */
+public interface MemoryBackend {
+
+    /**
+     * @return size of the storage in bytes
+     */
+    public long getSize();
+
+    /**
+     * @return bytes of storage actually allocated, which may be less than the size
+     */
+    public long getFootprint();
+
+    /**
+     * @param addr physical address of the word
+     * @return the word at addr
+     */
+    public int getWord(long addr);
+
+    /**
+     * @param addr physical address of the word
+     * @param data the new word
+     */
+    public void setWord(long addr, int data);
+
+    /**
+     * Copy all remaining words of src into consecutive words starting at addr
+     * @param addr physical address of the first word
+     * @param src words to copy
+     */
+    public void setWords(long addr, IntBuffer src);
+
+    /**
+     * Set words back to zero, as the storage started out
+     * @param addr physical address of the first word
+     * @param length number of bytes, a multiple of 4
+     */
+    public void clear(long addr, long length);
+
+    /**
+     * Copy words from one place to another, as if through a temporary buffer
+     * so overlapping ranges are fine
+     * @param dst physical address of the first word copied to
+     * @param src physical address of the first word copied from
+     * @param length number of bytes, a multiple of 4
+     */
+    public void copyWords(long dst, long src, long length);
+
+    /**
+     * Set words to the same value
+     * @param addr physical address of the first word
+     * @param length number of bytes, a multiple of 4
+     * @param data the value
+     */
+    public void fillWords(long addr, long length, int data);
+
+    /**
+     * @return a backend holding the same words as this one does now; writes to
+     * either one afterwards aren't seen by the other
+     */
+    public MemoryBackend snapshot();
+}
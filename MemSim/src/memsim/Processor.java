@@ -1,27 +1,366 @@
 
 package memsim;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
 /**
  *
  * @author rdeva
  */
 public abstract class Processor implements Runnable {
+
+    /**
+     * How the cores of a processor are run
+     */
+    public enum ExecutionMode {
+        /** each core on a platform thread of its own */
+        PLATFORM_THREADS,
+        /** each core on a virtual thread, where the JVM has them (falling back to BOUNDED_POOL) */
+        VIRTUAL_THREADS,
+        /** cores as tasks on a pool of one thread per available processor */
+        BOUNDED_POOL
+    };
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor, if this JVM has virtual threads
+     */
+    private static final Method VIRTUAL_THREAD_EXECUTOR;
+    static
+    {
+        Method m;
+        try
+        {
+            m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+        catch (NoSuchMethodException e)
+        {
+            m = null;
+        }
+        VIRTUAL_THREAD_EXECUTOR = m;
+    }
+
+    protected volatile boolean running = false;
+
     public abstract void setCores(int cores);
     public abstract int getCores();
     public abstract java.util.List<Core> getCoreList();
 
+    /**
+     * Put every core and memory back to how it was when the processor was
+     * created, so it can run another program without allocating new
+     * memories.  Only the memory pages the last run wrote get zeroed.
+     * @throws IllegalStateException if the cores are being run
+     */
+    public synchronized void reset() throws IllegalStateException
+    {
+        if (running)
+            throw new IllegalStateException("can't reset a running processor");
+
+        java.util.Set<Memory> memories = java.util.Collections.newSetFromMap(
+                new java.util.IdentityHashMap<Memory, Boolean>());
+        for (Core c : getCoreList())
+        {
+            c.reset();
+            memories.add(c.getProgramMemory());
+            memories.add(c.getDataMemory());
+        }
+        for (Memory m : memories)
+            m.reset();
+    }
+
+    /**
+     * Make a processor that carries on from exactly where this one is, with
+     * every core forked (see Core.fork) onto snapshots of the memories.  Cores
+     * sharing a memory share its snapshot too.  With sparse memories only the
+     * pages written afterwards get copied, so a paused run can cheaply be
+     * forked many times to explore different continuations in parallel.
+     * @return the fork
+     * @throws IllegalStateException if the cores are being run
+     */
+    public abstract Processor fork() throws IllegalStateException;
+
+    /**
+     * Fork every core for fork()
+     * @param snapshots filled in with the snapshot of each memory the cores use
+     * @return the forked cores, in order
+     * @throws IllegalStateException if the cores are being run
+     */
+    protected synchronized java.util.ArrayList<Core> forkCores(java.util.Map<Memory, Memory> snapshots)
+            throws IllegalStateException
+    {
+        if (running)
+            throw new IllegalStateException("can't fork a running processor");
+
+        java.util.ArrayList<Core> cores = new java.util.ArrayList<Core>();
+        for (Core c : getCoreList())
+            cores.add(c.fork(snapshot(snapshots, c.getProgramMemory()),
+                    snapshot(snapshots, c.getDataMemory())));
+        return cores;
+    }
+
+    /**
+     * Bytes of memory a processor needs for a segment per core: a power of 2,
+     * at least minimum
+     */
+    protected static long memorySize(int cores, int segmentSize, long minimum)
+    {
+        long size = minimum, needed = (long)cores * segmentSize;
+        while (size < needed)
+            size <<= 1;
+        return size;
+    }
+
+    /**
+     * The bound of core index's segment of a memory split segmentSize bytes a core
+     */
+    protected static Bound segment(int index, int segmentSize)
+    {
+        return new Bound(index * segmentSize, (index + 1) * segmentSize - 4);
+    }
+
+    /**
+     * A memory of the given size with m's contents and settings, for when
+     * a processor's cores outgrow m
+     */
+    protected static Memory grow(Memory m, long size) throws IllegalArgumentException
+    {
+        Memory grown = new Memory(new HeapMemoryBackend(size), m.getStripes(), m.getByteOrder());
+        grown.setAlignment(m.getAlignment());
+        grown.setLatency(m.getLatency());
+        Bound all = new Bound(0, m.getSize() - 4);
+        try
+        {
+            for (int addr = 0; addr < m.getSize(); addr += 4)
+                grown.writeWord(addr, m.readWord(addr, all), all);
+        }
+        catch (memsim.exceptions.MemoryAccessException e)
+        {
+            throw new IllegalStateException(e); //can't happen, the bound is the whole memory
+        }
+        return grown;
+    }
+
+    /**
+     * @return the snapshot of m in snapshots, taking it if there isn't one yet
+     */
+    protected static Memory snapshot(java.util.Map<Memory, Memory> snapshots, Memory m)
+    {
+        Memory s = snapshots.get(m);
+        if (s == null)
+            snapshots.put(m, s = m.snapshot());
+        return s;
+    }
+
+    /**
+     * @return whether the cores are being run
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return whether VIRTUAL_THREADS really gets virtual threads on this JVM
+     */
+    public static boolean hasVirtualThreads()
+    {
+        return VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Run every core on its own thread and wait for them all to finish
+     */
+    public void run()
+    {
+        try
+        {
+            runAll(ExecutionMode.PLATFORM_THREADS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Run every core and wait for them all to finish
+     * @param mode how to run them
+     * @return what each core did, in core list order
+     * @throws InterruptedException if interrupted while waiting (the cores carry on)
+     * @throws IllegalStateException if the cores are already being run
+     */
+    public List<CoreResult> runAll(ExecutionMode mode) throws InterruptedException, IllegalStateException
+    {
+        try
+        {
+            return start(mode).get();
+        }
+        catch (ExecutionException e)
+        {
+            //Core.run catches the exceptions a program causes, so this is an
+            //Error or a RuntimeException from outside it
+            Throwable cause = e.getCause();
+            if (cause instanceof Error)
+                throw (Error)cause;
+            else if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Start running every core, in an executor made for the purpose and shut
+     * down when they're all done
+     * @param mode how to run them
+     * @return completes with what each core did, in core list order, once they've all stopped
+     * @throws IllegalStateException if the cores are already being run
+     */
+    public CompletableFuture<List<CoreResult>> start(ExecutionMode mode) throws IllegalStateException
+    {
+        final ExecutorService executor = newExecutor(mode);
+        try
+        {
+            return start(executor).whenComplete(new BiConsumer<List<CoreResult>, Throwable>() {
+                public void accept(List<CoreResult> results, Throwable t)
+                {
+                    executor.shutdown();
+                }
+            });
+        }
+        catch (IllegalStateException e)
+        {
+            executor.shutdown();
+            throw e;
+        }
+    }
+
+    private static ExecutorService newExecutor(ExecutionMode mode)
+    {
+        switch (mode)
+        {
+            case PLATFORM_THREADS:
+                return Executors.newCachedThreadPool(new CoreThreadFactory());
+            case VIRTUAL_THREADS:
+                if (VIRTUAL_THREAD_EXECUTOR != null)
+                {
+                    try
+                    {
+                        return (ExecutorService)VIRTUAL_THREAD_EXECUTOR.invoke(null);
+                    }
+                    catch (Exception e)
+                    {
+                        //fall back to a pool
+                    }
+                }
+                return newExecutor(ExecutionMode.BOUNDED_POOL);
+            default: //BOUNDED_POOL
+                return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        new CoreThreadFactory());
+        }
+    }
+
+    /**
+     * Start running every core as a task on executor.  Cores spend their whole
+     * run computing, so a virtual thread keeps its carrier thread until its
+     * core stops; thousands of cores on virtual threads or a small pool cost
+     * little more than the cores themselves.
+     * @param executor runs the cores, which it's left to the caller to shut down
+     * @return completes with what each core did, in core list order, once they've all stopped
+     * @throws IllegalStateException if the cores are already being run
+     */
+    public synchronized CompletableFuture<List<CoreResult>> start(Executor executor) throws IllegalStateException
+    {
+        if (running)
+            throw new IllegalStateException("processor is already running");
+        running = true;
+
+        List<Core> cores = getCoreList();
+        final List<CompletableFuture<CoreResult>> futures = new ArrayList<CompletableFuture<CoreResult>>(cores.size());
+        try
+        {
+            for (int c = 0; c < cores.size(); ++c)
+            {
+                final int index = c;
+                final Core core = cores.get(c);
+                futures.add(CompletableFuture.supplyAsync(new Supplier<CoreResult>() {
+                    public CoreResult get()
+                    {
+                        return CoreResult.run(index, core);
+                    }
+                }, executor));
+            }
+        }
+        catch (RuntimeException e) //e.g. the executor rejected a core
+        {
+            running = false;
+            throw e;
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(new Function<Void, List<CoreResult>>() {
+                    public List<CoreResult> apply(Void v)
+                    {
+                        List<CoreResult> results = new ArrayList<CoreResult>(futures.size());
+                        for (CompletableFuture<CoreResult> f : futures)
+                            results.add(f.join());
+                        return results;
+                    }
+                })
+                .whenComplete(new BiConsumer<List<CoreResult>, Throwable>() {
+                    public void accept(List<CoreResult> results, Throwable t)
+                    {
+                        running = false;
+                    }
+                });
+    }
+
+    /**
+     * Names threads after the cores they run, and doesn't let them keep the JVM alive
+     */
+    private static final class CoreThreadFactory implements ThreadFactory
+    {
+        private static final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "core-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     /**
      * Load the contents into either program or data section of the memory.  progContent/dataContent
      * are allowed to be null.  If null, each block of memory remain the default or as previously set.
      *
      * Core index specifies, which of the cores' memory you wish to modify.
+     *
+     * A progContent that is an ELF executable is loaded by ElfLoader, which
+     * places its segments and sets the entry point and stack pointer from it;
+     * anything else is a flat image loaded from address 0, run from 0 with the
+     * stack at Core.getStackTop().  The data is loaded after the program, so
+     * it wins where the two overlap (as they can in a Von Neumann processor).
+     * The entry point and stack pointer are left alone without a progContent.
      * @param coreIndex the index of the core that you wish to modify
-     * @param progContent file containing the text to be loaded into program memory.
-     *                  May be null if no change is wished to be made.
+     * @param progContent file containing the text to be loaded into program memory, or an
+     *                  ELF executable.  May be null if no change is wished to be made.
      * @param dataContent file containing the data to be loaded into data memory.
      *                  May be null if no change is wished to be made.
      * @throws IndexOutOfBoundsException thrown if nonexistent index is specified
-     * @throws java.io.IOException if either of the files cannot be accessed
+     * @throws java.io.IOException if either of the files cannot be accessed, or the
+     *                  ELF executable can't be loaded
      */
     public final void setCoreMemoryContents(int coreIndex, java.io.File progContent, java.io.File dataContent)
         throws IndexOutOfBoundsException, java.io.IOException
@@ -29,14 +368,30 @@ public abstract class Processor implements Runnable {
         if (coreIndex >= getCores())
             throw new IndexOutOfBoundsException("coreIndex must be < numCores");
 
-        if (progContent != null)
-            Memory.loadIntoMemory(getCoreList().get(coreIndex).getProgramMemory(), progContent, -1);
+        Core core = getCoreList().get(coreIndex);
+        if (progContent != null && ElfLoader.isElf(progContent))
+        {
+            try
+            {
+                ElfLoader.load(core, progContent);
+            }
+            catch (memsim.exceptions.UnknownFormatException e)
+            {
+                throw new java.io.IOException("can't load " + progContent + ": " + e.getMessage(), e);
+            }
+            catch (memsim.exceptions.MemoryAccessException e)
+            {
+                throw new java.io.IOException("can't load " + progContent + ": " + e.getMessage(), e);
+            }
+        }
+        else if (progContent != null)
+        {
+            Memory.loadIntoMemory(core.getProgramMemory(), progContent, -1);
+            core.setEntryPoint(0);
+            core.registers[13] = core.getStackTop();
+        }
 
         if (dataContent != null)
-            Memory.loadIntoMemory(getCoreList().get(coreIndex).getDataMemory(), dataContent, -1);
-
-        //set the stack pointer to end of memory
-        getCoreList().get(coreIndex).registers[13] = getCoreList().get(coreIndex).getProgramMemory().getSize() * 4 - 4;
-
+            Memory.loadIntoMemory(core.getDataMemory(), dataContent, -1);
     }
 }
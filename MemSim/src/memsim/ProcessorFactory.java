@@ -1,6 +1,8 @@
 
 package memsim;
 
+import java.nio.ByteOrder;
+
 /**
  *
  * @author sound
@@ -14,13 +16,26 @@ public class ProcessorFactory {
     }
 
     public static Processor createProcessor(MemoryArchitecture m) throws IllegalArgumentException
+    {
+        return createProcessor(m, ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Create a processor whose memories pack bytes into words in the given
+     * order.  Most ARM executables are little endian, and ElfLoader only loads
+     * images into memories of their own order.
+     * @param m
+     * @param order
+     * @throws IllegalArgumentException if the memory architecture isn't recognised
+     */
+    public static Processor createProcessor(MemoryArchitecture m, ByteOrder order) throws IllegalArgumentException
     {
         switch(m)
         {
             case HARVARD:
-                return new HarvardProcessor();
+                return new HarvardProcessor(order);
             case VON_NEUMANN:
-                return new VonNeumannProcessor();
+                return new VonNeumannProcessor(order);
             default:
                 throw new IllegalArgumentException("type of memory architecture not recognised");
         }
@@ -0,0 +1,263 @@
+
+package memsim;
+
+import java.nio.IntBuffer;
+
+/**
+ * Keeps the words of a memory in pages that are only allocated when something
+ * other than zero is first written to them; untouched pages read as zero.  This
+ * makes big, mostly empty address spaces (e.g. the whole 4 GB) cheap.  Pages
+ * are found through a two level table, with the last page used remembered so
+ * runs of accesses to the same page skip the table walk.
+ *
+ * A snapshot shares all the pages (and tables) with the original; whichever of
+ * them writes a shared page first gets a copy of it to write to, so a snapshot
+ * costs as much as the pages written afterwards.
+ *
+ * @author rdeva
+ */
+public class SparseMemoryBackend implements MemoryBackend {
+
+    /**
+     * log2 of the page size in bytes
+     */
+    public static final int PAGE_SHIFT = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int WORD_MASK = (PAGE_SIZE >> 2) - 1;
+
+    /*
+     * each second level table covers 1024 pages (4 MB)
+     */
+    private static final int TABLE_SHIFT = 10;
+    private static final int TABLE_MASK = (1 << TABLE_SHIFT) - 1;
+
+    private final long size;
+    private final int[][][] tables;
+    private int pageCount, copiedPageCount;
+
+    /*
+     * Which tables and pages this backend may write, as opposed to sharing
+     * with a snapshot
+     */
+    private final boolean[] ownTables;
+    private final long[] ownPages;
+
+    /*
+     * The lookaside.  Page and number are replaced together (Page is immutable),
+     * so cores racing on it can only ever see a matching pair.  Only pages this
+     * backend owns are writable through it.
+     */
+    private static final class Page
+    {
+        final long number;
+        final int[] words;
+        final boolean writable;
+
+        Page(long number, int[] words, boolean writable)
+        {
+            this.number = number;
+            this.words = words;
+            this.writable = writable;
+        }
+    }
+    private static final Page NO_PAGE = new Page(-1, null, false);
+    private Page last = NO_PAGE;
+
+    /**
+     * @param size size in bytes, a multiple of 4
+     * @throws IllegalArgumentException if size isn't a multiple of 4
+     */
+    public SparseMemoryBackend(long size) throws IllegalArgumentException
+    {
+        if ((size & 3) != 0 || size < 0)
+            throw new IllegalArgumentException("size(" + size + ") not a multiple of 4");
+
+        this.size = size;
+        long pages = (size + PAGE_SIZE - 1) >> PAGE_SHIFT;
+        tables = new int[(int)((pages + TABLE_MASK) >> TABLE_SHIFT)][][];
+        ownTables = new boolean[tables.length];
+        ownPages = new long[(int)((pages + 63) >> 6)];
+    }
+
+    /**
+     * A snapshot of original, sharing its pages
+     */
+    private SparseMemoryBackend(SparseMemoryBackend original)
+    {
+        size = original.size;
+        tables = original.tables.clone();
+        ownTables = new boolean[tables.length];
+        ownPages = new long[original.ownPages.length];
+        pageCount = original.pageCount;
+    }
+
+    /**
+     * Copy on write: the snapshot and this backend share all their pages
+     * until one of them writes to one.  Only take snapshots while nothing is
+     * writing to the memory.
+     */
+    public synchronized MemoryBackend snapshot()
+    {
+        java.util.Arrays.fill(ownTables, false);
+        java.util.Arrays.fill(ownPages, 0);
+        last = NO_PAGE;
+        return new SparseMemoryBackend(this);
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return bytes of pages allocated so far
+     */
+    public long getFootprint()
+    {
+        return (long)getPageCount() << PAGE_SHIFT;
+    }
+
+    /**
+     * @return number of pages allocated so far, including those shared with snapshots
+     */
+    public synchronized int getPageCount()
+    {
+        return pageCount;
+    }
+
+    /**
+     * @return number of shared pages copied so they could be written
+     */
+    public synchronized int getCopiedPageCount()
+    {
+        return copiedPageCount;
+    }
+
+    public int getWord(long addr)
+    {
+        long number = addr >> PAGE_SHIFT;
+        Page p = last;
+        if (p.number != number)
+        {
+            int[] words = find(number);
+            if (words == null)
+                return 0;
+            last = p = new Page(number, words, false);
+        }
+        return p.words[(int)(addr >> 2) & WORD_MASK];
+    }
+
+    public void setWord(long addr, int data)
+    {
+        long number = addr >> PAGE_SHIFT;
+        Page p = last;
+        if (p.number != number || !p.writable)
+        {
+            if (data == 0 && find(number) == null) //already reads as zero
+                return;
+            last = p = new Page(number, writablePage(number), true);
+        }
+        p.words[(int)(addr >> 2) & WORD_MASK] = data;
+    }
+
+    public void setWords(long addr, IntBuffer src)
+    {
+        for (; src.hasRemaining(); addr += 4)
+            setWord(addr, src.get());
+    }
+
+    /**
+     * Frees the pages wholly in the range, zeroes the rest of it
+     */
+    public synchronized void clear(long addr, long length)
+    {
+        last = NO_PAGE;
+        for (long end = addr + length; addr < end; )
+        {
+            long number = addr >> PAGE_SHIFT, pageEnd = (number + 1) << PAGE_SHIFT;
+            if (find(number) != null)
+            {
+                if ((addr & (PAGE_SIZE - 1)) == 0 && pageEnd <= end)
+                {
+                    writableTable(number, false)[(int)number & TABLE_MASK] = null;
+                    ownPages[(int)(number >> 6)] &= ~(1L << number);
+                    --pageCount;
+                }
+                else
+                    java.util.Arrays.fill(writablePage(number), (int)(addr >> 2) & WORD_MASK,
+                            (int)((Math.min(end, pageEnd) - 1) >> 2 & WORD_MASK) + 1, 0);
+            }
+            addr = pageEnd;
+        }
+    }
+
+    public void copyWords(long dst, long src, long length)
+    {
+        if (dst <= src)
+            for (long c = 0; c < length; c += 4)
+                setWord(dst + c, getWord(src + c));
+        else
+            for (long c = length - 4; c >= 0; c -= 4)
+                setWord(dst + c, getWord(src + c));
+    }
+
+    /**
+     * Filling with zero frees whole pages, like clear
+     */
+    public void fillWords(long addr, long length, int data)
+    {
+        if (data == 0)
+            clear(addr, length);
+        else
+            for (long end = addr + length; addr < end; addr += 4)
+                setWord(addr, data);
+    }
+
+    private int[] find(long number)
+    {
+        int[][] table = tables[(int)(number >> TABLE_SHIFT)];
+        return table == null ? null : table[(int)number & TABLE_MASK];
+    }
+
+    /**
+     * @return the table holding page number, copied first if it's shared,
+     * or null if there isn't one and allocate is false
+     */
+    private int[][] writableTable(long number, boolean allocate)
+    {
+        int t = (int)(number >> TABLE_SHIFT);
+        int[][] table = tables[t];
+        if (table == null)
+        {
+            if (!allocate)
+                return null;
+            table = tables[t] = new int[1 << TABLE_SHIFT][];
+        }
+        else if (!ownTables[t])
+            table = tables[t] = table.clone();
+        ownTables[t] = true;
+        return table;
+    }
+
+    /**
+     * @return page number, allocated if it doesn't exist and copied if it's shared
+     */
+    private synchronized int[] writablePage(long number)
+    {
+        int[][] table = writableTable(number, true);
+        int[] words = table[(int)number & TABLE_MASK];
+        long bit = 1L << number;
+        if (words == null) //another core may have beaten us to it
+        {
+            words = table[(int)number & TABLE_MASK] = new int[PAGE_SIZE >> 2];
+            ++pageCount;
+        }
+        else if ((ownPages[(int)(number >> 6)] & bit) == 0)
+        {
+            words = table[(int)number & TABLE_MASK] = words.clone();
+            ++copiedPageCount;
+        }
+        ownPages[(int)(number >> 6)] |= bit;
+        return words;
+    }
+}
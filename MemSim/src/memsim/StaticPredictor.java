@@ -0,0 +1,19 @@
+
+package memsim;
+
+/**
+ * Predicts every branch not taken, i.e. the pipeline just keeps fetching.
+ *
+ * @author rdeva
+ */
+public class StaticPredictor extends BranchPredictor {
+
+    protected boolean predictTaken(int pc, int kind)
+    {
+        return false;
+    }
+
+    protected void update(int pc, int kind, boolean taken, int target)
+    {
+    }
+}
@@ -0,0 +1,282 @@
+
+package memsim;
+
+/**
+ * Works out how many cycles the instructions a core executes would take on an
+ * in-order ARM pipeline.  It doesn't change what the core computes, it is told
+ * about every instruction the core retires and every memory access it makes
+ * and adds up the cycles, split by what caused them.
+ *
+ * Every instruction takes one cycle, plus
+ * - BRANCH: a refill of the pipeline when it writes the PC
+ * - INTERLOCK: (five stages only) a stall when it needs a register the
+ *   previous instruction loads or multiplies into, which is late
+ * - MULTIPLY: the extra cycles of the multiplier
+ * - TRANSFER: the extra execute cycles of loads and stores (three stages) and
+ *   of moving more than one register (LDM/STM)
+ * - SHIFT: a cycle for reading a shift amount from a register
+ * - MEMORY: wait states, i.e. every cycle past the first a fetch or data access
+ *   takes, through the caches if there are any
+ * and each run starts by filling the pipeline (FILL).
+ *
+ * Give each core its own model.
+ *
+ * @author rdeva
+ */
+public class TimingModel {
+
+    /**
+     * THREE_STAGE is fetch, decode, execute (like an ARM7): loads and stores
+     * spend extra cycles in execute, but nothing interlocks.  FIVE_STAGE is
+     * fetch, decode, execute, memory, write back (like an ARM9): single cycle
+     * loads and stores, but using a loaded value straight away stalls.
+     */
+    public enum Pipeline
+    {
+        THREE_STAGE(3), FIVE_STAGE(5);
+
+        private final int stages;
+
+        private Pipeline(int stages)
+        {
+            this.stages = stages;
+        }
+
+        public int getStages()
+        {
+            return stages;
+        }
+    };
+
+    /*
+     * What the cycles went on
+     */
+    public static final int BRANCH = 0, INTERLOCK = 1, MULTIPLY = 2, TRANSFER = 3, SHIFT = 4, MEMORY = 5,
+                            FILL = 6, KINDS = 7;
+
+    public static final int DEFAULT_MULTIPLY_CYCLES = 2, DEFAULT_LONG_MULTIPLY_CYCLES = 3;
+
+    /**
+     * Cycles lost refilling the pipeline after the PC is written; both pipelines
+     * work out branch targets in execute
+     */
+    public static final int BRANCH_PENALTY = 2;
+
+    private final Pipeline pipeline;
+    private final int multiplyCycles, longMultiplyCycles;
+
+    private long cycles, instructions;
+    private final long[] stalls = new long[KINDS];
+    private int memoryStall;   //wait states of the instruction being executed
+    private int lateRegisters; //registers the last instruction writes too late to forward, as a bit mask
+
+    public TimingModel(Pipeline pipeline)
+    {
+        this(pipeline, DEFAULT_MULTIPLY_CYCLES, DEFAULT_LONG_MULTIPLY_CYCLES);
+    }
+
+    /**
+     * @param pipeline
+     * @param multiplyCycles cycles a MUL takes (MLA takes one more)
+     * @param longMultiplyCycles cycles a UMULL/SMULL takes (the accumulating ones take one more)
+     * @throws IllegalArgumentException if a multiply would take less than a cycle
+     */
+    public TimingModel(Pipeline pipeline, int multiplyCycles, int longMultiplyCycles)
+            throws IllegalArgumentException
+    {
+        if (multiplyCycles < 1 || longMultiplyCycles < 1)
+            throw new IllegalArgumentException("multiplies take at least 1 cycle");
+        this.pipeline = pipeline;
+        this.multiplyCycles = multiplyCycles;
+        this.longMultiplyCycles = longMultiplyCycles;
+    }
+
+    public Pipeline getPipeline()
+    {
+        return pipeline;
+    }
+
+    /**
+     * @return cycles taken so far
+     */
+    public long getCycles()
+    {
+        return cycles;
+    }
+
+    /**
+     * @return instructions retired so far
+     */
+    public long getInstructions()
+    {
+        return instructions;
+    }
+
+    /**
+     * @return cycles per instruction, 0 if nothing has been retired
+     */
+    public double getCpi()
+    {
+        return instructions == 0 ? 0 : (double)cycles / instructions;
+    }
+
+    /**
+     * @param kind one of BRANCH, INTERLOCK, MULTIPLY, TRANSFER, SHIFT, MEMORY, FILL
+     * @return cycles that went on kind
+     */
+    public long getStalls(int kind)
+    {
+        return stalls[kind];
+    }
+
+    public void reset()
+    {
+        cycles = instructions = 0;
+        java.util.Arrays.fill(stalls, 0);
+        memoryStall = lateRegisters = 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%d cycles, %d instructions, CPI %.3f (branch %d, interlock %d, multiply %d, "
+                + "transfer %d, shift %d, memory %d, fill %d)", cycles, instructions, getCpi(),
+                stalls[BRANCH], stalls[INTERLOCK], stalls[MULTIPLY], stalls[TRANSFER], stalls[SHIFT],
+                stalls[MEMORY], stalls[FILL]);
+    }
+
+    /**
+     * The core is (re)starting from an empty pipeline
+     */
+    void restart()
+    {
+        stall(FILL, pipeline.getStages() - 1);
+        memoryStall = lateRegisters = 0;
+    }
+
+    /**
+     * The instruction being executed (or fetched) accessed memory
+     * @param latency cycles the access took
+     */
+    void memoryAccess(int latency)
+    {
+        memoryStall += latency - 1;
+    }
+
+    /**
+     * The core finished executing instr
+     * @param pcWritten whether instr wrote the PC (so the pipeline has to refill)
+     */
+    void retire(int instr, boolean pcWritten)
+    {
+        int sources = 0, late = 0;
+        boolean fiveStage = pipeline == Pipeline.FIVE_STAGE;
+
+        switch ((instr >>> 25) & 0x7)
+        {
+            case 0x0:
+            case 0x1:
+                if ((instr & 0x0e000090) == 0x00000090) //multiplies and extra loads/stores
+                {
+                    if ((instr & 0x0fc000f0) == 0x00000090) //MUL/MLA
+                    {
+                        boolean accumulate = (instr & (1 << 21)) != 0;
+                        sources = bit(instr, 0) | bit(instr, 8) | (accumulate ? bit(instr, 12) : 0);
+                        late = bit(instr, 16);
+                        stall(MULTIPLY, multiplyCycles - 1 + (accumulate ? 1 : 0));
+                    }
+                    else if ((instr & 0x0f8000f0) == 0x00800090) //long multiplies
+                    {
+                        boolean accumulate = (instr & (1 << 21)) != 0;
+                        sources = bit(instr, 0) | bit(instr, 8) | (accumulate ? bit(instr, 12) | bit(instr, 16) : 0);
+                        late = bit(instr, 12) | bit(instr, 16);
+                        stall(MULTIPLY, longMultiplyCycles - 1 + (accumulate ? 1 : 0));
+                    }
+                    else //halfword and signed byte loads/stores, swaps
+                    {
+                        boolean load = (instr & (1 << 20)) != 0;
+                        sources = bit(instr, 16) | ((instr & (1 << 22)) == 0 ? bit(instr, 0) : 0)
+                                | (load ? 0 : bit(instr, 12));
+                        late = load ? bit(instr, 12) : 0;
+                        stall(TRANSFER, fiveStage ? 0 : (load ? 2 : 1));
+                    }
+                }
+                else //data processing
+                {
+                    int opcode = (instr >> 21) & 0xf;
+                    if (opcode != 13 && opcode != 15) //MOV and MVN have no first operand
+                        sources = bit(instr, 16);
+                    if ((instr & (1 << 25)) == 0)
+                    {
+                        sources |= bit(instr, 0);
+                        if ((instr & (1 << 4)) != 0)
+                        {
+                            sources |= bit(instr, 8);
+                            stall(SHIFT, 1);
+                        }
+                    }
+                }
+                break;
+            case 0x2:
+            case 0x3: //LDR/STR
+            {
+                boolean load = (instr & (1 << 20)) != 0;
+                sources = bit(instr, 16) | ((instr & (1 << 25)) != 0 ? bit(instr, 0) : 0) | (load ? 0 : bit(instr, 12));
+                late = load ? bit(instr, 12) : 0;
+                stall(TRANSFER, fiveStage ? 0 : (load ? 2 : 1));
+                break;
+            }
+            case 0x4: //LDM/STM
+            {
+                boolean load = (instr & (1 << 20)) != 0;
+                int list = instr & 0xffff, n = Math.max(1, Integer.bitCount(list));
+                sources = bit(instr, 16) | (load ? 0 : list);
+                late = load && list != 0 ? Integer.highestOneBit(list) : 0; //the last one loaded
+                stall(TRANSFER, fiveStage ? n - 1 : (load ? n + 1 : n));
+                break;
+            }
+        }
+
+        if (fiveStage && (sources & lateRegisters) != 0)
+            stall(INTERLOCK, 1);
+        lateRegisters = fiveStage ? late : 0;
+
+        if (pcWritten)
+            stall(BRANCH, BRANCH_PENALTY);
+
+        stall(MEMORY, memoryStall);
+        memoryStall = 0;
+
+        ++cycles;
+        ++instructions;
+    }
+
+    /**
+     * The core skipped an instruction whose condition failed, which takes a
+     * cycle like any other
+     * @param mispredicted whether it was a branch predicted taken
+     */
+    void retireSkipped(boolean mispredicted)
+    {
+        lateRegisters = 0;
+        if (mispredicted)
+            stall(BRANCH, BRANCH_PENALTY);
+
+        stall(MEMORY, memoryStall);
+        memoryStall = 0;
+
+        ++cycles;
+        ++instructions;
+    }
+
+    private static int bit(int instr, int registerField)
+    {
+        return 1 << ((instr >> registerField) & 0xf);
+    }
+
+    private void stall(int kind, int n)
+    {
+        stalls[kind] += n;
+        cycles += n;
+    }
+}
@@ -0,0 +1,131 @@
+
+package memsim;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Fixed size ring buffer of memory accesses.  All storage is allocated up
+ * front, so recording an access never allocates; once full, the oldest accesses
+ * are overwritten.  Running totals per access kind are kept regardless of how
+ * many accesses still fit in the ring.
+ *
+ * A buffer is meant to be given to a single Core via Core.setTracer and is not
+ * thread safe.
+ *
+ * The binary dump format (big endian) is:
+ * <code>
+ * int  MAGIC
+ * int  VERSION
+ * long total number of accesses recorded
+ * int  n, number of accesses that follow (oldest first)
+ * n * { byte kind, int addr, int data }
+ * </code>
+ *
+ * @author rdeva
+ */
+public class TraceBuffer implements AccessTracer {
+    public static final int MAGIC = 0x4d545243; //"MTRC"
+    public static final int VERSION = 1;
+
+    private final byte[] kinds;
+    private final int[] addrs, data;
+    private final int mask;
+    private long total = 0;
+    private final long[] kindTotals = new long[KINDS];
+
+    /**
+     * @param capacity number of accesses kept, must be a power of 2
+     * @throws IllegalArgumentException if capacity isn't a power of 2
+     */
+    public TraceBuffer(int capacity) throws IllegalArgumentException
+    {
+        if (capacity < 1 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity(" + capacity + ") not a power of 2");
+
+        kinds = new byte[capacity];
+        addrs = new int[capacity];
+        data = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    public void access(int kind, int addr, int value)
+    {
+        int i = (int)total & mask;
+        kinds[i] = (byte)kind;
+        addrs[i] = addr;
+        data[i] = value;
+        ++total;
+        ++kindTotals[kind];
+    }
+
+    /**
+     * @return number of accesses the ring can hold
+     */
+    public int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * @return number of accesses currently held in the ring
+     */
+    public int size()
+    {
+        return (int)Math.min(total, mask + 1);
+    }
+
+    /**
+     * @return number of accesses recorded since creation/last clear, including overwritten ones
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @param kind one of the AccessTracer kinds
+     * @return number of accesses of that kind recorded since creation/last clear
+     */
+    public long getTotal(int kind)
+    {
+        return kindTotals[kind];
+    }
+
+    /**
+     * Forget all recorded accesses and totals
+     */
+    public void clear()
+    {
+        total = 0;
+        java.util.Arrays.fill(kindTotals, 0);
+    }
+
+    /**
+     * Write the accesses held in the ring to out, oldest first, in the binary
+     * format described above.  out is flushed but not closed.
+     * @param out stream to write to
+     * @throws IOException if out can't be written
+     */
+    public void dump(OutputStream out) throws IOException
+    {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        int n = size();
+
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(total);
+        dos.writeInt(n);
+
+        for (long c = total - n; c < total; ++c)
+        {
+            int i = (int)c & mask;
+            dos.writeByte(kinds[i]);
+            dos.writeInt(addrs[i]);
+            dos.writeInt(data[i]);
+        }
+        dos.flush();
+    }
+}
@@ -1,6 +1,7 @@
 
 package memsim;
 
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 
 /**
@@ -10,22 +11,51 @@ import java.util.ArrayList;
 public class VonNeumannProcessor extends Processor {
     private ArrayList<Core> coresList;
     private int numCores = 1;
-    private boolean running = false;
-    private final int MEMORY_SIZE = 1024;
-    private Memory mem  = new Memory(MEMORY_SIZE);
+    private final int MEMORY_SIZE = 1024, MEMORY_SEGMENT_SIZE = 256; //core c gets segment c
+    private Memory mem;
 
     public VonNeumannProcessor()
     {
-        Bound b = new Bound(0, 100); //FIXME bogus bounds
+        this(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * @param order the order the memory packs bytes into words in
+     */
+    public VonNeumannProcessor(ByteOrder order)
+    {
+        mem = new Memory(new HeapMemoryBackend(MEMORY_SIZE), order);
+        Bound b = segment(0, MEMORY_SEGMENT_SIZE);
         coresList = new ArrayList<Core>();
         coresList.add(new Core(mem, b, mem, b));
     }
 
+    private VonNeumannProcessor(Memory mem, ArrayList<Core> coresList)
+    {
+        this.mem = mem;
+        this.coresList = coresList;
+        numCores = coresList.size();
+    }
+
+    public Processor fork() throws IllegalStateException
+    {
+        java.util.Map<Memory, Memory> snapshots = new java.util.IdentityHashMap<Memory, Memory>();
+        ArrayList<Core> cores = forkCores(snapshots);
+        return new VonNeumannProcessor(snapshot(snapshots, mem), cores);
+    }
+
     public int getCores()
     {
         return numCores;
     }
 
+    /**
+     * Core c gets its own MEMORY_SEGMENT_SIZE bytes at c * MEMORY_SEGMENT_SIZE of
+     * the memory, for both program and data.  When they no longer fit, the
+     * cores are moved (see Core.fork) onto a bigger memory holding the same
+     * contents, so get the cores and memory afresh after this and attach
+     * tracers, caches etc. afterwards.
+     */
     public void setCores(int numCores)
     {
          if (numCores < 1)
@@ -34,10 +64,22 @@ public class VonNeumannProcessor extends Processor {
             throw new IllegalArgumentException("Can't change the number of cores when processor is running");
 
         if (numCores < this.numCores)
-            coresList.removeAll(coresList.subList(numCores, this.numCores - 1));
+            coresList.subList(numCores, this.numCores).clear();
         else if (numCores > this.numCores)
-            for (int c = this.numCores + 1; c <= numCores; ++c)
-                coresList.add(new Core(mem, new Bound(0, 100), mem, new Bound(0, 100)));//FIXME bogus bounds
+        {
+            long size = memorySize(numCores, MEMORY_SEGMENT_SIZE, MEMORY_SIZE);
+            if (size > mem.getLongSize())
+            {
+                mem = grow(mem, size);
+                for (int c = 0; c < coresList.size(); ++c)
+                    coresList.set(c, coresList.get(c).fork(mem, mem));
+            }
+            for (int c = this.numCores; c < numCores; ++c)
+            {
+                Bound b = segment(c, MEMORY_SEGMENT_SIZE);
+                coresList.add(new Core(mem, b, mem, b));
+            }
+        }
 
          this.numCores = numCores;
     }
@@ -45,12 +87,4 @@ public class VonNeumannProcessor extends Processor {
     public ArrayList<Core> getCoreList() {
         return coresList;
     }
-
-    public void run()
-    {
-        for (Core c : coresList)
-        {
-            new Thread(c).start();
-        }
-    }
 }
@@ -0,0 +1,139 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class BatchRunnerTest {
+    private static final int PROGRAMS = 200;
+
+    public BatchRunnerTest() {
+    }
+
+    private static File image(File dir, String name, int[] words) throws Exception
+    {
+        File f = new File(dir, name);
+        f.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        for (int w : words)
+            out.writeInt(w);
+        out.close();
+        return f;
+    }
+
+    /**
+     * A directory of programs: program k does MOV r0, #k, and the odd ones
+     * also MOV r2, #1, which must not leak into the next program run on the
+     * same (pooled) processor
+     */
+    private static File programs() throws Exception
+    {
+        File dir = File.createTempFile("memsim", ".batch");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        for (int k = 0; k < PROGRAMS; ++k)
+            image(dir, String.format("p%03d.bin", k), k % 2 == 0 ? new int[] {0xe3a00000 | (k & 0xff)}
+                    : new int[] {0xe3a00000 | (k & 0xff), 0xe3a02001});
+        return dir;
+    }
+
+    /**
+     * Test running a directory of programs on a few workers
+     */
+    @Test
+    public void testDirectory() throws Exception
+    {
+        List<BatchRunner.Job> jobs = BatchRunner.fromDirectory(programs());
+        assertEquals(PROGRAMS, jobs.size());
+
+        for (ProcessorFactory.MemoryArchitecture arch : ProcessorFactory.MemoryArchitecture.values())
+        {
+            final List<BatchRunner.Result> streamed = new ArrayList<BatchRunner.Result>();
+            new BatchRunner(arch, 3).run(jobs, new BatchRunner.Listener() {
+                public synchronized void finished(BatchRunner.Result r)
+                {
+                    streamed.add(r);
+                }
+            });
+            assertEquals(PROGRAMS, streamed.size());
+
+            List<BatchRunner.Result> results = new BatchRunner(arch, 4).runAll(jobs);
+            for (int k = 0; k < PROGRAMS; ++k)
+            {
+                BatchRunner.Result r = results.get(k);
+                assertEquals(k, r.getIndex());
+                assertEquals(String.format("p%03d.bin", k), r.getJob().getName());
+                assertNull(r.getLoadError());
+                int[] registers = r.getCoreResult().getRegisters();
+                assertEquals(k & 0xff, registers[0]);
+                assertEquals(k % 2, registers[2]);
+                assertTrue(r.getCoreResult().getInstructions() > 0);
+            }
+        }
+    }
+
+    /**
+     * Test a manifest with data images and a program that isn't there
+     */
+    @Test
+    public void testManifest() throws Exception
+    {
+        File dir = programs();
+        //LDR r3, [r1]
+        image(dir, "load.bin", new int[] {0xe5913000});
+        image(dir, "data.bin", new int[] {1234});
+        File manifest = new File(dir, "manifest.txt");
+        manifest.deleteOnExit();
+        FileWriter out = new FileWriter(manifest);
+        out.write("# programs\n\np001.bin\nload.bin data.bin\n  missing.bin\n");
+        out.close();
+
+        List<BatchRunner.Job> jobs = BatchRunner.fromManifest(manifest);
+        assertEquals(3, jobs.size());
+        List<BatchRunner.Result> results =
+                new BatchRunner(ProcessorFactory.MemoryArchitecture.HARVARD, 2).runAll(jobs);
+
+        assertEquals(1, results.get(0).getCoreResult().getRegisters()[0]);
+        assertEquals(1234, results.get(1).getCoreResult().getRegisters()[3]);
+        assertNull(results.get(2).getCoreResult());
+        assertNotNull(results.get(2).getLoadError());
+        assertTrue(results.get(2).toString().startsWith("missing.bin\t"));
+    }
+
+    /**
+     * Test that a reset processor is as good as new
+     */
+    @Test
+    public void testReset() throws Exception
+    {
+        Processor p = ProcessorFactory.createProcessor(ProcessorFactory.MemoryArchitecture.VON_NEUMANN);
+        Core core = p.getCoreList().get(0);
+        Bound b = new Bound(0, 100);
+        core.getProgramMemory().writeWord(0, 0xe3b00000, b); //MOVS r0, #0
+        p.run();
+        assertTrue(core.getInstructionCount() > 0);
+        assertTrue(core.getCpsr() != 0);
+
+        p.reset();
+        assertEquals(0, core.getInstructionCount());
+        assertEquals(0, core.getCpsr());
+        assertArrayEquals(new int[Core.NUM_REGISTERS], core.registers);
+        assertEquals(0, core.getProgramMemory().readWord(0, b));
+        assertNull(core.getStopCause());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class BranchPredictorTest {
+
+    public BranchPredictorTest() {
+    }
+
+    /**
+     * Test that branches are told apart from other instructions
+     */
+    @Test
+    public void testKindOf()
+    {
+        assertEquals(BranchPredictor.BRANCH, BranchPredictor.kindOf(0xeafffffa)); //B
+        assertEquals(BranchPredictor.CALL, BranchPredictor.kindOf(0xeb000004)); //BL
+        assertEquals(BranchPredictor.RETURN, BranchPredictor.kindOf(0xe12fff1e)); //BX lr
+        assertEquals(BranchPredictor.INDIRECT, BranchPredictor.kindOf(0xe12fff13)); //BX r3
+        assertEquals(BranchPredictor.RETURN, BranchPredictor.kindOf(0xe1a0f00e)); //MOV pc, lr
+        assertEquals(BranchPredictor.RETURN, BranchPredictor.kindOf(0xe8bd8010)); //LDMIA sp!, {r4, pc}
+        assertEquals(-1, BranchPredictor.kindOf(0xe8bd0010)); //LDMIA sp!, {r4}
+        assertEquals(-1, BranchPredictor.kindOf(0xe2811004)); //ADD
+        assertEquals(-1, BranchPredictor.kindOf(0xe5917000)); //LDR
+    }
+
+    /**
+     * Test the 2 bit counters on a loop branch taken 9 times out of 10
+     */
+    @Test
+    public void testBimodal()
+    {
+        BranchPredictor p = new BimodalPredictor(16), s = new StaticPredictor();
+        for (int loop = 0; loop < 100; ++loop)
+            for (int c = 0; c < 10; ++c)
+            {
+                p.branch(64, BranchPredictor.BRANCH, c < 9, 0);
+                s.branch(64, BranchPredictor.BRANCH, c < 9, 0);
+            }
+
+        assertEquals(1000, p.getBranches());
+        assertEquals(1 + 100, p.getMispredictions()); //warming up, then every loop exit
+        assertEquals(900, s.getMispredictions());
+        assertTrue(Math.abs(p.getAccuracy() - 0.899) < 1e-9);
+        assertEquals(p.getMispredictions() * TimingModel.BRANCH_PENALTY, p.getMispredictionPenalty());
+    }
+
+    /**
+     * Test that global history catches an alternating branch the counters can't
+     */
+    @Test
+    public void testGshare()
+    {
+        BranchPredictor bimodal = new BimodalPredictor(), gshare = new GsharePredictor(256, 4);
+        for (int c = 0; c < 1000; ++c)
+        {
+            bimodal.branch(128, BranchPredictor.BRANCH, c % 2 == 0, 0);
+            gshare.branch(128, BranchPredictor.BRANCH, c % 2 == 0, 0);
+        }
+
+        assertTrue(bimodal.getAccuracy() < 0.6);
+        assertTrue(gshare.getAccuracy() > 0.95);
+    }
+
+    /**
+     * Test that the return stack gets nested returns right and the BTB learns
+     * indirect targets
+     */
+    @Test
+    public void testBtb()
+    {
+        BranchPredictor p = new BtbPredictor(new StaticPredictor(), 64, 4);
+        for (int c = 0; c < 10; ++c)
+        {
+            p.branch(0x100, BranchPredictor.CALL, true, 0x400);
+            p.branch(0x404, BranchPredictor.CALL, true, 0x800);
+            p.branch(0x810, BranchPredictor.RETURN, true, 0x408);
+            p.branch(0x420, BranchPredictor.RETURN, true, 0x104);
+            p.branch(0x108, BranchPredictor.INDIRECT, true, 0x200);
+        }
+
+        //calls are never predicted by the static predictor, the indirect branch only the first time
+        assertEquals(20, p.getMispredictions(BranchPredictor.CALL));
+        assertEquals(0, p.getMispredictions(BranchPredictor.RETURN));
+        assertEquals(1, p.getMispredictions(BranchPredictor.INDIRECT));
+
+        //more calls than the stack is deep lose the oldest return addresses
+        p = new BtbPredictor(new StaticPredictor(), 64, 2);
+        for (int c = 0; c < 3; ++c)
+            p.branch(c * 0x100, BranchPredictor.CALL, true, c * 0x100 + 0x100);
+        for (int c = 2; c >= 0; --c)
+            p.branch(c * 0x100 + 0x80, BranchPredictor.RETURN, true, c * 0x100 + 4);
+        assertEquals(1, p.getMispredictions(BranchPredictor.RETURN));
+    }
+
+    /**
+     * Test a core calling and returning from a function in a loop, and that
+     * only mispredictions cost a pipeline refill
+     */
+    @Test
+    public void testCore() throws Exception
+    {
+        //loop: ADD r1, r1, #4; BL f; B loop; f: LDR r7, [r1]; BX lr
+        int[] program = {0xe2811004, 0xeb000000, 0xeafffffc, 0xe5917000, 0xe12fff1e};
+        BranchPredictor[] predictors = {new StaticPredictor(), new BtbPredictor()};
+        TimingModel[] timings = new TimingModel[predictors.length];
+        for (int c = 0; c < predictors.length; ++c)
+        {
+            Memory prog = new Memory(1024), data = new Memory(1024);
+            Bound b = new Bound(0, 1020);
+            for (int i = 0; i < program.length; ++i)
+                prog.writeWord(i * 4, program[i], b);
+
+            Core core = new Core(prog, b, data, b);
+            core.setBranchPredictor(predictors[c]);
+            core.setTimingModel(timings[c] = new TimingModel(TimingModel.Pipeline.THREE_STAGE));
+            core.run();
+            assertSame(predictors[c], core.getBranchPredictor());
+        }
+
+        //the last LDR faults before its BX lr
+        long loops = predictors[0].getBranches(BranchPredictor.CALL);
+        assertTrue(loops > 100);
+        assertEquals(loops - 1, predictors[0].getBranches(BranchPredictor.RETURN));
+        assertEquals(predictors[0].getBranches(), predictors[0].getMispredictions());
+        assertEquals(predictors[0].getMispredictionPenalty(), timings[0].getStalls(TimingModel.BRANCH));
+
+        //the first BL and B miss while the counters warm up
+        assertEquals(2, predictors[1].getMispredictions());
+        assertEquals(2 * TimingModel.BRANCH_PENALTY, timings[1].getStalls(TimingModel.BRANCH));
+    }
+
+    /**
+     * Test that a MOV pc, lr return goes back to the instruction after the BL,
+     * with whichever engine, and that the return stack predicts it
+     */
+    @Test
+    public void testMovReturn() throws Exception
+    {
+        //BL f; MOV r0, #1; SWI; f: MOV pc, lr
+        int[] program = {0xeb000001, 0xe3a00001, 0xef000000, 0xe1a0f00e};
+        for (Core.Engine engine : Core.Engine.values())
+        {
+            Memory prog = new Memory(1024), data = new Memory(1024);
+            Bound b = new Bound(0, 1020);
+            for (int i = 0; i < program.length; ++i)
+                prog.writeWord(i * 4, program[i], b);
+
+            Core core = new Core(prog, b, data, b);
+            BranchPredictor predictor = new BtbPredictor();
+            core.setEngine(engine);
+            core.setBranchPredictor(predictor);
+            core.run();
+            assertEquals(1, core.registers[0]);
+            assertEquals(1, predictor.getBranches(BranchPredictor.RETURN));
+            assertEquals(0, predictor.getMispredictions(BranchPredictor.RETURN));
+        }
+    }
+}
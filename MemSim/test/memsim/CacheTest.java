@@ -0,0 +1,209 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class CacheTest {
+
+    public CacheTest() {
+    }
+
+    private static Cache cache(int size, int ways, CacheConfig.Replacement r, CacheConfig.WritePolicy w, Cache next)
+    {
+        return new Cache("test", new CacheConfig(size, ways, 32, r, w), next);
+    }
+
+    /**
+     * Test hits, conflict misses and evictions of a direct mapped cache
+     */
+    @Test
+    public void testDirectMapped()
+    {
+        Cache c = cache(1024, 1, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK, null);
+        assertFalse(c.read(0));
+        assertTrue(c.read(28));
+        assertFalse(c.read(1024)); //same set as 0
+        assertFalse(c.read(4));
+        assertFalse(c.read(32));   //next set, still empty
+        assertTrue(c.read(36));
+        assertEquals(2, c.getHits());
+        assertEquals(4, c.getMisses());
+        assertEquals(2, c.getEvictions());
+
+        try
+        {
+            new CacheConfig(1000, 1, 32, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK);
+            fail("size must be a power of 2");
+        }
+        catch (IllegalArgumentException e) {}
+    }
+
+    /**
+     * Test that LRU and tree PLRU pick the victims they should in a 4 way set
+     */
+    @Test
+    public void testReplacement()
+    {
+        for (CacheConfig.Replacement r : CacheConfig.Replacement.values())
+        {
+            Cache c = cache(128, 4, r, CacheConfig.WritePolicy.WRITE_BACK, null); //a single set
+            for (int line = 0; line < 4; ++line)
+                c.read(line * 32);
+            assertTrue(c.read(0));
+            assertFalse(c.read(4 * 32));
+            assertEquals(1, c.getEvictions());
+
+            //LRU threw out line 1, PLRU line 2 (it only knows line 0 was used after line 3)
+            if (r == CacheConfig.Replacement.LRU)
+                assertFalse(c.read(32));
+            else if (r == CacheConfig.Replacement.PLRU)
+            {
+                assertTrue(c.read(32));
+                assertFalse(c.read(64));
+            }
+            assertTrue(c.read(0));
+        }
+    }
+
+    /**
+     * Test that write back caches only write dirty lines on eviction and write
+     * through caches write everything but allocate nothing
+     */
+    @Test
+    public void testWritePolicies()
+    {
+        Cache l2 = cache(4096, 4, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK, null);
+        Cache c = cache(1024, 1, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK, l2);
+        assertFalse(c.write(0));
+        assertTrue(c.write(4));
+        assertEquals(1, l2.getAccesses()); //the fill
+        c.read(1024);
+        assertEquals(1, c.getWriteBacks());
+        assertEquals(3, l2.getAccesses()); //the write back and the second fill
+        c.read(2048);
+        assertEquals(1, c.getWriteBacks()); //1024 was clean
+
+        l2 = cache(4096, 4, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK, null);
+        c = cache(1024, 1, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_THROUGH, l2);
+        assertFalse(c.write(0));
+        assertFalse(c.read(0));
+        assertTrue(c.write(0));
+        assertEquals(3, l2.getAccesses());
+        c.read(1024);
+        assertEquals(0, c.getWriteBacks());
+    }
+
+    /**
+     * Test that a core looks every fetch and load up in its caches, JIT or not,
+     * and gets the same results as without caches
+     */
+    @Test
+    public void testCoreCaches() throws Exception
+    {
+        Core plain = CoreTest.runLoop(false);
+        for (boolean jit : new boolean[] {false, true})
+        {
+            int[] program = CoreTest.LOOP;
+            Memory prog = new Memory(1024), data = new Memory(1024);
+            Bound b = new Bound(0, 1020);
+            for (int c = 0; c < program.length; ++c)
+                prog.writeWord(c * 4, program[c], b);
+            for (int addr = 0; addr < 1024; addr += 4)
+                data.writeWord(addr, addr * 3, b);
+
+            Core core = new Core(prog, b, data, b);
+            CacheConfig l1 = new CacheConfig(256, 2, 32, CacheConfig.Replacement.PLRU,
+                    CacheConfig.WritePolicy.WRITE_BACK);
+            Cache l2 = CacheHierarchy.attach(java.util.Collections.singletonList(core), l1, l1,
+                    new CacheConfig(4096, 8, 32, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK));
+            core.setJitEnabled(jit, 10);
+            core.run();
+
+            assertArrayEquals(plain.registers, core.registers);
+            CacheHierarchy caches = core.getCaches();
+            assertEquals(core.getInstructionCount(), caches.getL1I().getAccesses());
+            assertEquals(1, caches.getL1I().getMisses());
+            assertEquals(1024 / 32, caches.getL1D().getMisses());
+            assertEquals(1 + 1024 / 32, l2.getMisses());
+        }
+    }
+
+    private static Cache coherent(CoherenceBus bus)
+    {
+        return new Cache("L1D", new CacheConfig(1024, 2, 32, CacheConfig.Replacement.LRU,
+                CacheConfig.WritePolicy.WRITE_BACK), null, bus);
+    }
+
+    /**
+     * Test the MESI transitions, and what the bus counts for them
+     */
+    @Test
+    public void testMesi()
+    {
+        CoherenceBus bus = new CoherenceBus(8);
+        Cache c0 = coherent(bus), c1 = coherent(bus);
+
+        assertFalse(c0.read(0));  //I -> E
+        assertTrue(c0.write(4));  //E -> M, silently
+        assertEquals(1, bus.getReads());
+        assertEquals(0, bus.getUpgrades());
+
+        assertFalse(c1.read(8));  //c0 supplies the line, both end up S
+        assertEquals(1, bus.getInterventions());
+        assertEquals(1, c0.getInterventions());
+
+        assertTrue(c1.write(8));  //S -> M, invalidating c0's copy
+        assertEquals(1, bus.getUpgrades());
+        assertEquals(1, bus.getInvalidations());
+        assertEquals(1, c0.getInvalidations());
+
+        assertFalse(c0.write(0)); //c1 supplies the line and loses it
+        assertEquals(1, bus.getReadExclusives());
+        assertEquals(2, bus.getInterventions());
+        assertEquals(1, c1.getInvalidations());
+        assertTrue(c0.read(0));
+
+        //three data transfers of 4 cycles and an upgrade, each with an address cycle
+        assertEquals(3 * 5 + 1, bus.getCycles());
+    }
+
+    /**
+     * Test that cores writing different words of one line keep taking it from
+     * each other, and don't when the words are in different lines
+     */
+    @Test
+    public void testFalseSharing()
+    {
+        for (int gap : new int[] {4, 32})
+        {
+            CoherenceBus bus = new CoherenceBus();
+            Cache c0 = coherent(bus), c1 = coherent(bus);
+            for (int c = 0; c < 100; ++c)
+            {
+                c0.write(0);
+                c1.write(gap);
+            }
+
+            if (gap == 4)
+            {
+                assertEquals(199, bus.getInvalidations());
+                assertEquals(199, bus.getInterventions());
+            }
+            else
+            {
+                assertEquals(0, bus.getInvalidations());
+                assertEquals(2, bus.getReadExclusives());
+                assertEquals(198, c0.getHits() + c1.getHits());
+            }
+        }
+    }
+}
@@ -0,0 +1,708 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class CoreTest {
+    private static final int MEMORY_SIZE = 1024,
+                             PROGRAMS = 500,
+                             FETCH_BUDGET = 5000;
+
+    public CoreTest() {
+    }
+
+    /**
+     * Stops a core (by making Core.run bail out) after a fixed number of
+     * fetches, so random programs that loop forever still finish.
+     */
+    private static class Budget implements AccessTracer
+    {
+        private int fetches = 0;
+
+        public void access(int kind, int addr, int data)
+        {
+            if (kind == FETCH && ++fetches > FETCH_BUDGET)
+                throw new RuntimeException("out of fetches");
+        }
+    }
+
+    /**
+     * Run a random program (given by seed) on a fresh core and describe the
+     * state it ends in.
+     * @param sharedMemory if true, program and data share one memory (so the program
+     *          may overwrite itself)
+     */
+    static String runRandomProgram(long seed, boolean sharedMemory, Core.Engine engine,
+            boolean decodeCache) throws Exception
+    {
+        Random r = new Random(seed);
+        Memory prog = new Memory(MEMORY_SIZE), data = sharedMemory ? prog : new Memory(MEMORY_SIZE);
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+
+        for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+        {
+            int instr = r.nextInt();
+            if (r.nextInt(4) == 0) //make sure some loads/stores hit small addresses
+                instr &= ~(0xfff << 16);
+            prog.writeWord(addr, instr, b);
+        }
+        if (!sharedMemory)
+            for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+                data.writeWord(addr, r.nextInt(MEMORY_SIZE / 4) * 4, b);
+
+        Core core = new Core(prog, b, data, b);
+        core.setEngine(engine);
+        core.setDecodeCacheEnabled(decodeCache);
+        core.setTracer(new Budget());
+        for (int c = 0; c < 15; ++c)
+            core.registers[c] = r.nextInt(MEMORY_SIZE / 4) * 4;
+
+        core.run();
+
+        int[] dataWords = new int[MEMORY_SIZE / 4];
+        for (int c = 0; c < dataWords.length; ++c)
+            dataWords[c] = data.readWord(c * 4, b);
+
+        return Arrays.toString(core.registers) + " cpsr=" + core.getCpsr()
+                + " executed=" + core.getInstructionCount() + " mem=" + Arrays.toString(dataWords);
+    }
+
+    /**
+     * Test that the dispatch table engine and the decoder (with and without
+     * the decode cache) agree on random programs
+     */
+    @Test
+    public void testEnginesAgree() throws Exception
+    {
+        Random seeds = new Random(42);
+        for (int c = 0; c < PROGRAMS; ++c)
+        {
+            long seed = seeds.nextLong();
+            boolean shared = (c & 1) == 0;
+            String expected = runRandomProgram(seed, shared, Core.Engine.DECODER, false);
+
+            assertEquals("decode cache, seed " + seed, expected,
+                    runRandomProgram(seed, shared, Core.Engine.DECODER, true));
+            assertEquals("dispatch table, seed " + seed, expected,
+                    runRandomProgram(seed, shared, Core.Engine.DISPATCH_TABLE, false));
+        }
+    }
+
+    /**
+     * Run a loop of simple data processing instructions, which keeps loading
+     * from increasing addresses until it falls off the end of data memory
+     * <code>
+     * loop: ADD r1, r1, #4
+     *       EOR r2, r2, r1, LSL #16
+     *       ADD r3, r3, r2, LSR #32
+     *       RSB r4, r4, #0x100
+     *       BIC r5, r3, #0xf0
+     *       MVN r6, r5, ASR #32
+     *       LDR r7, [r1]
+     *       B loop
+     * </code>
+     */
+    static final int[] LOOP = {0xe2811004, 0xe0222801, 0xe0833022, 0xe2644c01,
+                               0xe3c350f0, 0xe1e06045, 0xe5917000, 0xeafffff7};
+
+    static Core runLoop(boolean jit) throws Exception
+    {
+        int[] program = LOOP;
+        Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < program.length; ++c)
+            prog.writeWord(c * 4, program[c], b);
+        for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+            data.writeWord(addr, addr * 3, b);
+
+        Core core = new Core(prog, b, data, b);
+        core.setJitEnabled(jit, 10);
+        core.run();
+        return core;
+    }
+
+    /**
+     * Test that compiled blocks give the same results as the interpreter
+     */
+    @Test
+    public void testJitAgrees() throws Exception
+    {
+        Core interpreted = runLoop(false), compiled = runLoop(true);
+
+        assertTrue(compiled.getJitCompiledCount() > 0);
+        assertArrayEquals(interpreted.registers, compiled.registers);
+        assertEquals(interpreted.getCpsr(), compiled.getCpsr());
+        assertEquals(interpreted.getInstructionCount(), compiled.getInstructionCount());
+    }
+
+    /**
+     * Test that stores into program memory outside any block (as a Von
+     * Neumann core makes) leave the blocks and hot counts alone, while a
+     * write over a block throws it away
+     */
+    @Test
+    public void testJitWrites() throws Exception
+    {
+        int[] program = LOOP.clone();
+        program[6] = 0xe5817000; //STR r7, [r1]
+        Memory mem = new Memory(MEMORY_SIZE);
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < program.length; ++c)
+            mem.writeWord(c * 4, program[c], b);
+
+        Core core = new Core(mem, b, mem, b);
+        core.registers[1] = MEMORY_SIZE / 2; //store well clear of the loop
+        core.setJitEnabled(true, 10);
+        core.run();
+        assertEquals(1, core.getJitCompiledCount());
+
+        JitCompiler jit = new JitCompiler(mem, b, 1);
+        assertNotNull(jit.enter(0));
+        jit.wordsWritten(program.length * 4, MEMORY_SIZE - 4);
+        assertEquals(1, jit.getBlockCount());
+        jit.wordsWritten(4, 4);
+        assertEquals(0, jit.getBlockCount());
+        assertNotNull(jit.enter(0));
+    }
+
+    /**
+     * Run program (ending in SWI) from address 0 with r0 = count and random
+     * other registers
+     */
+    static Core runCounted(int[] program, int count, long seed, boolean jit) throws Exception
+    {
+        Memory mem = new Memory(MEMORY_SIZE);
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < program.length; ++c)
+            mem.writeWord(c * 4, program[c], b);
+
+        Core core = new Core(mem, b, mem, b);
+        Random r = new Random(seed);
+        for (int c = 1; c < 15; ++c)
+            core.registers[c] = r.nextInt();
+        core.registers[0] = count;
+        core.setJitEnabled(jit, 10);
+        core.run();
+        return core;
+    }
+
+    private static void assertJitAgrees(String message, int[] program, int count, long seed) throws Exception
+    {
+        Core interpreted = runCounted(program, count, seed, false), compiled = runCounted(program, count, seed, true);
+
+        assertTrue(message, compiled.getJitCompiledCount() > 0);
+        assertArrayEquals(message, interpreted.registers, compiled.registers);
+        assertEquals(message, interpreted.getCpsr(), compiled.getCpsr());
+        assertEquals(message, interpreted.getInstructionCount(), compiled.getInstructionCount());
+    }
+
+    /**
+     * Test that loops counted down or compared against a limit, as compilers
+     * write them, compile (closing branch and all) and agree with the interpreter
+     * <code>
+     *                                         MOV  r4, #0
+     * loop: ADD  r1, r1, r2             loop: ADD  r4, r4, #1
+     *       EOR  r3, r3, r1, LSL #3           MOVS r5, r4, LSR #1
+     *       SUBS r0, r0, #1                   ADDS r6, r6, r5
+     *       BNE  loop                         CMP  r4, #200
+     *       SWI                               BLT  loop
+     *                                         SWI
+     * </code>
+     */
+    @Test
+    public void testJitLoops() throws Exception
+    {
+        assertJitAgrees("SUBS/BNE", new int[] {0xe0811002, 0xe0233181, 0xe2500001, 0x1afffffb, 0xef000000}, 100, 1);
+        assertJitAgrees("CMP/BLT", new int[] {0xe3a04000, 0xe2844001, 0xe1b050a4, 0xe0966005, 0xe35400c8, 0xbafffffa, 0xef000000}, 0, 2);
+    }
+
+    /**
+     * Test that random flag setting instructions compile to the same results
+     * as the interpreter gives, run inside a SUBS/BNE loop on r0
+     */
+    @Test
+    public void testJitFlagsAgree() throws Exception
+    {
+        Random r = new Random(42);
+        for (int c = 0; c < PROGRAMS; ++c)
+        {
+            int[] program = new int[9];
+            for (int i = 0; i < 6; ++i)
+            {
+                int instr;
+                do
+                    instr = 0xe0000000 | (r.nextInt() & 0x03ffffef) | (r.nextBoolean() ? 1 << 20 : 0);
+                while (!JitCompiler.compilable(instr) || ((instr >> 12) & 0xf) == 0);
+                program[i] = instr;
+            }
+            program[6] = 0xe2500001; //SUBS r0, r0, #1
+            program[7] = 0x1afffff7; //BNE 0
+            program[8] = 0xef000000; //SWI
+            assertJitAgrees(Arrays.toString(program), program, 50, c);
+        }
+    }
+
+    private static BigInteger unsigned(int i)
+    {
+        return BigInteger.valueOf(i & 0xffffffffL);
+    }
+
+    /**
+     * Test that a decode cache fill racing a program memory write is dropped
+     */
+    @Test
+    public void testDecodeCacheGeneration() throws Exception
+    {
+        DecodeCache dc = new DecodeCache(16, new Bound(0, MEMORY_SIZE - 4));
+        int generation = dc.getGeneration();
+        dc.wordsWritten(8, 11); //after the fetch, before the fill
+        dc.fill(8, 0xe2811004, generation);
+        assertEquals(-1, dc.lookup(8));
+
+        int slot = dc.fill(8, 0xe2811004, dc.getGeneration());
+        assertEquals(slot, dc.lookup(8));
+        dc.wordsWritten(8, 11);
+        assertEquals(-1, dc.lookup(8));
+    }
+
+    /**
+     * Test MUL/MLA and the long multiplies against BigInteger arithmetic
+     */
+    @Test
+    public void testMultiply() throws Exception
+    {
+        Memory m = new Memory(Memory.MIN_SIZE);
+        Bound b = new Bound(0, Memory.MIN_SIZE - 4);
+        Core core = new Core(m, b, m, b);
+        Random r = new Random(7);
+        BigInteger mask64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        int[] special = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+
+        for (int c = 0; c < 1000; ++c)
+        {
+            int x = c < 25 ? special[c % 5] : r.nextInt(),
+                y = c < 25 ? special[c / 5] : r.nextInt(),
+                acc = r.nextInt(), accHigh = r.nextInt();
+
+            //MULS r2, r0, r1 / MLAS r2, r0, r1, r3
+            core.registers[0] = x;
+            core.registers[1] = y;
+            core.registers[3] = acc;
+            core.parseInstrExt2(0xe0120190);
+            assertEquals(x * y, core.registers[2]);
+            assertEquals(x * y == 0, (core.getCpsr() & (1 << 30)) != 0);
+            assertEquals(x * y < 0, core.getCpsr() < 0);
+            core.parseInstrExt2(0xe0323190);
+            assertEquals(x * y + acc, core.registers[2]);
+
+            //UMULLS/UMLALS/SMULLS/SMLALS r4 (low), r5 (high), r0, r1
+            for (int op = 0; op < 4; ++op)
+            {
+                boolean signed = (op & 2) != 0, accumulate = (op & 1) != 0;
+                core.registers[4] = acc;
+                core.registers[5] = accHigh;
+                core.parseInstrExt2(0xe0954190 | (op << 21));
+
+                BigInteger expected = signed ? BigInteger.valueOf((long)x * y)
+                        : unsigned(x).multiply(unsigned(y));
+                if (accumulate)
+                    expected = expected.add(unsigned(accHigh).shiftLeft(32).or(unsigned(acc)));
+                long result = expected.and(mask64).longValue();
+
+                assertEquals("op " + op, (int)result, core.registers[4]);
+                assertEquals("op " + op, (int)(result >>> 32), core.registers[5]);
+                assertEquals(result == 0, (core.getCpsr() & (1 << 30)) != 0);
+                assertEquals(result < 0, core.getCpsr() < 0);
+            }
+        }
+    }
+
+    private static final int C = 1 << 29, V = 1 << 28;
+
+    /**
+     * Test the flags of the arithmetic data processing instructions against
+     * BigInteger arithmetic
+     */
+    @Test
+    public void testArithmeticFlags() throws Exception
+    {
+        Memory m = new Memory(Memory.MIN_SIZE);
+        Bound b = new Bound(0, Memory.MIN_SIZE - 4);
+        Core core = new Core(m, b, m, b);
+        Random r = new Random(11);
+        int[] special = {0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE};
+        //ADDS, SUBS, RSBS, ADCS, SBCS, RSCS r0, r1, r2
+        int[] opcodes = {4, 2, 3, 5, 6, 7};
+
+        for (int c = 0; c < 1000; ++c)
+        {
+            int x = c < 25 ? special[c % 5] : r.nextInt(),
+                y = c < 25 ? special[c / 5] : r.nextInt();
+            for (int opcode : opcodes)
+                for (int carry = 0; carry < 2; ++carry)
+                {
+                    core.registers[3] = 0;
+                    core.exec(carry == 1 ? 0xe1530003 : 0xe1730003); //CMP/CMN r3, r3 sets/clears C
+                    core.registers[1] = x;
+                    core.registers[2] = y;
+                    core.exec(0xe0100002 | (opcode << 21) | (1 << 20) | (1 << 16));
+
+                    BigInteger a = BigInteger.valueOf(x), bb = BigInteger.valueOf(y),
+                               ua = unsigned(x), ub = unsigned(y);
+                    BigInteger cin = BigInteger.valueOf(opcode >= 5 ? carry : opcode == 4 ? 0 : 1);
+                    BigInteger signed, unsignedSum;
+                    if (opcode == 4 || opcode == 5) //x + y + c
+                    {
+                        signed = a.add(bb).add(cin);
+                        unsignedSum = ua.add(ub).add(cin);
+                    }
+                    else if (opcode == 2 || opcode == 6) //x + ~y + c
+                    {
+                        signed = a.subtract(bb).subtract(BigInteger.ONE).add(cin);
+                        unsignedSum = ua.add(unsigned(~y)).add(cin);
+                    }
+                    else //y + ~x + c
+                    {
+                        signed = bb.subtract(a).subtract(BigInteger.ONE).add(cin);
+                        unsignedSum = ub.add(unsigned(~x)).add(cin);
+                    }
+
+                    String msg = "opcode " + opcode + " " + x + ", " + y + " carry " + carry;
+                    int result = signed.intValue(), cpsr = core.getCpsr();
+                    assertEquals(msg, result, core.registers[0]);
+                    assertEquals(msg, result < 0, cpsr < 0);
+                    assertEquals(msg, result == 0, (cpsr & (1 << 30)) != 0);
+                    assertEquals(msg, unsignedSum.bitLength() > 32, (cpsr & C) != 0);
+                    assertEquals(msg, signed.bitLength() > 31, (cpsr & V) != 0);
+                }
+        }
+    }
+
+    /**
+     * Test that logical instructions set C to the shifter's carry out and leave V alone
+     */
+    @Test
+    public void testShifterCarry() throws Exception
+    {
+        Memory m = new Memory(Memory.MIN_SIZE);
+        Bound b = new Bound(0, Memory.MIN_SIZE - 4);
+        Core core = new Core(m, b, m, b);
+        Random r = new Random(13);
+
+        for (int c = 0; c < 1000; ++c)
+        {
+            int x = r.nextInt(), amount = 1 + r.nextInt(40);
+            core.registers[1] = x;
+            core.registers[2] = amount;
+
+            //MOVS r0, r1, LSL #1 / LSR #1
+            core.exec(0xe1b00081);
+            assertEquals(x << 1, core.registers[0]);
+            assertEquals(x < 0, (core.getCpsr() & C) != 0);
+            core.exec(0xe1b000a1);
+            assertEquals(x >>> 1, core.registers[0]);
+            assertEquals((x & 1) != 0, (core.getCpsr() & C) != 0);
+
+            //MOVS r0, r1, ROR r2
+            core.exec(0xe1b00271);
+            assertEquals(Integer.rotateRight(x, amount), core.registers[0]);
+            assertEquals((x >>> ((amount - 1) & 31) & 1) != 0, (core.getCpsr() & C) != 0);
+
+            //MOVS r0, r1, LSL r2
+            core.exec(0xe1b00211);
+            assertEquals(amount >= 32 ? 0 : x << amount, core.registers[0]);
+            assertEquals(amount <= 32 && (x << (amount - 1)) < 0, (core.getCpsr() & C) != 0);
+
+            //MOVS r0, r1, ASR r2
+            core.exec(0xe1b00251);
+            assertEquals(x >> Math.min(amount, 31), core.registers[0]);
+            assertEquals((x >> Math.min(amount - 1, 31) & 1) != 0, (core.getCpsr() & C) != 0);
+        }
+
+        //an unrotated immediate leaves C alone, V is never touched
+        core.registers[3] = Integer.MIN_VALUE;
+        core.registers[1] = 1;
+        core.exec(0xe1530001); //CMP r3, r1 sets C and V
+        int cv = core.getCpsr() & (C | V);
+        assertEquals(C | V, cv);
+        core.exec(0xe3b00005); //MOVS r0, #5
+        assertEquals(cv, core.getCpsr() & (C | V));
+        core.exec(0xe1b00001); //MOVS r0, r1
+        assertEquals(cv, core.getCpsr() & (C | V));
+    }
+
+    /**
+     * Test that rotated immediates rotate right within 32 bits, immediate
+     * shifts take all 5 bits of the amount, and LSR #0, ASR #0 and ROR #0
+     * mean LSR #32, ASR #32 and RRX, operands and carries alike, on every engine
+     */
+    @Test
+    public void testImmediateOperands() throws Exception
+    {
+        int[] program = {
+            0xe3b00102, //movs r0, #0x80000000
+            0xe2a98000, //adc r8, r9, #0
+            0xe3a02c01, //mov r2, #0x100
+            0xe1a03801, //mov r3, r1, lsl #16
+            0xe1b04021, //movs r4, r1, lsr #32
+            0xe1a05041, //mov r5, r1, asr #32
+            0xe1b06061, //movs r6, r1, rrx
+            0xe1b07062, //movs r7, r2, rrx
+            0xef000000, //swi
+        };
+        for (int pass = 0; pass < 3; ++pass)
+        {
+            Memory m = new Memory(Memory.MIN_SIZE);
+            Bound b = new Bound(0, Memory.MIN_SIZE - 4);
+            for (int c = 0; c < program.length; ++c)
+                m.writeWord(c * 4, program[c], b);
+
+            Core core = new Core(m, b, m, b);
+            core.setEngine(pass == 1 ? Core.Engine.DISPATCH_TABLE : Core.Engine.DECODER);
+            core.setDecodeCacheEnabled(pass == 2);
+            core.registers[1] = 0x80000001;
+            core.run();
+
+            assertEquals(0x80000000, core.registers[0]);
+            assertEquals(1, core.registers[8]); //the rotated immediate's carry out
+            assertEquals(0x100, core.registers[2]);
+            assertEquals(0x00010000, core.registers[3]);
+            assertEquals(0, core.registers[4]);
+            assertEquals(-1, core.registers[5]);
+            assertEquals(0xc0000000, core.registers[6]); //C was set by the LSR #32
+            assertEquals(0x80000080, core.registers[7]); //and by the RRX before
+            assertEquals(1 << 31, core.getCpsr() & (0xf << 28)); //N, and C from bit 0 of r2
+        }
+    }
+
+    /**
+     * Test each condition after comparing all sorts of pairs of numbers, and
+     * that the JIT leaves conditional instructions to the interpreter
+     */
+    @Test
+    public void testConditions() throws Exception
+    {
+        int[] values = {0, 1, 2, -1, -2, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE + 1};
+
+        for (int x : values)
+            for (int y : values)
+                for (Core.Engine engine : Core.Engine.values())
+                {
+                    //CMP r1, r2, then ORR<cond> r4, r4, r5, LSL #cond for EQ to LE, then AL and NV
+                    Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+                    Bound b = new Bound(0, MEMORY_SIZE - 4);
+                    prog.writeWord(0, 0xe1510002, b);
+                    for (int cond = 0; cond < 16; ++cond)
+                        prog.writeWord(4 + cond * 4, (cond << 28) | 0x01844005 | ((cond & 0xf) << 7), b);
+
+                    Core core = new Core(prog, b, data, b);
+                    core.setEngine(engine);
+                    core.registers[1] = x;
+                    core.registers[2] = y;
+                    core.registers[5] = 1;
+                    core.run();
+
+                    long diff = (long)x - y;
+                    boolean[] expected = {x == y, x != y, unsigned(x).compareTo(unsigned(y)) >= 0,
+                            unsigned(x).compareTo(unsigned(y)) < 0, (x - y) < 0, (x - y) >= 0,
+                            diff != (int)diff, diff == (int)diff,
+                            unsigned(x).compareTo(unsigned(y)) > 0, unsigned(x).compareTo(unsigned(y)) <= 0,
+                            x >= y, x < y, x > y, x <= y, true, false};
+                    int mask = 0;
+                    for (int cond = 0; cond < 16; ++cond)
+                        mask |= expected[cond] ? 1 << cond : 0;
+                    assertEquals(x + " vs " + y + " " + engine, Integer.toBinaryString(mask),
+                            Integer.toBinaryString(core.registers[4]));
+                    assertEquals(MEMORY_SIZE / 4, core.getInstructionCount()); //skipped ones count too
+                }
+
+        assertFalse(JitCompiler.compilable(0x01844005));
+        assertTrue(JitCompiler.compilable(0xe1844005));
+    }
+
+    /**
+     * Test that LDM/STM put the lowest register at the lowest address in
+     * every addressing mode, write the base back, and return when the PC
+     * is loaded
+     */
+    @Test
+    public void testBlockTransfer() throws Exception
+    {
+        for (Core.Engine engine : Core.Engine.values())
+        {
+            Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+            Bound b = new Bound(0, MEMORY_SIZE - 4);
+            prog.writeWord(0, 0xe92d400f, b); //stmdb sp!, {r0-r3, lr}
+            prog.writeWord(4, 0xe8bd80f0, b); //ldmia sp!, {r4-r7, pc}
+            prog.writeWord(8, 0xe3a0b001, b); //mov r11, #1 (skipped by the return)
+            prog.writeWord(12, 0xe8a80003, b); //stmia r8!, {r0, r1}
+            prog.writeWord(16, 0xe9180600, b); //ldmdb r8, {r9, r10}
+            prog.writeWord(20, 0xe8180003, b); //ldmda r8, {r0, r1}
+            prog.writeWord(24, 0xe9880030, b); //stmib r8, {r4, r5}
+
+            Core core = new Core(prog, b, data, b);
+            core.setEngine(engine);
+            final java.util.List<Integer> accesses = new java.util.ArrayList<Integer>();
+            core.setTracer(new AccessTracer() {
+                public void access(int kind, int addr, int value)
+                {
+                    if (kind != FETCH)
+                        accesses.add(addr);
+                }
+            });
+            for (int c = 0; c < 4; ++c)
+                core.registers[c] = c + 1;
+            core.registers[8] = 100;
+            core.registers[13] = 512;
+            core.registers[14] = 12;
+            core.run();
+
+            assertEquals(0, core.registers[11]);
+            assertEquals(512, core.registers[13]);
+            for (int c = 0; c < 5; ++c)
+                assertEquals(c == 4 ? 12 : c + 1, data.readWord(492 + c * 4, b));
+            for (int c = 4; c < 8; ++c)
+                assertEquals(c - 3, core.registers[c]);
+            assertEquals(108, core.registers[8]);
+            assertEquals(1, data.readWord(100, b));
+            assertEquals(2, data.readWord(104, b));
+            assertEquals(1, core.registers[9]);
+            assertEquals(2, core.registers[10]);
+            assertEquals(2, core.registers[0]);
+            assertEquals(0, core.registers[1]);
+            assertEquals(1, data.readWord(112, b));
+            assertEquals(2, data.readWord(116, b));
+            assertEquals(java.util.Arrays.asList(492, 496, 500, 504, 508, 492, 496, 500, 504, 508,
+                    100, 104, 100, 104, 104, 108, 112, 116), accesses);
+
+            //a block running out of the bound faults before anything is loaded
+            prog.writeWord(0, 0xe89d00ff, b); //ldmia sp, {r0-r7}
+            core.reset();
+            core.registers[13] = MEMORY_SIZE - 16;
+            core.run();
+            assertTrue(core.getStopCause() instanceof memsim.exceptions.MemoryAccessException);
+            assertEquals(0, core.registers[0]);
+        }
+    }
+
+    /**
+     * Test that register offset loads/stores scale the index, and halfword
+     * and signed loads/stores extend and index as they should, on every engine
+     */
+    @Test
+    public void testRegisterOffsetAndHalfwords() throws Exception
+    {
+        int[] program = {
+            0xe7910102, //ldr r0, [r1, r2, lsl #2]
+            0xe7210102, //str r0, [r1, -r2, lsl #2]!
+            0xe6d13002, //ldrb r3, [r1], r2
+            0xe1d140b1, //ldrh r4, [r1, #1]
+            0xe1d150f1, //ldrsh r5, [r1, #1]
+            0xe1d160d1, //ldrsb r6, [r1, #1]
+            0xe1e100b9, //strh r0, [r1, #9]!
+            0xe01170f2, //ldrsh r7, [r1], -r2
+            0xe7918049, //ldr r8, [r1, r9, asr #32]
+            0xed910000, //ldc p0, c0, [r1]
+        };
+        for (int pass = 0; pass < 3; ++pass)
+        {
+            Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+            Bound b = new Bound(0, MEMORY_SIZE - 4);
+            for (int c = 0; c < program.length; ++c)
+                prog.writeWord(c * 4, program[c], b);
+            data.writeWord(212, 0x1234abcd, b);
+            data.writeWord(192, 0xf0e18002, b);
+            data.writeWord(196, 0x55667788, b);
+            data.writeWord(200, 0x11112222, b);
+
+            Core core = new Core(prog, b, data, b);
+            core.setEngine(pass == 1 ? Core.Engine.DISPATCH_TABLE : Core.Engine.DECODER);
+            core.setDecodeCacheEnabled(pass == 2);
+            final int[] kinds = new int[AccessTracer.KINDS];
+            core.setTracer(new AccessTracer() {
+                public void access(int kind, int addr, int value)
+                {
+                    ++kinds[kind];
+                }
+            });
+            core.registers[1] = 200;
+            core.registers[2] = 3;
+            core.registers[9] = -4;
+            core.run();
+
+            assertEquals(0x1234abcd, core.registers[0]);
+            assertEquals(0x1234abcd, data.readWord(188, b));
+            assertEquals(0x12, core.registers[3]);
+            assertEquals(0xf0e1, core.registers[4]);
+            assertEquals(0xfffff0e1, core.registers[5]);
+            assertEquals(0xfffffff0, core.registers[6]);
+            assertEquals(0xabcd2222, data.readWord(200, b));
+            assertEquals(0xffffabcd, core.registers[7]);
+            assertEquals(0x55667788, core.registers[8]);
+            assertEquals(197, core.registers[1]);
+            assertEquals(3, kinds[AccessTracer.READ_HALF]);
+            assertEquals(1, kinds[AccessTracer.WRITE_HALF]);
+            assertTrue(core.getStopCause() instanceof memsim.exceptions.UnimplementedInstructionException);
+        }
+    }
+
+    /**
+     * Test immediate offsets of 0x400 and up (all 12 bits count) and that
+     * SWP/SWPB swap with the word/byte rn points at, on each engine
+     */
+    @Test
+    public void testLargeOffsetsAndSwaps() throws Exception
+    {
+        int[] program = {
+            0xe5910404, //ldr r0, [r1, #0x404]
+            0xe5a10800, //str r0, [r1, #0x800]!
+            0xe5512401, //ldrb r2, [r1, #-0x401]
+            0xe1053094, //swp r3, r4, [r5]
+            0xe1486097, //swpb r6, r7, [r8]
+            0xef000000, //swi
+        };
+        for (int pass = 0; pass < 3; ++pass)
+        {
+            Memory prog = new Memory(MEMORY_SIZE), data = new Memory(8 * MEMORY_SIZE);
+            Bound b = new Bound(0, MEMORY_SIZE - 4), db = new Bound(0, 8 * MEMORY_SIZE - 4);
+            for (int c = 0; c < program.length; ++c)
+                prog.writeWord(c * 4, program[c], b);
+            data.writeWord(0x504, 0xcafef00d, db);
+            data.writeByte(0x4ff, (byte)0x7e, db);
+            data.writeWord(0x200, 0x12345678, db);
+            data.writeByte(0x301, (byte)0x85, db);
+
+            Core core = new Core(prog, b, data, db);
+            core.setEngine(pass == 1 ? Core.Engine.DISPATCH_TABLE : Core.Engine.DECODER);
+            core.setDecodeCacheEnabled(pass == 2);
+            core.registers[1] = 0x100;
+            core.registers[4] = 0x9abcdef0;
+            core.registers[5] = 0x200;
+            core.registers[7] = 0x1ff;
+            core.registers[8] = 0x301;
+            core.run();
+
+            assertEquals(0xcafef00d, core.registers[0]);
+            assertEquals(0xcafef00d, data.readWord(0x900, db));
+            assertEquals(0x900, core.registers[1]);
+            assertEquals(0x7e, core.registers[2]);
+            assertEquals(0x12345678, core.registers[3]);
+            assertEquals(0x9abcdef0, data.readWord(0x200, db));
+            assertEquals(0x85, core.registers[6]);
+            assertEquals((byte)0xff, data.readByte(0x301, db));
+            assertEquals(6, core.getInstructionCount());
+        }
+    }
+}
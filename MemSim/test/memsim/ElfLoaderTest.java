@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import memsim.exceptions.MemoryAccessException;
+import memsim.exceptions.UnknownFormatException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class ElfLoaderTest {
+    private static final int MEMORY_SIZE = 1024;
+    private static final int TEXT = 0x40, DATA = 0x10, STACK = 0x200;
+
+    /*
+     * _start: MOV r1, #0x10
+     *         LDR r0, [r1]
+     *         LDR r2, [r1, #8]   (in .bss)
+     *         ADD r0, r0, r2
+     *         STR r0, [sp, #-4]!
+     *         SWI
+     */
+    private static final int[] PROGRAM = {0xe3a01010, 0xe5910000, 0xe5912008, 0xe0800002, 0xe52d0004, 0xef000000};
+
+    public ElfLoaderTest() {
+    }
+
+    /**
+     * Write an executable with the program at TEXT, a data segment at
+     * dataAddr holding 0x1234 followed by 12 bytes of .bss, and (if symbols)
+     * a symbol table with __stack_top at STACK
+     */
+    private static File write(ByteOrder order, int dataAddr, boolean symbols) throws Exception
+    {
+        ByteBuffer elf = ByteBuffer.allocate(384).order(order);
+        elf.put(new byte[] {0x7f, 'E', 'L', 'F', 1, (byte)(order == ByteOrder.LITTLE_ENDIAN ? 1 : 2), 1});
+        elf.putShort(16, (short)2).putShort(18, (short)ElfLoader.EM_ARM).putInt(20, 1);
+        elf.putInt(24, TEXT).putInt(28, 52).putInt(32, symbols ? 192 : 0);
+        elf.putShort(40, (short)52).putShort(42, (short)32).putShort(44, (short)2);
+        elf.putShort(46, (short)40).putShort(48, (short)(symbols ? 3 : 0)).putShort(50, (short)0);
+
+        //program headers: text at 128, data at 160
+        elf.putInt(52, ElfLoader.PT_LOAD).putInt(56, 128).putInt(60, TEXT).putInt(68, PROGRAM.length * 4)
+                .putInt(72, PROGRAM.length * 4).putInt(76, ElfLoader.PF_R | ElfLoader.PF_X);
+        elf.putInt(84, ElfLoader.PT_LOAD).putInt(88, 160).putInt(92, dataAddr).putInt(100, 4)
+                .putInt(104, 16).putInt(108, ElfLoader.PF_R | ElfLoader.PF_W);
+        for (int c = 0; c < PROGRAM.length; ++c)
+            elf.putInt(128 + c * 4, PROGRAM[c]);
+        elf.putInt(160, 0x1234);
+
+        //section headers: null, .symtab at 320 linked to .strtab at 352
+        elf.putInt(232 + 4, 2).putInt(232 + 16, 320).putInt(232 + 20, 32).putInt(232 + 24, 2);
+        elf.putInt(272 + 4, 3).putInt(272 + 16, 352).putInt(272 + 20, 16);
+        elf.putInt(336, 1).putInt(340, STACK);
+        elf.position(353);
+        elf.put("__stack_top".getBytes("US-ASCII"));
+
+        File f = File.createTempFile("elfloader", ".elf");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        try
+        {
+            out.write(elf.array());
+        }
+        finally
+        {
+            out.close();
+        }
+        return f;
+    }
+
+    private static Core core(ByteOrder order, Bound dataBound)
+    {
+        return new Core(new Memory(new ByteArrayMemoryBackend(MEMORY_SIZE, order), order),
+                new Bound(0, MEMORY_SIZE - 4),
+                new Memory(new ByteArrayMemoryBackend(MEMORY_SIZE, order), order), dataBound);
+    }
+
+    /**
+     * Test that the segments land at their addresses, .bss reads as zero
+     * even over data left from before, and the program runs from the entry
+     * point with the stack the symbol table gives
+     */
+    @Test
+    public void testLoad() throws Exception
+    {
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        Core core = core(ByteOrder.LITTLE_ENDIAN, b);
+        core.getDataMemory().writeWord(0x18, -1, b);
+        core.getDataMemory().writeWord(0x20, -1, b);
+
+        assertTrue(ElfLoader.isElf(write(ByteOrder.LITTLE_ENDIAN, DATA, true)));
+        assertEquals(TEXT, ElfLoader.load(core, write(ByteOrder.LITTLE_ENDIAN, DATA, true)));
+        assertEquals(TEXT, core.getEntryPoint());
+        assertEquals(STACK, core.registers[13]);
+        assertEquals(PROGRAM[0], core.getProgramMemory().readWord(TEXT, b));
+        assertEquals(0, core.getProgramMemory().readWord(0, b));
+        assertEquals(0x1234, core.getDataMemory().readWord(DATA, b));
+        assertEquals(0x34, core.getDataMemory().readByte(DATA, b)); //little endian
+        assertEquals(0, core.getDataMemory().readWord(0x18, b));
+        assertEquals(-1, core.getDataMemory().readWord(0x20, b)); //past the segment
+
+        core.run();
+        assertEquals(0x1234, core.registers[0]);
+        assertEquals(STACK - 4, core.registers[13]);
+        assertEquals(0x1234, core.getDataMemory().readWord(STACK - 4, b));
+
+        //without a symbol table the stack goes at the top of the data bound
+        core = core(ByteOrder.LITTLE_ENDIAN, new Bound(0, 500));
+        ElfLoader.load(core, write(ByteOrder.LITTLE_ENDIAN, DATA, false));
+        assertEquals(504, core.registers[13]);
+    }
+
+    /**
+     * Test that an image of the wrong byte order or that doesn't fit the
+     * bounds is turned away without loading anything
+     */
+    @Test
+    public void testRejected() throws Exception
+    {
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        Core core = core(ByteOrder.BIG_ENDIAN, b);
+        try
+        {
+            ElfLoader.load(core, write(ByteOrder.LITTLE_ENDIAN, DATA, true));
+            fail("loaded into memory of the other byte order");
+        }
+        catch (UnknownFormatException e)
+        {
+        }
+
+        core = core(ByteOrder.LITTLE_ENDIAN, new Bound(0, 0x18));
+        try
+        {
+            ElfLoader.load(core, write(ByteOrder.LITTLE_ENDIAN, DATA, true));
+            fail("loaded .bss past the bound");
+        }
+        catch (MemoryAccessException e)
+        {
+        }
+        assertEquals(0, core.getProgramMemory().readWord(TEXT, b));
+        File empty = File.createTempFile("elfloader", ".bin");
+        empty.deleteOnExit();
+        assertFalse(ElfLoader.isElf(empty));
+    }
+
+    /**
+     * Test that processors of either byte order load executables of their
+     * own order through ElfLoader, turn away the other order, and leave the
+     * entry point and stack alone when given nothing to load
+     */
+    @Test
+    public void testProcessor() throws Exception
+    {
+        ByteOrder[] orders = {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN};
+        for (ProcessorFactory.MemoryArchitecture arch : ProcessorFactory.MemoryArchitecture.values())
+            for (ByteOrder order : orders)
+            {
+                Processor p = ProcessorFactory.createProcessor(arch, order);
+                p.setCoreMemoryContents(0, write(order, DATA, true), null);
+                p.setCoreMemoryContents(0, null, null);
+                Core core = p.getCoreList().get(0);
+                assertEquals(TEXT, core.getEntryPoint());
+                assertEquals(STACK, core.registers[13]);
+                core.run();
+                assertEquals(0x1234, core.registers[0]);
+
+                try
+                {
+                    p.setCoreMemoryContents(0, write(order == ByteOrder.BIG_ENDIAN
+                            ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN, DATA, true), null);
+                    fail("loaded into a processor of the other byte order");
+                }
+                catch (IOException e)
+                {
+                    assertTrue(e.getCause() instanceof UnknownFormatException);
+                }
+            }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class IntrinsicsTest {
+    private static final int MEMORY_SIZE = 1024;
+    private static final int SWI = 0xef000000; //stops the core
+
+    public IntrinsicsTest() {
+    }
+
+    /**
+     * Run program on a fresh core with data memory holding 0, 1, 2, ... and
+     * the given registers, and describe how it ends
+     */
+    private static String run(int[] program, int[] regs, boolean intrinsics, int[] loopRuns) throws Exception
+    {
+        Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < program.length; ++c)
+            prog.writeWord(c * 4, program[c], b);
+        for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+            data.writeWord(addr, addr * 0x01010101 + 0x00010203, b);
+
+        Core core = new Core(prog, b, data, b);
+        System.arraycopy(regs, 0, core.registers, 0, regs.length);
+        core.setIntrinsicsEnabled(intrinsics);
+        core.run();
+        if (intrinsics)
+            loopRuns[0] = (int)core.getIntrinsics().getLoopRuns();
+
+        int[] words = new int[MEMORY_SIZE / 4];
+        for (int c = 0; c < words.length; ++c)
+            words[c] = data.readWord(c * 4, b);
+        return Arrays.toString(core.registers) + " cpsr=" + Integer.toHexString(core.getCpsr())
+                + " executed=" + core.getInstructionCount() + " mem=" + Arrays.toString(words);
+    }
+
+    /**
+     * Test that each of the copy and fill loops ends up exactly as it does
+     * when run an instruction at a time, and is run in one go
+     */
+    @Test
+    public void testLoops() throws Exception
+    {
+        int[][] loops = {
+            {0xe4913004, 0xe4803004, 0xe2522004, 0x1afffffb, SWI}, //ldr, str, subs #4
+            {0xe4d13001, 0xe4c03001, 0xe2522001, 0x1afffffb, SWI}, //ldrb, strb, subs #1
+            {0xe8b10078, 0xe8a00078, 0xe2522010, 0x1afffffb, SWI}, //ldmia {r3-r6}, stmia, subs #16
+            {0xe8b10078, 0xe8a00078, 0xe2522001, 0x1afffffb, SWI}, //counting blocks
+            {0xe4801004, 0xe2522004, 0x1afffffc, SWI}, //str, subs #4
+            {0xe4c01001, 0xe2522001, 0x1afffffc, SWI}, //strb, subs #1
+        };
+        int[][] regs = {
+            {512, 100, 64}, {513, 101, 61}, {512, 100, 64}, {512, 100, 4}, {512, 0x12345678, 64},
+            {511, 0xab, 67}
+        };
+        int[] loopRuns = new int[1];
+        for (int c = 0; c < loops.length; ++c)
+        {
+            assertEquals("loop " + c, run(loops[c], regs[c], false, null), run(loops[c], regs[c], true, loopRuns));
+            assertEquals("loop " + c, 1, loopRuns[0]);
+        }
+
+        //copying over itself (until the last time round), a count that doesn't
+        //divide, and a fault part way are left alone
+        int[][] others = {{104, 100, 64}, {512, 100, 62}, {MEMORY_SIZE - 32, 100, 64}};
+        int[] runs = {1, 0, 0};
+        for (int c = 0; c < others.length; ++c)
+        {
+            assertEquals(run(loops[0], others[c], false, null), run(loops[0], others[c], true, loopRuns));
+            assertEquals(runs[c], loopRuns[0]);
+        }
+    }
+
+    /**
+     * Test that calls to bound memcpy and memset addresses copy and fill
+     * what the functions would, and return with r0 intact
+     */
+    @Test
+    public void testBoundFunctions() throws Exception
+    {
+        int[] program = new int[32];
+        program[0] = 0xeb00000e; //bl 64 (memcpy)
+        program[1] = 0xe1a04000; //mov r4, r0
+        program[2] = 0xe3a000c8; //mov r0, #200
+        program[3] = 0xe3a010ee; //mov r1, #0xee
+        program[4] = 0xe3a0200b; //mov r2, #11
+        program[5] = 0xeb000011; //bl 96 (memset)
+        program[6] = SWI;
+        //memcpy
+        program[16] = 0xe1a03000; //mov r3, r0
+        program[17] = 0xe4d1c001; //ldrb r12, [r1], #1
+        program[18] = 0xe4c3c001; //strb r12, [r3], #1
+        program[19] = 0xe2522001; //subs r2, r2, #1
+        program[20] = 0x1afffffb; //bne 68
+        program[21] = 0xe12fff1e; //bx lr
+        //memset
+        program[24] = 0xe1a03000; //mov r3, r0
+        program[25] = 0xe4c31001; //strb r1, [r3], #1
+        program[26] = 0xe2522001; //subs r2, r2, #1
+        program[27] = 0x1afffffc; //bne 100
+        program[28] = 0xe12fff1e; //bx lr
+
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            Memory[] data = new Memory[2];
+            Core[] cores = new Core[2];
+            Bound b = new Bound(0, MEMORY_SIZE - 4);
+            for (int c = 0; c < 2; ++c)
+            {
+                Memory prog = new Memory(MEMORY_SIZE);
+                data[c] = new Memory(MEMORY_SIZE);
+                for (int addr = 0; addr < program.length * 4; addr += 4)
+                    prog.writeWord(addr, program[addr / 4], b);
+                for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+                    data[c].writeWord(addr, addr, b);
+
+                cores[c] = new Core(prog, b, data[c], b);
+                cores[c].registers[0] = 301;
+                cores[c].registers[1] = 2;
+                cores[c].registers[2] = pass == 0 ? 37 : 0;
+            }
+            cores[1].setIntrinsicsEnabled(true);
+            Intrinsics in = cores[1].getIntrinsics();
+            in.setIdiomRecognition(false);
+            in.bind(64, Intrinsics.Kind.MEMCPY);
+            in.bind(96, Intrinsics.Kind.MEMSET);
+            assertTrue(in.isBound(64));
+            cores[1].run();
+
+            if (pass == 0)
+            {
+                cores[0].run();
+                for (int addr = 0; addr < MEMORY_SIZE; addr += 4)
+                    assertEquals(data[0].readWord(addr, b), data[1].readWord(addr, b));
+                assertEquals(301, cores[1].registers[4]);
+                assertEquals(2, in.getCalls());
+                assertEquals(37 + 11, in.getBytesMoved());
+                assertEquals(3 + 5 + 1, cores[1].getInstructionCount());
+            }
+            else //a zero count would run the loop for ever, but copies nothing
+            {
+                assertEquals(301, cores[1].registers[4]);
+                assertEquals(2, in.getCalls());
+                assertEquals(300, data[1].readWord(300, b));
+                assertEquals(0xeeeeeeee, data[1].readWord(200, b));
+                assertEquals(0xeeeeeed0, data[1].readWord(208, b)); //the rest of the word left alone
+            }
+        }
+    }
+
+    /**
+     * Run a word copy loop from src to dst over addresses either side of
+     * 0x80000000, and describe how it ends
+     */
+    private static String runHigh(int dst, int src, int n, boolean intrinsics) throws Exception
+    {
+        Memory prog = new Memory(MEMORY_SIZE), data = new Memory(new SparseMemoryBackend(1L << 32));
+        Bound b = new Bound(0, MEMORY_SIZE - 4), all = new Bound(0, 0xfffffffc);
+        int[] program = {0xe4913004, 0xe4803004, 0xe2522004, 0x1afffffb, SWI}; //ldr, str, subs #4
+        for (int c = 0; c < program.length; ++c)
+            prog.writeWord(c * 4, program[c], b);
+        for (int addr = 0x7fffff00; addr != 0x80000100; addr += 4)
+            data.writeWord(addr, addr, all);
+
+        Core core = new Core(prog, b, data, all);
+        core.registers[0] = dst;
+        core.registers[1] = src;
+        core.registers[2] = n;
+        core.setIntrinsicsEnabled(intrinsics);
+        core.run();
+
+        StringBuilder words = new StringBuilder();
+        for (int addr = 0x7fffff00; addr != 0x80000100; addr += 4)
+            words.append(Integer.toHexString(data.readWord(addr, all))).append(' ');
+        return Arrays.toString(core.registers) + " cpsr=" + Integer.toHexString(core.getCpsr())
+                + " executed=" + core.getInstructionCount() + " mem=" + words;
+    }
+
+    /**
+     * Test that a copy loop over itself is told apart from one that isn't
+     * with addresses at and above 0x80000000 too
+     */
+    @Test
+    public void testHighAddresses() throws Exception
+    {
+        int[][] copies = {{0x80000000, 0x7ffffff8, 32}, {0x80000040, 0x7fffffe0, 32}, {0x80000010, 0x80000000, 32}};
+        for (int[] c : copies)
+            assertEquals(runHigh(c[0], c[1], c[2], false), runHigh(c[0], c[1], c[2], true));
+    }
+
+    /**
+     * Test that copies and fills handle every alignment and overlap
+     */
+    @Test
+    public void testCopyAndFill() throws Exception
+    {
+        Bound b = new Bound(0, 252);
+        for (MemoryBackend backend : new MemoryBackend[] {new HeapMemoryBackend(256),
+                new DirectMemoryBackend(256), new SparseMemoryBackend(256)})
+        {
+            Memory m = new Memory(backend);
+            byte[] expected = new byte[256];
+            java.util.Random r = new java.util.Random(22);
+            for (int c = 0; c < 2000; ++c)
+            {
+                int length = r.nextInt(40), dst = r.nextInt(256 - length), src = r.nextInt(256 - length);
+                if (r.nextBoolean())
+                {
+                    m.copy(dst, src, length, b);
+                    System.arraycopy(expected, src, expected, dst, length);
+                }
+                else
+                {
+                    int pattern = r.nextInt();
+                    m.fill(dst, pattern, length, b);
+                    for (int a = dst; a < dst + length; ++a)
+                        expected[a] = (byte)(pattern >>> (24 - (a & 3) * 8));
+                }
+            }
+            for (int a = 0; a < 256; ++a)
+                assertEquals(expected[a], m.readByte(a, b));
+
+            try
+            {
+                m.copy(250, 0, 8, b);
+                fail("copied out of the bound");
+            }
+            catch (memsim.exceptions.MemoryAccessException e)
+            {
+            }
+        }
+    }
+}
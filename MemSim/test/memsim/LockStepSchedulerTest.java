@@ -0,0 +1,153 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class LockStepSchedulerTest {
+    private static final int MEMORY_SIZE = 128, CORES = 4, ITERATIONS = 50;
+
+    /*
+     * loop: LDR r2, [r1]
+     *       ADD r2, r2, #1
+     *       STR r2, [r1]
+     *       SUBS r5, r5, #1
+     *       BNE loop
+     */
+    private static final int[] INCREMENT = {0xe5912000, 0xe2822001, 0xe5812000, 0xe2555001, 0x1afffffa};
+
+    public LockStepSchedulerTest() {
+    }
+
+    /**
+     * Cores each incrementing the word at counters[c] of a shared data memory
+     * without any locking.  Core c runs c NOPs first, so the cores aren't all
+     * at the same point of the loop in each round.
+     */
+    private static List<Core> cores(Memory data, int[] counters) throws Exception
+    {
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        List<Core> cores = new ArrayList<Core>();
+        for (int c = 0; c < counters.length; ++c)
+        {
+            Memory prog = new Memory(MEMORY_SIZE);
+            for (int i = 0; i < c; ++i)
+                prog.writeWord(i * 4, 0xe1a00000, b); //MOV r0, r0
+            for (int i = 0; i < INCREMENT.length; ++i)
+                prog.writeWord((c + i) * 4, INCREMENT[i], b);
+
+            Core core = new Core(prog, b, data, new Bound(counters[c], counters[c] + 7));
+            core.registers[1] = 0; //relative to the data bound
+            core.registers[5] = ITERATIONS;
+            cores.add(core);
+        }
+        return cores;
+    }
+
+    private static int racyCount(long seed, int workers) throws Exception
+    {
+        Memory data = new Memory(MEMORY_SIZE);
+        new LockStepScheduler(workers, 3, seed).run(cores(data, new int[CORES]));
+        return data.readWord(0, new Bound(0, MEMORY_SIZE - 4));
+    }
+
+    /**
+     * Test that racing cores lose the same updates for the same seed, whatever
+     * the number of workers, and different ones for different seeds
+     */
+    @Test
+    public void testDeterministic() throws Exception
+    {
+        Set<Integer> counts = new HashSet<Integer>();
+        for (long seed = 0; seed < 10; ++seed)
+        {
+            int count = racyCount(seed, 1);
+            assertTrue(count <= CORES * ITERATIONS);
+            assertEquals(count, racyCount(seed, 3));
+            assertEquals(count, racyCount(seed, 1));
+            counts.add(count);
+        }
+        assertTrue(counts.size() > 1);
+    }
+
+    /**
+     * Test that cores which can't see each other run independently, and get
+     * the same results as running them one by one
+     */
+    @Test
+    public void testIndependentCores() throws Exception
+    {
+        int[] counters = new int[CORES];
+        for (int c = 0; c < CORES; ++c)
+            counters[c] = c * 8;
+
+        Memory data = new Memory(MEMORY_SIZE);
+        List<Core> cores = cores(data, counters);
+        assertEquals(CORES, LockStepScheduler.domains(cores).size());
+
+        LockStepScheduler scheduler = new LockStepScheduler(2, 10, 1);
+        List<CoreResult> results = scheduler.run(cores);
+        Bound all = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < CORES; ++c)
+        {
+            assertEquals(ITERATIONS, data.readWord(counters[c], all));
+            assertEquals(c, results.get(c).getCoreIndex());
+            assertEquals(MEMORY_SIZE / 4 + (ITERATIONS - 1) * INCREMENT.length, results.get(c).getInstructions());
+            assertNull(results.get(c).getStopCause()); //ran off the end
+        }
+        long instructions = results.get(0).getInstructions();
+        assertEquals((instructions + 9) / 10, scheduler.getRounds());
+
+        Core alone = cores(new Memory(MEMORY_SIZE), new int[1]).get(0);
+        alone.run();
+        assertArrayEquals(alone.registers, results.get(0).getRegisters());
+        assertEquals(alone.getCpsr(), results.get(0).getCpsr());
+    }
+
+    /**
+     * Test which cores end up in the same domain
+     */
+    @Test
+    public void testDomains() throws Exception
+    {
+        Memory data = new Memory(MEMORY_SIZE);
+        List<Core> cores = cores(data, new int[] {0, 16, 4, 32});
+        List<List<Integer>> domains = LockStepScheduler.domains(cores);
+        assertEquals(3, domains.size());
+        assertEquals("[0, 2]", domains.get(0).toString()); //bytes 0-7 and 4-11 overlap
+        assertEquals("[1]", domains.get(1).toString());
+        assertEquals("[3]", domains.get(2).toString());
+
+        //a shared L2 ties them all together
+        CacheConfig l1 = new CacheConfig(256, 2, 32, CacheConfig.Replacement.LRU, CacheConfig.WritePolicy.WRITE_BACK);
+        CacheHierarchy.attach(cores, l1, l1, l1);
+        assertEquals(1, LockStepScheduler.domains(cores).size());
+    }
+
+    /**
+     * Test running a whole processor
+     */
+    @Test
+    public void testProcessor() throws Exception
+    {
+        Processor p = ProcessorFactory.createProcessor(ProcessorFactory.MemoryArchitecture.VON_NEUMANN);
+        p.setCores(16);
+        List<CoreResult> results = new LockStepScheduler().run(p);
+        assertEquals(16, results.size());
+        assertFalse(p.isRunning());
+        for (CoreResult r : results)
+            assertTrue(r.getInstructions() > 0);
+    }
+}
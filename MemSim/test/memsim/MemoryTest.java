@@ -5,6 +5,7 @@
 
 package memsim;
 
+import java.nio.ByteOrder;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -184,4 +185,519 @@ public class MemoryTest {
             fail("fault in testHardReadWrite");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that fetches see the same words as locked reads, whatever the
+     * number of lock stripes
+     */
+    @Test
+    public void testStripedFetch()
+    {
+        try
+        {
+            new Memory(Memory.MIN_SIZE, 3);
+            fail("stripes must be a power of 2");
+        }
+        catch (IllegalArgumentException e) {}
+
+        try
+        {
+            Bound b = new Bound(0, Memory.MIN_SIZE);
+            for (int stripes = 1; stripes <= 64; stripes <<= 1)
+            {
+                Memory m = new Memory(Memory.MIN_SIZE, stripes);
+                assertEquals(stripes, m.getStripes());
+
+                for (int c = 0; c < Memory.MIN_SIZE; c += 4)
+                    m.writeWord(c, c * stripes, b);
+                for (int c = 0; c < Memory.MIN_SIZE; c += 4)
+                    assertEquals(m.readWord(c, b), m.fetchWord(c, b));
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testStripedFetch");
+        }
+    }
+
+    /**
+     * Test that write listeners hear about word and byte writes, only in
+     * the range they asked for
+     */
+    @Test
+    public void testWriteListener()
+    {
+        final long[] written = {-1, -1};
+        Memory.WriteListener l = new Memory.WriteListener() {
+            public void wordsWritten(long fromAddr, long toAddr)
+            {
+                written[0] = fromAddr;
+                written[1] = toAddr;
+            }
+        };
+
+        try
+        {
+            Memory m = new Memory(Memory.MIN_SIZE);
+            Bound b = new Bound(16, Memory.MIN_SIZE);
+            m.addWriteListener(l);
+
+            m.writeWord(8, 1, b);
+            assertEquals(24, written[0]);
+            assertEquals(24, written[1]);
+
+            m.writeByte(13, (byte)1, b);
+            assertEquals(28, written[0]);
+
+            m.removeWriteListener(l);
+            m.writeWord(0, 1, b);
+            assertEquals(28, written[0]);
+
+            m.addWriteListener(l, 32, 39);
+            m.writeWord(8, 1, b);
+            assertEquals(28, written[0]);
+            m.writeWord(20, 1, b);
+            assertEquals(36, written[0]);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testWriteListener");
+        }
+    }
+
+    /**
+     * Test loading a file at an offset within a bound, including a trailing
+     * partial word and files that don't fit
+     */
+    @Test
+    public void testLoadIntoMemory()
+    {
+        try
+        {
+            java.io.File f = java.io.File.createTempFile("memsim", ".bin");
+            f.deleteOnExit();
+            java.io.FileOutputStream out = new java.io.FileOutputStream(f);
+            out.write(new byte[] {0x12, 0x34, 0x56, 0x78, (byte)0x9a, (byte)0xbc, (byte)0xde, (byte)0xf0, 0x01, 0x02});
+            out.close();
+
+            Memory m = new Memory(Memory.MIN_SIZE);
+            Bound b = new Bound(16, 40);
+            assertEquals(10, Memory.loadIntoMemory(m, f, -1, 8, b));
+            assertEquals(0x12345678, m.readWord(8, b));
+            assertEquals(0x9abcdef0, m.readWord(12, b));
+            assertEquals(0x01020000, m.readWord(16, b));
+            assertEquals(0, m.readWord(0, b));
+
+            assertEquals(4, Memory.loadIntoMemory(m, f, 4, 0, b));
+            assertEquals(0x12345678, m.readWord(0, b));
+
+            try
+            {
+                Memory.loadIntoMemory(m, f, -1, 20, b);
+                fail("file runs past the bound");
+            }
+            catch (memsim.exceptions.MemoryAccessException e) {}
+
+            Memory.loadIntoMemory(m, f, -1);
+            assertEquals(0x12345678, m.readWord(0, new Bound(0, Memory.MIN_SIZE)));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testLoadIntoMemory");
+        }
+    }
+
+    /**
+     * Test that the off heap backend reads back exactly what the heap one does
+     */
+    @Test
+    public void testDirectBackend()
+    {
+        try
+        {
+            int size = 4096;
+            Memory heap = new Memory(size);
+            Memory direct = new Memory(new DirectMemoryBackend(size));
+            Bound b = new Bound(0, size - 4);
+            assertEquals(heap.getSize(), direct.getSize());
+
+            java.util.Random r = new java.util.Random(9);
+            for (int c = 0; c < 10000; ++c)
+            {
+                int addr = r.nextInt(size);
+                if (r.nextBoolean())
+                {
+                    heap.writeByte(addr, (byte)c, b);
+                    direct.writeByte(addr, (byte)c, b);
+                }
+                else
+                {
+                    heap.writeWord(addr & ~3, c * 31, b);
+                    direct.writeWord(addr & ~3, c * 31, b);
+                }
+            }
+            for (int c = 0; c < size; c += 4)
+                assertEquals(heap.readWord(c, b), direct.readWord(c, b));
+            for (int c = 0; c < size; ++c)
+                assertEquals(heap.readByte(c, b), direct.readByte(c, b));
+
+            try
+            {
+                new Memory(new DirectMemoryBackend(Memory.MIN_SIZE * 3));
+                fail("size must be a power of 2");
+            }
+            catch (IllegalArgumentException e) {}
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testDirectBackend");
+        }
+    }
+
+    /**
+     * Test that a sparse memory reads zero until written, only allocates the
+     * pages written to and agrees with a heap memory
+     */
+    @Test
+    public void testSparseBackend()
+    {
+        try
+        {
+            Memory m = new Memory(new SparseMemoryBackend(1L << 32));
+            Bound b = new Bound(0x40000000, Integer.MAX_VALUE);
+            assertEquals(1L << 32, m.getLongSize());
+            assertEquals(Integer.MAX_VALUE, m.getSize());
+            assertEquals(0, m.getFootprint());
+
+            assertEquals(0, m.readWord(0x10000000, b));
+            m.writeWord(0x10000000, 0, b);
+            assertEquals(0, m.getFootprint());
+
+            m.writeWord(0x10000000, 5, b);
+            m.writeByte(0x10000ffe, (byte)6, b);
+            m.writeWord(0x3ffffffc, 7, b);
+            assertEquals(2 * SparseMemoryBackend.PAGE_SIZE, m.getFootprint());
+            assertEquals(5, m.readWord(0x10000000, b));
+            assertEquals(6, m.readByte(0x10000ffe, b));
+            assertEquals(7, m.readWord(0x3ffffffc, b));
+            assertEquals(0, m.readWord(0x10001000, b));
+
+            //addresses are unsigned, so the top half is there too
+            Bound whole = new Bound(0, 0xfffffffc);
+            m.writeWord(0x80000000, 8, whole);
+            m.writeByte(0xffffffff, (byte)9, whole);
+            assertEquals(8, m.readWord(0x80000000, whole));
+            assertEquals(9, m.readByte(0xffffffff, whole));
+            assertEquals(7, m.readWord(0x7ffffffc, whole)); //written through b
+            try
+            {
+                m.readWord(0x80000000, b);
+                fail("read past the bound");
+            }
+            catch (memsim.exceptions.MemoryAccessException e) {}
+
+            int size = 1 << 16;
+            Memory heap = new Memory(size);
+            Memory sparse = new Memory(new SparseMemoryBackend(size));
+            Bound all = new Bound(0, size - 4);
+            java.util.Random r = new java.util.Random(10);
+            for (int c = 0; c < 10000; ++c)
+            {
+                int addr = r.nextInt(size) & ~3;
+                heap.writeWord(addr, c, all);
+                sparse.writeWord(addr, c, all);
+                addr = r.nextInt(size) & ~3;
+                assertEquals(heap.readWord(addr, all), sparse.readWord(addr, all));
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testSparseBackend");
+        }
+    }
+
+    /**
+     * Test that reset zeroes every backend and tells the listeners
+     */
+    @Test
+    public void testReset()
+    {
+        int size = 1 << 16;
+        MemoryBackend[] backends = {new HeapMemoryBackend(size), new DirectMemoryBackend(size),
+                                    new SparseMemoryBackend(size)};
+        Bound all = new Bound(0, size - 4);
+        try
+        {
+            for (MemoryBackend backend : backends)
+            {
+                Memory m = new Memory(backend);
+                final long[] written = {-1, -1};
+                m.addWriteListener(new Memory.WriteListener() {
+                    public void wordsWritten(long fromAddr, long toAddr)
+                    {
+                        written[0] = fromAddr;
+                        written[1] = toAddr;
+                    }
+                });
+                for (int addr = 0; addr < size; addr += 256)
+                    m.writeWord(addr, addr + 1, all);
+
+                m.reset();
+                for (int addr = 0; addr < size; addr += 4)
+                    assertEquals(0, m.readWord(addr, all));
+                assertEquals(0, written[0]);
+                assertEquals(size - 4, written[1]);
+            }
+            assertEquals(0, backends[2].getFootprint());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testReset");
+        }
+    }
+
+    /**
+     * Test that reset only zeroes (and tells listeners about) the pages written
+     */
+    @Test
+    public void testDirtyPages()
+    {
+        int size = 1 << 20, page = 1 << Memory.DIRTY_PAGE_SHIFT;
+        Bound all = new Bound(0, size - 4);
+        try
+        {
+            for (MemoryBackend backend : new MemoryBackend[] {new HeapMemoryBackend(size),
+                    new SparseMemoryBackend(size)})
+            {
+                Memory m = new Memory(backend);
+                final java.util.List<String> zeroed = new java.util.ArrayList<String>();
+                m.addWriteListener(new Memory.WriteListener() {
+                    public void wordsWritten(long fromAddr, long toAddr)
+                    {
+                        zeroed.add(fromAddr + "-" + toAddr);
+                    }
+                });
+                m.writeWord(3 * page + 8, 1, all);
+                m.writeByte(4 * page + 5, (byte)2, all);
+                m.writeWord(10 * page, 3, all);
+                m.writeWord(size - 4, 4, all);
+                assertEquals(4, m.getDirtyPageCount());
+
+                zeroed.clear();
+                m.reset();
+                assertEquals(0, m.getDirtyPageCount());
+                assertEquals(java.util.Arrays.asList(3 * page + "-" + (5 * page - 4),
+                        10 * page + "-" + (11 * page - 4), (size - page) + "-" + (size - 4)), zeroed);
+                for (int addr = 0; addr < size; addr += 4)
+                    assertEquals(0, m.readWord(addr, all));
+                //the heap is all there all the time, the sparse pages written have gone
+                assertEquals(backend instanceof SparseMemoryBackend ? 0 : size, m.getFootprint());
+
+                m.reset(); //nothing to do
+                assertEquals(3, zeroed.size());
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testDirtyPages");
+        }
+    }
+
+    /**
+     * Test that a snapshot holds what the memory held when it was taken, that
+     * neither it nor the memory sees what the other writes afterwards, and
+     * that sparse memories only copy the pages that get written
+     */
+    @Test
+    public void testSnapshot()
+    {
+        int size = 1 << 20, page = SparseMemoryBackend.PAGE_SIZE;
+        Bound all = new Bound(0, size - 4);
+        try
+        {
+            for (MemoryBackend backend : new MemoryBackend[] {new HeapMemoryBackend(size),
+                    new DirectMemoryBackend(size), new SparseMemoryBackend(size)})
+            {
+                Memory m = new Memory(backend);
+                m.setLatency(3);
+                for (int c = 0; c < 8; ++c)
+                    m.writeWord(c * page, c + 1, all);
+
+                Memory s = m.snapshot();
+                assertEquals(3, s.getLatency());
+                assertEquals(8, s.getDirtyPageCount());
+                for (int c = 0; c < 8; ++c)
+                    assertEquals(c + 1, s.readWord(c * page, all));
+
+                m.writeWord(0, 100, all);
+                s.writeWord(page, 200, all);
+                s.writeWord(20 * page, 300, all);
+                assertEquals(100, m.readWord(0, all));
+                assertEquals(1, s.readWord(0, all));
+                assertEquals(2, m.readWord(page, all));
+                assertEquals(200, s.readWord(page, all));
+                assertEquals(0, m.readWord(20 * page, all));
+                assertEquals(300, s.readWord(20 * page, all));
+
+                s.reset();
+                assertEquals(0, s.readWord(2 * page, all));
+                assertEquals(3, m.readWord(2 * page, all));
+            }
+
+            SparseMemoryBackend sparse = new SparseMemoryBackend(size);
+            Memory m = new Memory(sparse);
+            for (int c = 0; c < 8; ++c)
+                m.writeWord(c * page, c + 1, all);
+            Memory s = m.snapshot();
+            SparseMemoryBackend copy = (SparseMemoryBackend)s.getBackend();
+            assertEquals(8, copy.getPageCount());
+            m.writeWord(4, 5, all);
+            m.writeWord(8, 6, all);
+            s.writeWord(3 * page, 7, all);
+            assertEquals(1, sparse.getCopiedPageCount());
+            assertEquals(1, copy.getCopiedPageCount());
+            assertEquals(1, s.readWord(0, all));
+            assertEquals(0, s.readWord(4, all));
+            assertEquals(4, m.readWord(3 * page, all));
+
+            //a snapshot of a snapshot shares pages with both
+            Memory s2 = s.snapshot();
+            s.writeWord(3 * page, 8, all);
+            assertEquals(7, s2.readWord(3 * page, all));
+            assertEquals(8, s.readWord(3 * page, all));
+            assertEquals(5, m.readWord(4, all));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testSnapshot");
+        }
+    }
+
+    /**
+     * Test that bytes land in words by the memory's byte order, whatever the
+     * backend, and that each alignment mode does what it says
+     */
+    @Test
+    public void testByteOrder()
+    {
+        try
+        {
+            java.io.File f = java.io.File.createTempFile("memsim", ".bin");
+            f.deleteOnExit();
+            java.io.FileOutputStream out = new java.io.FileOutputStream(f);
+            out.write(new byte[] {0x12, 0x34, 0x56, 0x78, (byte)0x9a, (byte)0xbc, (byte)0xde, (byte)0xf0, 0x01, 0x02});
+            out.close();
+
+            int size = Memory.MIN_SIZE;
+            Bound b = new Bound(0, size - 4);
+            ByteOrder[] orders = {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN};
+            for (ByteOrder order : orders)
+                for (MemoryBackend backend : new MemoryBackend[] {new HeapMemoryBackend(size),
+                        new ByteArrayMemoryBackend(size, ByteOrder.LITTLE_ENDIAN),
+                        new ByteArrayMemoryBackend(size, ByteOrder.BIG_ENDIAN), new SparseMemoryBackend(size)})
+                {
+                    Memory m = new Memory(backend, order);
+                    boolean little = order == ByteOrder.LITTLE_ENDIAN;
+                    assertEquals(order, m.getByteOrder());
+                    assertEquals(10, Memory.loadIntoMemory(m, f, -1, 8, b));
+                    assertEquals(little ? 0x78563412 : 0x12345678, m.readWord(8, b));
+                    assertEquals(little ? 0x0201 : 0x01020000, m.readWord(16, b));
+                    assertEquals((byte)0xbc, m.readByte(13, b));
+
+                    m.writeWord(0, 0x11223344, b);
+                    m.writeByte(1, (byte)0x55, b);
+                    assertEquals(little ? 0x11225544 : 0x11553344, m.readWord(0, b));
+                    assertEquals(little ? 0x44 : 0x11, m.readByte(0, b));
+
+                    //bytes 9 to 12 are 34 56 78 9a
+                    try
+                    {
+                        m.readWord(9, b);
+                        fail("unaligned read");
+                    }
+                    catch (IllegalArgumentException e) {}
+                    m.setAlignment(Memory.Alignment.ROTATE);
+                    assertEquals(Integer.rotateRight(m.readWord(8, b), 8), m.readWord(9, b));
+                    m.setAlignment(Memory.Alignment.UNALIGNED);
+                    assertEquals(little ? 0x9a785634 : 0x3456789a, m.readWord(9, b));
+                    m.writeWord(6, little ? 0x04030201 : 0x01020304, b);
+                    for (int c = 0; c < 4; ++c)
+                        assertEquals(c + 1, m.readByte(6 + c, b));
+                    assertEquals((byte)0x56, m.readByte(10, b));
+                    try
+                    {
+                        m.readWord(size - 2, b);
+                        fail("read past the bound");
+                    }
+                    catch (memsim.exceptions.MemoryAccessException e) {}
+
+                    Memory s = m.snapshot();
+                    assertEquals(order, s.getByteOrder());
+                    assertEquals(Memory.Alignment.UNALIGNED, s.getAlignment());
+                    assertEquals(m.readWord(7, b), s.readWord(7, b));
+                }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testByteOrder");
+        }
+    }
+
+    /**
+     * Test that halfwords are read and written in the memory's byte order,
+     * and odd addresses are dealt with as the alignment says
+     */
+    @Test
+    public void testHalfwords()
+    {
+        try
+        {
+            Bound b = new Bound(0, Memory.MIN_SIZE - 4);
+            for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN})
+            {
+                Memory m = new Memory(new HeapMemoryBackend(Memory.MIN_SIZE), order);
+                boolean little = order == ByteOrder.LITTLE_ENDIAN;
+                m.writeWord(0, 0x11223344, b);
+                assertEquals(little ? 0x3344 : 0x1122, m.readHalf(0, b));
+                assertEquals(little ? 0x1122 : 0x3344, m.readHalf(2, b));
+                m.writeHalf(2, (short)0xa566, b);
+                assertEquals(little ? 0xa5663344 : 0x1122a566, m.readWord(0, b));
+                assertEquals((short)0xa566, m.readHalf(2, b));
+
+                try
+                {
+                    m.readHalf(1, b);
+                    fail("unaligned read");
+                }
+                catch (IllegalArgumentException e) {}
+                m.setAlignment(Memory.Alignment.ROTATE);
+                assertEquals(m.readHalf(0, b), m.readHalf(1, b));
+                m.setAlignment(Memory.Alignment.UNALIGNED);
+                m.writeHalf(3, (short)0x7788, b);
+                assertEquals(0x7788, m.readHalf(3, b));
+                assertEquals(little ? (byte)0x88 : 0x77, m.readByte(3, b));
+                assertEquals(little ? 0x77 : (byte)0x88, m.readByte(4, b));
+                try
+                {
+                    m.writeHalf(Memory.MIN_SIZE - 1, (short)0, b);
+                    fail("wrote past the bound");
+                }
+                catch (memsim.exceptions.MemoryAccessException e) {}
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            fail("fault in testHalfwords");
+        }
+    }
+}
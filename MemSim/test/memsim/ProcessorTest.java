@@ -0,0 +1,192 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class ProcessorTest {
+    private static final int CORES = 1000;
+
+    public ProcessorTest() {
+    }
+
+    /**
+     * Test that every mode runs all of a thousand cores to completion and
+     * reports on each of them
+     */
+    @Test
+    public void testRunAll() throws Exception
+    {
+        for (Processor.ExecutionMode mode : Processor.ExecutionMode.values())
+        {
+            Processor p = ProcessorFactory.createProcessor(ProcessorFactory.MemoryArchitecture.VON_NEUMANN);
+            p.setCores(CORES);
+            List<CoreResult> results = p.runAll(mode);
+
+            assertFalse(p.isRunning());
+            assertEquals(CORES, results.size());
+            for (int c = 0; c < CORES; ++c)
+            {
+                CoreResult r = results.get(c);
+                assertEquals(c, r.getCoreIndex());
+                assertEquals(p.getCoreList().get(c).getInstructionCount(), r.getInstructions());
+                assertTrue(r.getInstructions() > 0);
+                assertArrayEquals(p.getCoreList().get(c).registers, r.getRegisters());
+                assertNotNull(r.getStopCause()); //fetches fall out of the bound
+            }
+        }
+    }
+
+    /**
+     * Test that each core of either architecture gets a segment of its own,
+     * beyond what the memory first held, keeping what was loaded before it
+     * grew, and that dropping cores drops the last ones
+     */
+    @Test
+    public void testSegments() throws Exception
+    {
+        final int cores = 16;
+        for (ProcessorFactory.MemoryArchitecture arch : ProcessorFactory.MemoryArchitecture.values())
+        {
+            Processor p = ProcessorFactory.createProcessor(arch);
+            Core first = p.getCoreList().get(0);
+            first.getProgramMemory().writeWord(0, 0xe3a00000, first.getProgramBound()); //mov r0, #0
+            p.setCores(cores);
+            assertEquals(cores, p.getCoreList().size());
+            for (int c = 1; c < cores; ++c)
+            {
+                Core core = p.getCoreList().get(c);
+                core.getProgramMemory().writeWord(0, 0xe3a00000 | c, core.getProgramBound()); //mov r0, #c
+            }
+            for (Core core : p.getCoreList())
+            {
+                core.getProgramMemory().writeWord(4, 0xe5810000, core.getProgramBound()); //str r0, [r1]
+                core.getProgramMemory().writeWord(8, 0xef000000, core.getProgramBound()); //swi
+            }
+
+            List<CoreResult> results = p.runAll(Processor.ExecutionMode.BOUNDED_POOL);
+            Memory data = p.getCoreList().get(0).getDataMemory();
+            Bound all = new Bound(0, data.getSize() - 4);
+            for (int c = 0; c < cores; ++c)
+            {
+                assertEquals(c, results.get(c).getRegisters()[0]);
+                assertEquals(3, results.get(c).getInstructions());
+                assertEquals(c, data.readWord(c * 256, all));
+            }
+
+            p.setCores(3);
+            assertEquals(3, p.getCores());
+            assertEquals(3, p.getCoreList().size());
+            assertEquals(2 * 256, p.getCoreList().get(2).getProgramBound().getLowerAddress());
+        }
+    }
+
+    /**
+     * Test that a processor can't be started twice at once, and can be once
+     * it's done
+     */
+    @Test
+    public void testStart() throws Exception
+    {
+        Processor p = ProcessorFactory.createProcessor(ProcessorFactory.MemoryArchitecture.HARVARD);
+        p.setCores(4);
+
+        //queue the cores up but don't run them yet
+        final java.util.List<Runnable> queued = new java.util.ArrayList<Runnable>();
+        CompletableFuture<List<CoreResult>> f = p.start(new Executor() {
+            public void execute(Runnable r)
+            {
+                queued.add(r);
+            }
+        });
+        assertTrue(p.isRunning());
+        try
+        {
+            p.start(Processor.ExecutionMode.BOUNDED_POOL);
+            fail("started twice");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+        try
+        {
+            p.setCores(2);
+            fail("changed cores while running");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+
+        for (Runnable r : queued)
+            r.run();
+        assertTrue(f.isDone());
+        assertEquals(4, f.get().size());
+        assertFalse(p.isRunning());
+
+        p.run();
+        assertFalse(p.isRunning());
+    }
+
+    /**
+     * Test that a processor forked part way through a run carries on from
+     * where it was, independently of the original
+     */
+    @Test
+    public void testFork() throws Exception
+    {
+        Processor p = ProcessorFactory.createProcessor(ProcessorFactory.MemoryArchitecture.VON_NEUMANN);
+        Core core = p.getCoreList().get(0);
+        Memory mem = core.getProgramMemory();
+        Bound all = new Bound(0, mem.getSize() - 4);
+        for (int addr = 0; addr < 40; addr += 4)
+            mem.writeWord(addr, 0xe0811002, all); //add r1, r1, r2
+
+        core.registers[2] = 1;
+        core.begin();
+        assertTrue(core.step(4));
+        assertEquals(4, core.registers[1]);
+
+        Processor q = p.fork();
+        Core fork = q.getCoreList().get(0);
+        assertEquals(1, q.getCores());
+        assertNotSame(mem, fork.getProgramMemory());
+        assertSame(fork.getProgramMemory(), fork.getDataMemory());
+        assertEquals(4, fork.getInstructionCount());
+        assertArrayEquals(core.registers, fork.registers);
+
+        fork.registers[2] = 10;
+        mem.writeWord(36, 0xe1a00000, all); //mov r0, r0 in the original only
+        assertFalse(core.step(Long.MAX_VALUE));
+        assertFalse(fork.step(Long.MAX_VALUE));
+        assertEquals(9, core.registers[1]);
+        assertEquals(64, fork.registers[1]);
+        assertEquals(core.getInstructionCount(), fork.getInstructionCount());
+
+        p.run();
+        assertEquals(9 + 9, core.registers[1]); //run starts again with r1 as it was left
+        try
+        {
+            p.start(new java.util.concurrent.Executor() {
+                public void execute(Runnable r)
+                {
+                }
+            });
+            p.fork();
+            fail("forked while running");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+    }
+}
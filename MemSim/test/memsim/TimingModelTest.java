@@ -0,0 +1,140 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class TimingModelTest {
+    private static final int MEMORY_SIZE = 128, INSTRUCTIONS = MEMORY_SIZE / 4;
+
+    public TimingModelTest() {
+    }
+
+    /**
+     * Run a program (padded with ANDEQ r0, r0, r0) through the whole of a small
+     * program memory and return its timing
+     */
+    private static TimingModel time(TimingModel.Pipeline pipeline, int[] program, int latency,
+            CacheConfig l1) throws Exception
+    {
+        Memory prog = new Memory(MEMORY_SIZE), data = new Memory(MEMORY_SIZE);
+        Bound b = new Bound(0, MEMORY_SIZE - 4);
+        for (int c = 0; c < program.length; ++c)
+            prog.writeWord(c * 4, program[c], b);
+        prog.setLatency(latency);
+
+        Core core = new Core(prog, b, data, b);
+        core.registers[1] = 16;
+        core.registers[2] = 3;
+        if (l1 != null)
+            core.setCaches(new CacheHierarchy(l1, l1, null));
+        TimingModel timing = new TimingModel(pipeline);
+        core.setTimingModel(timing);
+        core.run();
+        return timing;
+    }
+
+    /**
+     * Test that single cycle instructions have a CPI of 1 once the pipeline is full
+     */
+    @Test
+    public void testFill() throws Exception
+    {
+        for (TimingModel.Pipeline p : TimingModel.Pipeline.values())
+        {
+            TimingModel t = time(p, new int[0], 1, null);
+            assertEquals(INSTRUCTIONS, t.getInstructions());
+            assertEquals(INSTRUCTIONS + p.getStages() - 1, t.getCycles());
+            assertEquals(p.getStages() - 1, t.getStalls(TimingModel.FILL));
+        }
+    }
+
+    /**
+     * Test that using a loaded register straight away interlocks on five stages
+     * only, and that loads take extra execute cycles on three
+     */
+    @Test
+    public void testLoadUse() throws Exception
+    {
+        int[] program = {0xe5915000,  //LDR r5, [r1]
+                         0xe2856001}; //ADD r6, r5, #1
+        TimingModel three = time(TimingModel.Pipeline.THREE_STAGE, program, 1, null),
+                    five = time(TimingModel.Pipeline.FIVE_STAGE, program, 1, null);
+        assertEquals(0, three.getStalls(TimingModel.INTERLOCK));
+        assertEquals(2, three.getStalls(TimingModel.TRANSFER));
+        assertEquals(1, five.getStalls(TimingModel.INTERLOCK));
+        assertEquals(0, five.getStalls(TimingModel.TRANSFER));
+        assertEquals(INSTRUCTIONS + 4 + 1, five.getCycles());
+
+        program[1] = 0xe2816001;      //ADD r6, r1, #1, no dependency
+        five = time(TimingModel.Pipeline.FIVE_STAGE, program, 1, null);
+        assertEquals(0, five.getStalls(TimingModel.INTERLOCK));
+    }
+
+    /**
+     * Test multiply and register shift cycles
+     */
+    @Test
+    public void testMultiplyAndShift() throws Exception
+    {
+        int[] program = {0xe0030293,  //MUL r3, r3, r2
+                         0xe0234293,  //MLA r3, r3, r2, r4
+                         0xe0d54293,  //SMULL r4, r5, r3, r2
+                         0xe1833233}; //ORR r3, r3, r3, LSR r2
+        TimingModel t = time(TimingModel.Pipeline.FIVE_STAGE, program, 1, null);
+        assertEquals((TimingModel.DEFAULT_MULTIPLY_CYCLES - 1) + TimingModel.DEFAULT_MULTIPLY_CYCLES
+                + (TimingModel.DEFAULT_LONG_MULTIPLY_CYCLES - 1), t.getStalls(TimingModel.MULTIPLY));
+        assertEquals(1, t.getStalls(TimingModel.SHIFT));
+        //MLA needs r3 from MUL, SMULL needs it from MLA, but the ORR doesn't use r4/r5
+        assertEquals(2, t.getStalls(TimingModel.INTERLOCK));
+    }
+
+    /**
+     * Test that every taken branch refills the pipeline
+     */
+    @Test
+    public void testBranches() throws Exception
+    {
+        Memory prog = new Memory(1024), data = new Memory(1024);
+        Bound b = new Bound(0, 1020);
+        int[] program = {0xe2811004, 0xe0222101, 0xe08330a2, 0xe2644064,
+                         0xe3c350f0, 0xe1e061c5, 0xe5917000, 0xeafffff7};
+        for (int c = 0; c < program.length; ++c)
+            prog.writeWord(c * 4, program[c], b);
+
+        Core core = new Core(prog, b, data, b);
+        TimingModel t = new TimingModel(TimingModel.Pipeline.THREE_STAGE);
+        core.setTimingModel(t);
+        core.setJitEnabled(true, 1); //bypassed
+        core.run();
+
+        long loops = t.getInstructions() / program.length;
+        assertTrue(loops > 100);
+        assertEquals(TimingModel.BRANCH_PENALTY * loops, t.getStalls(TimingModel.BRANCH));
+        assertEquals(0, core.getJitCompiledCount());
+    }
+
+    /**
+     * Test wait states with and without an instruction cache in front of memory
+     */
+    @Test
+    public void testMemoryLatency() throws Exception
+    {
+        TimingModel t = time(TimingModel.Pipeline.THREE_STAGE, new int[0], 3, null);
+        assertEquals(INSTRUCTIONS * 2, t.getStalls(TimingModel.MEMORY));
+
+        CacheConfig l1 = new CacheConfig(256, 2, 32, CacheConfig.Replacement.LRU,
+                CacheConfig.WritePolicy.WRITE_BACK, 1);
+        t = time(TimingModel.Pipeline.THREE_STAGE, new int[0], 10, l1);
+        assertEquals(MEMORY_SIZE / 32 * 10, t.getStalls(TimingModel.MEMORY)); //one miss per line
+        assertTrue(t.getCpi() < 3);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package memsim;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author rdeva
+ */
+public class TraceBufferTest {
+
+    public TraceBufferTest() {
+    }
+
+    /**
+     * The dump dump() should write for the given accesses, oldest first
+     */
+    private static byte[] expectedDump(long total, int[][] accesses)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(20 + accesses.length * 9); //big endian
+        buf.putInt(TraceBuffer.MAGIC);
+        buf.putInt(TraceBuffer.VERSION);
+        buf.putLong(total);
+        buf.putInt(accesses.length);
+        for (int[] a : accesses)
+        {
+            buf.put((byte)a[0]);
+            buf.putInt(a[1]);
+            buf.putInt(a[2]);
+        }
+        return buf.array();
+    }
+
+    private static byte[] dump(TraceBuffer trace) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.dump(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Test the exact bytes written for a buffer that hasn't filled up
+     */
+    @Test
+    public void testDumpLayout() throws Exception
+    {
+        TraceBuffer trace = new TraceBuffer(8);
+        trace.access(AccessTracer.FETCH, 0x100, 0xe2811004);
+        trace.access(AccessTracer.READ_WORD, 0x80000000, -1);
+        trace.access(AccessTracer.WRITE_HALF, 0x202, 0xbeef);
+
+        byte[] bytes = dump(trace);
+        assertEquals(4 + 4 + 8 + 4 + 3 * (1 + 4 + 4), bytes.length);
+        assertArrayEquals(expectedDump(3, new int[][] {
+            {AccessTracer.FETCH, 0x100, 0xe2811004},
+            {AccessTracer.READ_WORD, 0x80000000, -1},
+            {AccessTracer.WRITE_HALF, 0x202, 0xbeef}}), bytes);
+
+        assertArrayEquals(expectedDump(0, new int[0][]), dump(new TraceBuffer(8)));
+    }
+
+    /**
+     * Test that a full ring overwrites its oldest accesses and dumps the rest oldest first
+     */
+    @Test
+    public void testWrapAround() throws Exception
+    {
+        TraceBuffer trace = new TraceBuffer(4);
+        assertEquals(4, trace.getCapacity());
+        for (int c = 0; c < 6; ++c)
+            trace.access(AccessTracer.READ_BYTE, c * 4, c);
+
+        assertEquals(4, trace.size());
+        assertEquals(6, trace.getTotal());
+        assertArrayEquals(expectedDump(6, new int[][] {
+            {AccessTracer.READ_BYTE, 8, 2},
+            {AccessTracer.READ_BYTE, 12, 3},
+            {AccessTracer.READ_BYTE, 16, 4},
+            {AccessTracer.READ_BYTE, 20, 5}}), dump(trace));
+
+        //exactly full, the slot the next access goes in is the oldest's
+        for (int c = 6; c < 8; ++c)
+            trace.access(AccessTracer.WRITE_BYTE, c * 4, c);
+        assertEquals(4, trace.size());
+        assertArrayEquals(expectedDump(8, new int[][] {
+            {AccessTracer.READ_BYTE, 16, 4},
+            {AccessTracer.READ_BYTE, 20, 5},
+            {AccessTracer.WRITE_BYTE, 24, 6},
+            {AccessTracer.WRITE_BYTE, 28, 7}}), dump(trace));
+    }
+
+    /**
+     * Test that the per kind totals count every access, including those
+     * overwritten in the ring, and that clear() resets them
+     */
+    @Test
+    public void testKindTotals() throws Exception
+    {
+        TraceBuffer trace = new TraceBuffer(2);
+        int[] expected = new int[AccessTracer.KINDS];
+        for (int c = 0; c < 100; ++c)
+        {
+            int kind = (c * 5) % AccessTracer.KINDS;
+            trace.access(kind, c, c);
+            ++expected[kind];
+        }
+
+        long sum = 0;
+        for (int kind = 0; kind < AccessTracer.KINDS; ++kind)
+        {
+            assertEquals(expected[kind], trace.getTotal(kind));
+            sum += trace.getTotal(kind);
+        }
+        assertEquals(100, sum);
+        assertEquals(100, trace.getTotal());
+        assertEquals(2, trace.size());
+
+        trace.clear();
+        assertEquals(0, trace.getTotal());
+        assertEquals(0, trace.size());
+        for (int kind = 0; kind < AccessTracer.KINDS; ++kind)
+            assertEquals(0, trace.getTotal(kind));
+        assertArrayEquals(expectedDump(0, new int[0][]), dump(trace));
+
+        trace.access(AccessTracer.WRITE_WORD, 4, 5);
+        assertEquals(1, trace.getTotal(AccessTracer.WRITE_WORD));
+        assertArrayEquals(expectedDump(1, new int[][] {{AccessTracer.WRITE_WORD, 4, 5}}), dump(trace));
+    }
+
+    /**
+     * Test that capacities which aren't a power of 2 are turned away
+     */
+    @Test
+    public void testCapacity()
+    {
+        for (int capacity : new int[] {0, -4, 3, 12})
+        {
+            try
+            {
+                new TraceBuffer(capacity);
+                fail("capacity " + capacity);
+            }
+            catch (IllegalArgumentException e)
+            {
+            }
+        }
+        assertEquals(1, new TraceBuffer(1).getCapacity());
+    }
+}